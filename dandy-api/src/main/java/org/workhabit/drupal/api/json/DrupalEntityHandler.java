@@ -0,0 +1,12 @@
+package org.workhabit.drupal.api.json;
+
+/**
+ * Receives entities one at a time as they are read from a response stream.  Implementations should process (or
+ * discard) each entity as it arrives, so that only one entity needs to be held in memory at a time.
+ *
+ * @param <T> the entity type
+ */
+public interface DrupalEntityHandler<T>
+{
+    void handleEntity(T entity);
+}
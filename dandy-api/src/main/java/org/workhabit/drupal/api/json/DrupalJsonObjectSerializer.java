@@ -1,14 +1,16 @@
 package org.workhabit.drupal.api.json;
 
 import com.google.gson.*;
-import org.json.JSONArray;
+import com.google.gson.stream.JsonReader;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
 import org.workhabit.drupal.api.entity.drupal7.DrupalField;
-import org.workhabit.drupal.api.entity.drupal7.DrupalTaxonomyTerm;
 import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.*;
 
 /**
@@ -18,6 +20,7 @@ import java.util.*;
 public class DrupalJsonObjectSerializer<T> {
     private final Class<T> clazz;
     private final Gson gson;
+    private final DrupalNodeReader nodeReader;
 
     DrupalJsonObjectSerializer(Class<T> clazz) {
         this.clazz = clazz;
@@ -39,6 +42,7 @@ public class DrupalJsonObjectSerializer<T> {
         });
         builder.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES);
         gson = builder.create();
+        nodeReader = clazz == DrupalNode.class ? new DrupalNodeReader() : null;
     }
 
     public String serialize(T object) throws JSONException {
@@ -77,89 +81,75 @@ public class DrupalJsonObjectSerializer<T> {
     }
 
     public T unserialize(String json) throws DrupalFetchException, JSONException {
-        JSONObject dataObject = new JSONObject(json);
-        T t = gson.fromJson(json, clazz);
-        if (clazz == DrupalNode.class) {
-            // special handling for cck fields.
-            Iterator keys = dataObject.keys();
-            Map<String, DrupalField> fields = new HashMap<String, DrupalField>();
-            HashMap<Integer, DrupalTaxonomyTerm> terms = new HashMap<Integer, DrupalTaxonomyTerm>();
-            while (keys.hasNext()) {
-                String name = (String) keys.next();
-                if (name.startsWith("field_")) {
-                    // process cck field
-                    //
-                    DrupalField field = new DrupalField();
-                    ArrayList<HashMap<String, String>> values = new ArrayList<HashMap<String, String>>();
-                    JSONArray cckFieldArray = dataObject.getJSONArray(name);
-                    for (int i = 0; i < cckFieldArray.length(); i++) {
-                        if (cckFieldArray.isNull(i)) {
-                            continue;
-                        }
-                        JSONObject o = cckFieldArray.getJSONObject(i);
-                        field.setName(name);
-                        Iterator objectKeys = o.keys();
-                        HashMap<String, String> valueMap = new HashMap<String, String>();
-                        while (objectKeys.hasNext()) {
-                            String next = (String) objectKeys.next();
-                            valueMap.put(next, o.getString(next));
-                        }
-                        values.add(valueMap);
-                    }
-                    field.setValues(values);
-                    fields.put(field.getName(), field);
-                } else if ("taxonomy".equals(name)) {
-                    // handle serialization of Taxonomy differently than normal maps
-                    Object taxonomy = dataObject.get("taxonomy");
-                    if (taxonomy instanceof JSONArray) {
-                        // empty
-                    } else {
-                        JSONObject taxonomyObject = (JSONObject) taxonomy;
-                        Iterator iterator = taxonomyObject.keys();
-                        DrupalJsonObjectSerializer<DrupalTaxonomyTerm> taxonomyTermDrupalJsonObjectSerializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalTaxonomyTerm.class);
-                        while (iterator.hasNext()) {
-                            String next = (String) iterator.next();
-                            JSONObject taxonomyTerm = taxonomyObject.getJSONObject(next);
-                            DrupalTaxonomyTerm term = taxonomyTermDrupalJsonObjectSerializer.unserialize(taxonomyTerm.toString());
-                            terms.put(term.getTid(), term);
-                        }
-
-                    }
-                }
+        try {
+            return read(new JsonReader(new StringReader(json)));
+        } catch (IOException e) {
+            throw new DrupalFetchException(e);
+        }
+    }
 
+    /**
+     * Reads a single entity from the current position of the reader.  Nodes are bound token by token by
+     * {@link DrupalNodeReader}; other entities are bound reflectively.
+     *
+     * @param reader a reader positioned at the start of an entity
+     * @return the populated entity
+     * @throws IOException          if there's an error reading from the stream.
+     * @throws DrupalFetchException if the data doesn't have the expected structure.
+     */
+    private T read(JsonReader reader) throws IOException, DrupalFetchException {
+        try {
+            if (nodeReader != null) {
+                return clazz.cast(nodeReader.read(reader));
             }
-            DrupalNode n = (DrupalNode) t;
-            n.setFields(fields);
-            n.setTaxonomy(terms);
+            return gson.<T>fromJson(reader, clazz);
+        } catch (JsonParseException e) {
+            throw new DrupalFetchException(e);
+        } catch (IllegalStateException e) {
+            throw new DrupalFetchException(e);
+        } catch (NumberFormatException e) {
+            throw new DrupalFetchException(e);
         }
-        return t;
     }
 
-    private JSONObject extractDataObject(String json) throws JSONException, DrupalFetchException {
-        JSONObject objectResult = new JSONObject(json);
-        assertNoErrors(objectResult);
-        if (objectResult.has("#data")) {
-            return objectResult.getJSONObject("#data");
+    /**
+     * Reads a json array of entities from the given reader, handing each entity to the handler as soon as it has been
+     * read.  Unlike {@link #unserializeList(String)} the response is never held in memory as a whole: only the entity
+     * currently being bound is.
+     *
+     * @param reader  a reader positioned at the start of a json array
+     * @param handler receives each entity in order
+     * @return the number of entities read
+     * @throws IOException          if there's an error reading from the stream.
+     * @throws DrupalFetchException if the data isn't a well formed list of entities.
+     */
+    public int unserializeList(Reader reader, DrupalEntityHandler<T> handler) throws IOException, DrupalFetchException {
+        JsonReader jsonReader = new JsonReader(reader);
+        int count = 0;
+        try {
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                handler.handleEntity(read(jsonReader));
+                count++;
+            }
+            jsonReader.endArray();
+        } catch (IllegalStateException e) {
+            throw new DrupalFetchException(e);
         }
-        return objectResult;
+        return count;
     }
 
     public List<T> unserializeList(String json) throws DrupalFetchException, JSONException {
-        JSONArray jsonArray = extractDataArray(json);
-        List<T> list = new ArrayList<T>();
-        for (int i = 0; i < jsonArray.length(); i++) {
-            list.add(unserialize(jsonArray.getJSONObject(i).toString()));
+        final List<T> list = new ArrayList<T>();
+        try {
+            unserializeList(new StringReader(json), new DrupalEntityHandler<T>() {
+                public void handleEntity(T entity) {
+                    list.add(entity);
+                }
+            });
+        } catch (IOException e) {
+            throw new DrupalFetchException(e);
         }
         return list;
     }
-
-    private JSONArray extractDataArray(String json) throws JSONException {
-        return new JSONArray(json);
-    }
-
-    private void assertNoErrors(JSONObject objectResult) throws JSONException, DrupalFetchException {
-        if (objectResult.has("#error") && objectResult.getBoolean("#error")) {
-            throw new DrupalFetchException(objectResult);
-        }
-    }
 }
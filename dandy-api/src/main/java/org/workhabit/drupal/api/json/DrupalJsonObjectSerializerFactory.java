@@ -2,8 +2,8 @@ package org.workhabit.drupal.api.json;
 
 import org.workhabit.drupal.api.entity.drupal7.DrupalEntity;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -11,16 +11,24 @@ import java.util.Map;
  */
 public class DrupalJsonObjectSerializerFactory
 {
-    private static final Map<Class<? extends DrupalEntity>, DrupalJsonObjectSerializer> instances = new HashMap<Class<? extends DrupalEntity>, DrupalJsonObjectSerializer>();
+    private static final ConcurrentMap<Class<? extends DrupalEntity>, DrupalJsonObjectSerializer> instances = new ConcurrentHashMap<Class<? extends DrupalEntity>, DrupalJsonObjectSerializer>();
 
+    /**
+     * @return the serializer for the class.  Serializers are stateless, so one instance per class is shared by every
+     *         site context and thread.
+     */
     public static <T extends DrupalEntity> DrupalJsonObjectSerializer<T> getInstance(Class<T> clazz)
     {
-        if (!instances.containsKey(clazz)) {
-            DrupalJsonObjectSerializer<T> serializer = new DrupalJsonObjectSerializer<T>(clazz);
-            instances.put(clazz, serializer);
+        DrupalJsonObjectSerializer serializer = instances.get(clazz);
+        if (serializer == null) {
+            serializer = new DrupalJsonObjectSerializer<T>(clazz);
+            DrupalJsonObjectSerializer existing = instances.putIfAbsent(clazz, serializer);
+            if (existing != null) {
+                serializer = existing;
+            }
         }
         //noinspection unchecked
-        return instances.get(clazz);
+        return serializer;
     }
 
     private DrupalJsonObjectSerializerFactory()
@@ -0,0 +1,311 @@
+package org.workhabit.drupal.api.json;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.workhabit.drupal.api.entity.drupal7.DrupalBody;
+import org.workhabit.drupal.api.entity.drupal7.DrupalField;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.entity.drupal7.DrupalTaxonomyTerm;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reads a {@link DrupalNode} directly from a token stream in a single pass.  Bean properties, cck field_* arrays and
+ * the taxonomy map are all bound as their tokens are read, so the node is never materialized as a String, a
+ * JSONObject or a Gson tree.
+ * <p/>
+ * The mapping mirrors the reflective one used by {@link DrupalJsonObjectSerializer}: lower case, underscore separated
+ * names, unix timestamps for dates and 1/0 for booleans.  Unknown properties are skipped.
+ */
+class DrupalNodeReader
+{
+    private final JsonParser parser = new JsonParser();
+
+    public DrupalNode read(JsonReader reader) throws IOException, DrupalFetchException
+    {
+        DrupalNode node = new DrupalNode();
+        Map<String, DrupalField> fields = new HashMap<String, DrupalField>();
+        HashMap<Integer, DrupalTaxonomyTerm> terms = new HashMap<Integer, DrupalTaxonomyTerm>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            }
+            else if (name.startsWith("field_")) {
+                fields.put(name, readField(reader, name));
+            }
+            else if ("taxonomy".equals(name)) {
+                readTaxonomy(reader, terms);
+            }
+            else if ("body".equals(name)) {
+                node.setBody(readBody(reader));
+            }
+            else if ("nid".equals(name)) {
+                node.setNid(reader.nextInt());
+            }
+            else if ("uid".equals(name)) {
+                node.setUid(reader.nextInt());
+            }
+            else if ("type".equals(name)) {
+                node.setType(readString(reader));
+            }
+            else if ("status".equals(name)) {
+                node.setStatus(readBoolean(reader));
+            }
+            else if ("title".equals(name)) {
+                node.setTitle(readString(reader));
+            }
+            else if ("comment".equals(name)) {
+                node.setComment(reader.nextInt());
+            }
+            else if ("promote".equals(name)) {
+                node.setPromote(readBoolean(reader));
+            }
+            else if ("moderate".equals(name)) {
+                node.setModerate(readBoolean(reader));
+            }
+            else if ("sticky".equals(name)) {
+                node.setSticky(readBoolean(reader));
+            }
+            else if ("log".equals(name)) {
+                node.setLog(readString(reader));
+            }
+            else if ("revision_timestamp".equals(name)) {
+                node.setRevisionTimestamp(readDate(reader));
+            }
+            else if ("format".equals(name)) {
+                node.setFormat(reader.nextInt());
+            }
+            else if ("name".equals(name)) {
+                node.setName(readString(reader));
+            }
+            else if ("picture".equals(name)) {
+                node.setPicture(readString(reader));
+            }
+            else if ("data".equals(name)) {
+                node.setData(readString(reader));
+            }
+            else if ("last_comment_timestamp".equals(name)) {
+                node.setLastCommentTimestamp(readDate(reader));
+            }
+            else if ("last_comment_name".equals(name)) {
+                node.setLastCommentName(readString(reader));
+            }
+            else if ("comment_count".equals(name)) {
+                node.setCommentCount(reader.nextInt());
+            }
+            else if ("language".equals(name)) {
+                node.setLanguage(readString(reader));
+            }
+            else if ("created".equals(name)) {
+                node.setCreated(readDate(reader));
+            }
+            else if ("changed".equals(name)) {
+                node.setChanged(readDate(reader));
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        node.setFields(fields);
+        node.setTaxonomy(terms);
+        return node;
+    }
+
+    private DrupalField readField(JsonReader reader, String name) throws IOException, DrupalFetchException
+    {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            throw new DrupalFetchException(String.format("Expected an array for field %s", name));
+        }
+        DrupalField field = new DrupalField();
+        ArrayList<HashMap<String, String>> values = new ArrayList<HashMap<String, String>>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            field.setName(name);
+            HashMap<String, String> valueMap = new HashMap<String, String>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                valueMap.put(reader.nextName(), readValueAsString(reader));
+            }
+            reader.endObject();
+            values.add(valueMap);
+        }
+        reader.endArray();
+        field.setValues(values);
+        return field;
+    }
+
+    private void readTaxonomy(JsonReader reader, HashMap<Integer, DrupalTaxonomyTerm> terms) throws IOException
+    {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            // an empty taxonomy is sent as an array
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.nextName();
+            DrupalTaxonomyTerm term = readTerm(reader);
+            terms.put(term.getTid(), term);
+        }
+        reader.endObject();
+    }
+
+    private DrupalTaxonomyTerm readTerm(JsonReader reader) throws IOException
+    {
+        DrupalTaxonomyTerm term = new DrupalTaxonomyTerm();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            }
+            else if ("tid".equals(name)) {
+                term.setTid(reader.nextInt());
+            }
+            else if ("vid".equals(name)) {
+                term.setVid(reader.nextInt());
+            }
+            else if ("name".equals(name)) {
+                term.setName(readString(reader));
+            }
+            else if ("description".equals(name)) {
+                term.setDescription(readString(reader));
+            }
+            else if ("weight".equals(name)) {
+                term.setWeight(reader.nextInt());
+            }
+            else if ("depth".equals(name)) {
+                term.setDepth(reader.nextInt());
+            }
+            else if ("node_count".equals(name)) {
+                term.setNodeCount(reader.nextInt());
+            }
+            else if ("parents".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                List<Integer> parents = new ArrayList<Integer>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parents.add(reader.nextInt());
+                }
+                reader.endArray();
+                term.setParents(parents);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return term;
+    }
+
+    private Map<String, List<DrupalBody>> readBody(JsonReader reader) throws IOException
+    {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            // an empty body is sent as an array
+            reader.skipValue();
+            return null;
+        }
+        Map<String, List<DrupalBody>> body = new LinkedHashMap<String, List<DrupalBody>>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String language = reader.nextName();
+            List<DrupalBody> values = new ArrayList<DrupalBody>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                values.add(readBodyValue(reader));
+            }
+            reader.endArray();
+            body.put(language, values);
+        }
+        reader.endObject();
+        return body;
+    }
+
+    private DrupalBody readBodyValue(JsonReader reader) throws IOException
+    {
+        DrupalBody body = new DrupalBody();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            }
+            else if ("value".equals(name)) {
+                body.setValue(readString(reader));
+            }
+            else if ("summary".equals(name)) {
+                body.setSummary(readString(reader));
+            }
+            else if ("format".equals(name)) {
+                body.setFormat(readString(reader));
+            }
+            else if ("safe_value".equals(name)) {
+                body.setSafeValue(readString(reader));
+            }
+            else if ("safe_summary".equals(name)) {
+                body.setSafeSummary(readString(reader));
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return body;
+    }
+
+    private String readString(JsonReader reader) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * cck values are kept as strings; nested structures are kept as their json text.
+     */
+    private String readValueAsString(JsonReader reader) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+            JsonElement element = parser.parse(reader);
+            return element.toString();
+        }
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return "null";
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+
+    private Boolean readBoolean(JsonReader reader) throws IOException
+    {
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        return reader.nextInt() == 1;
+    }
+
+    private Date readDate(JsonReader reader) throws IOException
+    {
+        return new Date(reader.nextLong() * 1000);
+    }
+}
@@ -0,0 +1,79 @@
+package org.workhabit.drupal.api.site;
+
+import org.workhabit.drupal.api.entity.drupal7.*;
+import org.workhabit.drupal.api.site.support.DrupalFuture;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Non-blocking counterpart to {@link Drupal7SiteContext}.  Each method submits the corresponding blocking call to an
+ * executor and returns immediately with a future for its result.  Failures are reported through the future: the
+ * cause of the {@link java.util.concurrent.ExecutionException} (or the throwable passed to
+ * {@link org.workhabit.drupal.api.site.support.DrupalFutureListener#onFailure(Throwable)}) is the exception the
+ * blocking call would have thrown.
+ * <p/>
+ * Cancelling a future aborts its HTTP request if it is in flight.
+ */
+public interface AsyncDrupal7SiteContext
+{
+    /**
+     * @return the blocking site context that requests are delegated to.
+     */
+    Drupal7SiteContext getSiteContext();
+
+    /**
+     * @see Drupal7SiteContext#getNode(int)
+     */
+    DrupalFuture<DrupalNode> getNode(int nid);
+
+    /**
+     * @see Drupal7SiteContext#getNodeView(String, String, int, int)
+     */
+    DrupalFuture<List<DrupalNode>> getNodeView(String viewName, String viewArguments, int offset, int limit);
+
+    /**
+     * @see Drupal7SiteContext#getComments(int)
+     */
+    DrupalFuture<List<DrupalComment>> getComments(int nid);
+
+    /**
+     * @see Drupal7SiteContext#getUser(int)
+     */
+    DrupalFuture<DrupalUser> getUser(int uid);
+
+    /**
+     * @see Drupal7SiteContext#login(String, String)
+     */
+    DrupalFuture<DrupalUser> login(String username, String password);
+
+    /**
+     * @see Drupal7SiteContext#saveNode(DrupalNode)
+     */
+    DrupalFuture<Integer> saveNode(DrupalNode node);
+
+    /**
+     * @see Drupal7SiteContext#saveComment(DrupalComment)
+     */
+    DrupalFuture<Integer> saveComment(DrupalComment comment);
+
+    /**
+     * @see Drupal7SiteContext#saveFileStream(InputStream, String)
+     */
+    DrupalFuture<DrupalFile> saveFileStream(InputStream inputStream, String fileName);
+
+    /**
+     * @see Drupal7SiteContext#getFileStream(String)
+     */
+    DrupalFuture<InputStream> getFileStream(String filepath);
+
+    /**
+     * Runs arbitrary work on the same executor, e.g. a sequence of blocking calls that should complete as a unit.
+     * Requests made by the work are aborted if the returned future is cancelled.
+     *
+     * @param work the work to run.
+     * @return a future for the work's result.
+     */
+    <V> DrupalFuture<V> submit(Callable<V> work);
+}
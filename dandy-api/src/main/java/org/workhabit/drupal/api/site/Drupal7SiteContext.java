@@ -1,16 +1,21 @@
 package org.workhabit.drupal.api.site;
 
 import org.workhabit.drupal.api.entity.drupal7.*;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
 import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
 import org.workhabit.drupal.api.site.exceptions.DrupalLoginException;
 import org.workhabit.drupal.api.site.exceptions.DrupalLogoutException;
 import org.workhabit.drupal.api.site.exceptions.DrupalSaveException;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
+import org.workhabit.drupal.api.site.support.DrupalBulkResult;
 import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.http.TransferProgressListener;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -58,6 +63,20 @@ public interface Drupal7SiteContext
      */
     List<DrupalNode> getNodeView(String viewName, String viewArguments, int offset, int limit) throws DrupalFetchException;
 
+    /**
+     * streaming form of {@link #getNodeView(String, String, int, int)}.  Nodes are read from the response as it
+     * arrives and passed to the handler one at a time, so the view never needs to be held in memory as a whole.
+     *
+     * @param viewName      the name of the view
+     * @param viewArguments a list of arguments to pass to the view.  If there are no arguments, pass null.
+     * @param offset        an integer specifying the offset (from zero) to return.
+     * @param limit         the number of results to return.
+     * @param handler       receives each node in view order.
+     * @return the number of nodes passed to the handler
+     * @throws DrupalFetchException if there was an error during the request.
+     */
+    int getNodeView(String viewName, String viewArguments, int offset, int limit, DrupalEntityHandler<DrupalNode> handler) throws DrupalFetchException;
+
     /**
      * returns the node for the give nid (via node.get)
      *
@@ -67,6 +86,19 @@ public interface Drupal7SiteContext
      */
     DrupalNode getNode(int nid) throws DrupalFetchException;
 
+    /**
+     * returns the nodes for the given nids, fetching up to <code>parallelism</code> of them at a time over the request
+     * manager's connection pool.  Duplicate nids are fetched once.  A failure to fetch one node doesn't stop the
+     * others from being fetched; it's recorded against the nid in the result.
+     *
+     * @param nids        the IDs of the nodes to return
+     * @param parallelism the maximum number of requests in flight at once.  Values above the connection pool's
+     *                    per-route limit just queue for a connection.
+     * @return the node or failure for each distinct nid, in the order the nids were given.
+     * @throws DrupalFetchException if the calling thread is interrupted while waiting for the nodes.
+     */
+    DrupalBulkResult<Integer, DrupalNode> getNodes(Collection<Integer> nids, int parallelism) throws DrupalFetchException;
+
     /**
      * fetches a Comment by CID (via comment.load)
      *
@@ -87,6 +119,37 @@ public interface Drupal7SiteContext
      */
     int saveComment(final DrupalComment comment) throws DrupalFetchException;
 
+    /**
+     * Saves several comments at once, with at most <code>parallelism</code> saves in flight.  A comment that fails to
+     * save is reported in the result and doesn't stop the others.
+     *
+     * @param comments    the comments to save, as for {@link #saveComment(DrupalComment)}.
+     * @param parallelism the maximum number of concurrent saves.
+     * @return the cid or failure for each comment, keyed by the comment object, in the order they were given.
+     * @throws DrupalSaveException if the batch is interrupted.
+     */
+    DrupalBulkResult<DrupalComment, Integer> saveComments(Collection<DrupalComment> comments, int parallelism) throws DrupalSaveException;
+
+    /**
+     * Deletes a comment (via comment.delete)
+     *
+     * @param cid the ID of the comment to delete
+     * @throws DrupalSaveException if there's an error deleting the comment, for example if the user doesn't have
+     *                             permission.
+     */
+    void deleteComment(int cid) throws DrupalSaveException;
+
+    /**
+     * Deletes several comments at once, with at most <code>parallelism</code> deletes in flight.  Duplicate cids are
+     * deleted once.
+     *
+     * @param cids        the IDs of the comments to delete
+     * @param parallelism the maximum number of concurrent deletes.
+     * @return true or the failure for each distinct cid, in the order the cids were given.
+     * @throws DrupalSaveException if the batch is interrupted.
+     */
+    DrupalBulkResult<Integer, Boolean> deleteComments(Collection<Integer> cids, int parallelism) throws DrupalSaveException;
+
 
     /**
      * Logs in a user by username and password (invokes the drupal Service user.login)
@@ -149,7 +212,8 @@ public interface Drupal7SiteContext
     List<DrupalComment> getComments(int nid, int start, int count) throws DrupalFetchException;
 
     /**
-     * Returns an inputstream to the specified file
+     * Returns an inputstream to the specified file.  The stream reads from the connection as it goes, and must be
+     * closed by the caller.
      *
      * @param filepath the path of the file on the Drupal website
      * @return an inputstream
@@ -157,6 +221,18 @@ public interface Drupal7SiteContext
      */
     InputStream getFileStream(String filepath) throws IOException;
 
+    /**
+     * Downloads the specified file to disk without holding it in memory.  If the destination already exists, it is
+     * treated as a partial download and only the remaining bytes are requested.
+     *
+     * @param filepath    the path of the file on the Drupal website
+     * @param destination the local file to write to
+     * @param listener    receives progress updates, or null
+     * @return the length of the downloaded file
+     * @throws IOException if there's a problem with the request.
+     */
+    long downloadFile(String filepath, File destination, TransferProgressListener listener) throws IOException;
+
     /**
      * Save the drupal node. If nid is empty, saves a new node, otherwise updates an existing one.
      *
@@ -167,6 +243,39 @@ public interface Drupal7SiteContext
      */
     int saveNode(final DrupalNode node) throws DrupalSaveException;
 
+    /**
+     * Saves several nodes at once, with at most <code>parallelism</code> saves in flight over the request manager's
+     * connection pool.  Nodes without a nid are created and the others updated, as for {@link #saveNode(DrupalNode)}.
+     * A node that fails to save is reported in the result and doesn't stop the others.
+     *
+     * @param nodes       the nodes to save
+     * @param parallelism the maximum number of concurrent saves.  Values above the connection pool's per-route limit
+     *                    just queue for a connection.
+     * @return the nid or failure for each node, keyed by the node object, in the order they were given.
+     * @throws DrupalSaveException if the batch is interrupted.
+     */
+    DrupalBulkResult<DrupalNode, Integer> saveNodes(Collection<DrupalNode> nodes, int parallelism) throws DrupalSaveException;
+
+    /**
+     * Deletes a node (via node.delete)
+     *
+     * @param nid the ID of the node to delete
+     * @throws DrupalSaveException if there's an error deleting the node, for example if the user doesn't have
+     *                             permission.
+     */
+    void deleteNode(int nid) throws DrupalSaveException;
+
+    /**
+     * Deletes several nodes at once, with at most <code>parallelism</code> deletes in flight.  Duplicate nids are
+     * deleted once.
+     *
+     * @param nids        the IDs of the nodes to delete
+     * @param parallelism the maximum number of concurrent deletes.
+     * @return true or the failure for each distinct nid, in the order the nids were given.
+     * @throws DrupalSaveException if the batch is interrupted.
+     */
+    DrupalBulkResult<Integer, Boolean> deleteNodes(Collection<Integer> nids, int parallelism) throws DrupalSaveException;
+
     /**
      * Fetch a user object by uid
      *
@@ -180,6 +289,30 @@ public interface Drupal7SiteContext
 
     DrupalFile saveFileStream(InputStream inputStream, String fileName) throws DrupalSaveException;
 
+    /**
+     * Uploads a file, streaming it to the site as it is read.  When the site's create response describes the file,
+     * no second request is made to fetch it.
+     *
+     * @param inputStream the file contents
+     * @param fileName    the name to save the file as
+     * @param length      the length of the file if known, or -1.  Only used to report progress.
+     * @param listener    receives progress updates as the file is sent, or null
+     * @return the saved file
+     * @throws DrupalSaveException if there's a problem with the request.
+     */
+    DrupalFile saveFileStream(InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws DrupalSaveException;
+
+    /**
+     * Uploads several files at once, with at most <code>parallelism</code> uploads in flight.  A file that fails to
+     * upload is reported in the result and doesn't stop the others.
+     *
+     * @param files       the files to upload.  Each is saved under its own name.
+     * @param parallelism the maximum number of concurrent uploads.
+     * @return the saved files and failures, keyed by local file.
+     * @throws DrupalSaveException if the batch is interrupted.
+     */
+    DrupalBulkResult<File, DrupalFile> saveFiles(Collection<File> files, int parallelism) throws DrupalSaveException;
+
     void initializeSavedState(DrupalSiteContextInstanceState state);
 
     DrupalSiteContextInstanceState getSavedState();
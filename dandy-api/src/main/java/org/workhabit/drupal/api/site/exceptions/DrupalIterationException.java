@@ -0,0 +1,19 @@
+package org.workhabit.drupal.api.site.exceptions;
+
+/**
+ * Thrown from an {@link java.util.Iterator} over remote data when fetching the next element fails.  Iterators can't
+ * throw checked exceptions, so the underlying DrupalFetchException is carried as the cause.
+ */
+public class DrupalIterationException extends RuntimeException
+{
+    public DrupalIterationException(DrupalFetchException cause)
+    {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public DrupalFetchException getCause()
+    {
+        return (DrupalFetchException)super.getCause();
+    }
+}
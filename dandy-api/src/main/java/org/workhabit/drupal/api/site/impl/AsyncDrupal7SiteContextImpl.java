@@ -0,0 +1,162 @@
+package org.workhabit.drupal.api.site.impl;
+
+import org.workhabit.drupal.api.entity.drupal7.*;
+import org.workhabit.drupal.api.site.AsyncDrupal7SiteContext;
+import org.workhabit.drupal.api.site.Drupal7SiteContext;
+import org.workhabit.drupal.api.site.support.DrupalExecutors;
+import org.workhabit.drupal.api.site.support.DrupalFuture;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs {@link Drupal7SiteContext} calls on an executor.  The executor is supplied by the caller, so that the number of
+ * concurrent requests can be matched to the request manager's connection pool; see {@link DrupalExecutors} for
+ * suitable executors.
+ */
+public class AsyncDrupal7SiteContextImpl implements AsyncDrupal7SiteContext
+{
+    private final Drupal7SiteContext siteContext;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an async context that runs requests on virtual threads where available.
+     *
+     * @param siteContext the context to delegate to.
+     */
+    public AsyncDrupal7SiteContextImpl(Drupal7SiteContext siteContext)
+    {
+        this(siteContext, DrupalExecutors.newVirtualThreadExecutor());
+    }
+
+    /**
+     * @param siteContext the context to delegate to.
+     * @param executor    the executor to run requests on.
+     */
+    public AsyncDrupal7SiteContextImpl(Drupal7SiteContext siteContext, ExecutorService executor)
+    {
+        this.siteContext = siteContext;
+        this.executor = executor;
+    }
+
+    public Drupal7SiteContext getSiteContext()
+    {
+        return siteContext;
+    }
+
+    public DrupalFuture<DrupalNode> getNode(final int nid)
+    {
+        return submit(new Callable<DrupalNode>()
+        {
+            public DrupalNode call() throws Exception
+            {
+                return siteContext.getNode(nid);
+            }
+        });
+    }
+
+    public DrupalFuture<List<DrupalNode>> getNodeView(final String viewName, final String viewArguments, final int offset, final int limit)
+    {
+        return submit(new Callable<List<DrupalNode>>()
+        {
+            public List<DrupalNode> call() throws Exception
+            {
+                return siteContext.getNodeView(viewName, viewArguments, offset, limit);
+            }
+        });
+    }
+
+    public DrupalFuture<List<DrupalComment>> getComments(final int nid)
+    {
+        return submit(new Callable<List<DrupalComment>>()
+        {
+            public List<DrupalComment> call() throws Exception
+            {
+                return siteContext.getComments(nid);
+            }
+        });
+    }
+
+    public DrupalFuture<DrupalUser> getUser(final int uid)
+    {
+        return submit(new Callable<DrupalUser>()
+        {
+            public DrupalUser call() throws Exception
+            {
+                return siteContext.getUser(uid);
+            }
+        });
+    }
+
+    public DrupalFuture<DrupalUser> login(final String username, final String password)
+    {
+        return submit(new Callable<DrupalUser>()
+        {
+            public DrupalUser call() throws Exception
+            {
+                return siteContext.login(username, password);
+            }
+        });
+    }
+
+    public DrupalFuture<Integer> saveNode(final DrupalNode node)
+    {
+        return submit(new Callable<Integer>()
+        {
+            public Integer call() throws Exception
+            {
+                return siteContext.saveNode(node);
+            }
+        });
+    }
+
+    public DrupalFuture<Integer> saveComment(final DrupalComment comment)
+    {
+        return submit(new Callable<Integer>()
+        {
+            public Integer call() throws Exception
+            {
+                return siteContext.saveComment(comment);
+            }
+        });
+    }
+
+    public DrupalFuture<DrupalFile> saveFileStream(final InputStream inputStream, final String fileName)
+    {
+        return submit(new Callable<DrupalFile>()
+        {
+            public DrupalFile call() throws Exception
+            {
+                return siteContext.saveFileStream(inputStream, fileName);
+            }
+        });
+    }
+
+    public DrupalFuture<InputStream> getFileStream(final String filepath)
+    {
+        return submit(new Callable<InputStream>()
+        {
+            public InputStream call() throws Exception
+            {
+                return siteContext.getFileStream(filepath);
+            }
+        });
+    }
+
+    public <V> DrupalFuture<V> submit(Callable<V> work)
+    {
+        DrupalFuture<V> future = new DrupalFuture<V>(work);
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Stops accepting new work.  Requests already submitted are allowed to complete.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+}
@@ -17,4 +17,9 @@ public interface DrupalSiteContextInstanceState extends Serializable
     DrupalUser getUser();
 
     String getSession();
+
+    /**
+     * @return the CSRF token of the session, or null if the site didn't issue one.
+     */
+    String getCsrfToken();
 }
@@ -15,6 +15,7 @@ public class DrupalSiteContextInstanceStateImpl implements DrupalSiteContextInst
     private ArrayList<GenericCookie> cookies;
     private DrupalUser user;
     private String session;
+    private String csrfToken;
 
     public void setCookies(ArrayList<GenericCookie> cookies)
     {
@@ -45,4 +46,14 @@ public class DrupalSiteContextInstanceStateImpl implements DrupalSiteContextInst
     {
         return session;
     }
+
+    public void setCsrfToken(String csrfToken)
+    {
+        this.csrfToken = csrfToken;
+    }
+
+    public String getCsrfToken()
+    {
+        return csrfToken;
+    }
 }
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.workhabit.drupal.api.entity.drupal7.*;
 import org.workhabit.drupal.api.json.BooleanAdapter;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializer;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializerFactory;
 import org.workhabit.drupal.api.json.UnixTimeDateAdapter;
@@ -15,14 +16,37 @@ import org.workhabit.drupal.api.site.Drupal7SiteContext;
 import org.workhabit.drupal.api.site.exceptions.*;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceStateImpl;
+import org.workhabit.drupal.api.site.support.DrupalBulkResult;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache.EntityType;
+import org.workhabit.drupal.api.site.support.DrupalExecutors;
+import org.workhabit.drupal.api.site.support.DrupalSearchIndex;
+import org.workhabit.drupal.api.site.support.DrupalSession;
 import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.api.site.support.RequestCoalescer;
+import org.workhabit.drupal.http.CancellationScope;
 import org.workhabit.drupal.http.DrupalServicesRequestManager;
 import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.ServicesResponseHandler;
+import org.workhabit.drupal.http.TransferProgressListener;
+import org.workhabit.drupal.http.metrics.DrupalEndpoints;
+import org.workhabit.drupal.http.metrics.RequestMetricsListener;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -31,16 +55,40 @@ import java.util.*;
 public class Drupal7SiteContextImpl implements Drupal7SiteContext
 {
     private static Logger log = LoggerFactory.getLogger(Drupal7SiteContextImpl.class.getSimpleName());
+    /**
+     * Gson instances are thread safe and expensive to build, so the save serializers are built once.  Ids that are
+     * 0, i.e. not yet assigned, are removed from the serialized tree rather than excluded by a per-entity strategy.
+     */
+    private static final Gson nodeGson = new GsonBuilder()
+            .registerTypeAdapter(Date.class, new UnixTimeDateAdapter())
+            .registerTypeAdapter(boolean.class, new BooleanAdapter())
+            .setExclusionStrategies(new FieldExclusionStrategy("fields"))
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+    private static final Gson commentGson = new Gson();
+    private static final Type fieldValueType = new TypeToken<Map<String, String>>()
+    {
+    }.getType();
     private DrupalSiteContextBridge bridge;
 
     private DrupalServicesRequestManager requestManager;
     private String rootPath;
     private DrupalJsonObjectSerializer<DrupalNode> nodeSerializer;
     private DrupalJsonObjectSerializer<DrupalUser> userObjectSerializer;
-    private String session;
-    private DrupalUser currentUser;
+    private final AtomicReference<DrupalSession> session = new AtomicReference<DrupalSession>(DrupalSession.ANONYMOUS);
+    private final Object csrfTokenLock = new Object();
+    // the token last handed to the request manager, guarded by csrfTokenLock
+    private String requestManagerCsrfToken;
     private DrupalJsonObjectSerializer<DrupalComment> commentSerializer;
     private DrupalJsonObjectSerializer<DrupalFile> fileSerializer;
+    private volatile DrupalEntityCache entityCache;
+    private volatile DrupalSearchIndex searchIndex;
+    private volatile RequestMetricsListener metricsListener;
+    private volatile ExecutorService bulkExecutor;
+    private final RequestCoalescer<String, DrupalNode> nodeRequests;
+    private final RequestCoalescer<String, List<DrupalNode>> viewRequests;
+    private final RequestCoalescer<String, DrupalUser> userRequests;
+    private final boolean sessionScoped;
 
     public Drupal7SiteContextImpl(String drupalSiteUrl, String endpoint)
     {
@@ -52,19 +100,155 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
         log.debug("initialized new Drupal Site Context");
         commentSerializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalComment.class);
         fileSerializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalFile.class);
+        nodeRequests = new RequestCoalescer<String, DrupalNode>();
+        viewRequests = new RequestCoalescer<String, List<DrupalNode>>();
+        userRequests = new RequestCoalescer<String, DrupalUser>();
+        sessionScoped = false;
+    }
+
+    /**
+     * Creates a session of the given context: see {@link #newSession(DrupalServicesRequestManager)}.
+     */
+    private Drupal7SiteContextImpl(Drupal7SiteContextImpl site, DrupalServicesRequestManager requestManager)
+    {
+        bridge = new DrupalSiteContextBridge();
+        rootPath = site.rootPath;
+        bridge.setRootPath(rootPath);
+        nodeSerializer = site.nodeSerializer;
+        userObjectSerializer = site.userObjectSerializer;
+        commentSerializer = site.commentSerializer;
+        fileSerializer = site.fileSerializer;
+        // request keys include the session id, so sessions only ever join requests made as the same user
+        nodeRequests = site.nodeRequests;
+        viewRequests = site.viewRequests;
+        userRequests = site.userRequests;
+        entityCache = site.entityCache;
+        metricsListener = site.metricsListener;
+        bulkExecutor = site.bulkExecutor;
+        sessionScoped = true;
+        setRequestManager(requestManager);
+    }
+
+    /**
+     * Creates a context that acts for another user of the same site.  The session has its own login, made through
+     * the given request manager, and shares everything else with this context: the site, serializers, in-flight
+     * request coalescing, the metrics listener and the entity cache.  With request managers from
+     * {@link org.workhabit.drupal.api.site.support.AndroidDrupalServicesRequestManagerImpl#newSession()}, sessions
+     * also share one connection pool:
+     * <pre>
+     * AndroidDrupalServicesRequestManagerImpl transport = new AndroidDrupalServicesRequestManagerImpl(configuration);
+     * site.setRequestManager(transport);
+     * Drupal7SiteContextImpl alice = site.newSession(transport.newSession());
+     * alice.login("alice", password);
+     * </pre>
+     * The entity cache is shared as is, so only set one if cached content doesn't vary between users.  Logging a
+     * session in or out doesn't clear it.  The search index isn't shared: a session indexes nothing unless it is
+     * given an index of its own with {@link #setSearchIndex(DrupalSearchIndex)}.
+     *
+     * @param requestManager the request manager for the session, which must not be shared with another context.
+     * @return a new, logged out session.
+     */
+    public Drupal7SiteContextImpl newSession(DrupalServicesRequestManager requestManager)
+    {
+        return new Drupal7SiteContextImpl(this, requestManager);
+    }
+
+    /**
+     * Enables caching of parsed nodes, users and comments.  Caching is off unless a cache is set.  Saving a node or
+     * comment through this context invalidates the affected entries, and logging in or out clears the cache.
+     *
+     * @param entityCache the cache to use, or null to disable caching.
+     */
+    public void setEntityCache(DrupalEntityCache entityCache)
+    {
+        this.entityCache = entityCache;
+    }
+
+    public DrupalEntityCache getEntityCache()
+    {
+        return entityCache;
+    }
+
+    /**
+     * Keeps a full-text index of the nodes and comments this context fetches and saves, for searching offline.  Nodes
+     * from getNode and comments are indexed as fetched; nodes from views, which may lack their body, only if they are
+     * new to the index or changed since they were indexed.  Successful saves are indexed and deletes removed.  The
+     * index is cleared when this context logs in or out, and unlike the entity cache it isn't shared with sessions:
+     * a session starts without an index and can be given its own.  So one user's search never turns up what another
+     * user was allowed to see.
+     *
+     * @param searchIndex the index to update, or null to stop indexing.
+     */
+    public void setSearchIndex(DrupalSearchIndex searchIndex)
+    {
+        this.searchIndex = searchIndex;
+    }
+
+    public DrupalSearchIndex getSearchIndex()
+    {
+        return searchIndex;
+    }
+
+    /**
+     * Sets the executor that bulk operations such as {@link #getNodes(Collection, int)} run their requests on, e.g.
+     * the one given to an {@link org.workhabit.drupal.api.site.impl.AsyncDrupal7SiteContextImpl}, so that the
+     * application has one pool of request threads.  The calling thread works through the batch as well, so a bulk
+     * operation makes progress even when every thread of the executor is busy.  Sessions share the executor.
+     *
+     * @param bulkExecutor the executor to use, or null to use {@link DrupalExecutors#sharedExecutor()}.
+     */
+    public void setBulkExecutor(ExecutorService bulkExecutor)
+    {
+        this.bulkExecutor = bulkExecutor;
+    }
+
+    public ExecutorService getBulkExecutor()
+    {
+        ExecutorService executor = bulkExecutor;
+        return executor != null ? executor : DrupalExecutors.sharedExecutor();
     }
 
     public void setRequestManager(DrupalServicesRequestManager requestManager)
     {
-        this.requestManager = requestManager;
+        synchronized (csrfTokenLock) {
+            this.requestManager = requestManager;
+            // a replacement request manager starts without the session's token
+            requestManagerCsrfToken = session.get().getCsrfToken();
+            if (requestManagerCsrfToken != null) {
+                requestManager.setCsrfToken(requestManagerCsrfToken);
+            }
+        }
         bridge.setRequestManager(requestManager);
+        if (metricsListener != null) {
+            requestManager.setMetricsListener(metricsListener);
+        }
     }
 
+    /**
+     * Reports per-endpoint request timings and sizes from the request manager, and the time spent parsing responses
+     * from this context, to the listener.
+     *
+     * @param metricsListener the listener, e.g. an {@link org.workhabit.drupal.http.metrics.InMemoryRequestMetrics}, or
+     *                        null to stop reporting.
+     */
+    public void setMetricsListener(RequestMetricsListener metricsListener)
+    {
+        this.metricsListener = metricsListener;
+        if (requestManager != null) {
+            requestManager.setMetricsListener(metricsListener);
+        }
+    }
+
+    /**
+     * Ends the session on the site, then locally.  The logout request carries the session's CSRF token, so if it
+     * fails the context stays logged in.
+     *
+     * @throws DrupalLogoutException if the site didn't log the session out.
+     */
     public void logout() throws DrupalLogoutException
     {
         Map<String, Object> data = new HashMap<String, Object>();
-        this.currentUser = null;
-        this.session = null;
+        DrupalSession loggedOut = session.get();
         try {
             bridge.logout(data);
         } catch (IOException e) {
@@ -72,6 +256,11 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
         } catch (DrupalServicesResponseException e) {
             throw new DrupalLogoutException(e);
         }
+        // a login that finished meanwhile has a new session, which stays
+        if (publishSession(loggedOut, DrupalSession.ANONYMOUS)) {
+            clearEntityCache();
+            clearSearchIndex();
+        }
     }
 
 
@@ -86,32 +275,239 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
         return getNodeView(viewName, viewArguments, 0, 0);
     }
 
-    public List<DrupalNode> getNodeView(String viewName, String viewArguments, int offset, int limit) throws DrupalFetchException
+    public List<DrupalNode> getNodeView(final String viewName, final String viewArguments, final int offset, final int limit) throws DrupalFetchException
+    {
+        String key = requestKey("GET", bridge.buildNodeViewPath(viewName, viewArguments, offset, limit));
+        return viewRequests.execute(key, new Callable<List<DrupalNode>>()
+        {
+            public List<DrupalNode> call() throws DrupalFetchException
+            {
+                ServicesResponse response = bridge.getNodeView(viewName, viewArguments, offset, limit);
+                long started = System.nanoTime();
+                boolean parsed = false;
+                try {
+                    List<DrupalNode> nodes = nodeSerializer.unserializeList(response.getResponseBody());
+                    parsed = true;
+                    indexViewNodes(nodes);
+                    return nodes;
+                } catch (JSONException e) {
+                    throw new DrupalFetchException(e);
+                } finally {
+                    recordParse(DrupalEndpoints.VIEWS_GET, started, parsed);
+                }
+            }
+        });
+    }
+
+    public int getNodeView(String viewName, String viewArguments, int offset, int limit, final DrupalEntityHandler<DrupalNode> handler) throws DrupalFetchException
+    {
+        return bridge.getNodeView(viewName, viewArguments, offset, limit, new ServicesResponseHandler<Integer>()
+        {
+            public Integer handleResponse(ServicesResponse response, InputStream content) throws IOException, DrupalFetchException
+            {
+                final DrupalSearchIndex index = searchIndex;
+                if (index == null) {
+                    return nodeSerializer.unserializeList(new InputStreamReader(content, "UTF-8"), handler);
+                }
+                return nodeSerializer.unserializeList(new InputStreamReader(content, "UTF-8"), new DrupalEntityHandler<DrupalNode>()
+                {
+                    public void handleEntity(DrupalNode node)
+                    {
+                        index.addNodeIfNewer(node);
+                        handler.handleEntity(node);
+                    }
+                });
+            }
+        });
+    }
+
+    public DrupalNode getNode(final int nid) throws DrupalFetchException
     {
+        DrupalNode cached = getCached(EntityType.NODE, nid);
+        if (cached != null) {
+            return cached;
+        }
+        return nodeRequests.execute(requestKey("GET", bridge.buildNodePath(nid)), new Callable<DrupalNode>()
+        {
+            public DrupalNode call() throws DrupalFetchException
+            {
+                // cached only by the caller that fetched it, since others may have joined after a save
+                long generation = cacheGeneration();
+                ServicesResponse response = bridge.getNode(nid);
+                long started = System.nanoTime();
+                boolean parsed = false;
+                try {
+                    DrupalNode node = nodeSerializer.unserialize(response.getResponseBody());
+                    parsed = true;
+                    indexNode(nid, node);
+                    return putCached(EntityType.NODE, nid, node, generation);
+                } catch (JSONException e) {
+                    throw new DrupalFetchException(e);
+                } finally {
+                    recordParse(DrupalEndpoints.NODE_GET, started, parsed);
+                }
+            }
+        });
+    }
+
+    public DrupalBulkResult<Integer, DrupalNode> getNodes(Collection<Integer> nids, int parallelism) throws DrupalFetchException
+    {
+        Map<Integer, Callable<DrupalNode>> tasks = new LinkedHashMap<Integer, Callable<DrupalNode>>();
+        for (final Integer nid : new LinkedHashSet<Integer>(nids)) {
+            tasks.put(nid, new Callable<DrupalNode>()
+            {
+                public DrupalNode call() throws DrupalFetchException
+                {
+                    return getNode(nid);
+                }
+            });
+        }
         try {
-            ServicesResponse response = bridge.getNodeView(viewName, viewArguments, offset, limit);
-            return nodeSerializer.unserializeList(response.getResponseBody());
-        } catch (JSONException e) {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new DrupalFetchException(e);
         }
     }
 
-    public DrupalNode getNode(int nid) throws DrupalFetchException
+    /**
+     * Runs the tasks on at most <code>parallelism</code> threads, the calling thread and threads of the bulk executor,
+     * and collects their results, recording each failure against its key rather than abandoning the batch.  The tasks
+     * run in the caller's cancellation scope, so cancelling it aborts the requests of the whole batch.
+     */
+    private <K, V> DrupalBulkResult<K, V> executeAll(Map<K, Callable<V>> tasks, int parallelism) throws InterruptedException
     {
+        DrupalBulkResult<K, V> result = new DrupalBulkResult<K, V>();
+        if (tasks.isEmpty()) {
+            return result;
+        }
+        Map<K, FutureTask<V>> futures = new LinkedHashMap<K, FutureTask<V>>();
+        final Queue<FutureTask<V>> queue = new ConcurrentLinkedQueue<FutureTask<V>>();
+        for (Map.Entry<K, Callable<V>> task : tasks.entrySet()) {
+            FutureTask<V> future = new FutureTask<V>(task.getValue());
+            futures.put(task.getKey(), future);
+            queue.add(future);
+        }
+        final CancellationScope scope = CancellationScope.current();
+        Runnable worker = new Runnable()
+        {
+            public void run()
+            {
+                if (scope != null) {
+                    scope.enter();
+                }
+                try {
+                    FutureTask<V> task;
+                    while ((task = queue.poll()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    if (scope != null) {
+                        scope.exit();
+                    }
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<Future<?>>();
         try {
-            ServicesResponse response = bridge.getNode(nid);
-            return nodeSerializer.unserialize(response.getResponseBody());
-        } catch (JSONException e) {
-            throw new DrupalFetchException(e);
+            ExecutorService executor = getBulkExecutor();
+            int threads = Math.min(parallelism, tasks.size());
+            for (int i = 1; i < threads; i++) {
+                try {
+                    helpers.add(executor.submit(worker));
+                } catch (RejectedExecutionException e) {
+                    // the calling thread gets through the batch on its own
+                    break;
+                }
+            }
+            worker.run();
+            for (Map.Entry<K, FutureTask<V>> entry : futures.entrySet()) {
+                try {
+                    result.addResult(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    result.addFailure(entry.getKey(), cause instanceof Exception ? (Exception)cause : e);
+                }
+            }
+            return result;
+        } finally {
+            // only does anything if the caller was interrupted
+            for (Future<?> helper : helpers) {
+                helper.cancel(false);
+            }
+            for (FutureTask<V> future : futures.values()) {
+                future.cancel(true);
+            }
         }
     }
 
+    public DrupalBulkResult<DrupalNode, Integer> saveNodes(Collection<DrupalNode> nodes, int parallelism) throws DrupalSaveException
+    {
+        Map<DrupalNode, Callable<Integer>> tasks = new LinkedHashMap<DrupalNode, Callable<Integer>>();
+        for (final DrupalNode node : nodes) {
+            tasks.put(node, new Callable<Integer>()
+            {
+                public Integer call() throws DrupalSaveException
+                {
+                    return saveNode(node);
+                }
+            });
+        }
+        try {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalSaveException(e);
+        }
+    }
+
+    public void deleteNode(int nid) throws DrupalSaveException
+    {
+        try {
+            bridge.deleteNode(nid);
+        } finally {
+            invalidateCached(EntityType.NODE, nid);
+            invalidateCached(EntityType.NODE_COMMENTS, nid);
+        }
+        DrupalSearchIndex index = searchIndex;
+        if (index != null) {
+            index.removeNode(nid);
+        }
+    }
+
+    public DrupalBulkResult<Integer, Boolean> deleteNodes(Collection<Integer> nids, int parallelism) throws DrupalSaveException
+    {
+        Map<Integer, Callable<Boolean>> tasks = new LinkedHashMap<Integer, Callable<Boolean>>();
+        for (final Integer nid : new LinkedHashSet<Integer>(nids)) {
+            tasks.put(nid, new Callable<Boolean>()
+            {
+                public Boolean call() throws DrupalSaveException
+                {
+                    deleteNode(nid);
+                    return Boolean.TRUE;
+                }
+            });
+        }
+        try {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalSaveException(e);
+        }
+    }
 
     public DrupalComment getComment(int cid) throws DrupalFetchException
     {
+        DrupalComment cached = getCached(EntityType.COMMENT, cid);
+        if (cached != null) {
+            return cached;
+        }
         try {
+            long generation = cacheGeneration();
             ServicesResponse response = bridge.getComment(cid);
-            return commentSerializer.unserialize(response.getResponseBody());
+            DrupalComment comment = commentSerializer.unserialize(response.getResponseBody());
+            indexComment(cid, comment);
+            return putCached(EntityType.COMMENT, cid, comment, generation);
         } catch (JSONException e) {
             throw new DrupalFetchException(e);
         }
@@ -121,58 +517,117 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
     public int saveComment(final DrupalComment comment) throws DrupalFetchException
     {
         String commentString = serializeComment(comment);
-        ServicesResponse response = bridge.saveComment(commentString);
+        ServicesResponse response;
+        try {
+            response = bridge.saveComment(commentString);
+        } finally {
+            // the node's comment count and comment list change along with the comment
+            invalidateCached(EntityType.COMMENT, comment.getCid());
+            invalidateCached(EntityType.NODE_COMMENTS, comment.getNid());
+            invalidateCached(EntityType.NODE, comment.getNid());
+        }
         try {
             JSONObject responseObject = new JSONObject(response.getResponseBody());
-            return responseObject.getInt("nid");
+            int cid = responseObject.getInt("cid");
+            indexComment(cid, comment);
+            return cid;
         } catch (JSONException e) {
             throw new DrupalFetchException(e);
         }
 
     }
 
-    private String serializeComment(final DrupalComment comment)
+    public DrupalBulkResult<DrupalComment, Integer> saveComments(Collection<DrupalComment> comments, int parallelism) throws DrupalSaveException
     {
-        GsonBuilder builder = new GsonBuilder();
-        ExclusionStrategy strategy = new ExclusionStrategy()
-        {
-            public boolean shouldSkipField(FieldAttributes f)
+        Map<DrupalComment, Callable<Integer>> tasks = new LinkedHashMap<DrupalComment, Callable<Integer>>();
+        for (final DrupalComment comment : comments) {
+            tasks.put(comment, new Callable<Integer>()
             {
-                if ("cid".equals(f.getName())) {
-                    if (comment.getCid() == 0) {
-                        return true;
-                    }
+                public Integer call() throws DrupalFetchException
+                {
+                    return saveComment(comment);
                 }
-                if ("uid".equals(f.getName())) {
-                    if (comment.getUid() == 0) {
-                        return true;
-                    }
-                }
-                return false;
+            });
+        }
+        try {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalSaveException(e);
+        }
+    }
+
+    public void deleteComment(int cid) throws DrupalSaveException
+    {
+        // the node is only known if the comment is cached; otherwise its comment list expires on its own
+        DrupalComment cached = getCached(EntityType.COMMENT, cid);
+        try {
+            bridge.deleteComment(cid);
+        } finally {
+            invalidateCached(EntityType.COMMENT, cid);
+            if (cached != null) {
+                invalidateCached(EntityType.NODE_COMMENTS, cached.getNid());
+                invalidateCached(EntityType.NODE, cached.getNid());
             }
+        }
+        DrupalSearchIndex index = searchIndex;
+        if (index != null) {
+            index.removeComment(cid);
+        }
+    }
 
-            public boolean shouldSkipClass(Class<?> clazz)
+    public DrupalBulkResult<Integer, Boolean> deleteComments(Collection<Integer> cids, int parallelism) throws DrupalSaveException
+    {
+        Map<Integer, Callable<Boolean>> tasks = new LinkedHashMap<Integer, Callable<Boolean>>();
+        for (final Integer cid : new LinkedHashSet<Integer>(cids)) {
+            tasks.put(cid, new Callable<Boolean>()
             {
-                return false;
-            }
-        };
-        builder.setExclusionStrategies(strategy);
-        Gson gson = builder.create();
-        return gson.toJson(comment);
+                public Boolean call() throws DrupalSaveException
+                {
+                    deleteComment(cid);
+                    return Boolean.TRUE;
+                }
+            });
+        }
+        try {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalSaveException(e);
+        }
+    }
+
+    String serializeComment(final DrupalComment comment)
+    {
+        JsonObject jsonComment = (JsonObject)commentGson.toJsonTree(comment);
+        if (comment.getCid() == 0) {
+            jsonComment.remove("cid");
+        }
+        if (comment.getUid() == 0) {
+            jsonComment.remove("uid");
+        }
+        return jsonComment.toString();
     }
 
     public DrupalUser login(String username, String password) throws DrupalLoginException, DrupalFetchException
     {
+        ServicesResponse response = bridge.login(username, password);
+        long started = System.nanoTime();
+        boolean parsed = false;
         try {
-            ServicesResponse response = bridge.login(username, password);
             JSONObject object = new JSONObject(response.getResponseBody());
-            this.session = object.getString("sessid");
+            String sessionId = object.getString("sessid");
             JSONObject userObject = object.getJSONObject("user");
             DrupalUser user = userObjectSerializer.unserialize(userObject.toString());
-            this.currentUser = user;
+            parsed = true;
+            publishSession(new DrupalSession(sessionId, object.optString("session_name", null), object.optString("token", null), user));
+            clearEntityCache();
+            clearSearchIndex();
             return user;
         } catch (JSONException e) {
             throw new DrupalLoginException(e);
+        } finally {
+            recordParse(DrupalEndpoints.USER_LOGIN, started, parsed);
         }
     }
 
@@ -203,11 +658,29 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
 
     public List<DrupalComment> getComments(int nid, int start, int count) throws DrupalFetchException
     {
+        // only the complete list is cached, so that saving a comment has a single entry to invalidate
+        boolean cacheable = start == 0 && count == 0;
+        if (cacheable) {
+            List<DrupalComment> cached = getCached(EntityType.NODE_COMMENTS, nid);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long generation = cacheGeneration();
+        ServicesResponse response = bridge.getComments(nid, start, count);
+        long started = System.nanoTime();
+        boolean parsed = false;
         try {
-            ServicesResponse response = bridge.getComments(nid, start, count);
-            return commentSerializer.unserializeList(response.getResponseBody());
+            List<DrupalComment> comments = commentSerializer.unserializeList(response.getResponseBody());
+            parsed = true;
+            for (DrupalComment comment : comments) {
+                indexComment(comment.getCid(), comment);
+            }
+            return cacheable ? putCached(EntityType.NODE_COMMENTS, nid, comments, generation) : comments;
         } catch (JSONException e) {
             throw new DrupalFetchException(e);
+        } finally {
+            recordParse(DrupalEndpoints.COMMENT_LOAD_NODE_COMMENTS, started, parsed);
         }
     }
 
@@ -216,16 +689,26 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
         return requestManager.getStream(filepath);
     }
 
+    public long downloadFile(String filepath, File destination, TransferProgressListener listener) throws IOException
+    {
+        return requestManager.download(filepath, destination, listener);
+    }
+
     public int saveNode(final DrupalNode node) throws DrupalSaveException
     {
         try {
-            JsonObject jsonNode = serializeNode(node);
-            JSONObject object = new JSONObject();
-            object.put("node", new JSONObject(jsonNode.toString()));
+            JsonObject object = new JsonObject();
+            object.add("node", serializeNode(node));
             ServicesResponse response;
-            response = bridge.saveNode(node, object);
+            try {
+                response = bridge.saveNode(node, object.toString());
+            } finally {
+                invalidateCached(EntityType.NODE, node.getNid());
+            }
             JSONObject responseObject = new JSONObject(response.getResponseBody());
-            return responseObject.getInt("nid");
+            int nid = responseObject.getInt("nid");
+            indexNode(nid, node);
+            return nid;
         } catch (JSONException e) {
             throw new DrupalSaveException(e);
         } catch (DrupalFetchException e) {
@@ -234,37 +717,13 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
     }
 
 
-    private JsonObject serializeNode(final DrupalNode node)
+    JsonObject serializeNode(final DrupalNode node)
     {
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(Date.class, new UnixTimeDateAdapter());
-        builder.registerTypeAdapter(boolean.class, new BooleanAdapter());
-        ExclusionStrategy strategy = new ExclusionStrategy()
-        {
-            public boolean shouldSkipField(FieldAttributes f)
-            {
-                if ("nid".equals(f.getName())) {
-                    // TODO: since we need access to the actual node object to make this check, this is set up as an inline declaration.  Need to figure out how to do this when constructing the serializer.
-                    if (node.getNid() == 0) {
-                        return true;
-                    }
-                }
-                return "fields".equals(f.getName());
-            }
-
-            public boolean shouldSkipClass(Class<?> clazz)
-            {
-                return false;
-            }
-        };
-        builder.setExclusionStrategies(strategy);
-        builder.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES);
-        Gson gson = builder.create();
-        JsonObject jsonNode = (JsonObject)gson.toJsonTree(node);
+        JsonObject jsonNode = (JsonObject)nodeGson.toJsonTree(node);
+        if (node.getNid() == 0) {
+            jsonNode.remove("nid");
+        }
         Map<String, DrupalField> fields = node.getFields();
-        Type type = new TypeToken<Map<String, String>>()
-        {
-        }.getType();
         if (fields != null && fields.size() > 0) {
             for (Map.Entry<String, DrupalField> entry : fields.entrySet()) {
                 String name = entry.getKey();
@@ -275,8 +734,8 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
                     JsonObject valueObject = new JsonObject();
                     for (Map.Entry<String, String> valueEntry : map.entrySet()) {
                         if (valueEntry.getValue().startsWith("{")) {
-                            Map<String, String> element = gson.fromJson(valueEntry.getValue(), type);
-                            valueObject.add(valueEntry.getKey(), gson.toJsonTree(element));
+                            Map<String, String> element = nodeGson.fromJson(valueEntry.getValue(), fieldValueType);
+                            valueObject.add(valueEntry.getKey(), nodeGson.toJsonTree(element));
                         }
                         else {
                             valueObject.addProperty(valueEntry.getKey(), valueEntry.getValue());
@@ -292,20 +751,168 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
         return jsonNode;
     }
 
-    public DrupalUser getUser(int uid) throws DrupalFetchException
+    public DrupalUser getUser(final int uid) throws DrupalFetchException
     {
-        try {
-            ServicesResponse response = bridge.getUser(uid);
-            return userObjectSerializer.unserialize(response.getResponseBody());
-        } catch (JSONException e) {
-            throw new DrupalFetchException(e);
+        DrupalUser cached = getCached(EntityType.USER, uid);
+        if (cached != null) {
+            return cached;
+        }
+        return userRequests.execute(requestKey("GET", bridge.buildUserPath(uid)), new Callable<DrupalUser>()
+        {
+            public DrupalUser call() throws DrupalFetchException
+            {
+                try {
+                    long generation = cacheGeneration();
+                    ServicesResponse response = bridge.getUser(uid);
+                    return putCached(EntityType.USER, uid, userObjectSerializer.unserialize(response.getResponseBody()), generation);
+                } catch (JSONException e) {
+                    throw new DrupalFetchException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of getNode, getNodeView and getUser calls that shared an identical request already in
+     *         flight on another thread, rather than making their own.
+     */
+    public long getCoalescedRequestCount()
+    {
+        return nodeRequests.getCoalescedCount() + viewRequests.getCoalescedCount() + userRequests.getCoalescedCount();
+    }
+
+    private <T> T getCached(EntityType type, int id)
+    {
+        DrupalEntityCache cache = entityCache;
+        return cache != null ? cache.<T>get(type, id) : null;
+    }
+
+    /**
+     * @return the entity cache's generation, to read before a fetch whose result is passed to putCached.
+     */
+    private long cacheGeneration()
+    {
+        DrupalEntityCache cache = entityCache;
+        return cache != null ? cache.getGeneration() : 0;
+    }
+
+    /**
+     * Caches a fetched entity, unless a save invalidated it after the fetch began.
+     */
+    private <T> T putCached(EntityType type, int id, T value, long generation)
+    {
+        DrupalEntityCache cache = entityCache;
+        if (cache != null) {
+            cache.put(type, id, value, generation);
+        }
+        return value;
+    }
+
+    private void invalidateCached(EntityType type, int id)
+    {
+        DrupalEntityCache cache = entityCache;
+        if (cache != null && id != 0) {
+            cache.invalidate(type, id);
         }
     }
 
+    private void indexNode(int nid, DrupalNode node)
+    {
+        DrupalSearchIndex index = searchIndex;
+        if (index != null) {
+            index.addNode(nid, node);
+        }
+    }
+
+    private void indexViewNodes(List<DrupalNode> nodes)
+    {
+        DrupalSearchIndex index = searchIndex;
+        if (index != null && nodes != null) {
+            for (DrupalNode node : nodes) {
+                index.addNodeIfNewer(node);
+            }
+        }
+    }
+
+    private void indexComment(int cid, DrupalComment comment)
+    {
+        DrupalSearchIndex index = searchIndex;
+        if (index != null) {
+            index.addComment(cid, comment);
+        }
+    }
+
+    private void clearEntityCache()
+    {
+        DrupalEntityCache cache = entityCache;
+        if (cache != null && !sessionScoped) {
+            cache.clear();
+        }
+    }
+
+    private void clearSearchIndex()
+    {
+        DrupalSearchIndex index = searchIndex;
+        // a session's index is its own
+        if (index != null) {
+            index.clear();
+        }
+    }
+
+    /**
+     * Identifies a request for coalescing.  The session is part of the key so that callers logged in as different
+     * users never share a response.
+     */
+    private String requestKey(String method, String path)
+    {
+        String sessionId = session.get().getSessionId();
+        return method + " " + path + " " + (sessionId != null ? sessionId : "");
+    }
+
+    /**
+     * Replaces the session snapshot, and hands the request manager the new CSRF token if it changed.
+     */
+    private void publishSession(DrupalSession next)
+    {
+        DrupalSession current;
+        do {
+            current = session.get();
+        } while (!publishSession(current, next));
+    }
+
+    /**
+     * Replaces the session snapshot if it is still the expected one, and hands the request manager the new CSRF
+     * token if it changed.
+     *
+     * @return false if another login or logout replaced the session first.
+     */
+    private boolean publishSession(DrupalSession expected, DrupalSession next)
+    {
+        if (!session.compareAndSet(expected, next)) {
+            return false;
+        }
+        synchronized (csrfTokenLock) {
+            // two publishes can get here in either order; both hand over whichever session is current
+            String token = session.get().getCsrfToken();
+            if (token != null ? !token.equals(requestManagerCsrfToken) : requestManagerCsrfToken != null) {
+                requestManager.setCsrfToken(token);
+                requestManagerCsrfToken = token;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current session.  The snapshot never changes; a login or logout publishes a new one.
+     */
+    public DrupalSession getSession()
+    {
+        return session.get();
+    }
 
     public DrupalUser getCurrentUser()
     {
-        return this.currentUser;
+        return session.get().getUser();
     }
 
     public ArrayList<GenericCookie> getCurrentUserCookie()
@@ -315,29 +922,103 @@ public class Drupal7SiteContextImpl implements Drupal7SiteContext
 
     public DrupalFile saveFileStream(InputStream inputStream, String fileName) throws DrupalSaveException
     {
+        return saveFileStream(inputStream, fileName, -1, null);
+    }
+
+    public DrupalFile saveFileStream(InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws DrupalSaveException
+    {
+        ServicesResponse response;
         try {
-            ServicesResponse response = bridge.saveFileStream(inputStream, fileName);
-            return fileSerializer.unserialize(response.getResponseBody());
+            response = bridge.saveFileStream(inputStream, fileName, length, listener);
+        } catch (DrupalFetchException e) {
+            throw new DrupalSaveException(e);
+        }
+        long started = System.nanoTime();
+        boolean parsed = false;
+        try {
+            DrupalFile file = fileSerializer.unserialize(response.getResponseBody());
+            parsed = true;
+            return file;
         } catch (JSONException e) {
             throw new DrupalSaveException(e);
         } catch (DrupalFetchException e) {
             throw new DrupalSaveException(e);
+        } finally {
+            recordParse(DrupalEndpoints.FILE_CREATE, started, parsed);
+        }
+    }
+
+    public DrupalBulkResult<File, DrupalFile> saveFiles(Collection<File> files, int parallelism) throws DrupalSaveException
+    {
+        Map<File, Callable<DrupalFile>> tasks = new LinkedHashMap<File, Callable<DrupalFile>>();
+        for (final File file : new LinkedHashSet<File>(files)) {
+            tasks.put(file, new Callable<DrupalFile>()
+            {
+                public DrupalFile call() throws IOException, DrupalSaveException
+                {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        return saveFileStream(in, file.getName(), file.length(), null);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        }
+        try {
+            return executeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalSaveException(e);
+        }
+    }
+
+    /**
+     * Skips fields by name, whatever class declares them.
+     */
+    private static class FieldExclusionStrategy implements ExclusionStrategy
+    {
+        private final Set<String> names;
+
+        FieldExclusionStrategy(String... names)
+        {
+            this.names = new HashSet<String>(Arrays.asList(names));
+        }
+
+        public boolean shouldSkipField(FieldAttributes f)
+        {
+            return names.contains(f.getName());
+        }
+
+        public boolean shouldSkipClass(Class<?> clazz)
+        {
+            return false;
+        }
+    }
+
+    private void recordParse(String endpoint, long started, boolean successful)
+    {
+        RequestMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.responseParsed(endpoint, System.nanoTime() - started, successful);
         }
     }
 
     public void initializeSavedState(DrupalSiteContextInstanceState state)
     {
-        this.currentUser = state.getUser();
-        this.session = state.getSession();
+        publishSession(new DrupalSession(state.getSession(), null, state.getCsrfToken(), state.getUser()));
+        clearEntityCache();
         this.requestManager.initializeSavedState(state);
     }
 
     public DrupalSiteContextInstanceState getSavedState()
     {
+        DrupalSession current = session.get();
         DrupalSiteContextInstanceStateImpl state = new DrupalSiteContextInstanceStateImpl();
-        state.setUser(getCurrentUser());
+        state.setUser(current.getUser());
         state.setCookies(getCurrentUserCookie());
-        state.setSession(session);
+        state.setSession(current.getSessionId());
+        state.setCsrfToken(current.getCsrfToken());
         return state;
     }
 }
@@ -11,6 +11,8 @@ import org.workhabit.drupal.api.site.exceptions.DrupalSaveException;
 import org.workhabit.drupal.api.site.exceptions.DrupalServicesResponseException;
 import org.workhabit.drupal.http.DrupalServicesRequestManager;
 import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.ServicesResponseHandler;
+import org.workhabit.drupal.http.TransferProgressListener;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,6 +70,43 @@ public class DrupalSiteContextBridge
 
 
     public ServicesResponse getNodeView(String viewName, String viewArguments, int offset, int limit) throws DrupalFetchException
+    {
+        try {
+            ServicesResponse response = requestManager.getString(buildNodeViewPath(viewName, viewArguments, offset, limit));
+            assertNoErrors(response);
+            return response;
+        } catch (DrupalServicesResponseException e) {
+            throw new DrupalFetchException(e);
+        } catch (IOException e) {
+            throw new DrupalFetchException(e);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #getNodeView(String, String, int, int)}.  The handler is only invoked for successful
+     * responses, with the body read directly from the connection.
+     */
+    public <T> T getNodeView(String viewName, String viewArguments, int offset, int limit, final ServicesResponseHandler<T> handler) throws DrupalFetchException
+    {
+        try {
+            return requestManager.get(buildNodeViewPath(viewName, viewArguments, offset, limit), new ServicesResponseHandler<T>()
+            {
+                public T handleResponse(ServicesResponse response, InputStream content) throws IOException, DrupalFetchException
+                {
+                    try {
+                        assertNoErrors(response);
+                    } catch (DrupalServicesResponseException e) {
+                        throw new DrupalFetchException(e);
+                    }
+                    return handler.handleResponse(response, content);
+                }
+            });
+        } catch (IOException e) {
+            throw new DrupalFetchException(e);
+        }
+    }
+
+    String buildNodeViewPath(String viewName, String viewArguments, int offset, int limit)
     {
         if (log.isDebugEnabled()) {
             log.debug(String.format("Fetching view %s with arguments %s", viewName, viewArguments));
@@ -87,16 +126,7 @@ public class DrupalSiteContextBridge
         }
         sb.append("offset=").append(offset);
         sb.append("&limit=").append(limit);
-
-        try {
-            ServicesResponse response = requestManager.getString(sb.toString());
-            assertNoErrors(response);
-            return response;
-        } catch (DrupalServicesResponseException e) {
-            throw new DrupalFetchException(e);
-        } catch (IOException e) {
-            throw new DrupalFetchException(e);
-        }
+        return sb.toString();
     }
 
     public ServicesResponse getNode(int nid) throws DrupalFetchException
@@ -105,7 +135,7 @@ public class DrupalSiteContextBridge
             log.debug("Fetching node with nid " + nid);
         }
         try {
-            ServicesResponse response = requestManager.getString(String.format("%s/node/%d.json", rootPath, nid));
+            ServicesResponse response = requestManager.getString(buildNodePath(nid));
             assertNoErrors(response);
             return response;
         } catch (DrupalServicesResponseException e) {
@@ -115,6 +145,11 @@ public class DrupalSiteContextBridge
         }
     }
 
+    String buildNodePath(int nid)
+    {
+        return String.format("%s/node/%d.json", rootPath, nid);
+    }
+
     public ServicesResponse getComment(int cid) throws DrupalFetchException
     {
         try {
@@ -130,21 +165,23 @@ public class DrupalSiteContextBridge
 
     public ServicesResponse saveComment(String commentString) throws DrupalSaveException
     {
-        JSONObject data = new JSONObject();
         try {
-            data.put("comment", new JSONObject(commentString));
-            ServicesResponse response = requestManager.post(rootPath + "/comment.json", data.toString());
+            // the comment is already JSON, so it's wrapped as is rather than parsed and written out again
+            ServicesResponse response = requestManager.post(rootPath + "/comment.json", "{\"comment\":" + commentString + "}");
             assertNoErrors(response);
             return response;
         } catch (DrupalServicesResponseException e) {
             throw new DrupalSaveException(e);
-        } catch (JSONException e) {
-            throw new DrupalSaveException(e);
         } catch (IOException e) {
             throw new DrupalSaveException(e);
         }
     }
 
+    public ServicesResponse deleteComment(int cid) throws DrupalSaveException
+    {
+        return delete(String.format("%s/comment/%d.json", rootPath, cid));
+    }
+
     public ServicesResponse login(String username, String password) throws DrupalLoginException
     {
         Map<String, Object> data = new HashMap<String, Object>();
@@ -165,14 +202,23 @@ public class DrupalSiteContextBridge
 
 
     public ServicesResponse saveNode(DrupalNode node, JSONObject object) throws DrupalFetchException
+    {
+        return saveNode(node, object.toString());
+    }
+
+    /**
+     * @param node the node being saved, which decides between create and update.
+     * @param data the request body, <code>{"node":{...}}</code>.
+     */
+    public ServicesResponse saveNode(DrupalNode node, String data) throws DrupalFetchException
     {
         ServicesResponse response;
         try {
             if (node.getNid() == 0) {
-                response = requestManager.post(String.format("%s/node.json", rootPath), object.toString());
+                response = requestManager.post(String.format("%s/node.json", rootPath), data);
             }
             else {
-                response = requestManager.put(String.format("%s/node/%d.json", rootPath, node.getNid()), object.toString());
+                response = requestManager.put(String.format("%s/node/%d.json", rootPath, node.getNid()), data);
             }
             assertNoErrors(response);
         } catch (DrupalServicesResponseException e) {
@@ -183,10 +229,28 @@ public class DrupalSiteContextBridge
         return response;
     }
 
+    public ServicesResponse deleteNode(int nid) throws DrupalSaveException
+    {
+        return delete(buildNodePath(nid));
+    }
+
+    private ServicesResponse delete(String path) throws DrupalSaveException
+    {
+        try {
+            ServicesResponse response = requestManager.delete(path);
+            assertNoErrors(response);
+            return response;
+        } catch (DrupalServicesResponseException e) {
+            throw new DrupalSaveException(e);
+        } catch (IOException e) {
+            throw new DrupalSaveException(e);
+        }
+    }
+
     public ServicesResponse getUser(int uid) throws DrupalFetchException
     {
         try {
-            ServicesResponse response = requestManager.getString(String.format("%s/user/%d.json", rootPath, uid));
+            ServicesResponse response = requestManager.getString(buildUserPath(uid));
             assertNoErrors(response);
             return response;
         } catch (DrupalServicesResponseException e) {
@@ -196,12 +260,29 @@ public class DrupalSiteContextBridge
         }
     }
 
+    String buildUserPath(int uid)
+    {
+        return String.format("%s/user/%d.json", rootPath, uid);
+    }
+
     public ServicesResponse saveFileStream(InputStream inputStream, String fileName) throws DrupalFetchException
+    {
+        return saveFileStream(inputStream, fileName, -1, null);
+    }
+
+    /**
+     * Uploads a file.  If the create response already describes the file, it is returned as is; otherwise the file
+     * is fetched from the uri in the response.
+     */
+    public ServicesResponse saveFileStream(InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws DrupalFetchException
     {
         try {
-            ServicesResponse response = requestManager.postFile(String.format("%s/file.json", rootPath), "files[file]", inputStream, fileName);
+            ServicesResponse response = requestManager.postFile(String.format("%s/file.json", rootPath), "files[file]", inputStream, fileName, length, listener);
             assertNoErrors(response);
             JSONObject obj = new JSONObject(response.getResponseBody());
+            if (obj.has("filename") && obj.has("fid")) {
+                return response;
+            }
             String uri = obj.getString("uri");
             response = requestManager.getString(uri + ".json");
             assertNoErrors(response);
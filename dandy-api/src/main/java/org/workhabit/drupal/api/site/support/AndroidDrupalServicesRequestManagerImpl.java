@@ -1,17 +1,33 @@
 package org.workhabit.drupal.api.site.support;
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.params.ConnPerRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.mime.FormBodyPart;
 import org.apache.http.entity.mime.HttpMultipartMode;
@@ -19,24 +35,49 @@ import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.impl.cookie.BasicClientCookie;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
+import org.workhabit.drupal.http.Abortable;
+import org.workhabit.drupal.http.CancellationScope;
 import org.workhabit.drupal.http.DrupalServicesRequestManager;
 import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.ServicesResponseHandler;
+import org.workhabit.drupal.http.TransferProgressListener;
+import org.workhabit.drupal.http.metrics.DrupalEndpoints;
+import org.workhabit.drupal.http.metrics.RequestMetricsListener;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -49,28 +90,197 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
     private static final String CONTENT_TYPE_FORM_URLENCODED = "application/x-www-form-urlencoded";
     private static final String CONTENT_TYPE_JSON = "application/json";
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_CSRF_TOKEN = "X-CSRF-Token";
+    private static final long TRANSFER_BLOCK_SIZE = 64 * 1024;
+    private static final String RESPONSE_ENTITY = "dandy.response-entity";
     private static final String HTTP_SCHEME = "http";
     private static final String HTTPS_SCHEME = "https";
     private static final int HTTP_PORT = 80;
     private static final int HTTPS_PORT = 443;
     private final HttpClient client;
-    private ArrayList<GenericCookie> cookies;
-    private BasicCookieStore cookieStore;
-    private HttpContext httpContext;
+    private final StatisticsConnManager connectionManager;
+    private final IdleConnectionEvictor idleConnectionEvictor;
+    private final AtomicReference<List<GenericCookie>> cookies = new AtomicReference<List<GenericCookie>>(Collections.<GenericCookie>emptyList());
+    private final BasicCookieStore cookieStore;
+    private final HttpContext httpContext;
+    private volatile String csrfToken;
+    private final boolean requestCompressionEnabled;
+    private final int requestCompressionThreshold;
+    private final AtomicLong requestBytes;
+    private final AtomicLong requestBytesUncompressed;
+    private final AtomicLong responseBytes;
+    private final AtomicLong responseBytesDecompressed;
+    private final boolean sessionScoped;
+    private volatile RequestMetricsListener metricsListener;
 
     public AndroidDrupalServicesRequestManagerImpl()
     {
+        this(new HttpTransportConfiguration());
+    }
+
+    public AndroidDrupalServicesRequestManagerImpl(HttpTransportConfiguration configuration)
+    {
+        sessionScoped = false;
+        requestBytes = new AtomicLong();
+        requestBytesUncompressed = new AtomicLong();
+        responseBytes = new AtomicLong();
+        responseBytesDecompressed = new AtomicLong();
         HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, configuration.getConnectTimeout());
+        HttpConnectionParams.setSoTimeout(params, configuration.getSocketTimeout());
+        HttpConnectionParams.setTcpNoDelay(params, configuration.isTcpNoDelay());
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         //noinspection deprecation
         schemeRegistry.register(new Scheme(HTTP_SCHEME, PlainSocketFactory.getSocketFactory(), HTTP_PORT));
         //noinspection deprecation
         schemeRegistry.register(new Scheme(HTTPS_SCHEME, PlainSocketFactory.getSocketFactory(), HTTPS_PORT));
-        @SuppressWarnings({"deprecation"}) ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+        connectionManager = new StatisticsConnManager(schemeRegistry, configuration.getConnectionTimeToLive(), configuration.getConnectionRequestTimeout());
+        connectionManager.setMaxTotal(configuration.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+        cookieStore = new BasicCookieStore();
+        httpContext = new BasicHttpContext();
+        httpContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new BoundedKeepAliveStrategy(configuration.getKeepAliveDuration()));
+        final boolean responseCompressionEnabled = configuration.isResponseCompressionEnabled();
+        if (responseCompressionEnabled) {
+            httpClient.addRequestInterceptor(new HttpRequestInterceptor()
+            {
+                public void process(HttpRequest request, HttpContext context)
+                {
+                    if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                        request.addHeader(HEADER_ACCEPT_ENCODING, DecodingHttpEntity.GZIP + ", " + DecodingHttpEntity.DEFLATE);
+                    }
+                }
+            });
+        }
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor()
+        {
+            public void process(HttpResponse response, HttpContext context)
+            {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return;
+                }
+                Header contentEncoding = entity.getContentEncoding();
+                String encoding = contentEncoding != null ? contentEncoding.getValue().trim().toLowerCase(Locale.US) : null;
+                if (!responseCompressionEnabled || !DecodingHttpEntity.isSupported(encoding)) {
+                    // count only
+                    encoding = null;
+                }
+                DecodingHttpEntity decodingEntity = new DecodingHttpEntity(entity, encoding, responseBytes, responseBytesDecompressed);
+                response.setEntity(decodingEntity);
+                context.setAttribute(RESPONSE_ENTITY, decodingEntity);
+                if (encoding != null) {
+                    response.removeHeaders(HEADER_CONTENT_ENCODING);
+                    response.removeHeaders(HEADER_CONTENT_LENGTH);
+                }
+            }
+        });
+        client = httpClient;
+        requestCompressionEnabled = configuration.isRequestCompressionEnabled();
+        requestCompressionThreshold = configuration.getRequestCompressionThreshold();
+        if (configuration.getIdleConnectionTimeout() > 0) {
+            idleConnectionEvictor = new IdleConnectionEvictor(connectionManager, configuration.getIdleEvictionInterval(), configuration.getIdleConnectionTimeout());
+            idleConnectionEvictor.start();
+        }
+        else {
+            idleConnectionEvictor = null;
+        }
+    }
+
+    /**
+     * Creates a session over the transport of the given request manager: its own cookies and CSRF token, but the same
+     * client, connection pool and transfer statistics.
+     */
+    private AndroidDrupalServicesRequestManagerImpl(AndroidDrupalServicesRequestManagerImpl transport)
+    {
+        sessionScoped = true;
+        client = transport.client;
+        connectionManager = transport.connectionManager;
+        idleConnectionEvictor = transport.idleConnectionEvictor;
+        requestCompressionEnabled = transport.requestCompressionEnabled;
+        requestCompressionThreshold = transport.requestCompressionThreshold;
+        requestBytes = transport.requestBytes;
+        requestBytesUncompressed = transport.requestBytesUncompressed;
+        responseBytes = transport.responseBytes;
+        responseBytesDecompressed = transport.responseBytesDecompressed;
+        metricsListener = transport.metricsListener;
         cookieStore = new BasicCookieStore();
         httpContext = new BasicHttpContext();
         httpContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
-        client = new DefaultHttpClient(cm, params);
+    }
+
+    /**
+     * Creates a request manager for another user of the same site.  The session has its own cookie store and CSRF
+     * token, so logging in through it doesn't affect this request manager or any other session, but it sends its
+     * requests over this request manager's connection pool.  A session costs a cookie store and a context, so a
+     * server acting for many users can keep one per user without holding a pool of connections for each.
+     * <p/>
+     * The session starts with the metrics listener this request manager has now.  Shutting a session down forgets its
+     * cookies; the connection pool stays open until this request manager is shut down.
+     *
+     * @return a new, logged out session.
+     */
+    public AndroidDrupalServicesRequestManagerImpl newSession()
+    {
+        return new AndroidDrupalServicesRequestManagerImpl(this);
+    }
+
+    /**
+     * @return the current state of the connection pool.
+     */
+    public ConnectionPoolStatistics getConnectionPoolStatistics()
+    {
+        return connectionManager.getStatistics();
+    }
+
+    /**
+     * Reports the timing and size of each request to the listener, grouped by {@link DrupalEndpoints endpoint}.  Streams
+     * returned by {@link #getStream(String)} are read by the caller and aren't measured.
+     *
+     * @param metricsListener the listener, or null to stop reporting.
+     */
+    public void setMetricsListener(RequestMetricsListener metricsListener)
+    {
+        this.metricsListener = metricsListener;
+    }
+
+    public RequestMetricsListener getMetricsListener()
+    {
+        return metricsListener;
+    }
+
+    /**
+     * @return request and response byte counts, on the wire and uncompressed.
+     */
+    public TransferStatistics getTransferStatistics()
+    {
+        return new TransferStatistics(requestBytes.get(), requestBytesUncompressed.get(), responseBytes.get(), responseBytesDecompressed.get());
+    }
+
+    /**
+     * Closes all pooled connections and stops the idle connection evictor.  The request manager, and every session
+     * created from it, can't be used after it has been shut down.  Shutting down a {@link #newSession() session} only
+     * forgets its cookies and token.
+     */
+    public void shutdown()
+    {
+        if (sessionScoped) {
+            cookieStore.clear();
+            processCookies();
+            csrfToken = null;
+            return;
+        }
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdown();
+        }
+        connectionManager.shutdown();
     }
 
     /**
@@ -89,29 +299,63 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
         List<NameValuePair> parameters = processParameters(data);
         Header contentTypeHeader = new BasicHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_FORM_URLENCODED);
         post.setHeader(contentTypeHeader);
-        post.setEntity(new UrlEncodedFormEntity(parameters));
+        post.setEntity(formEntity(parameters));
         return executeMethod(post);
     }
 
     /**
      * Stores cookies from the request in an internal format that's agnostic to the underlying http implementation.
+     * The stored list is an immutable snapshot, replaced with compare-and-set only when the cookie store has changed,
+     * so readers never lock and most requests allocate nothing here.  The snapshot is read before the store, so a
+     * failed compare-and-set always rereads a store at least as new as the winning snapshot.
      */
     private void processCookies()
     {
-        cookies = new ArrayList<GenericCookie>();
-        List<Cookie> cookieList = cookieStore.getCookies();
-        for (Cookie cookie : cookieList) {
-            GenericCookie siteCookie = new GenericCookie();
-            siteCookie.setComment(cookie.getComment());
-            siteCookie.setDomain(cookie.getDomain());
-            siteCookie.setExpiryDate(cookie.getExpiryDate());
-            siteCookie.setName(cookie.getName());
-            siteCookie.setPath(cookie.getPath());
-            siteCookie.setSecure(cookie.isSecure());
-            siteCookie.setVersion(cookie.getVersion());
-            siteCookie.setValue(cookie.getValue());
-            cookies.add(siteCookie);
+        while (true) {
+            List<GenericCookie> current = cookies.get();
+            List<Cookie> cookieList = cookieStore.getCookies();
+            if (sameCookies(current, cookieList)) {
+                return;
+            }
+            List<GenericCookie> snapshot = new ArrayList<GenericCookie>(cookieList.size());
+            for (Cookie cookie : cookieList) {
+                GenericCookie siteCookie = new GenericCookie();
+                siteCookie.setComment(cookie.getComment());
+                siteCookie.setDomain(cookie.getDomain());
+                siteCookie.setExpiryDate(cookie.getExpiryDate());
+                siteCookie.setName(cookie.getName());
+                siteCookie.setPath(cookie.getPath());
+                siteCookie.setSecure(cookie.isSecure());
+                siteCookie.setVersion(cookie.getVersion());
+                siteCookie.setValue(cookie.getValue());
+                snapshot.add(siteCookie);
+            }
+            if (cookies.compareAndSet(current, Collections.unmodifiableList(snapshot))) {
+                return;
+            }
+        }
+    }
+
+    private static boolean sameCookies(List<GenericCookie> snapshot, List<Cookie> cookieList)
+    {
+        if (snapshot.size() != cookieList.size()) {
+            return false;
         }
+        for (int i = 0; i < snapshot.size(); i++) {
+            GenericCookie siteCookie = snapshot.get(i);
+            Cookie cookie = cookieList.get(i);
+            if (!equal(siteCookie.getName(), cookie.getName()) || !equal(siteCookie.getValue(), cookie.getValue())
+                || !equal(siteCookie.getDomain(), cookie.getDomain()) || !equal(siteCookie.getPath(), cookie.getPath())
+                || !equal(siteCookie.getExpiryDate(), cookie.getExpiryDate())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -132,7 +376,7 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
     {
         HttpPost post = new HttpPost(path);
         post.setHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
-        post.setEntity(new ByteArrayEntity(data.getBytes()));
+        post.setEntity(jsonEntity(data));
         return executeMethod(post);
 
     }
@@ -147,23 +391,145 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
      */
     private ServicesResponse executeMethod(HttpUriRequest method) throws IOException
     {
-        log.debug(method.getMethod() + " : " + method.getURI().toURL().toString());
-        HttpResponse response = client.execute(method, httpContext);
-        ServicesResponse servicesResponse = new ServicesResponse();
-        servicesResponse.setReasonPhrase(response.getStatusLine().getReasonPhrase());
-        servicesResponse.setStatusCode(response.getStatusLine().getStatusCode());
-        InputStream contentInputStream = response.getEntity().getContent();
-        processCookies();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(contentInputStream));
-        StringWriter sw = new StringWriter();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sw.write(line);
-            sw.write("\n");
+        return executeMethod(method, null);
+    }
+
+    /**
+     * @param streamedBytes counts the request body as it is streamed, for requests whose length isn't known up front.
+     *                      Null to take the length from the request entity.
+     */
+    private ServicesResponse executeMethod(HttpUriRequest method, AtomicLong streamedBytes) throws IOException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug(method.getMethod() + " : " + method.getURI());
+        }
+        Abortable abortable = register(method);
+        long started = System.nanoTime();
+        long firstByte = 0;
+        int statusCode = -1;
+        HttpContext context = new BasicHttpContext(httpContext);
+        String token = csrfToken;
+        if (token != null && !HttpGet.METHOD_NAME.equals(method.getMethod())) {
+            method.setHeader(HEADER_CSRF_TOKEN, token);
+        }
+        try {
+            HttpResponse response = client.execute(method, context);
+            firstByte = System.nanoTime();
+            statusCode = response.getStatusLine().getStatusCode();
+            ServicesResponse servicesResponse = new ServicesResponse();
+            servicesResponse.setReasonPhrase(response.getStatusLine().getReasonPhrase());
+            servicesResponse.setStatusCode(statusCode);
+            copyHeaders(response, servicesResponse);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                // e.g. 304 Not Modified
+                processCookies();
+                return servicesResponse;
+            }
+            processCookies();
+            InputStream content = entity.getContent();
+            try {
+                servicesResponse.setResponseBody(ResponseBodyReader.read(content, entity.getContentLength()), EntityUtils.getContentCharSet(entity));
+            } finally {
+                content.close();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("RESPONSE: " + servicesResponse.getResponseBody());
+            }
+            return servicesResponse;
+        } finally {
+            CancellationScope.unregister(abortable);
+            recordRequest(method, context, statusCode, started, firstByte, streamedBytes != null ? streamedBytes.get() : -1);
+        }
+    }
+
+    /**
+     * Reports a finished exchange to the metrics listener, if there is one.
+     *
+     * @param statusCode    the response status, or -1 if no response was received.
+     * @param started       {@link System#nanoTime()} when the request was sent.
+     * @param firstByte     {@link System#nanoTime()} when the response headers arrived, or 0 if they didn't.
+     * @param context       the context the request was executed with.
+     * @param streamedBytes the number of request body bytes sent, or -1 to take it from the request entity.
+     */
+    private void recordRequest(HttpUriRequest request, HttpContext context, int statusCode, long started, long firstByte, long streamedBytes)
+    {
+        RequestMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return;
+        }
+        long finished = System.nanoTime();
+        long sent = streamedBytes;
+        if (sent < 0) {
+            HttpEntity requestEntity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest)request).getEntity() : null;
+            sent = requestEntity != null ? Math.max(0, requestEntity.getContentLength()) : 0;
+        }
+        // the client wraps the response entity after the interceptors run, so the decoding entity is found through the
+        // context rather than the response
+        DecodingHttpEntity entity = (DecodingHttpEntity)context.getAttribute(RESPONSE_ENTITY);
+        long received = entity != null ? entity.getWireBytes() : 0;
+        String endpoint = DrupalEndpoints.classify(request.getMethod(), request.getURI().toString());
+        if (firstByte == 0) {
+            listener.requestCompleted(endpoint, statusCode, finished - started, 0, sent, received);
+        }
+        else {
+            listener.requestCompleted(endpoint, statusCode, firstByte - started, finished - firstByte, sent, received);
+        }
+    }
+
+    /**
+     * Registers the request with the calling thread's {@link CancellationScope}, so that cancelling the surrounding
+     * work aborts it.  Callers must unregister the returned handle once the response has been read.
+     */
+    private Abortable register(final HttpUriRequest request) throws InterruptedIOException
+    {
+        Abortable abortable = new Abortable()
+        {
+            public void abort()
+            {
+                request.abort();
+            }
+        };
+        CancellationScope.register(abortable);
+        return abortable;
+    }
+
+    /**
+     * Builds the entity for a json request body, gzip encoding it if request compression is enabled and the body is
+     * large enough to benefit.
+     */
+    private HttpEntity jsonEntity(String data) throws IOException
+    {
+        byte[] bytes = data.getBytes();
+        if (requestCompressionEnabled && bytes.length >= requestCompressionThreshold) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+            gzip.write(bytes);
+            gzip.close();
+            ByteArrayEntity entity = new ByteArrayEntity(buffer.toByteArray());
+            entity.setContentEncoding(DecodingHttpEntity.GZIP);
+            requestBytes.addAndGet(buffer.size());
+            requestBytesUncompressed.addAndGet(bytes.length);
+            return entity;
+        }
+        requestBytes.addAndGet(bytes.length);
+        requestBytesUncompressed.addAndGet(bytes.length);
+        return new ByteArrayEntity(bytes);
+    }
+
+    private HttpEntity formEntity(List<NameValuePair> parameters) throws UnsupportedEncodingException
+    {
+        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(parameters);
+        requestBytes.addAndGet(entity.getContentLength());
+        requestBytesUncompressed.addAndGet(entity.getContentLength());
+        return entity;
+    }
+
+    private void copyHeaders(HttpResponse response, ServicesResponse servicesResponse)
+    {
+        for (Header header : response.getAllHeaders()) {
+            servicesResponse.addHeader(header.getName(), header.getValue());
         }
-        servicesResponse.setResponseBody(sw.toString());
-        log.debug("RESPONSE: " + sw.toString());
-        return servicesResponse;
     }
 
     /**
@@ -180,7 +546,7 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
         HttpPut put = new HttpPut(path);
         put.setHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_FORM_URLENCODED);
         List<NameValuePair> parameters = processParameters(data);
-        put.setEntity(new UrlEncodedFormEntity(parameters));
+        put.setEntity(formEntity(parameters));
         return executeMethod(put);
     }
 
@@ -202,7 +568,7 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
     {
         HttpPut put = new HttpPut(path);
         put.setHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
-        put.setEntity(new ByteArrayEntity(data.getBytes()));
+        put.setEntity(jsonEntity(data));
         log.debug(data);
         return executeMethod(put);
     }
@@ -222,16 +588,286 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
     /**
      * Makes an HTTP GET request to the specified path, returning an inputstream.  Use this method as opposed to
      * {@link #getString(String)} if you expect a large response (e.g. a video or image).
+     * <p/>
+     * The stream reads directly from the connection, so the response is never held in memory as a whole.  The caller
+     * must close it, which returns the connection to the pool.
      *
      * @param path full URL to the remote server.
-     * @return a buffered input stream representing the response data.
+     * @return an input stream representing the response data.
      * @throws IOException if there's an error during the request.
      */
     public InputStream getStream(String path) throws IOException
     {
         HttpGet get = new HttpGet(path);
-        HttpResponse response = client.execute(get, httpContext);
-        return new BufferedHttpEntity(response.getEntity()).getContent();
+        Abortable abortable = register(get);
+        try {
+            HttpResponse response = client.execute(get, new BasicHttpContext(httpContext));
+            HttpEntity entity = response.getEntity();
+            return entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+        } finally {
+            CancellationScope.unregister(abortable);
+        }
+    }
+
+    /**
+     * Downloads a file without buffering it in memory, resuming a partial download if the destination exists.  The
+     * body is copied into the file with {@link FileChannel#transferFrom}, in blocks of 64k so that progress can be
+     * reported.  Responses are requested without content encoding, so that byte ranges refer to the file itself.
+     *
+     * @param path        full URL to the remote file.
+     * @param destination the file to write to.
+     * @param listener    receives progress updates, or null.
+     * @return the length of the downloaded file.
+     * @throws IOException if there's an error during the request, the server responds with an error status, or the
+     *                     body ends before the length the server announced.  What was written is kept, so calling
+     *                     this again resumes the download.
+     */
+    public long download(String path, File destination, TransferProgressListener listener) throws IOException
+    {
+        long existing = destination.isFile() ? destination.length() : 0;
+        HttpGet get = new HttpGet(path);
+        get.setHeader(HEADER_ACCEPT_ENCODING, "identity");
+        if (existing > 0) {
+            get.setHeader(HEADER_RANGE, "bytes=" + existing + "-");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(get.getMethod() + " : " + path + (existing > 0 ? " from byte " + existing : ""));
+        }
+        Abortable abortable = register(get);
+        try {
+            HttpResponse response = client.execute(get, new BasicHttpContext(httpContext));
+            processCookies();
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && existing > 0) {
+                // nothing left to download
+                EntityUtils.consume(entity);
+                return existing;
+            }
+            if (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT) {
+                EntityUtils.consume(entity);
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+            if (entity == null) {
+                throw new IOException("No response body for " + path);
+            }
+            long offset = 0;
+            long total = entity.getContentLength();
+            if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+                long[] range = parseContentRange(response.getFirstHeader(HEADER_CONTENT_RANGE));
+                if (range == null || range[0] != existing) {
+                    get.abort();
+                    throw new IOException("Unexpected Content-Range for " + path);
+                }
+                offset = existing;
+                total = range[1];
+            }
+            RandomAccessFile file = new RandomAccessFile(destination, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                if (offset == 0) {
+                    channel.truncate(0);
+                }
+                ReadableByteChannel source = Channels.newChannel(entity.getContent());
+                try {
+                    long position = offset;
+                    long transferred;
+                    while ((transferred = channel.transferFrom(source, position, TRANSFER_BLOCK_SIZE)) > 0) {
+                        position += transferred;
+                        if (listener != null) {
+                            listener.onProgress(position, total);
+                        }
+                    }
+                    if (total >= 0 && position < total) {
+                        throw new IOException("Download of " + path + " ended at byte " + position + " of " + total);
+                    }
+                    return position;
+                } finally {
+                    source.close();
+                }
+            } finally {
+                file.close();
+            }
+        } finally {
+            CancellationScope.unregister(abortable);
+        }
+    }
+
+    /**
+     * Makes a GET request with additional headers, and writes the response body to the destination if the response is
+     * 200 OK.  Other responses, e.g. 304 Not Modified, are returned without touching the destination.
+     *
+     * @param path           full URL to the remote file.
+     * @param requestHeaders headers to add to the request.
+     * @param destination    the file to write to.
+     * @return the status and headers of the response.
+     * @throws IOException if there's an error during the request.
+     */
+    public ServicesResponse download(String path, Map<String, String> requestHeaders, File destination) throws IOException
+    {
+        HttpGet get = new HttpGet(path);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                get.setHeader(header.getKey(), header.getValue());
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(get.getMethod() + " : " + path);
+        }
+        Abortable abortable = register(get);
+        long started = System.nanoTime();
+        long firstByte = 0;
+        int statusCode = -1;
+        HttpContext context = new BasicHttpContext(httpContext);
+        try {
+            HttpResponse response = client.execute(get, context);
+            firstByte = System.nanoTime();
+            statusCode = response.getStatusLine().getStatusCode();
+            processCookies();
+            ServicesResponse servicesResponse = new ServicesResponse();
+            servicesResponse.setStatusCode(statusCode);
+            servicesResponse.setReasonPhrase(response.getStatusLine().getReasonPhrase());
+            copyHeaders(response, servicesResponse);
+            HttpEntity entity = response.getEntity();
+            if (servicesResponse.getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                EntityUtils.consume(entity);
+                return servicesResponse;
+            }
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                entity.writeTo(out);
+            } finally {
+                out.close();
+            }
+            return servicesResponse;
+        } finally {
+            CancellationScope.unregister(abortable);
+            recordRequest(get, context, statusCode, started, firstByte, -1);
+        }
+    }
+
+    /**
+     * Downloads a file into a channel without buffering it in memory.
+     *
+     * @param path     full URL to the remote file.
+     * @param target   the channel to write to.  It is not closed.
+     * @param listener receives progress updates, or null.
+     * @return the number of bytes written.
+     * @throws IOException if there's an error during the request, the server responds with an error status, or the
+     *                     body ends before the length the server announced.
+     */
+    public long download(String path, WritableByteChannel target, TransferProgressListener listener) throws IOException
+    {
+        HttpGet get = new HttpGet(path);
+        get.setHeader(HEADER_ACCEPT_ENCODING, "identity");
+        if (log.isDebugEnabled()) {
+            log.debug(get.getMethod() + " : " + path);
+        }
+        Abortable abortable = register(get);
+        try {
+            HttpResponse response = client.execute(get, new BasicHttpContext(httpContext));
+            processCookies();
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status != HttpStatus.SC_OK) {
+                EntityUtils.consume(entity);
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+            if (entity == null) {
+                throw new IOException("No response body for " + path);
+            }
+            long total = entity.getContentLength();
+            ReadableByteChannel source = Channels.newChannel(entity.getContent());
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int)TRANSFER_BLOCK_SIZE);
+                long written = 0;
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        written += target.write(buffer);
+                    }
+                    buffer.clear();
+                    if (listener != null) {
+                        listener.onProgress(written, total);
+                    }
+                }
+                if (total >= 0 && written < total) {
+                    throw new IOException("Download of " + path + " ended at byte " + written + " of " + total);
+                }
+                return written;
+            } finally {
+                source.close();
+            }
+        } finally {
+            CancellationScope.unregister(abortable);
+        }
+    }
+
+    /**
+     * Reports the number of bytes read from an upload as the request body is written.
+     */
+    static class ProgressInputStream extends FilterInputStream
+    {
+        private final long length;
+        private final TransferProgressListener listener;
+        private long transferred;
+
+        ProgressInputStream(InputStream in, long length, TransferProgressListener listener)
+        {
+            super(in);
+            this.length = length;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1) {
+                listener.onProgress(++transferred, length);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                transferred += read;
+                listener.onProgress(transferred, length);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Parses a Content-Range header of the form "bytes first-last/length".
+     *
+     * @return the first byte position and the complete length (-1 if unknown), or null if the header is missing or
+     *         malformed.
+     */
+    private static long[] parseContentRange(Header header)
+    {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        if (!value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            String length = value.substring(slash + 1).trim();
+            return new long[]{first, "*".equals(length) ? -1 : Long.parseLong(length)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     /**
@@ -248,6 +884,77 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
         return executeMethod(get);
     }
 
+    /**
+     * Makes an HTTP GET request to the specified path with additional request headers, returning a string.
+     *
+     * @param path           full URL to the remote server.
+     * @param requestHeaders headers to add to the request, e.g. If-None-Match or If-Modified-Since.
+     * @return a string representing the response data.
+     * @throws IOException if there's an error during the request.
+     */
+    public ServicesResponse getString(String path, Map<String, String> requestHeaders) throws IOException
+    {
+        HttpGet get = new HttpGet(path);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                get.setHeader(header.getKey(), header.getValue());
+            }
+        }
+        return executeMethod(get);
+    }
+
+    /**
+     * Makes an HTTP GET request to the specified path and passes the response body to the handler without buffering
+     * it.  The connection is released back to the pool once the handler returns; if the handler fails, the request is
+     * aborted rather than draining the remainder of the response.
+     *
+     * @param path    full URL to the remote server.
+     * @param handler the handler that consumes the response body.
+     * @return the value returned by the handler.
+     * @throws IOException          if there's an error during the request.
+     * @throws DrupalFetchException if the handler could not process the response.
+     */
+    public <T> T get(String path, ServicesResponseHandler<T> handler) throws IOException, DrupalFetchException
+    {
+        HttpGet get = new HttpGet(path);
+        if (log.isDebugEnabled()) {
+            log.debug(get.getMethod() + " : " + path);
+        }
+        Abortable abortable = register(get);
+        long started = System.nanoTime();
+        long firstByte = 0;
+        int statusCode = -1;
+        HttpContext context = new BasicHttpContext(httpContext);
+        try {
+            HttpResponse response = client.execute(get, context);
+            firstByte = System.nanoTime();
+            statusCode = response.getStatusLine().getStatusCode();
+            processCookies();
+            ServicesResponse servicesResponse = new ServicesResponse();
+            servicesResponse.setReasonPhrase(response.getStatusLine().getReasonPhrase());
+            servicesResponse.setStatusCode(statusCode);
+            copyHeaders(response, servicesResponse);
+            HttpEntity entity = response.getEntity();
+            boolean completed = false;
+            try {
+                InputStream content = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+                T result = handler.handleResponse(servicesResponse, content);
+                completed = true;
+                return result;
+            } finally {
+                if (completed) {
+                    EntityUtils.consume(entity);
+                }
+                else {
+                    get.abort();
+                }
+            }
+        } finally {
+            CancellationScope.unregister(abortable);
+            recordRequest(get, context, statusCode, started, firstByte, -1);
+        }
+    }
+
     /**
      * Get a list of cookies associated with this request manager.  Cookies should represent the latest state of cookies
      * as of the most recent request.
@@ -256,7 +963,12 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
      */
     public ArrayList<GenericCookie> getCookies()
     {
-        return cookies;
+        return new ArrayList<GenericCookie>(cookies.get());
+    }
+
+    public void setCsrfToken(String csrfToken)
+    {
+        this.csrfToken = csrfToken;
     }
 
     /**
@@ -274,24 +986,34 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
      */
     public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName) throws IOException
     {
+        return postFile(path, fieldName, inputStream, fileName, -1, null);
+    }
+
+    /**
+     * Perform an HTTP POST with a file in multipart form.  The multipart body has no declared length, so it is sent
+     * with chunked transfer encoding as the file is read, and the request waits for 100-continue before sending it.
+     *
+     * @param path        full URL to the remote server.
+     * @param fieldName   the field name to post the file as
+     * @param inputStream inputstream to the file.
+     * @param fileName    the file name to post
+     * @param length      the length of the file if known, or -1.  Only used to report progress.
+     * @param listener    receives progress updates as the file is sent, or null.
+     * @return a servicesResponse object with the result of the request
+     * @throws IOException if there's a problem making the request.
+     */
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException
+    {
+        if (listener != null) {
+            inputStream = new ProgressInputStream(inputStream, length, listener);
+        }
+        AtomicLong streamedBytes = new AtomicLong();
         MultipartEntity entity = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
-        entity.addPart(new FormBodyPart(fieldName, new InputStreamBody(new BufferedInputStream(inputStream), fileName)));
+        entity.addPart(new FormBodyPart(fieldName, new InputStreamBody(new DecodingHttpEntity.CountingInputStream(inputStream, streamedBytes), fileName)));
         HttpPost httpPost = new HttpPost(path);
         httpPost.setEntity(entity);
-        HttpResponse response = client.execute(httpPost, httpContext);
-        InputStream contentInputStream = response.getEntity().getContent();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(contentInputStream));
-        StringWriter sw = new StringWriter();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sw.write(line);
-            sw.write("\n");
-        }
-        ServicesResponse servicesResponse = new ServicesResponse();
-        servicesResponse.setReasonPhrase(response.getStatusLine().getReasonPhrase());
-        servicesResponse.setStatusCode(response.getStatusLine().getStatusCode());
-        servicesResponse.setResponseBody(sw.toString());
-        return servicesResponse;
+        HttpProtocolParams.setUseExpectContinue(httpPost.getParams(), true);
+        return executeMethod(httpPost, streamedBytes);
     }
 
     /**
@@ -330,9 +1052,9 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
 
     public void initializeSavedState(DrupalSiteContextInstanceState drupalSiteContextInstanceState)
     {
-        cookies = drupalSiteContextInstanceState.getCookies();
-        for (GenericCookie genericCookie : cookies) {
-            cookieStore.clear();
+        cookieStore.clear();
+        List<GenericCookie> savedCookies = drupalSiteContextInstanceState.getCookies();
+        for (GenericCookie genericCookie : savedCookies != null ? savedCookies : Collections.<GenericCookie>emptyList()) {
             BasicClientCookie cookie = new BasicClientCookie(genericCookie.getName(), genericCookie.getValue());
             cookie.setComment(genericCookie.getComment());
             cookie.setDomain(genericCookie.getDomain());
@@ -342,5 +1064,158 @@ public class AndroidDrupalServicesRequestManagerImpl implements DrupalServicesRe
             cookie.setVersion(genericCookie.getVersion());
             cookieStore.addCookie(cookie);
         }
+        processCookies();
+        csrfToken = drupalSiteContextInstanceState.getCsrfToken();
+    }
+
+    /**
+     * Keeps connections alive for as long as the server's Keep-Alive header allows, capped at the configured
+     * duration.  If the server doesn't say, the configured duration is used.
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        private final long keepAliveDuration;
+
+        BoundedKeepAliveStrategy(long keepAliveDuration)
+        {
+            this.keepAliveDuration = keepAliveDuration;
+        }
+
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        long serverDuration = Long.parseLong(element.getValue()) * 1000;
+                        return keepAliveDuration > 0 ? Math.min(serverDuration, keepAliveDuration) : serverDuration;
+                    } catch (NumberFormatException e) {
+                        // fall through to the configured duration
+                    }
+                }
+            }
+            return keepAliveDuration;
+        }
+    }
+
+    /**
+     * Connection manager whose pool can report how many of its connections are leased and how many are idle.
+     */
+    /**
+     * Connection manager that reports pool statistics and bounds the wait for a pooled connection.  HttpClient 4.1
+     * waits for a connection for as long as the connect timeout, and ignores the connection manager timeout, so the
+     * wait is set here instead.
+     */
+    private static class StatisticsConnManager extends ThreadSafeClientConnManager
+    {
+        private final long connectionRequestTimeout;
+
+        StatisticsConnManager(SchemeRegistry schemeRegistry, long connectionTimeToLive, long connectionRequestTimeout)
+        {
+            super(schemeRegistry, connectionTimeToLive, TimeUnit.MILLISECONDS);
+            this.connectionRequestTimeout = connectionRequestTimeout;
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state)
+        {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest()
+            {
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException, ConnectionPoolTimeoutException
+                {
+                    return request.getConnection(connectionRequestTimeout, TimeUnit.MILLISECONDS);
+                }
+
+                public void abortRequest()
+                {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        protected ConnPoolByRoute createConnectionPool(long connTTL, TimeUnit connTTLTimeUnit)
+        {
+            return new StatisticsConnPool(connOperator, connPerRoute, connTTL, connTTLTimeUnit);
+        }
+
+        ConnectionPoolStatistics getStatistics()
+        {
+            return ((StatisticsConnPool)pool).getStatistics(getMaxTotal(), getDefaultMaxPerRoute());
+        }
+    }
+
+    private static class StatisticsConnPool extends ConnPoolByRoute
+    {
+        StatisticsConnPool(ClientConnectionOperator operator, ConnPerRoute connPerRoute, long connTTL, TimeUnit connTTLTimeUnit)
+        {
+            super(operator, connPerRoute, 20, connTTL, connTTLTimeUnit);
+        }
+
+        ConnectionPoolStatistics getStatistics(int maxTotal, int maxPerRoute)
+        {
+            getLock().lock();
+            try {
+                return new ConnectionPoolStatistics(numConnections, leasedConnections.size(), freeConnections.size(), maxTotal, maxPerRoute);
+            } finally {
+                getLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Background thread that periodically closes expired connections and connections that have been idle for too
+     * long, so that stale sockets don't accumulate in the pool between bursts of requests.  The connection manager is
+     * only weakly held, so a request manager that is dropped without being shut down can still be collected; the
+     * evictor exits once it has been.
+     */
+    private static class IdleConnectionEvictor extends Thread
+    {
+        private final WeakReference<ClientConnectionManager> connectionManager;
+        private final long interval;
+        private final long idleTimeout;
+        private volatile boolean shutdown;
+
+        IdleConnectionEvictor(ClientConnectionManager connectionManager, long interval, long idleTimeout)
+        {
+            super("dandy-idle-connection-evictor");
+            this.connectionManager = new WeakReference<ClientConnectionManager>(connectionManager);
+            this.interval = interval;
+            this.idleTimeout = idleTimeout;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (!shutdown) {
+                    synchronized (this) {
+                        wait(interval);
+                    }
+                    ClientConnectionManager manager = connectionManager.get();
+                    if (manager == null) {
+                        return;
+                    }
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                    // don't keep the manager reachable while waiting
+                    //noinspection UnusedAssignment
+                    manager = null;
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }
+
+        public void shutdown()
+        {
+            shutdown = true;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
     }
 }
@@ -0,0 +1,62 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * A point in time view of a request manager's connection pool.
+ */
+public class ConnectionPoolStatistics
+{
+    private final int connectionsInPool;
+    private final int leasedConnections;
+    private final int availableConnections;
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerRoute;
+
+    public ConnectionPoolStatistics(int connectionsInPool, int leasedConnections, int availableConnections, int maxTotalConnections, int maxConnectionsPerRoute)
+    {
+        this.connectionsInPool = connectionsInPool;
+        this.leasedConnections = leasedConnections;
+        this.availableConnections = availableConnections;
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return the number of open connections, both leased and idle.
+     */
+    public int getConnectionsInPool()
+    {
+        return connectionsInPool;
+    }
+
+    /**
+     * @return the number of connections currently serving a request.
+     */
+    public int getLeasedConnections()
+    {
+        return leasedConnections;
+    }
+
+    /**
+     * @return the number of idle connections ready to be reused.
+     */
+    public int getAvailableConnections()
+    {
+        return availableConnections;
+    }
+
+    public int getMaxTotalConnections()
+    {
+        return maxTotalConnections;
+    }
+
+    public int getMaxConnectionsPerRoute()
+    {
+        return maxConnectionsPerRoute;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d of %d connections in pool, %d leased and %d available (%d per route)", connectionsInPool, maxTotalConnections, leasedConnections, availableConnections, maxConnectionsPerRoute);
+    }
+}
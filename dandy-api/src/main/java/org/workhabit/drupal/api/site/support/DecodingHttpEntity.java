@@ -0,0 +1,150 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wraps a response entity so that gzip or deflate encoded content is decompressed as it is read, and counts bytes
+ * read before and after decoding.  Entities without a content encoding are passed through and only counted.
+ * <p/>
+ * The content stream is created once, so that a caller that partially reads the content and then releases the entity
+ * closes the same stream rather than opening a second decoder on the remaining bytes.
+ */
+class DecodingHttpEntity extends HttpEntityWrapper
+{
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    private final String encoding;
+    private final AtomicLong wireBytes;
+    private final AtomicLong decodedBytes;
+    private final AtomicLong entityWireBytes = new AtomicLong();
+    private InputStream content;
+
+    DecodingHttpEntity(HttpEntity wrapped, String encoding, AtomicLong wireBytes, AtomicLong decodedBytes)
+    {
+        super(wrapped);
+        this.encoding = encoding;
+        this.wireBytes = wireBytes;
+        this.decodedBytes = decodedBytes;
+    }
+
+    static boolean isSupported(String encoding)
+    {
+        return GZIP.equals(encoding) || DEFLATE.equals(encoding);
+    }
+
+    @Override
+    public synchronized InputStream getContent() throws IOException
+    {
+        if (content == null) {
+            InputStream in = new CountingInputStream(new CountingInputStream(wrappedEntity.getContent(), wireBytes), entityWireBytes);
+            if (GZIP.equals(encoding)) {
+                in = new GZIPInputStream(in);
+            }
+            else if (DEFLATE.equals(encoding)) {
+                in = inflate(in);
+            }
+            content = new CountingInputStream(in, decodedBytes);
+        }
+        return content;
+    }
+
+    /**
+     * @return the number of bytes of this entity read from the wire so far, before decoding.
+     */
+    long getWireBytes()
+    {
+        return entityWireBytes.get();
+    }
+
+    /**
+     * Writes the decoded content.  The wrapped entity's writeTo would copy the encoded bytes.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException
+    {
+        InputStream in = getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public Header getContentEncoding()
+    {
+        return isSupported(encoding) ? null : super.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return isSupported(encoding) ? -1 : super.getContentLength();
+    }
+
+    /**
+     * "deflate" is meant to be zlib wrapped, but some servers send a raw deflate stream.  Check for a zlib header and
+     * fall back to raw inflation if there isn't one.
+     */
+    private static InputStream inflate(InputStream in) throws IOException
+    {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int b0 = pushback.read();
+        int b1 = pushback.read();
+        if (b1 >= 0) {
+            pushback.unread(b1);
+        }
+        if (b0 >= 0) {
+            pushback.unread(b0);
+        }
+        boolean zlib = b0 >= 0 && b1 >= 0 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    static class CountingInputStream extends FilterInputStream
+    {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter)
+        {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.addAndGet(n);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.workhabit.drupal.api.site.support;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk operation: a result or a failure for each key, in the order the keys were requested.  A key that
+ * was requested more than once appears once.
+ *
+ * @param <K> the key type, e.g. a nid
+ * @param <V> the result type
+ */
+public class DrupalBulkResult<K, V>
+{
+    private final Map<K, V> results = new LinkedHashMap<K, V>();
+    private final Map<K, Exception> failures = new LinkedHashMap<K, Exception>();
+
+    public void addResult(K key, V value)
+    {
+        results.put(key, value);
+    }
+
+    public void addFailure(K key, Exception failure)
+    {
+        failures.put(key, failure);
+    }
+
+    /**
+     * @return the successful results, in request order.
+     */
+    public Map<K, V> getResults()
+    {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * @return the exception for each key that failed, in request order.
+     */
+    public Map<K, Exception> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public V get(K key)
+    {
+        return results.get(key);
+    }
+
+    public Exception getFailure(K key)
+    {
+        return failures.get(key);
+    }
+
+    /**
+     * @return true if every key succeeded.
+     */
+    public boolean isSuccessful()
+    {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d succeeded, %d failed", results.size(), failures.size());
+    }
+}
@@ -0,0 +1,254 @@
+package org.workhabit.drupal.api.site.support;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of parsed entities, keyed by entity type and id.  The cache holds at most a fixed number of entries
+ * across all types, evicting the least recently used entry when it is full, and each type has its own time to live.
+ * <p/>
+ * Cached entities are shared: callers that modify an entity returned from the cache should invalidate it (or save it,
+ * which invalidates it) so that other callers don't see the unsaved change.
+ * <p/>
+ * A fetch that races a save could otherwise put back the entity the save just invalidated.  To prevent that, read
+ * {@link #getGeneration()} before fetching and store the result with {@link #put(EntityType, int, Object, long)}, which
+ * drops it if the entry has been invalidated since.
+ */
+public class DrupalEntityCache
+{
+    public enum EntityType
+    {
+        NODE, USER, COMMENT,
+        /**
+         * the complete comment list of a node, keyed by nid
+         */
+        NODE_COMMENTS
+    }
+
+    private static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+    private final int maxEntries;
+    private final Map<EntityType, Long> timeToLive = new EnumMap<EntityType, Long>(EntityType.class);
+    private final LinkedHashMap<Key, Entry> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    // bumped by every invalidation
+    private long generation;
+    // the generation of the latest invalidation of each recently invalidated key
+    private final LinkedHashMap<Key, Long> invalidations;
+    // every key counts as invalidated at this generation, e.g. after a clear
+    private long invalidatedFloor;
+
+    /**
+     * @param maxEntries the maximum number of entities to hold, across all types.
+     */
+    public DrupalEntityCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        for (EntityType type : EntityType.values()) {
+            timeToLive.put(type, DEFAULT_TIME_TO_LIVE);
+        }
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                if (size() > DrupalEntityCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        invalidations = new LinkedHashMap<Key, Long>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest)
+            {
+                if (size() > DrupalEntityCache.this.maxEntries) {
+                    // forgetting a key's invalidation is only safe if every key is treated as invalidated then
+                    invalidatedFloor = Math.max(invalidatedFloor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets how long entities of a type stay in the cache.  Defaults to five minutes.
+     *
+     * @param type              the entity type
+     * @param timeToLiveMillis  the lifetime of an entry in milliseconds.  Zero or less disables caching of the type.
+     */
+    public synchronized void setTimeToLive(EntityType type, long timeToLiveMillis)
+    {
+        timeToLive.put(type, timeToLiveMillis);
+        if (timeToLiveMillis <= 0) {
+            invalidateAll(type);
+        }
+    }
+
+    public synchronized long getTimeToLive(EntityType type)
+    {
+        return timeToLive.get(type);
+    }
+
+    /**
+     * @return the cached entity, or null if it isn't cached or has expired.
+     */
+    @SuppressWarnings({"unchecked"})
+    public synchronized <T> T get(EntityType type, int id)
+    {
+        Key key = new Key(type, id);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= currentTimeMillis()) {
+            entries.remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return (T)entry.value;
+    }
+
+    public synchronized void put(EntityType type, int id, Object value)
+    {
+        long ttl = timeToLive.get(type);
+        if (value == null || ttl <= 0) {
+            return;
+        }
+        entries.put(new Key(type, id), new Entry(value, currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Stores an entity fetched after {@link #getGeneration()} returned the given generation, unless its entry has been
+     * invalidated since then, in which case the entity may predate a save and is dropped.
+     *
+     * @return true if the entity was stored.
+     */
+    public synchronized boolean put(EntityType type, int id, Object value, long generation)
+    {
+        Key key = new Key(type, id);
+        Long invalidated = invalidations.get(key);
+        if (invalidatedFloor > generation || (invalidated != null && invalidated > generation)) {
+            return false;
+        }
+        put(type, id, value);
+        return true;
+    }
+
+    /**
+     * @return the current invalidation generation, to read before fetching an entity that will be stored with
+     *         {@link #put(EntityType, int, Object, long)}.
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    public synchronized void invalidate(EntityType type, int id)
+    {
+        Key key = new Key(type, id);
+        entries.remove(key);
+        // re-inserted so that it is the newest
+        invalidations.remove(key);
+        invalidations.put(key, ++generation);
+    }
+
+    public synchronized void invalidateAll(EntityType type)
+    {
+        for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();) {
+            if (it.next().type == type) {
+                it.remove();
+            }
+        }
+        invalidatedFloor = ++generation;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        invalidations.clear();
+        invalidatedFloor = ++generation;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups that found a live entry.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that found no entry, or an expired one.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries removed to make room for newer ones.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private static class Key
+    {
+        private final EntityType type;
+        private final int id;
+
+        Key(EntityType type, int id)
+        {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return type == other.type && id == other.id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * type.hashCode() + id;
+        }
+    }
+
+    private static class Entry
+    {
+        private final Object value;
+        private final long expiresAt;
+
+        Entry(Object value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
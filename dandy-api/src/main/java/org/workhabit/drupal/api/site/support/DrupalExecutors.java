@@ -0,0 +1,81 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for executors suited to running blocking Drupal requests.
+ */
+public class DrupalExecutors
+{
+    private static final Logger log = LoggerFactory.getLogger(DrupalExecutors.class.getSimpleName());
+    private static ExecutorService shared;
+
+    private DrupalExecutors()
+    {
+    }
+
+    /**
+     * Returns an executor with a fixed number of daemon threads.  Size it to match the request manager's
+     * per-route connection limit; more threads than connections just queue on the pool.
+     *
+     * @param threads the number of worker threads.
+     * @return a new executor.
+     */
+    public static ExecutorService newFixedThreadPool(int threads)
+    {
+        return Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task when the JVM supports them (Java 21 and later), and
+     * otherwise a cached pool of daemon threads.  Virtual threads make it cheap to have many requests blocked on the
+     * network at once; the connection pool still bounds how many are actually sent concurrently.
+     *
+     * @return a new executor.
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            log.debug("Virtual threads not available, using a cached thread pool");
+        } catch (Exception e) {
+            log.warn("Unable to create a virtual thread executor, using a cached thread pool", e);
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory());
+    }
+
+    /**
+     * Returns the executor shared by bulk operations that haven't been given one of their own.  It is a cached pool
+     * of daemon threads, so idle threads exit after a minute and there is nothing to shut down.  Don't shut it down.
+     *
+     * @return the shared executor.
+     */
+    public static synchronized ExecutorService sharedExecutor()
+    {
+        if (shared == null) {
+            shared = Executors.newCachedThreadPool(new DaemonThreadFactory());
+        }
+        return shared;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "dandy-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.workhabit.drupal.api.site.support;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Helpers for the files that caches and local stores keep on disk.
+ */
+public class DrupalFiles
+{
+    private static final String BACKUP_SUFFIX = ".old";
+
+    private DrupalFiles()
+    {
+    }
+
+    /**
+     * Moves a completely written temporary file into place over the target.  Some platforms won't rename over an
+     * existing file, so the target is first moved aside and only deleted once the replacement is in place.  If the
+     * replacement fails, the target is moved back; if the process dies in between, {@link #recover(File)} finds it.
+     *
+     * @param temp   the replacement.
+     * @param target the file to replace, which need not exist.
+     * @throws IOException if the target can't be replaced.  It is left as it was.
+     */
+    public static void replaceFile(File temp, File target) throws IOException
+    {
+        if (temp.renameTo(target)) {
+            return;
+        }
+        File backup = backupOf(target);
+        //noinspection ResultOfMethodCallIgnored
+        backup.delete();
+        boolean existed = target.exists();
+        if (existed && !target.renameTo(backup)) {
+            throw new IOException("Unable to rename " + temp + " to " + target);
+        }
+        if (!temp.renameTo(target)) {
+            if (existed && !backup.renameTo(target)) {
+                throw new IOException("Unable to rename " + temp + " to " + target + ", the original is in " + backup);
+            }
+            throw new IOException("Unable to rename " + temp + " to " + target);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        backup.delete();
+    }
+
+    /**
+     * Restores a file that {@link #replaceFile(File, File)} had moved aside when the process stopped before the
+     * replacement was in place.  Call it before opening a file that is replaced that way.
+     *
+     * @param target the file to restore.
+     * @throws IOException if the file was moved aside but can't be moved back.
+     */
+    public static void recover(File target) throws IOException
+    {
+        File backup = backupOf(target);
+        if (!backup.exists()) {
+            return;
+        }
+        if (target.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            backup.delete();
+        }
+        else if (!backup.renameTo(target)) {
+            throw new IOException("Unable to restore " + target + " from " + backup);
+        }
+    }
+
+    private static File backupOf(File target)
+    {
+        return new File(target.getPath() + BACKUP_SUFFIX);
+    }
+}
@@ -0,0 +1,12 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * Transforms the result of one {@link DrupalFuture} into the result of another.
+ *
+ * @param <F> the input type
+ * @param <T> the output type
+ */
+public interface DrupalFunction<F, T>
+{
+    T apply(F input) throws Exception;
+}
@@ -0,0 +1,176 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.http.CancellationScope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an asynchronous Drupal request.  In addition to the usual {@link java.util.concurrent.Future} operations,
+ * listeners can be notified when the request completes and results can be transformed into new futures without
+ * blocking.
+ * <p/>
+ * The work runs inside a {@link CancellationScope}, so cancelling the future aborts any HTTP request it has in
+ * flight rather than waiting for the server to answer.  Cancelling a transformed future cancels the future it was
+ * derived from.
+ *
+ * @param <V> the result type
+ */
+public class DrupalFuture<V> extends FutureTask<V>
+{
+    private final CancellationScope scope;
+    private final DrupalFuture<?> source;
+    private List<DrupalFutureListener<? super V>> listeners = new ArrayList<DrupalFutureListener<? super V>>();
+
+    /**
+     * @param callable the work to run when the future is executed.
+     */
+    public DrupalFuture(Callable<V> callable)
+    {
+        this(new ScopedCallable<V>(callable, new CancellationScope()), null);
+    }
+
+    private DrupalFuture(ScopedCallable<V> callable, DrupalFuture<?> source)
+    {
+        super(callable);
+        this.scope = callable.scope;
+        this.source = source;
+    }
+
+    /**
+     * Registers a listener to be notified when the future completes.  If it has already completed, the listener is
+     * notified immediately on the calling thread.
+     *
+     * @param listener the listener to notify.
+     * @return this future, for chaining.
+     */
+    public DrupalFuture<V> addListener(DrupalFutureListener<? super V> listener)
+    {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Returns a future for the result of applying a function to this future's result.  The function runs on the
+     * thread that completes this future.  If this future fails, or the function throws, the returned future fails
+     * with the same exception.
+     *
+     * @param function the function to apply.
+     * @return a future for the transformed result.
+     */
+    public <T> DrupalFuture<T> transform(final DrupalFunction<? super V, ? extends T> function)
+    {
+        final DrupalFuture<T> result = new DrupalFuture<T>(new ScopedCallable<T>(null, scope), this);
+        addListener(new DrupalFutureListener<V>()
+        {
+            public void onSuccess(V value)
+            {
+                try {
+                    result.set(function.apply(value));
+                } catch (Exception e) {
+                    result.setException(e);
+                }
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                if (cause instanceof CancellationException) {
+                    result.cancel(false);
+                }
+                else {
+                    result.setException(cause);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels the work, aborting its in-flight HTTP request if it has started.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            if (source != null) {
+                source.cancel(mayInterruptIfRunning);
+            }
+            else {
+                scope.cancel();
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done()
+    {
+        List<DrupalFutureListener<? super V>> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+        for (DrupalFutureListener<? super V> listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(DrupalFutureListener<? super V> listener)
+    {
+        V value;
+        try {
+            value = get();
+        } catch (ExecutionException e) {
+            listener.onFailure(e.getCause());
+            return;
+        } catch (CancellationException e) {
+            listener.onFailure(e);
+            return;
+        } catch (InterruptedException e) {
+            // can't happen, the future is complete
+            Thread.currentThread().interrupt();
+            listener.onFailure(e);
+            return;
+        }
+        listener.onSuccess(value);
+    }
+
+    /**
+     * Runs the work with its cancellation scope entered on the executing thread.
+     */
+    private static class ScopedCallable<V> implements Callable<V>
+    {
+        private final Callable<V> callable;
+        private final CancellationScope scope;
+
+        ScopedCallable(Callable<V> callable, CancellationScope scope)
+        {
+            this.callable = callable;
+            this.scope = scope;
+        }
+
+        public V call() throws Exception
+        {
+            if (callable == null) {
+                throw new IllegalStateException("Transformed futures are completed by their source");
+            }
+            scope.enter();
+            try {
+                return callable.call();
+            } finally {
+                scope.exit();
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * Receives the outcome of a {@link DrupalFuture}.  Callbacks run on the thread that completes the future, or on the
+ * registering thread if the future has already completed, so they should be short; UI code should hand the result
+ * over to its own thread.
+ *
+ * @param <V> the result type
+ */
+public interface DrupalFutureListener<V>
+{
+    void onSuccess(V result);
+
+    /**
+     * @param cause the exception thrown by the work, e.g. a DrupalFetchException, or a
+     *              {@link java.util.concurrent.CancellationException} if the future was cancelled.
+     */
+    void onFailure(Throwable cause);
+}
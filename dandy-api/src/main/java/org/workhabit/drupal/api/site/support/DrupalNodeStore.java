@@ -0,0 +1,771 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.entity.drupal7.DrupalTaxonomyTerm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A local, persistent store of nodes that answers "node by nid", "latest nodes of a type", "nodes in a term" and
+ * "nodes changed since" without a request to the site.  It is typically filled from a {@link DrupalViewSync}:
+ * <pre>
+ * DrupalNodeStore store = new DrupalNodeStore(new File(cacheDir, "nodes.store"));
+ * store.putAll(articles.sync().getChanged());
+ * List&lt;DrupalNode&gt; latest = store.getLatestOfType("article", 0, 20);
+ * </pre>
+ * Nodes are kept in a single append-only file that is memory-mapped for both reads and writes.  Every record holds
+ * the fields the indexes need, a nid, type, created and changed time and taxonomy tids, ahead of the node's JSON, so
+ * that opening the store rebuilds its indexes without parsing any node.  Replacing or removing a node appends a new
+ * record and leaves the old one as garbage; once garbage makes up most of a file over {@link #COMPACT_THRESHOLD}
+ * bytes, the live records are copied to a new file that replaces the old one.  A record torn by a crash fails its
+ * length or checksum check when the store is opened, and it and anything after it are dropped.
+ * <p/>
+ * The indexes are sorted arrays, searched in microseconds, in an immutable snapshot that each write replaces.
+ * Reads never lock and may run on any number of threads while a write is in progress; a read sees the store as of
+ * the last write that completed before it started.  Reading a node parses its JSON from the mapped file, so queries
+ * take time in proportion to the nodes they return rather than to the size of the store.  Writes are serialized,
+ * and a single put costs a copy of the index arrays, so many nodes are better written with one
+ * {@link #putAll(Collection)}.
+ * <p/>
+ * Writes reach the file as soon as they return, and survive the process dying, but only reach the disk when the
+ * operating system writes the mapped pages out or {@link #flush()} is called.  The file is limited to 2GB.
+ */
+public class DrupalNodeStore
+{
+    static final long COMPACT_THRESHOLD = 1024 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(DrupalNodeStore.class.getSimpleName());
+    private static final Gson gson = LocalGson.INSTANCE;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // length and checksum
+    private static final int FRAME = 4 + 4;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // past this many nodes, a putAll rebuilds the indexes rather than updating them one node at a time
+    private static final int REBUILD_THRESHOLD = 16;
+    private final File file;
+    private RandomAccessFile out;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes;
+    private volatile Index index;
+
+    /**
+     * Opens the store, creating it if it doesn't exist and rebuilding its indexes if it does.
+     *
+     * @param file the store's file.
+     * @throws IOException if the file can't be read or created.
+     */
+    public DrupalNodeStore(File file) throws IOException
+    {
+        this.file = file;
+        DrupalFiles.recover(file);
+        out = new RandomAccessFile(file, "rw");
+        buffer = map(out, Math.max(INITIAL_CAPACITY, out.length()));
+        Map<Integer, Entry> entries = recover();
+        index = Index.build(buffer.asReadOnlyBuffer(), buffer, entries.values());
+    }
+
+    /**
+     * @param nid the node's id.
+     * @return the node, or null if it isn't in the store.
+     */
+    public DrupalNode getNode(int nid)
+    {
+        Index current = index;
+        int i = Arrays.binarySearch(current.nids, nid);
+        return i < 0 ? null : read(current, current.entries[i]);
+    }
+
+    /**
+     * @param nid the node's id.
+     * @return true if the node is in the store.
+     */
+    public boolean contains(int nid)
+    {
+        return Arrays.binarySearch(index.nids, nid) >= 0;
+    }
+
+    /**
+     * @return the number of nodes in the store.
+     */
+    public int size()
+    {
+        return index.nids.length;
+    }
+
+    /**
+     * @param offset the number of nodes to skip.
+     * @param limit  the most nodes to return.
+     * @return nodes, newest created first.
+     */
+    public List<DrupalNode> getLatest(int offset, int limit)
+    {
+        Index current = index;
+        return newestFirst(current, current.byCreated, offset, limit);
+    }
+
+    /**
+     * @param type   the node type, e.g. "article".
+     * @param offset the number of nodes to skip.
+     * @param limit  the most nodes to return.
+     * @return nodes of the type, newest created first.
+     */
+    public List<DrupalNode> getLatestOfType(String type, int offset, int limit)
+    {
+        Index current = index;
+        return newestFirst(current, current.byType.get(type), offset, limit);
+    }
+
+    /**
+     * @param tid    the taxonomy term's id.
+     * @param offset the number of nodes to skip.
+     * @param limit  the most nodes to return.
+     * @return nodes tagged with the term, newest created first.
+     */
+    public List<DrupalNode> getNodesInTerm(int tid, int offset, int limit)
+    {
+        Index current = index;
+        return newestFirst(current, current.byTerm.get(tid), offset, limit);
+    }
+
+    /**
+     * @param since  the earliest changed time to return.  Times are compared to the second.
+     * @param offset the number of nodes to skip.
+     * @param limit  the most nodes to return.
+     * @return nodes changed at or after the time, oldest change first.
+     */
+    public List<DrupalNode> getNodesChangedSince(Date since, int offset, int limit)
+    {
+        Index current = index;
+        long[] keys = current.byChanged;
+        int from = insertionPoint(keys, key(seconds(since), 0)) + offset;
+        List<DrupalNode> nodes = new ArrayList<DrupalNode>();
+        for (int i = from; i < keys.length && nodes.size() < limit; i++) {
+            nodes.add(read(current, current.entry((int)keys[i])));
+        }
+        return nodes;
+    }
+
+    /**
+     * Adds a node, or replaces the stored node with the same nid.
+     *
+     * @param node the node, which must have been saved to the site.
+     * @throws IOException if the node can't be written.
+     */
+    public void put(DrupalNode node) throws IOException
+    {
+        putAll(Collections.singletonList(node));
+    }
+
+    /**
+     * Adds nodes, replacing stored nodes with the same nids.  Readers see either none of the nodes or all of them.
+     *
+     * @param nodes the nodes, which must have been saved to the site.
+     * @throws IOException if a node can't be written.  Readers see none of the nodes, but those written before it
+     *                     are found when the store is next opened.
+     */
+    public synchronized void putAll(Collection<DrupalNode> nodes) throws IOException
+    {
+        for (DrupalNode node : nodes) {
+            if (node.getNid() <= 0) {
+                throw new IllegalArgumentException("Node hasn't been saved: " + node.getTitle());
+            }
+        }
+        checkOpen();
+        Index current = index;
+        List<Entry> removed = new ArrayList<Entry>();
+        Map<Integer, Entry> added = new LinkedHashMap<Integer, Entry>();
+        long live = liveBytes;
+        for (DrupalNode node : nodes) {
+            Entry entry = append(node);
+            // a nid repeated in the batch replaces its earlier record, which never reaches the indexes
+            Entry previous = added.put(entry.nid, entry);
+            if (previous == null) {
+                previous = current.entry(entry.nid);
+                if (previous != null) {
+                    removed.add(previous);
+                }
+            }
+            if (previous != null) {
+                live -= previous.recordLength;
+            }
+            live += entry.recordLength;
+        }
+        liveBytes = live;
+        publish(current, removed, added.values());
+    }
+
+    /**
+     * Removes a node.
+     *
+     * @param nid the node's id.
+     * @return true if the node was in the store.
+     * @throws IOException if the removal can't be written.
+     */
+    public synchronized boolean remove(int nid) throws IOException
+    {
+        checkOpen();
+        Index current = index;
+        Entry previous = current.entry(nid);
+        if (previous == null) {
+            return false;
+        }
+        ByteBuffer body = ByteBuffer.allocate(1 + 4);
+        body.put(DELETE).putInt(nid);
+        appendRecord(body.array());
+        liveBytes -= previous.recordLength;
+        publish(current, Collections.singletonList(previous), Collections.<Entry>emptyList());
+        return true;
+    }
+
+    /**
+     * Forces every write so far to disk.
+     */
+    public synchronized void flush()
+    {
+        if (out != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the file.  Reads keep working from the last snapshot; writes fail.
+     *
+     * @throws IOException if the file can't be closed.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (out != null) {
+            buffer.force();
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * @return the length of the store's records, garbage included.  The file itself is longer, since it is grown
+     *         ahead of the records.
+     */
+    synchronized long length()
+    {
+        return end;
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (out == null) {
+            throw new IOException("Node store " + file + " is closed");
+        }
+    }
+
+    private void publish(Index current, Collection<Entry> removed, Collection<Entry> added) throws IOException
+    {
+        // a read-only view per mapping, so that readers never see the writer's position
+        ByteBuffer data = buffer == current.mapped ? current.data : buffer.asReadOnlyBuffer();
+        if (added.size() + removed.size() > REBUILD_THRESHOLD) {
+            Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+            for (Entry entry : current.entries) {
+                entries.put(entry.nid, entry);
+            }
+            for (Entry entry : removed) {
+                entries.remove(entry.nid);
+            }
+            for (Entry entry : added) {
+                entries.put(entry.nid, entry);
+            }
+            index = Index.build(data, buffer, entries.values());
+        }
+        else {
+            Index updated = current;
+            for (Entry entry : removed) {
+                updated = updated.without(entry);
+            }
+            for (Entry entry : added) {
+                updated = updated.with(entry);
+            }
+            index = updated.at(data, buffer);
+        }
+        if (end > COMPACT_THRESHOLD && end > liveBytes * 2) {
+            compact();
+        }
+    }
+
+    private Entry append(DrupalNode node) throws IOException
+    {
+        byte[] type = node.getType() == null ? null : utf8(node.getType());
+        int[] tids = tids(node);
+        byte[] json = utf8(gson.toJson(node));
+        int metadata = 1 + 4 + 8 + 8 + 4 + (type == null ? 0 : type.length) + 4 + tids.length * 4;
+        ByteBuffer body = ByteBuffer.allocate(metadata + json.length);
+        body.put(PUT).putInt(node.getNid()).putLong(seconds(node.getCreated())).putLong(seconds(node.getChanged()));
+        body.putInt(type == null ? -1 : type.length);
+        if (type != null) {
+            body.put(type);
+        }
+        body.putInt(tids.length);
+        for (int tid : tids) {
+            body.putInt(tid);
+        }
+        body.put(json);
+        int offset = appendRecord(body.array());
+        return readEntry(buffer, offset, body.capacity());
+    }
+
+    /**
+     * @return the record's offset.
+     */
+    private int appendRecord(byte[] body) throws IOException
+    {
+        long length = (long)end + FRAME + body.length;
+        if (length > buffer.capacity()) {
+            grow(length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int offset = end;
+        buffer.position(offset);
+        buffer.putInt(body.length);
+        buffer.putInt((int)crc.getValue());
+        buffer.put(body);
+        end = buffer.position();
+        return offset;
+    }
+
+    private void grow(long length) throws IOException
+    {
+        long capacity = buffer.capacity();
+        while (capacity < length) {
+            capacity *= 2;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Node store " + file + " is full");
+        }
+        buffer = map(out, Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Copies the live records to a new file and replaces the store's file with it.  If that fails, the store carries
+     * on with its own file, which is never removed before the copy is in place.
+     */
+    private void compact() throws IOException
+    {
+        Index current = index;
+        File temp = new File(file.getPath() + ".compact");
+        List<Entry> entries = new ArrayList<Entry>(current.entries.length);
+        RandomAccessFile compacted = null;
+        MappedByteBuffer target;
+        int written = 0;
+        try {
+            compacted = new RandomAccessFile(temp, "rw");
+            compacted.setLength(0);
+            target = map(compacted, Math.min(Math.max(INITIAL_CAPACITY, liveBytes * 2), Integer.MAX_VALUE));
+            ByteBuffer source = buffer.duplicate();
+            for (Entry entry : current.entries) {
+                source.limit(entry.recordOffset + entry.recordLength);
+                source.position(entry.recordOffset);
+                target.position(written);
+                target.put(source);
+                entries.add(readEntry(target, written, entry.recordLength - FRAME));
+                written += entry.recordLength;
+            }
+            target.force();
+            DrupalFiles.replaceFile(temp, file);
+        } catch (IOException e) {
+            log.warn("Unable to compact " + file + ", keeping it as it is", e);
+            if (compacted != null) {
+                compacted.close();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        log.debug("Compacted " + file + " from " + end + " to " + written + " bytes");
+        // readers holding the old snapshot keep reading the old mapping, which outlives the file
+        out.close();
+        out = compacted;
+        buffer = target;
+        end = written;
+        liveBytes = written;
+        index = Index.build(buffer.asReadOnlyBuffer(), buffer, entries);
+    }
+
+    private Map<Integer, Entry> recover() throws IOException
+    {
+        Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+        int offset = 0;
+        int capacity = buffer.capacity();
+        while (offset + FRAME <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > capacity - offset - FRAME) {
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.position(offset + FRAME);
+            buffer.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int)crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            if (body[0] == PUT) {
+                Entry entry = readEntry(buffer, offset, length);
+                Entry previous = entries.put(entry.nid, entry);
+                if (previous != null) {
+                    liveBytes -= previous.recordLength;
+                }
+                liveBytes += entry.recordLength;
+            }
+            else {
+                Entry previous = entries.remove(ByteBuffer.wrap(body, 1, 4).getInt());
+                if (previous != null) {
+                    liveBytes -= previous.recordLength;
+                }
+            }
+            offset += FRAME + length;
+        }
+        end = offset;
+        if (offset + 4 <= capacity && buffer.getInt(offset) != 0) {
+            log.warn("Dropping unreadable records from offset " + offset + " of " + file);
+            // zero the torn record, so that a shorter record written over it can't be followed by its remains
+            buffer.position(offset);
+            while (buffer.hasRemaining()) {
+                buffer.put((byte)0);
+            }
+            buffer.force();
+        }
+        return entries;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long capacity) throws IOException
+    {
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static Entry readEntry(ByteBuffer data, int offset, int length)
+    {
+        ByteBuffer body = data.duplicate();
+        body.limit(offset + FRAME + length);
+        body.position(offset + FRAME + 1);
+        int nid = body.getInt();
+        long created = body.getLong();
+        long changed = body.getLong();
+        int typeLength = body.getInt();
+        String type = null;
+        if (typeLength >= 0) {
+            byte[] bytes = new byte[typeLength];
+            body.get(bytes);
+            type = utf8(bytes);
+        }
+        int[] tids = new int[body.getInt()];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = body.getInt();
+        }
+        return new Entry(nid, type, created, changed, tids, offset, FRAME + length, body.position(), body.remaining());
+    }
+
+    private static DrupalNode read(Index current, Entry entry)
+    {
+        ByteBuffer data = current.data.duplicate();
+        data.position(entry.jsonOffset);
+        byte[] json = new byte[entry.jsonLength];
+        data.get(json);
+        return gson.fromJson(utf8(json), DrupalNode.class);
+    }
+
+    private static List<DrupalNode> newestFirst(Index current, long[] keys, int offset, int limit)
+    {
+        List<DrupalNode> nodes = new ArrayList<DrupalNode>();
+        if (keys == null) {
+            return nodes;
+        }
+        for (int i = keys.length - 1 - offset; i >= 0 && nodes.size() < limit; i--) {
+            nodes.add(read(current, current.entry((int)keys[i])));
+        }
+        return nodes;
+    }
+
+    private static int[] tids(DrupalNode node)
+    {
+        Map<Integer, DrupalTaxonomyTerm> taxonomy = node.getTaxonomy();
+        if (taxonomy == null) {
+            return new int[0];
+        }
+        Set<Integer> tids = new TreeSet<Integer>();
+        for (Map.Entry<Integer, DrupalTaxonomyTerm> term : taxonomy.entrySet()) {
+            tids.add(term.getValue() != null && term.getValue().getTid() != 0 ? term.getValue().getTid() : term.getKey());
+        }
+        int[] result = new int[tids.size()];
+        int i = 0;
+        for (Integer tid : tids) {
+            result[i++] = tid;
+        }
+        return result;
+    }
+
+    private static byte[] utf8(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String utf8(byte[] bytes)
+    {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long seconds(Date date)
+    {
+        return date == null ? 0 : date.getTime() / 1000;
+    }
+
+    /**
+     * Orders nodes by time, then nid, as a single long: the time, clamped to unsigned 32 bits, above the nid, with
+     * the sign bit flipped so that signed comparison gives unsigned order.  <code>(int)key</code> is the nid.
+     */
+    private static long key(long seconds, int nid)
+    {
+        long time = Math.min(Math.max(seconds, 0), 0xffffffffL);
+        return ((time << 32) | (nid & 0xffffffffL)) ^ Long.MIN_VALUE;
+    }
+
+    private static int insertionPoint(long[] keys, long key)
+    {
+        int i = Arrays.binarySearch(keys, key);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    private static long[] insert(long[] keys, long key)
+    {
+        int i = insertionPoint(keys, key);
+        long[] result = new long[keys.length + 1];
+        System.arraycopy(keys, 0, result, 0, i);
+        result[i] = key;
+        System.arraycopy(keys, i, result, i + 1, keys.length - i);
+        return result;
+    }
+
+    private static long[] delete(long[] keys, long key)
+    {
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) {
+            return keys;
+        }
+        long[] result = new long[keys.length - 1];
+        System.arraycopy(keys, 0, result, 0, i);
+        System.arraycopy(keys, i + 1, result, i, keys.length - i - 1);
+        return result;
+    }
+
+    /**
+     * Where a node's record is and what its indexes need.
+     */
+    private static class Entry
+    {
+        final int nid;
+        final String type;
+        final long created;
+        final long changed;
+        final int[] tids;
+        final int recordOffset;
+        final int recordLength;
+        final int jsonOffset;
+        final int jsonLength;
+
+        Entry(int nid, String type, long created, long changed, int[] tids, int recordOffset, int recordLength, int jsonOffset, int jsonLength)
+        {
+            this.nid = nid;
+            this.type = type;
+            this.created = created;
+            this.changed = changed;
+            this.tids = tids;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.jsonOffset = jsonOffset;
+            this.jsonLength = jsonLength;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the indexes.  The secondary indexes hold keys made by {@link DrupalNodeStore#key}, in
+     * ascending order.
+     */
+    private static class Index
+    {
+        final ByteBuffer data;
+        // the writable mapping data is a view of; only the writer looks at it
+        final MappedByteBuffer mapped;
+        final int[] nids;
+        final Entry[] entries;
+        final long[] byCreated;
+        final long[] byChanged;
+        final Map<String, long[]> byType;
+        final Map<Integer, long[]> byTerm;
+
+        Index(ByteBuffer data, MappedByteBuffer mapped, int[] nids, Entry[] entries, long[] byCreated, long[] byChanged, Map<String, long[]> byType, Map<Integer, long[]> byTerm)
+        {
+            this.data = data;
+            this.mapped = mapped;
+            this.nids = nids;
+            this.entries = entries;
+            this.byCreated = byCreated;
+            this.byChanged = byChanged;
+            this.byType = byType;
+            this.byTerm = byTerm;
+        }
+
+        static Index build(ByteBuffer data, MappedByteBuffer mapped, Collection<Entry> unsorted)
+        {
+            Entry[] entries = unsorted.toArray(new Entry[unsorted.size()]);
+            Arrays.sort(entries, new Comparator<Entry>()
+            {
+                public int compare(Entry a, Entry b)
+                {
+                    return a.nid < b.nid ? -1 : a.nid == b.nid ? 0 : 1;
+                }
+            });
+            int[] nids = new int[entries.length];
+            long[] byCreated = new long[entries.length];
+            long[] byChanged = new long[entries.length];
+            Map<String, List<Long>> types = new HashMap<String, List<Long>>();
+            Map<Integer, List<Long>> terms = new HashMap<Integer, List<Long>>();
+            for (int i = 0; i < entries.length; i++) {
+                Entry entry = entries[i];
+                nids[i] = entry.nid;
+                long created = key(entry.created, entry.nid);
+                byCreated[i] = created;
+                byChanged[i] = key(entry.changed, entry.nid);
+                if (entry.type != null) {
+                    add(types, entry.type, created);
+                }
+                for (int tid : entry.tids) {
+                    add(terms, tid, created);
+                }
+            }
+            Arrays.sort(byCreated);
+            Arrays.sort(byChanged);
+            return new Index(data, mapped, nids, entries, byCreated, byChanged, sorted(types), sorted(terms));
+        }
+
+        Entry entry(int nid)
+        {
+            int i = Arrays.binarySearch(nids, nid);
+            return i < 0 ? null : entries[i];
+        }
+
+        Index with(Entry entry)
+        {
+            int i = -Arrays.binarySearch(nids, entry.nid) - 1;
+            int[] newNids = new int[nids.length + 1];
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(nids, 0, newNids, 0, i);
+            System.arraycopy(entries, 0, newEntries, 0, i);
+            newNids[i] = entry.nid;
+            newEntries[i] = entry;
+            System.arraycopy(nids, i, newNids, i + 1, nids.length - i);
+            System.arraycopy(entries, i, newEntries, i + 1, entries.length - i);
+            long created = key(entry.created, entry.nid);
+            Map<String, long[]> newByType = byType;
+            if (entry.type != null) {
+                newByType = new HashMap<String, long[]>(byType);
+                long[] keys = newByType.get(entry.type);
+                newByType.put(entry.type, insert(keys == null ? new long[0] : keys, created));
+            }
+            Map<Integer, long[]> newByTerm = byTerm;
+            if (entry.tids.length > 0) {
+                newByTerm = new HashMap<Integer, long[]>(byTerm);
+                for (int tid : entry.tids) {
+                    long[] keys = newByTerm.get(tid);
+                    newByTerm.put(tid, insert(keys == null ? new long[0] : keys, created));
+                }
+            }
+            return new Index(data, mapped, newNids, newEntries, insert(byCreated, created), insert(byChanged, key(entry.changed, entry.nid)), newByType, newByTerm);
+        }
+
+        Index without(Entry entry)
+        {
+            int i = Arrays.binarySearch(nids, entry.nid);
+            int[] newNids = new int[nids.length - 1];
+            Entry[] newEntries = new Entry[entries.length - 1];
+            System.arraycopy(nids, 0, newNids, 0, i);
+            System.arraycopy(entries, 0, newEntries, 0, i);
+            System.arraycopy(nids, i + 1, newNids, i, nids.length - i - 1);
+            System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+            long created = key(entry.created, entry.nid);
+            Map<String, long[]> newByType = byType;
+            if (entry.type != null) {
+                newByType = new HashMap<String, long[]>(byType);
+                remove(newByType, entry.type, created);
+            }
+            Map<Integer, long[]> newByTerm = byTerm;
+            if (entry.tids.length > 0) {
+                newByTerm = new HashMap<Integer, long[]>(byTerm);
+                for (int tid : entry.tids) {
+                    remove(newByTerm, tid, created);
+                }
+            }
+            return new Index(data, mapped, newNids, newEntries, delete(byCreated, created), delete(byChanged, key(entry.changed, entry.nid)), newByType, newByTerm);
+        }
+
+        Index at(ByteBuffer data, MappedByteBuffer mapped)
+        {
+            return new Index(data, mapped, nids, entries, byCreated, byChanged, byType, byTerm);
+        }
+
+        private static <K> void add(Map<K, List<Long>> index, K name, long key)
+        {
+            List<Long> keys = index.get(name);
+            if (keys == null) {
+                keys = new ArrayList<Long>();
+                index.put(name, keys);
+            }
+            keys.add(key);
+        }
+
+        private static <K> void remove(Map<K, long[]> index, K name, long key)
+        {
+            long[] keys = index.get(name);
+            if (keys == null) {
+                return;
+            }
+            keys = delete(keys, key);
+            if (keys.length == 0) {
+                index.remove(name);
+            }
+            else {
+                index.put(name, keys);
+            }
+        }
+
+        private static <K> Map<K, long[]> sorted(Map<K, List<Long>> index)
+        {
+            Map<K, long[]> result = new HashMap<K, long[]>();
+            for (Map.Entry<K, List<Long>> entry : index.entrySet()) {
+                long[] keys = new long[entry.getValue().size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = entry.getValue().get(i);
+                }
+                Arrays.sort(keys);
+                result.put(entry.getKey(), keys);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.Drupal7SiteContext;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.exceptions.DrupalIterationException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Iterates over every node in a view, fetching it a page at a time.  While the caller works through one page, the
+ * next <code>prefetchDepth</code> pages are already being fetched in the background, so network time overlaps with
+ * processing.
+ * <p/>
+ * The end of the view is reached when a page comes back with fewer than <code>pageSize</code> nodes.  If fetching a
+ * page fails, the iterator throws a {@link DrupalIterationException} as soon as it reaches that page and cancels any
+ * pages still in flight.
+ * <p/>
+ * Each iterator fetches pages on its own threads, which are released when the view has been read to the end, when
+ * it fails, or when {@link ViewIterator#close()} is called.  Callers that stop iterating early should close the
+ * iterator.
+ */
+public class DrupalNodeViewIterable implements Iterable<DrupalNode>
+{
+    private final Drupal7SiteContext siteContext;
+    private final String viewName;
+    private final String viewArguments;
+    private final int pageSize;
+    private final int prefetchDepth;
+
+    /**
+     * @param siteContext   the context to fetch pages from.
+     * @param viewName      the name of the view
+     * @param viewArguments a list of arguments to pass to the view.  If there are no arguments, pass null.
+     * @param pageSize      the number of nodes to request per page.
+     * @param prefetchDepth the number of pages to fetch ahead of the page being read.  Zero fetches each page only
+     *                      when it's needed.
+     */
+    public DrupalNodeViewIterable(Drupal7SiteContext siteContext, String viewName, String viewArguments, int pageSize, int prefetchDepth)
+    {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException("prefetchDepth must not be negative");
+        }
+        this.siteContext = siteContext;
+        this.viewName = viewName;
+        this.viewArguments = viewArguments;
+        this.pageSize = pageSize;
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    public ViewIterator iterator()
+    {
+        return new ViewIterator();
+    }
+
+    public class ViewIterator implements Iterator<DrupalNode>
+    {
+        private final ExecutorService executor = DrupalExecutors.newFixedThreadPool(prefetchDepth + 1);
+        private final LinkedList<Future<List<DrupalNode>>> pages = new LinkedList<Future<List<DrupalNode>>>();
+        private Iterator<DrupalNode> current = Collections.<DrupalNode>emptyList().iterator();
+        private int nextPage;
+        private boolean lastPageRead;
+        private boolean closed;
+
+        ViewIterator()
+        {
+            fill();
+        }
+
+        public boolean hasNext()
+        {
+            while (!current.hasNext()) {
+                if (lastPageRead || closed) {
+                    close();
+                    return false;
+                }
+                List<DrupalNode> page = takePage();
+                if (page.size() < pageSize) {
+                    lastPageRead = true;
+                }
+                current = page.iterator();
+                fill();
+            }
+            return true;
+        }
+
+        public DrupalNode next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops iterating, cancelling any pages still being fetched.
+         */
+        public void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Future<List<DrupalNode>> page : pages) {
+                page.cancel(true);
+            }
+            pages.clear();
+            executor.shutdownNow();
+        }
+
+        /**
+         * Keeps prefetchDepth pages in flight beyond the one about to be read, unless the end has been seen.
+         */
+        private void fill()
+        {
+            while (!lastPageRead && !closed && pages.size() < prefetchDepth + 1) {
+                final int offset = nextPage++ * pageSize;
+                DrupalFuture<List<DrupalNode>> page = new DrupalFuture<List<DrupalNode>>(new Callable<List<DrupalNode>>()
+                {
+                    public List<DrupalNode> call() throws DrupalFetchException
+                    {
+                        List<DrupalNode> nodes = siteContext.getNodeView(viewName, viewArguments, offset, pageSize);
+                        return nodes != null ? nodes : Collections.<DrupalNode>emptyList();
+                    }
+                });
+                executor.execute(page);
+                pages.add(page);
+            }
+        }
+
+        private List<DrupalNode> takePage()
+        {
+            Future<List<DrupalNode>> page = pages.removeFirst();
+            try {
+                return page.get();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new DrupalIterationException(new DrupalFetchException(e));
+            } catch (ExecutionException e) {
+                close();
+                Throwable cause = e.getCause();
+                if (cause instanceof DrupalFetchException) {
+                    throw new DrupalIterationException((DrupalFetchException)cause);
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new DrupalIterationException(new DrupalFetchException((Exception)cause));
+            }
+        }
+    }
+}
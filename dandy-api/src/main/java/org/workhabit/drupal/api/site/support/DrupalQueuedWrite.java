@@ -0,0 +1,83 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+
+import java.io.File;
+
+/**
+ * A save accepted by a {@link DrupalWriteBehindQueue} and held in its journal until the site has it.
+ */
+public final class DrupalQueuedWrite
+{
+    public enum Type
+    {
+        NODE, COMMENT, FILE
+    }
+
+    private final long id;
+    private final Type type;
+    private final Object entity;
+    private final String fileName;
+    private final File spoolFile;
+
+    DrupalQueuedWrite(long id, Type type, Object entity, String fileName, File spoolFile)
+    {
+        this.id = id;
+        this.type = type;
+        this.entity = entity;
+        this.fileName = fileName;
+        this.spoolFile = spoolFile;
+    }
+
+    /**
+     * @return the write's journal id.  Ids increase in the order writes were accepted, and writes are sent in that
+     *         order.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the node to save, or null if this isn't a node.  After a restart this is a copy read back from the
+     *         journal, not the object that was queued.
+     */
+    public DrupalNode getNode()
+    {
+        return type == Type.NODE ? (DrupalNode)entity : null;
+    }
+
+    /**
+     * @return the comment to save, or null if this isn't a comment.  After a restart this is a copy read back from
+     *         the journal, not the object that was queued.
+     */
+    public DrupalComment getComment()
+    {
+        return type == Type.COMMENT ? (DrupalComment)entity : null;
+    }
+
+    /**
+     * @return the name to save the file under, or null if this isn't a file.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    File getSpoolFile()
+    {
+        return spoolFile;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " write " + id;
+    }
+}
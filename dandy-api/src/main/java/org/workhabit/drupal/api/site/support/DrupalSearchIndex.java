@@ -0,0 +1,643 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.api.entity.drupal7.DrupalBody;
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * A full-text index of nodes and comments for searching while offline.  Set one on a
+ * {@link org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl} and it is kept up to date with the nodes and
+ * comments the context fetches, saves and deletes:
+ * <pre>
+ * DrupalSearchIndex index = new DrupalSearchIndex();
+ * if (file.exists()) {
+ *     index.load(file);
+ * }
+ * context.setSearchIndex(index);
+ * ...
+ * List&lt;DrupalSearchIndex.Hit&gt; hits = index.search("drupal mobi*", 20);
+ * ...
+ * index.save(file);
+ * </pre>
+ * Nodes are indexed by title and body value and summary, comments by subject and text; markup is dropped and words
+ * are matched case-insensitively.  Title and subject words count twice.  A search returns the documents containing
+ * every word of the query, ranked by BM25, and a word ending in <code>*</code> matches any word it is a prefix of,
+ * e.g. for searching as the user types.
+ * <p/>
+ * Each word's postings, the documents it appears in and how often, are kept as a delta-encoded byte array sorted by
+ * document, so an index of thousands of nodes takes a few bytes per word occurrence.  Documents are numbered in the
+ * order they're added; replacing or removing one only marks its old number dead, and dead numbers are dropped from
+ * the postings once they outnumber live ones, or when the index is saved.  Searches may run on any number of threads,
+ * and wait only for an update in progress.
+ */
+public class DrupalSearchIndex
+{
+    // the usual BM25 parameters: term frequency saturation and document length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MAGIC = 0x44534931;
+    private static final int COMPACT_THRESHOLD = 256;
+    // a prefix matching more words than this only matches the first of them, in alphabetical order
+    private static final int MAX_EXPANSIONS = 256;
+    private static final int MAX_WORD = 64;
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>|&#?\\w+;");
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+    private final Map<Integer, Document> documents = new HashMap<Integer, Document>();
+    private final Map<Long, Integer> documentNumbers = new HashMap<Long, Integer>();
+    private int nextDocument = 1;
+    private int deadDocuments;
+    private long totalLength;
+
+    /**
+     * Adds a node, replacing any earlier version of it.  Nodes without an id are ignored.
+     *
+     * @param nid  the node's id, which a node just created doesn't have yet.
+     * @param node the node.
+     */
+    public void addNode(int nid, DrupalNode node)
+    {
+        if (nid <= 0) {
+            return;
+        }
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        addWords(frequencies, node.getTitle(), 2);
+        addBody(frequencies, node.getBody());
+        add(new Document(Hit.Type.NODE, nid, nid, time(node.getChanged())), frequencies);
+    }
+
+    /**
+     * Adds a node unless the index already has a version of it that changed no earlier, e.g. for nodes from a view
+     * that may only carry some of their fields.
+     *
+     * @param node the node.
+     */
+    public void addNodeIfNewer(DrupalNode node)
+    {
+        lock.readLock().lock();
+        try {
+            Integer number = documentNumbers.get(key(Hit.Type.NODE, node.getNid()));
+            if (number != null && documents.get(number).changed >= time(node.getChanged())) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        addNode(node.getNid(), node);
+    }
+
+    /**
+     * Adds a comment, replacing any earlier version of it.  Comments without an id are ignored.
+     *
+     * @param cid     the comment's id, which a comment just created doesn't have yet.
+     * @param comment the comment.
+     */
+    public void addComment(int cid, DrupalComment comment)
+    {
+        if (cid <= 0) {
+            return;
+        }
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        addWords(frequencies, comment.getSubject(), 2);
+        addWords(frequencies, comment.getComment(), 1);
+        addBody(frequencies, comment.getCommentBody());
+        add(new Document(Hit.Type.COMMENT, cid, comment.getNid(), time(comment.getChanged())), frequencies);
+    }
+
+    /**
+     * Removes a node and its comments.
+     *
+     * @param nid the node's id.
+     */
+    public void removeNode(int nid)
+    {
+        lock.writeLock().lock();
+        try {
+            remove(key(Hit.Type.NODE, nid));
+            List<Long> comments = new ArrayList<Long>();
+            for (Document document : documents.values()) {
+                if (document.type == Hit.Type.COMMENT && document.nid == nid) {
+                    comments.add(key(Hit.Type.COMMENT, document.id));
+                }
+            }
+            for (Long comment : comments) {
+                remove(comment);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param cid the comment's id.
+     */
+    public void removeComment(int cid)
+    {
+        lock.writeLock().lock();
+        try {
+            remove(key(Hit.Type.COMMENT, cid));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear()
+    {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            documents.clear();
+            documentNumbers.clear();
+            deadDocuments = 0;
+            totalLength = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of nodes and comments indexed.
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param query words to search for, any of which may end in <code>*</code> to match as a prefix.
+     * @param limit the most hits to return.
+     * @return the nodes and comments containing every word, best match first.  Empty if the query has no words.
+     */
+    public List<Hit> search(String query, int limit)
+    {
+        List<String> words = new ArrayList<String>();
+        List<Boolean> prefixes = new ArrayList<Boolean>();
+        for (String part : query.trim().split("\\s+")) {
+            boolean prefix = part.endsWith("*");
+            List<String> tokens = tokenize(prefix ? part.substring(0, part.length() - 1) : part, 1);
+            for (int i = 0; i < tokens.size(); i++) {
+                // "re-ind*" is the prefix ind; only a prefix can be shorter than an indexed word
+                boolean last = prefix && i == tokens.size() - 1;
+                if (last || tokens.get(i).length() >= 2) {
+                    words.add(tokens.get(i));
+                    prefixes.add(last);
+                }
+            }
+        }
+        if (words.isEmpty() || limit <= 0) {
+            return new ArrayList<Hit>();
+        }
+        lock.readLock().lock();
+        try {
+            Map<Integer, Double> scores = null;
+            for (int i = 0; i < words.size() && (scores == null || !scores.isEmpty()); i++) {
+                Map<Integer, Double> wordScores = score(words.get(i), prefixes.get(i));
+                if (scores == null) {
+                    scores = wordScores;
+                }
+                else {
+                    scores.keySet().retainAll(wordScores.keySet());
+                    for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+                        entry.setValue(entry.getValue() + wordScores.get(entry.getKey()));
+                    }
+                }
+            }
+            return top(scores, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index to a file, replacing it atomically.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file can't be written.
+     */
+    public void save(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        // compacting first means only live documents are written
+        lock.writeLock().lock();
+        try {
+            if (deadDocuments > 0) {
+                compact();
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(nextDocument);
+                out.writeInt(documents.size());
+                for (Map.Entry<Integer, Document> entry : documents.entrySet()) {
+                    Document document = entry.getValue();
+                    out.writeInt(entry.getKey());
+                    out.writeByte(document.type.ordinal());
+                    out.writeInt(document.id);
+                    out.writeInt(document.nid);
+                    out.writeLong(document.changed);
+                    out.writeInt(document.length);
+                }
+                out.writeInt(terms.size());
+                for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                    Postings postings = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(postings.count);
+                    out.writeInt(postings.last);
+                    out.writeInt(postings.size);
+                    out.write(postings.data, 0, postings.size);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        DrupalFiles.replaceFile(temp, file);
+    }
+
+    /**
+     * Replaces the index with one written by {@link #save(File)}.
+     *
+     * @param file the file to read.
+     * @throws IOException if the file can't be read or wasn't written by save.
+     */
+    public void load(File file) throws IOException
+    {
+        DrupalFiles.recover(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        lock.writeLock().lock();
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unreadable search index " + file);
+            }
+            clear();
+            nextDocument = in.readInt();
+            Hit.Type[] types = Hit.Type.values();
+            for (int i = in.readInt(); i > 0; i--) {
+                int number = in.readInt();
+                Document document = new Document(types[in.readByte()], in.readInt(), in.readInt(), in.readLong());
+                document.length = in.readInt();
+                documents.put(number, document);
+                documentNumbers.put(key(document.type, document.id), number);
+                totalLength += document.length;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readInt();
+                postings.size = in.readInt();
+                postings.data = new byte[postings.size];
+                in.readFully(postings.data);
+                terms.put(term, postings);
+            }
+        } catch (EOFException e) {
+            clear();
+            throw new IOException("Truncated search index " + file);
+        } finally {
+            lock.writeLock().unlock();
+            in.close();
+        }
+    }
+
+    private void add(Document document, Map<String, Integer> frequencies)
+    {
+        lock.writeLock().lock();
+        try {
+            remove(key(document.type, document.id));
+            int number = nextDocument++;
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                Postings postings = terms.get(entry.getKey());
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(entry.getKey(), postings);
+                }
+                postings.add(number, entry.getValue());
+                document.length += entry.getValue();
+            }
+            documents.put(number, document);
+            documentNumbers.put(key(document.type, document.id), number);
+            totalLength += document.length;
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(long key)
+    {
+        Integer number = documentNumbers.remove(key);
+        if (number != null) {
+            totalLength -= documents.remove(number).length;
+            deadDocuments++;
+        }
+    }
+
+    private void compactIfNeeded()
+    {
+        if (deadDocuments > COMPACT_THRESHOLD && deadDocuments > documents.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Drops dead documents from every posting list, and words only they contained.
+     */
+    private void compact()
+    {
+        for (Iterator<Postings> iterator = terms.values().iterator(); iterator.hasNext(); ) {
+            Postings postings = iterator.next();
+            Postings live = new Postings();
+            for (Postings.Reader reader = postings.reader(); reader.next(); ) {
+                if (documents.containsKey(reader.document)) {
+                    live.add(reader.document, reader.frequency);
+                }
+            }
+            if (live.count == 0) {
+                iterator.remove();
+            }
+            else {
+                postings.data = live.data;
+                postings.size = live.size;
+                postings.count = live.count;
+                postings.last = live.last;
+            }
+        }
+        deadDocuments = 0;
+    }
+
+    private Map<Integer, Double> score(String word, boolean prefix)
+    {
+        Map<Integer, Double> scores = new HashMap<Integer, Double>();
+        Collection<Postings> matches;
+        if (prefix) {
+            matches = terms.subMap(word, word + Character.MAX_VALUE).values();
+        }
+        else {
+            Postings postings = terms.get(word);
+            matches = postings == null ? Collections.<Postings>emptyList() : Collections.singletonList(postings);
+        }
+        int n = documents.size();
+        double averageLength = n == 0 ? 0 : (double)totalLength / n;
+        int expansions = 0;
+        for (Postings postings : matches) {
+            if (expansions++ == MAX_EXPANSIONS) {
+                break;
+            }
+            // counts dead documents until the next compaction, which only ever lowers the idf a little
+            int df = Math.min(postings.count, n);
+            double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+            for (Postings.Reader reader = postings.reader(); reader.next(); ) {
+                Document document = documents.get(reader.document);
+                if (document == null) {
+                    continue;
+                }
+                double tf = reader.frequency;
+                double score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * document.length / averageLength));
+                // a document matching several words with the prefix scores for its best match, not all of them
+                Double previous = scores.get(reader.document);
+                if (previous == null || previous < score) {
+                    scores.put(reader.document, score);
+                }
+            }
+        }
+        return scores;
+    }
+
+    private List<Hit> top(Map<Integer, Double> scores, int limit)
+    {
+        PriorityQueue<Hit> best = new PriorityQueue<Hit>(Math.min(limit, scores.size()) + 1, new Comparator<Hit>()
+        {
+            public int compare(Hit a, Hit b)
+            {
+                return Double.compare(a.score, b.score);
+            }
+        });
+        for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            if (best.size() < limit || entry.getValue() > best.peek().score) {
+                Document document = documents.get(entry.getKey());
+                best.add(new Hit(document.type, document.id, document.nid, entry.getValue()));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<Hit>(best);
+        Collections.sort(hits, Collections.reverseOrder(best.comparator()));
+        return hits;
+    }
+
+    private static void addBody(Map<String, Integer> frequencies, Map<String, List<DrupalBody>> body)
+    {
+        if (body == null) {
+            return;
+        }
+        for (List<DrupalBody> values : body.values()) {
+            if (values == null) {
+                continue;
+            }
+            for (DrupalBody value : values) {
+                if (value != null) {
+                    addWords(frequencies, value.getValue(), 1);
+                    addWords(frequencies, value.getSummary(), 1);
+                }
+            }
+        }
+    }
+
+    private static void addWords(Map<String, Integer> frequencies, String text, int weight)
+    {
+        if (text == null) {
+            return;
+        }
+        for (String word : tokenize(MARKUP.matcher(text).replaceAll(" "), 2)) {
+            Integer frequency = frequencies.get(word);
+            frequencies.put(word, frequency == null ? weight : frequency + weight);
+        }
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits, dropping those shorter than minimum and cutting long
+     * ones short.
+     */
+    static List<String> tokenize(String text, int minimum)
+    {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            }
+            else if (!inWord && start >= 0) {
+                if (i - start >= minimum) {
+                    words.add(text.substring(start, Math.min(i, start + MAX_WORD)).toLowerCase(Locale.ENGLISH));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static long key(Hit.Type type, int id)
+    {
+        return ((long)type.ordinal() << 32) | (id & 0xffffffffL);
+    }
+
+    private static long time(Date date)
+    {
+        return date == null ? 0 : date.getTime();
+    }
+
+    /**
+     * A node or comment that matched a search.
+     */
+    public static class Hit
+    {
+        public enum Type
+        {
+            NODE, COMMENT
+        }
+
+        private final Type type;
+        private final int id;
+        private final int nid;
+        private final double score;
+
+        Hit(Type type, int id, int nid, double score)
+        {
+            this.type = type;
+            this.id = id;
+            this.nid = nid;
+            this.score = score;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return the nid of a node, or the cid of a comment.
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return the nid of the node, or of the node the comment is on.
+         */
+        public int getNid()
+        {
+            return nid;
+        }
+
+        /**
+         * @return the BM25 score; higher is a better match.  Scores are only comparable within one search.
+         */
+        public double getScore()
+        {
+            return score;
+        }
+    }
+
+    private static class Document
+    {
+        final Hit.Type type;
+        final int id;
+        final int nid;
+        final long changed;
+        // the sum of the document's word frequencies
+        int length;
+
+        Document(Hit.Type type, int id, int nid, long changed)
+        {
+            this.type = type;
+            this.id = id;
+            this.nid = nid;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * The documents containing a word, in increasing order, as pairs of varints: the gap since the previous document
+     * and the word's frequency in the document.
+     */
+    private static class Postings
+    {
+        byte[] data = new byte[8];
+        int size;
+        int count;
+        int last;
+
+        void add(int document, int frequency)
+        {
+            if (size + 10 > data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            writeVarint(document - last);
+            writeVarint(frequency);
+            last = document;
+            count++;
+        }
+
+        private void writeVarint(int value)
+        {
+            while ((value & ~0x7f) != 0) {
+                data[size++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte)value;
+        }
+
+        Reader reader()
+        {
+            return new Reader();
+        }
+
+        class Reader
+        {
+            private int position;
+            int document;
+            int frequency;
+
+            boolean next()
+            {
+                if (position >= size) {
+                    return false;
+                }
+                document += readVarint();
+                frequency = readVarint();
+                return true;
+            }
+
+            private int readVarint()
+            {
+                int value = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[position++];
+                    value |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        return value;
+                    }
+                }
+            }
+        }
+    }
+}
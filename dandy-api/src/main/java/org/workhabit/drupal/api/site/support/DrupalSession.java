@@ -0,0 +1,61 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.api.entity.drupal7.DrupalUser;
+
+/**
+ * An immutable snapshot of who a site context is logged in as: the Drupal session id and name, the CSRF token that
+ * state changing requests must carry, and the user.  A context publishes a new snapshot on login and logout rather
+ * than changing fields one at a time, so a thread that reads the session always sees the parts of a single login
+ * together, without locking.
+ */
+public final class DrupalSession
+{
+    /**
+     * The session of a context that isn't logged in.
+     */
+    public static final DrupalSession ANONYMOUS = new DrupalSession(null, null, null, null);
+
+    private final String sessionId;
+    private final String sessionName;
+    private final String csrfToken;
+    private final DrupalUser user;
+
+    /**
+     * @param sessionId   the sessid returned by user.login.
+     * @param sessionName the session cookie name returned by user.login.
+     * @param csrfToken   the token returned by user.login, or null if the site doesn't issue one.
+     * @param user        the logged in user.
+     */
+    public DrupalSession(String sessionId, String sessionName, String csrfToken, DrupalUser user)
+    {
+        this.sessionId = sessionId;
+        this.sessionName = sessionName;
+        this.csrfToken = csrfToken;
+        this.user = user;
+    }
+
+    public String getSessionId()
+    {
+        return sessionId;
+    }
+
+    public String getSessionName()
+    {
+        return sessionName;
+    }
+
+    public String getCsrfToken()
+    {
+        return csrfToken;
+    }
+
+    public DrupalUser getUser()
+    {
+        return user;
+    }
+
+    public boolean isAuthenticated()
+    {
+        return sessionId != null;
+    }
+}
@@ -0,0 +1,309 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
+import org.workhabit.drupal.api.site.Drupal7SiteContext;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps a local copy of a view's nodes up to date by fetching only what changed since the last sync.
+ * <p/>
+ * Syncing needs two views on the site over the same result set.  The changes view returns full nodes whose changed
+ * time is at or after a unix timestamp passed as an argument, oldest change first.  The listing view returns just the
+ * nid of every node, in the order the copy should be kept in.  For example, with views <code>articles_changed</code>
+ * (a "Content: Updated date" contextual filter, operator >=) and <code>articles_nids</code>:
+ * <pre>
+ * DrupalViewSync articles = new DrupalViewSync(context, "articles_changed", "%d", "articles_nids", null);
+ * articles.sync();                        // the first sync fetches every node
+ * List&lt;DrupalNode&gt; nodes = articles.getNodes();
+ * ...
+ * DrupalViewSync.Changes changes = articles.sync();    // only nodes changed since the first
+ * </pre>
+ * Each sync pages through the changes view from the high-water mark, the latest changed time seen so far, and then
+ * reads the listing to put the copy in order and drop nodes that left the view.  Nodes that are in the listing but
+ * weren't in the changes, e.g. because their changed time went backwards, are fetched individually.  The mark is
+ * inclusive, so nodes changed in the same second as the last sync are fetched again rather than missed.
+ * <p/>
+ * The copy can be saved to a file and loaded when the app next starts, so that the first sync after a restart is
+ * incremental too.  {@link #getNodes()} may be called from any thread, including during a sync.
+ */
+public class DrupalViewSync
+{
+    private static final Logger log = LoggerFactory.getLogger(DrupalViewSync.class.getSimpleName());
+    private static final Gson gson = LocalGson.INSTANCE;
+    private final Drupal7SiteContext siteContext;
+    private final String changesView;
+    private final String changesArguments;
+    private final String listingView;
+    private final String listingArguments;
+    private int pageSize = 100;
+    private int parallelism = 4;
+    private volatile Snapshot snapshot = new Snapshot(Collections.<DrupalNode>emptyList(), -1);
+
+    /**
+     * @param siteContext      the context to fetch from.
+     * @param changesView      the view of nodes changed at or after a time.
+     * @param changesArguments the changes view's arguments, formatted with the time in unix seconds, e.g.
+     *                         <code>"%d"</code>.
+     * @param listingView      the view of the nids in the result set.
+     * @param listingArguments the listing view's arguments, or null.
+     */
+    public DrupalViewSync(Drupal7SiteContext siteContext, String changesView, String changesArguments, String listingView, String listingArguments)
+    {
+        this.siteContext = siteContext;
+        this.changesView = changesView;
+        this.changesArguments = changesArguments;
+        this.listingView = listingView;
+        this.listingArguments = listingArguments;
+    }
+
+    /**
+     * @param pageSize the number of nodes, or nids, to request per page.
+     */
+    public void setPageSize(int pageSize)
+    {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param parallelism the most nodes fetched at once when nodes missing from the changes are fetched individually.
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the nodes as of the last sync, in listing order.  The list doesn't change; a sync publishes a new one.
+     */
+    public List<DrupalNode> getNodes()
+    {
+        return snapshot.nodes;
+    }
+
+    /**
+     * @return the latest changed time of any node synced, in unix seconds, or -1 if the view hasn't been synced.
+     */
+    public long getHighWaterMark()
+    {
+        return snapshot.highWaterMark;
+    }
+
+    /**
+     * Brings the copy up to date with the site.  If a request fails, the copy is left as it was.
+     *
+     * @return what changed.
+     * @throws DrupalFetchException if a request fails.
+     */
+    public synchronized Changes sync() throws DrupalFetchException
+    {
+        Snapshot current = snapshot;
+        Map<Integer, DrupalNode> nodes = new HashMap<Integer, DrupalNode>();
+        for (DrupalNode node : current.nodes) {
+            nodes.put(node.getNid(), node);
+        }
+        long since = Math.max(0, current.highWaterMark);
+        long highWaterMark = current.highWaterMark;
+        Map<Integer, DrupalNode> changed = new LinkedHashMap<Integer, DrupalNode>();
+        String arguments = String.format(changesArguments, since);
+        for (int offset = 0; ; offset += pageSize) {
+            List<DrupalNode> page = siteContext.getNodeView(changesView, arguments, offset, pageSize);
+            if (page == null) {
+                break;
+            }
+            for (DrupalNode node : page) {
+                DrupalNode previous = nodes.get(node.getNid());
+                if (previous == null || !sameTime(previous.getChanged(), node.getChanged())) {
+                    // nodes changed in the mark's second come back every time, unchanged
+                    changed.put(node.getNid(), node);
+                }
+                if (node.getChanged() != null) {
+                    highWaterMark = Math.max(highWaterMark, node.getChanged().getTime() / 1000);
+                }
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        List<Integer> listing = readListing();
+
+        nodes.putAll(changed);
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer nid : listing) {
+            if (!nodes.containsKey(nid)) {
+                missing.add(nid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            log.debug("Fetching " + missing.size() + " nodes missing from the changes view " + changesView);
+            DrupalBulkResult<Integer, DrupalNode> fetched = siteContext.getNodes(missing, parallelism);
+            if (!fetched.isSuccessful()) {
+                Exception failure = fetched.getFailures().values().iterator().next();
+                throw failure instanceof DrupalFetchException ? (DrupalFetchException)failure : new DrupalFetchException(failure);
+            }
+            nodes.putAll(fetched.getResults());
+            changed.putAll(fetched.getResults());
+        }
+
+        List<DrupalNode> ordered = new ArrayList<DrupalNode>(listing.size());
+        Set<Integer> listed = new HashSet<Integer>(listing);
+        for (Integer nid : listing) {
+            ordered.add(nodes.get(nid));
+        }
+        List<Integer> removed = new ArrayList<Integer>();
+        for (DrupalNode node : current.nodes) {
+            if (!listed.contains(node.getNid())) {
+                removed.add(node.getNid());
+            }
+        }
+        changed.keySet().retainAll(listed);
+        snapshot = new Snapshot(Collections.unmodifiableList(ordered), Math.max(highWaterMark, since));
+        return new Changes(new ArrayList<DrupalNode>(changed.values()), removed);
+    }
+
+    private static boolean sameTime(Date a, Date b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private List<Integer> readListing() throws DrupalFetchException
+    {
+        final List<Integer> listing = new ArrayList<Integer>();
+        final Set<Integer> seen = new HashSet<Integer>();
+        for (int offset = 0; ; offset += pageSize) {
+            int count = siteContext.getNodeView(listingView, listingArguments, offset, pageSize, new DrupalEntityHandler<DrupalNode>()
+            {
+                public void handleEntity(DrupalNode entity)
+                {
+                    // a node can move to an earlier page between requests; it keeps its first place
+                    if (seen.add(entity.getNid())) {
+                        listing.add(entity.getNid());
+                    }
+                }
+            });
+            if (count < pageSize) {
+                return listing;
+            }
+        }
+    }
+
+    /**
+     * Writes the copy to a file, replacing it atomically.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file can't be written.
+     */
+    public void save(File file) throws IOException
+    {
+        Snapshot current = snapshot;
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+        try {
+            gson.toJson(new SavedState(current), out);
+        } finally {
+            out.close();
+        }
+        DrupalFiles.replaceFile(temp, file);
+    }
+
+    /**
+     * Replaces the copy with one written by {@link #save(File)}.
+     *
+     * @param file the file to read.
+     * @throws IOException if the file can't be read or wasn't written by save.
+     */
+    public synchronized void load(File file) throws IOException
+    {
+        DrupalFiles.recover(file);
+        Reader in = new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+        SavedState state;
+        try {
+            state = gson.fromJson(in, SavedState.class);
+        } catch (JsonParseException e) {
+            IOException failure = new IOException("Unreadable view copy " + file);
+            failure.initCause(e);
+            throw failure;
+        } finally {
+            in.close();
+        }
+        if (state == null || state.nodes == null) {
+            throw new IOException("Unreadable view copy " + file);
+        }
+        snapshot = new Snapshot(Collections.unmodifiableList(state.nodes), state.highWaterMark);
+    }
+
+    /**
+     * What a sync changed.
+     */
+    public static class Changes
+    {
+        private final List<DrupalNode> changed;
+        private final List<Integer> removed;
+
+        Changes(List<DrupalNode> changed, List<Integer> removed)
+        {
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        /**
+         * @return the nodes added to or updated in the copy, in no particular order.
+         */
+        public List<DrupalNode> getChanged()
+        {
+            return changed;
+        }
+
+        /**
+         * @return the nids of the nodes no longer in the view.
+         */
+        public List<Integer> getRemoved()
+        {
+            return removed;
+        }
+
+        public boolean isEmpty()
+        {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private static class Snapshot
+    {
+        final List<DrupalNode> nodes;
+        final long highWaterMark;
+
+        Snapshot(List<DrupalNode> nodes, long highWaterMark)
+        {
+            this.nodes = nodes;
+            this.highWaterMark = highWaterMark;
+        }
+    }
+
+    private static class SavedState
+    {
+        private long highWaterMark;
+        private ArrayList<DrupalNode> nodes;
+
+        @SuppressWarnings({"UnusedDeclaration"})
+        SavedState()
+        {
+        }
+
+        SavedState(Snapshot snapshot)
+        {
+            highWaterMark = snapshot.highWaterMark;
+            nodes = new ArrayList<DrupalNode>(snapshot.nodes);
+        }
+    }
+}
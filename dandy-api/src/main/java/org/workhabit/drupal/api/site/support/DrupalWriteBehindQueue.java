@@ -0,0 +1,489 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.Drupal7SiteContext;
+import org.workhabit.drupal.api.site.exceptions.DrupalSaveException;
+import org.workhabit.drupal.api.site.exceptions.DrupalServicesResponseException;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts node, comment and file saves while offline or on a flaky connection, and sends them to the site in the
+ * background.
+ * <p/>
+ * Each save is appended to a {@link DrupalWriteJournal} in the given directory and acknowledged as soon as it is on
+ * disk; file contents are copied alongside it first.  A flusher thread sends pending writes in the order they were
+ * accepted, in batches whose outcomes are committed to the journal together.  If the network or the site fails, the
+ * write is kept and retried after a delay that doubles with each consecutive failure, up to a maximum.  If the site
+ * refuses the session, with a 401 or 403 status (which includes a failed Services CSRF check), the write is kept and
+ * sending stops until the user has logged in again and {@link #retryNow()} is called.  A write the site rejects
+ * outright, with any other 4xx status such as 406 for a failed validation, is dropped and reported.  Writes still
+ * pending when the process dies are recovered when a queue is next opened on the directory.
+ * <pre>
+ * DrupalWriteBehindQueue writes = new DrupalWriteBehindQueue(context, new File(getFilesDir(), "writes"));
+ * writes.setListener(listener);
+ * writes.start();
+ * writes.saveNode(node);    // returns once the node is on disk
+ * </pre>
+ * Delivery is at least once: a write whose response was lost, or that succeeded just before a crash, is sent again.
+ * A repeated update is harmless, but a repeated create makes a duplicate node or comment.
+ */
+public class DrupalWriteBehindQueue
+{
+    static final String JOURNAL = "writes.journal";
+    private static final Logger log = LoggerFactory.getLogger(DrupalWriteBehindQueue.class.getSimpleName());
+    private static final String SPOOL_SUFFIX = ".spool";
+    private static final Gson gson = LocalGson.INSTANCE;
+    private final Drupal7SiteContext context;
+    private final File directory;
+    private final DrupalWriteJournal journal;
+    private final LinkedList<DrupalQueuedWrite> pending = new LinkedList<DrupalQueuedWrite>();
+    private volatile DrupalWriteListener listener;
+    private int batchSize = 20;
+    private long initialRetryDelay = TimeUnit.SECONDS.toMillis(1);
+    private long maxRetryDelay = TimeUnit.MINUTES.toMillis(5);
+    private long retryAt;
+    private boolean awaitingLogin;
+    private volatile boolean running;
+    private Thread flusher;
+
+    /**
+     * Opens the queue, recovering any writes left pending in the directory.  Nothing is sent until {@link #start()}.
+     *
+     * @param context   the context writes are sent through.
+     * @param directory the directory for the journal and spooled files, which only this queue may use.  It is created
+     *                  if it doesn't exist.
+     * @throws IOException if the journal can't be opened.
+     */
+    public DrupalWriteBehindQueue(Drupal7SiteContext context, File directory) throws IOException
+    {
+        this.context = context;
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        journal = new DrupalWriteJournal(new File(directory, JOURNAL));
+        List<Long> unreadable = new ArrayList<Long>();
+        Set<File> spooled = new HashSet<File>();
+        for (Map.Entry<Long, byte[]> entry : journal.getPending().entrySet()) {
+            try {
+                DrupalQueuedWrite write = decode(entry.getKey(), entry.getValue());
+                pending.add(write);
+                if (write.getSpoolFile() != null) {
+                    spooled.add(write.getSpoolFile());
+                }
+            } catch (RuntimeException e) {
+                // a payload this version can't read
+                log.warn("Dropping unreadable write " + entry.getKey(), e);
+                unreadable.add(entry.getKey());
+            }
+        }
+        journal.commit(unreadable);
+        // files spooled for writes that never made it into the journal
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.getName().endsWith(SPOOL_SUFFIX) && !spooled.contains(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.info("Recovered " + pending.size() + " pending writes from " + directory);
+        }
+    }
+
+    public void setListener(DrupalWriteListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * @param batchSize the most writes sent between journal commits.  Larger batches mean fewer disk syncs, but more
+     *                  writes repeated if the process dies mid-batch.
+     */
+    public synchronized void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param initial the delay before retrying after a first failure.  It doubles with each further failure.
+     * @param max     the longest delay between retries.
+     * @param unit    the unit of both delays.
+     */
+    public synchronized void setRetryDelays(long initial, long max, TimeUnit unit)
+    {
+        this.initialRetryDelay = unit.toMillis(initial);
+        this.maxRetryDelay = unit.toMillis(max);
+    }
+
+    /**
+     * Queues a node to be saved as by {@link Drupal7SiteContext#saveNode(DrupalNode)}.
+     *
+     * @param node the node.  Later changes to it aren't saved.
+     * @return the queued write.  The listener is told the nid once the save succeeds.
+     * @throws DrupalSaveException if the write can't be added to the journal.
+     */
+    public DrupalQueuedWrite saveNode(DrupalNode node) throws DrupalSaveException
+    {
+        return enqueue(DrupalQueuedWrite.Type.NODE, gson.toJsonTree(node), null, null);
+    }
+
+    /**
+     * Queues a comment to be saved as by {@link Drupal7SiteContext#saveComment(DrupalComment)}.
+     *
+     * @param comment the comment.  Later changes to it aren't saved.
+     * @return the queued write.  The listener is told the cid once the save succeeds.
+     * @throws DrupalSaveException if the write can't be added to the journal.
+     */
+    public DrupalQueuedWrite saveComment(DrupalComment comment) throws DrupalSaveException
+    {
+        return enqueue(DrupalQueuedWrite.Type.COMMENT, gson.toJsonTree(comment), null, null);
+    }
+
+    /**
+     * Queues a file to be uploaded as by {@link Drupal7SiteContext#saveFileStream(InputStream, String)}.  The stream is
+     * read to the end and copied into the queue's directory before this returns; it is not closed.
+     *
+     * @param inputStream the file contents.
+     * @param fileName    the name to save the file as.
+     * @return the queued write.  The listener is given the saved file once the upload succeeds.
+     * @throws DrupalSaveException if the file can't be copied or the write can't be added to the journal.
+     */
+    public DrupalQueuedWrite saveFileStream(InputStream inputStream, String fileName) throws DrupalSaveException
+    {
+        File spool;
+        try {
+            spool = File.createTempFile("upload", SPOOL_SUFFIX, directory);
+            FileOutputStream out = new FileOutputStream(spool);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new DrupalSaveException(e);
+        }
+        try {
+            return enqueue(DrupalQueuedWrite.Type.FILE, null, fileName, spool);
+        } catch (DrupalSaveException e) {
+            //noinspection ResultOfMethodCallIgnored
+            spool.delete();
+            throw e;
+        }
+    }
+
+    private DrupalQueuedWrite enqueue(DrupalQueuedWrite.Type type, JsonElement entity, String fileName, File spool) throws DrupalSaveException
+    {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("type", type.name());
+        if (entity != null) {
+            payload.add("entity", entity);
+        }
+        if (spool != null) {
+            payload.addProperty("fileName", fileName);
+            payload.addProperty("spool", spool.getName());
+        }
+        try {
+            byte[] bytes = payload.toString().getBytes("UTF-8");
+            synchronized (this) {
+                // appended under the lock so that the queue stays in journal order.  The write holds a copy read
+                // back from the payload, so it matches what a restart would recover.
+                DrupalQueuedWrite write = decode(journal.append(bytes), bytes);
+                pending.add(write);
+                notifyAll();
+                return write;
+            }
+        } catch (IOException e) {
+            throw new DrupalSaveException(e);
+        }
+    }
+
+    private DrupalQueuedWrite decode(long id, byte[] bytes) throws UnsupportedEncodingException
+    {
+        JsonObject payload = new JsonParser().parse(new String(bytes, "UTF-8")).getAsJsonObject();
+        DrupalQueuedWrite.Type type = DrupalQueuedWrite.Type.valueOf(payload.get("type").getAsString());
+        switch (type) {
+            case NODE:
+                return new DrupalQueuedWrite(id, type, gson.fromJson(payload.get("entity"), DrupalNode.class), null, null);
+            case COMMENT:
+                return new DrupalQueuedWrite(id, type, gson.fromJson(payload.get("entity"), DrupalComment.class), null, null);
+            default:
+                File spool = new File(directory, payload.get("spool").getAsString());
+                return new DrupalQueuedWrite(id, type, null, payload.get("fileName").getAsString(), spool);
+        }
+    }
+
+    /**
+     * Starts sending pending writes on a background thread.
+     */
+    public synchronized void start()
+    {
+        if (running) {
+            return;
+        }
+        running = true;
+        flusher = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                flush();
+            }
+        }, "dandy-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Retries pending writes now rather than when the current delay runs out, e.g. when the device regains a
+     * network connection.  This also resumes a queue that stopped because the site refused the session, so call it
+     * after logging in again.
+     */
+    public synchronized void retryNow()
+    {
+        retryAt = 0;
+        awaitingLogin = false;
+        notifyAll();
+    }
+
+    /**
+     * @return true if sending has stopped because the site refused the session, until {@link #retryNow()}.
+     */
+    public synchronized boolean isAwaitingLogin()
+    {
+        return awaitingLogin;
+    }
+
+    /**
+     * @return the writes not yet sent, in the order they will be sent.
+     */
+    public synchronized List<DrupalQueuedWrite> getPending()
+    {
+        return new ArrayList<DrupalQueuedWrite>(pending);
+    }
+
+    /**
+     * Waits for every pending write to be sent and its outcome reported to the listener.
+     *
+     * @return true if the queue drained, false if the timeout elapsed first.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public synchronized boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!pending.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops sending and closes the journal.  A write in flight is allowed to finish, but its outcome may not be
+     * recorded, in which case it is sent again when the queue is next opened.
+     *
+     * @throws InterruptedException if interrupted while waiting for the flusher to stop.
+     */
+    public void shutdown() throws InterruptedException
+    {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            notifyAll();
+            thread = flusher;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Unable to close write journal", e);
+        }
+    }
+
+    private void flush()
+    {
+        int failures = 0;
+        while (true) {
+            List<DrupalQueuedWrite> batch = new ArrayList<DrupalQueuedWrite>();
+            synchronized (this) {
+                try {
+                    while (running && (pending.isEmpty() || awaitingLogin || System.currentTimeMillis() < retryAt)) {
+                        // a wait of 0 is until notified
+                        wait(pending.isEmpty() || awaitingLogin ? 0 : Math.max(1, retryAt - System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    return;
+                }
+                for (Iterator<DrupalQueuedWrite> i = pending.iterator(); i.hasNext() && batch.size() < batchSize; ) {
+                    batch.add(i.next());
+                }
+            }
+            Map<DrupalQueuedWrite, Object> committed = new LinkedHashMap<DrupalQueuedWrite, Object>();
+            Map<DrupalQueuedWrite, Exception> rejected = new LinkedHashMap<DrupalQueuedWrite, Exception>();
+            Exception retry = null;
+            Exception refused = null;
+            for (DrupalQueuedWrite write : batch) {
+                if (!running) {
+                    break;
+                }
+                try {
+                    committed.put(write, send(write));
+                } catch (Exception e) {
+                    // later writes wait, so that writes always reach the site in order
+                    if (isTransient(e)) {
+                        retry = e;
+                        break;
+                    }
+                    if (isUnauthorized(e)) {
+                        refused = e;
+                        break;
+                    }
+                    rejected.put(write, e);
+                }
+            }
+            List<Long> done = new ArrayList<Long>();
+            for (DrupalQueuedWrite write : committed.keySet()) {
+                done.add(write.getId());
+            }
+            for (DrupalQueuedWrite write : rejected.keySet()) {
+                done.add(write.getId());
+            }
+            try {
+                journal.commit(done);
+            } catch (IOException e) {
+                // the writes went through, but will be sent again when the journal is next opened
+                log.error("Unable to commit writes to the journal", e);
+            }
+            // before the writes leave the queue, so that a caller that saw it drain has had every callback
+            deliver(committed, rejected);
+            synchronized (this) {
+                // writes are done in order, so the done ones are at the head of the queue
+                for (int i = 0; i < done.size(); i++) {
+                    pending.removeFirst();
+                }
+                if (refused != null) {
+                    failures = 0;
+                    awaitingLogin = true;
+                    log.info("Site refused the session for " + pending.getFirst() + ", waiting for a login: " + refused.getMessage());
+                }
+                else if (retry != null) {
+                    failures++;
+                    long delay = Math.min(maxRetryDelay, initialRetryDelay << Math.min(failures - 1, 30));
+                    retryAt = System.currentTimeMillis() + delay;
+                    log.info("Unable to send " + pending.getFirst() + ", retrying in " + delay + "ms: " + retry.getMessage());
+                }
+                else {
+                    failures = 0;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private Object send(DrupalQueuedWrite write) throws Exception
+    {
+        switch (write.getType()) {
+            case NODE:
+                return context.saveNode(write.getNode());
+            case COMMENT:
+                return context.saveComment(write.getComment());
+            default:
+                File spool = write.getSpoolFile();
+                InputStream in = new FileInputStream(spool);
+                try {
+                    return context.saveFileStream(in, write.getFileName(), spool.length(), null);
+                } finally {
+                    in.close();
+                }
+        }
+    }
+
+    private void deliver(Map<DrupalQueuedWrite, Object> committed, Map<DrupalQueuedWrite, Exception> rejected)
+    {
+        DrupalWriteListener current = listener;
+        for (Map.Entry<DrupalQueuedWrite, Object> entry : committed.entrySet()) {
+            deleteSpoolFile(entry.getKey());
+            if (current != null) {
+                try {
+                    current.onCommitted(entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    log.error("Write listener failed", e);
+                }
+            }
+        }
+        for (Map.Entry<DrupalQueuedWrite, Exception> entry : rejected.entrySet()) {
+            deleteSpoolFile(entry.getKey());
+            log.warn("Site rejected " + entry.getKey() + ", dropping it", entry.getValue());
+            if (current != null) {
+                try {
+                    current.onFailed(entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    log.error("Write listener failed", e);
+                }
+            }
+        }
+    }
+
+    private static void deleteSpoolFile(DrupalQueuedWrite write)
+    {
+        if (write.getSpoolFile() != null) {
+            //noinspection ResultOfMethodCallIgnored
+            write.getSpoolFile().delete();
+        }
+    }
+
+    /**
+     * @return true if the failure is worth retrying: the request didn't get a response, the site had an error or
+     *         was unavailable, or it asked the client to slow down.
+     */
+    static boolean isTransient(Throwable failure)
+    {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DrupalServicesResponseException) {
+                int status = ((DrupalServicesResponseException)cause).getStatusCode();
+                return status >= 500 || status == 408 || status == 429;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the site refused the session rather than the write: the user isn't logged in, the session has
+     *         expired, or the CSRF token is stale.  The write may succeed once the user logs in again.
+     */
+    static boolean isUnauthorized(Throwable failure)
+    {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DrupalServicesResponseException) {
+                int status = ((DrupalServicesResponseException)cause).getStatusCode();
+                return status == 401 || status == 403;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,265 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of pending writes that survives crashes.  {@link #append(byte[])} returns once the entry has
+ * been forced to disk, and {@link #commit(Collection)} records that entries are done with.  Reopening the journal
+ * recovers every entry appended but not committed, in append order.
+ * <p/>
+ * Each record is its length, a CRC32 of its contents and the contents: a kind, an entry id and, for appends, the
+ * payload.  A record torn by a crash fails its length or checksum check on recovery, and it and anything after it are
+ * truncated away.  Committed entries cost only their record on disk until the journal is compacted: it is truncated
+ * whenever no entries are pending, and rewritten with just the pending entries once committed records make up most
+ * of a journal over {@link #COMPACT_THRESHOLD} bytes.  The journal stays in place until its compacted copy has
+ * replaced it, and if compacting fails it carries on uncompacted.
+ */
+public class DrupalWriteJournal
+{
+    static final long COMPACT_THRESHOLD = 1024 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(DrupalWriteJournal.class.getSimpleName());
+    private static final byte APPEND = 1;
+    private static final byte COMMIT = 2;
+    // kind and id
+    private static final int HEADER = 1 + 8;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    private final File file;
+    private final Map<Long, byte[]> pending = new LinkedHashMap<Long, byte[]>();
+    private RandomAccessFile out;
+    private long nextId = 1;
+    private long pendingBytes;
+
+    /**
+     * Opens the journal, creating it if it doesn't exist and recovering its pending entries if it does.
+     *
+     * @param file the journal file.
+     * @throws IOException if the journal can't be read or created.
+     */
+    public DrupalWriteJournal(File file) throws IOException
+    {
+        this.file = file;
+        DrupalFiles.recover(file);
+        out = new RandomAccessFile(file, "rw");
+        long valid = recover();
+        if (valid < out.length()) {
+            log.warn("Truncating " + (out.length() - valid) + " unreadable bytes from the end of " + file);
+            out.setLength(valid);
+            out.getFD().sync();
+        }
+        out.seek(valid);
+    }
+
+    /**
+     * Appends an entry and forces it to disk.
+     *
+     * @param payload the entry.
+     * @return the entry's id, which is greater than that of every entry appended before it.
+     * @throws IOException if the entry can't be written.  It may or may not be recovered when the journal is reopened.
+     */
+    public synchronized long append(byte[] payload) throws IOException
+    {
+        assertOpen();
+        long id = nextId++;
+        write(out, APPEND, id, payload);
+        out.getFD().sync();
+        pending.put(id, payload);
+        pendingBytes += recordLength(payload.length);
+        return id;
+    }
+
+    /**
+     * Marks entries as done, so that they aren't recovered when the journal is reopened.  The commits are forced to
+     * disk together.
+     *
+     * @param ids the ids of the entries.  Ids that aren't pending are ignored.
+     * @throws IOException if the commits can't be written.
+     */
+    public synchronized void commit(Collection<Long> ids) throws IOException
+    {
+        assertOpen();
+        boolean changed = false;
+        for (Long id : ids) {
+            byte[] payload = pending.remove(id);
+            if (payload != null) {
+                pendingBytes -= recordLength(payload.length);
+                write(out, COMMIT, id, null);
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            // nothing left to recover
+            out.setLength(0);
+        }
+        else if (out.length() > COMPACT_THRESHOLD && out.length() > 2 * pendingBytes) {
+            compact();
+        }
+        out.getFD().sync();
+    }
+
+    /**
+     * @return the pending entries by id, in the order they were appended.
+     */
+    public synchronized Map<Long, byte[]> getPending()
+    {
+        return new LinkedHashMap<Long, byte[]>(pending);
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return the size of the journal on disk.
+     */
+    public synchronized long length() throws IOException
+    {
+        assertOpen();
+        return out.length();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reads the journal from the start, rebuilding the pending entries.
+     *
+     * @return the length of the journal up to the first unreadable record.
+     */
+    private long recover() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return recover(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private long recover(DataInputStream in) throws IOException
+    {
+        long valid = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int length;
+            long checksum;
+            byte[] record;
+            try {
+                length = in.readInt();
+                if (length < HEADER || length > MAX_RECORD) {
+                    break;
+                }
+                checksum = in.readLong();
+                record = new byte[length];
+                in.readFully(record);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            byte kind = buffer.get();
+            long id = buffer.getLong();
+            if (kind == APPEND) {
+                byte[] payload = new byte[length - HEADER];
+                buffer.get(payload);
+                pending.put(id, payload);
+                pendingBytes += recordLength(payload.length);
+            }
+            else if (kind == COMMIT) {
+                byte[] payload = pending.remove(id);
+                if (payload != null) {
+                    pendingBytes -= recordLength(payload.length);
+                }
+            }
+            else {
+                break;
+            }
+            nextId = Math.max(nextId, id + 1);
+            valid += 4 + 8 + length;
+        }
+        return valid;
+    }
+
+    /**
+     * Rewrites the journal with only the pending entries, then replaces it with the copy.
+     */
+    private void compact() throws IOException
+    {
+        // until the copy is in place, this journal is the durable one
+        out.getFD().sync();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            RandomAccessFile copy = new RandomAccessFile(temp, "rw");
+            try {
+                copy.setLength(0);
+                for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+                    write(copy, APPEND, entry.getKey(), entry.getValue());
+                }
+                copy.getFD().sync();
+            } finally {
+                copy.close();
+            }
+            out.close();
+            out = null;
+            DrupalFiles.replaceFile(temp, file);
+        } catch (IOException e) {
+            log.warn("Unable to compact " + file + ", keeping it as it is", e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        } finally {
+            if (out == null) {
+                // if this fails the journal stays closed, rather than starting over in an empty file
+                DrupalFiles.recover(file);
+                out = new RandomAccessFile(file, "rw");
+                out.seek(out.length());
+            }
+        }
+    }
+
+    private static void write(RandomAccessFile target, byte kind, long id, byte[] payload) throws IOException
+    {
+        int length = HEADER + (payload != null ? payload.length : 0);
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 + length);
+        record.putInt(length);
+        record.putLong(0);
+        record.put(kind);
+        record.putLong(id);
+        if (payload != null) {
+            record.put(payload);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 12, length);
+        record.putLong(4, crc.getValue());
+        target.write(record.array());
+    }
+
+    private static long recordLength(int payloadLength)
+    {
+        return 4 + 8 + HEADER + payloadLength;
+    }
+
+    private void assertOpen() throws IOException
+    {
+        if (out == null) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * Receives the outcome of each write a {@link DrupalWriteBehindQueue} sends, including writes recovered from the
+ * journal after a restart.  Callbacks run on the queue's flusher thread once the outcome is recorded in the journal,
+ * so they should be short; UI code should hand the result over to its own thread.
+ */
+public interface DrupalWriteListener
+{
+    /**
+     * @param write  the write the site accepted.
+     * @param result the nid of a node, the cid of a comment, or the {@link org.workhabit.drupal.api.entity.drupal7.DrupalFile}
+     *               for a file.
+     */
+    void onCommitted(DrupalQueuedWrite write, Object result);
+
+    /**
+     * Called when the site rejects a write, e.g. for lack of permission.  Rejected writes are dropped rather than
+     * retried.  Network failures and server errors are never reported here; they are retried until they succeed.
+     *
+     * @param write the rejected write.
+     * @param cause the exception the save threw.
+     */
+    void onFailed(DrupalQueuedWrite write, Exception cause);
+}
@@ -0,0 +1,201 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * Connection pool and socket settings for {@link AndroidDrupalServicesRequestManagerImpl}.  All durations are in
+ * milliseconds.  A new instance carries defaults that suit a handful of worker threads talking to a single Drupal
+ * host.
+ */
+@SuppressWarnings({"UnusedDeclaration"})
+public class HttpTransportConfiguration
+{
+    private int maxTotalConnections = 20;
+    private int maxConnectionsPerRoute = 10;
+    private int connectTimeout = 15000;
+    private int socketTimeout = 30000;
+    private long connectionRequestTimeout = 30000;
+    private long keepAliveDuration = 30000;
+    private long connectionTimeToLive = -1;
+    private long idleConnectionTimeout = 0;
+    private long idleEvictionInterval = 5000;
+    private boolean tcpNoDelay = true;
+    private boolean responseCompressionEnabled = true;
+    private boolean requestCompressionEnabled = false;
+    private int requestCompressionThreshold = 1024;
+
+    /**
+     * @return the maximum number of open connections across all hosts.
+     */
+    public int getMaxTotalConnections()
+    {
+        return maxTotalConnections;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections)
+    {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    /**
+     * @return the maximum number of open connections to any one host.
+     */
+    public int getMaxConnectionsPerRoute()
+    {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+    {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return how long to wait for a TCP connection to be established.  0 waits forever.
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return how long a read may block waiting for data (SO_TIMEOUT).  0 waits forever.
+     */
+    public int getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout)
+    {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return how long a request may wait for a connection to become free in the pool before failing with a
+     *         {@link org.apache.http.conn.ConnectionPoolTimeoutException}.  0 waits forever.
+     */
+    public long getConnectionRequestTimeout()
+    {
+        return connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(long connectionRequestTimeout)
+    {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    /**
+     * @return how long an idle connection is kept for reuse when the server doesn't send a Keep-Alive timeout.  If
+     *         the server does send one, the shorter of the two is used.
+     */
+    public long getKeepAliveDuration()
+    {
+        return keepAliveDuration;
+    }
+
+    public void setKeepAliveDuration(long keepAliveDuration)
+    {
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * @return the maximum lifetime of a pooled connection, regardless of use.  A value of zero or less means no limit.
+     */
+    public long getConnectionTimeToLive()
+    {
+        return connectionTimeToLive;
+    }
+
+    public void setConnectionTimeToLive(long connectionTimeToLive)
+    {
+        this.connectionTimeToLive = connectionTimeToLive;
+    }
+
+    /**
+     * @return how long a connection may sit unused in the pool before the evictor closes it.  A value of zero or less,
+     *         the default, disables idle eviction, so no evictor thread is started; stale connections are then only
+     *         detected when they are next leased.
+     */
+    public long getIdleConnectionTimeout()
+    {
+        return idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout)
+    {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * @return how often the evictor checks the pool for expired and idle connections.  Always greater than zero.
+     */
+    public long getIdleEvictionInterval()
+    {
+        return idleEvictionInterval;
+    }
+
+    public void setIdleEvictionInterval(long idleEvictionInterval)
+    {
+        if (idleEvictionInterval <= 0) {
+            throw new IllegalArgumentException("Idle eviction interval must be positive: " + idleEvictionInterval);
+        }
+        this.idleEvictionInterval = idleEvictionInterval;
+    }
+
+    /**
+     * @return whether Nagle's algorithm is disabled on new sockets.
+     */
+    public boolean isTcpNoDelay()
+    {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return whether to send Accept-Encoding: gzip, deflate and decompress encoded responses.
+     */
+    public boolean isResponseCompressionEnabled()
+    {
+        return responseCompressionEnabled;
+    }
+
+    public void setResponseCompressionEnabled(boolean responseCompressionEnabled)
+    {
+        this.responseCompressionEnabled = responseCompressionEnabled;
+    }
+
+    /**
+     * @return whether json request bodies are sent gzip encoded.  The server must accept Content-Encoding: gzip
+     *         request bodies (e.g. via mod_deflate's input filter) for this to be enabled.
+     */
+    public boolean isRequestCompressionEnabled()
+    {
+        return requestCompressionEnabled;
+    }
+
+    public void setRequestCompressionEnabled(boolean requestCompressionEnabled)
+    {
+        this.requestCompressionEnabled = requestCompressionEnabled;
+    }
+
+    /**
+     * @return the smallest request body, in bytes, that is compressed when request compression is enabled.
+     */
+    public int getRequestCompressionThreshold()
+    {
+        return requestCompressionThreshold;
+    }
+
+    public void setRequestCompressionThreshold(int requestCompressionThreshold)
+    {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+}
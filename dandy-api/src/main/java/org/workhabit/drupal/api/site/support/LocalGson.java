@@ -0,0 +1,20 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.workhabit.drupal.api.json.UnixTimeDateAdapter;
+
+import java.util.Date;
+
+/**
+ * The Gson that the local stores in this package keep entities on disk with.  Dates are unix times in seconds, as the
+ * site sends them.
+ */
+class LocalGson
+{
+    static final Gson INSTANCE = new GsonBuilder().registerTypeAdapter(Date.class, new UnixTimeDateAdapter()).create();
+
+    private LocalGson()
+    {
+    }
+}
@@ -0,0 +1,109 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.http.CancellationScope;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical reads into a single request.  The first caller for a key runs the request; callers
+ * that arrive with the same key while it is in flight wait for it and receive the same result, or the same exception.
+ * Nothing is cached: once the request completes, the next caller for the key starts a new one.
+ * <p/>
+ * The request runs on the first caller's thread, and so in its {@link CancellationScope}.  If that caller is cancelled
+ * and the request fails, the failure belongs to that caller alone: the callers waiting on it start the request again,
+ * with one of them running it.
+ *
+ * @param <K> the key identifying a request, e.g. method, URL and session
+ * @param <V> the result type
+ */
+public class RequestCoalescer<K, V>
+{
+    private final ConcurrentMap<K, Call<V>> inFlight = new ConcurrentHashMap<K, Call<V>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the request, or waits for an identical one that is already in flight.
+     *
+     * @param key     the key identifying the request.
+     * @param request the request to run if none is in flight for the key.
+     * @return the request's result
+     * @throws DrupalFetchException if the request failed.  Exceptions other than DrupalFetchException are wrapped.
+     */
+    public V execute(K key, Callable<V> request) throws DrupalFetchException
+    {
+        while (true) {
+            Call<V> call = new Call<V>(request, CancellationScope.current());
+            Call<V> existing = inFlight.putIfAbsent(key, call);
+            if (existing == null) {
+                try {
+                    call.task.run();
+                } finally {
+                    inFlight.remove(key, call);
+                }
+                return await(call.task);
+            }
+            coalesced.incrementAndGet();
+            try {
+                return await(existing.task);
+            } catch (DrupalFetchException e) {
+                if (!existing.isCancelled()) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                if (!existing.isCancelled()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of calls that shared another caller's request instead of making their own.
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    private static class Call<V>
+    {
+        final FutureTask<V> task;
+        // the scope of the caller running the request
+        final CancellationScope scope;
+
+        Call(Callable<V> request, CancellationScope scope)
+        {
+            task = new FutureTask<V>(request);
+            this.scope = scope;
+        }
+
+        boolean isCancelled()
+        {
+            return scope != null && scope.isCancelled();
+        }
+    }
+
+    private V await(FutureTask<V> task) throws DrupalFetchException
+    {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrupalFetchException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DrupalFetchException) {
+                throw (DrupalFetchException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new DrupalFetchException((Exception)cause);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.workhabit.drupal.api.site.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads response bodies into exactly sized byte arrays with as little garbage as possible.
+ * <p/>
+ * When the length is known up front the body is read straight into the array that is returned.  Otherwise, e.g. a
+ * gzipped or chunked response, it is read into a buffer owned by the reading thread and copied out once the length is
+ * known, so the only allocation per response is the body itself.  A thread's buffer grows to fit the largest body it
+ * reads, but is dropped rather than kept if it grows past {@link #MAX_POOLED_BUFFER}, so that one large download
+ * doesn't pin memory for the life of the thread.
+ */
+final class ResponseBodyReader
+{
+    static final int INITIAL_BUFFER = 8 * 1024;
+    static final int MAX_POOLED_BUFFER = 512 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    private ResponseBodyReader()
+    {
+    }
+
+    /**
+     * Reads the stream to the end.  The stream is not closed.
+     *
+     * @param in            the body.
+     * @param contentLength the length of the body as the stream returns it, or -1 if it isn't known.
+     * @return the body.
+     * @throws IOException if the stream can't be read, or ends before the given content length.
+     */
+    static byte[] read(InputStream in, long contentLength) throws IOException
+    {
+        if (contentLength == 0) {
+            return EMPTY;
+        }
+        if (contentLength > 0 && contentLength < Integer.MAX_VALUE) {
+            byte[] body = new byte[(int)contentLength];
+            int length = fill(in, body, 0);
+            if (length < body.length) {
+                // the connection was closed part way through the body
+                throw new IOException("Response body ended after " + length + " of " + contentLength + " bytes");
+            }
+            int next = in.read();
+            if (next < 0) {
+                return body;
+            }
+            // longer than announced; carry on in a pooled buffer
+            byte[] buffer = buffer(body.length * 2);
+            System.arraycopy(body, 0, buffer, 0, body.length);
+            buffer[body.length] = (byte)next;
+            return readRemaining(in, buffer, body.length + 1);
+        }
+        return readRemaining(in, buffer(INITIAL_BUFFER), 0);
+    }
+
+    /**
+     * Reads the rest of the stream into a pooled buffer that already holds the given number of bytes, and returns the
+     * buffer to the pool.
+     */
+    private static byte[] readRemaining(InputStream in, byte[] buffer, int length) throws IOException
+    {
+        while (true) {
+            length = fill(in, buffer, length);
+            if (length < buffer.length) {
+                break;
+            }
+            int next = in.read();
+            if (next < 0) {
+                break;
+            }
+            buffer = grow(buffer, buffer.length * 2);
+            buffer[length++] = (byte)next;
+        }
+        byte[] body = new byte[length];
+        System.arraycopy(buffer, 0, body, 0, length);
+        release(buffer);
+        return body;
+    }
+
+    private static int fill(InputStream in, byte[] buffer, int offset) throws IOException
+    {
+        int read;
+        while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+            offset += read;
+        }
+        return offset;
+    }
+
+    private static byte[] buffer(int minimum)
+    {
+        byte[] buffer = buffers.get();
+        if (buffer == null || buffer.length < minimum) {
+            buffer = new byte[Math.max(minimum, INITIAL_BUFFER)];
+        }
+        // taken while in use, so a nested read on the same thread gets its own
+        buffers.set(null);
+        return buffer;
+    }
+
+    private static byte[] grow(byte[] buffer, int size)
+    {
+        byte[] grown = new byte[size];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        return grown;
+    }
+
+    private static void release(byte[] buffer)
+    {
+        if (buffer.length <= MAX_POOLED_BUFFER) {
+            buffers.set(buffer);
+        }
+    }
+}
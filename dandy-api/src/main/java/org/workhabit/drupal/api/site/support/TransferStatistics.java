@@ -0,0 +1,59 @@
+package org.workhabit.drupal.api.site.support;
+
+/**
+ * Byte counters for a request manager, comparing what was sent over the wire with the size of the content before
+ * compression (for requests) or after decompression (for responses).
+ */
+public class TransferStatistics
+{
+    private final long requestBytes;
+    private final long requestBytesUncompressed;
+    private final long responseBytes;
+    private final long responseBytesDecompressed;
+
+    public TransferStatistics(long requestBytes, long requestBytesUncompressed, long responseBytes, long responseBytesDecompressed)
+    {
+        this.requestBytes = requestBytes;
+        this.requestBytesUncompressed = requestBytesUncompressed;
+        this.responseBytes = responseBytes;
+        this.responseBytesDecompressed = responseBytesDecompressed;
+    }
+
+    /**
+     * @return request body bytes sent over the wire.
+     */
+    public long getRequestBytes()
+    {
+        return requestBytes;
+    }
+
+    /**
+     * @return request body bytes before compression.
+     */
+    public long getRequestBytesUncompressed()
+    {
+        return requestBytesUncompressed;
+    }
+
+    /**
+     * @return response body bytes read from the wire.
+     */
+    public long getResponseBytes()
+    {
+        return responseBytes;
+    }
+
+    /**
+     * @return response body bytes after decompression.
+     */
+    public long getResponseBytesDecompressed()
+    {
+        return responseBytesDecompressed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("sent %d bytes (%d uncompressed), received %d bytes (%d decompressed)", requestBytes, requestBytesUncompressed, responseBytes, responseBytesDecompressed);
+    }
+}
@@ -0,0 +1,12 @@
+package org.workhabit.drupal.http;
+
+/**
+ * An in-flight request that can be aborted from another thread.
+ */
+public interface Abortable
+{
+    /**
+     * Aborts the request.  A thread blocked sending the request or reading its response fails with an IOException.
+     */
+    void abort();
+}
@@ -0,0 +1,142 @@
+package org.workhabit.drupal.http;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the requests a unit of work has in flight, so that cancelling the work aborts them.
+ * <p/>
+ * Blocking socket reads don't respond to {@link Thread#interrupt()}, so interrupting a thread that is waiting on the
+ * server isn't enough to stop it.  Instead, the code running the work enters a scope on its thread, and request
+ * managers register each request with the current scope while it is in progress.  {@link #cancel()} aborts every
+ * registered request, and any request registered after cancellation is aborted before it is sent.
+ * <p/>
+ * A scope may be entered on several threads at once, e.g. by the workers of a bulk operation, so that cancelling the
+ * operation aborts the requests of all of them.
+ */
+public class CancellationScope
+{
+    private static final ThreadLocal<Entered> current = new ThreadLocal<Entered>();
+    private final Set<Abortable> inFlight = new HashSet<Abortable>();
+    private boolean cancelled;
+
+    /**
+     * @return the scope entered on the calling thread, or null if there is none.
+     */
+    public static CancellationScope current()
+    {
+        Entered entered = current.get();
+        return entered != null ? entered.scope : null;
+    }
+
+    /**
+     * Registers a request with the calling thread's scope, if there is one.
+     *
+     * @param request the request about to be sent.
+     * @throws InterruptedIOException if the scope has already been cancelled.  The request is aborted.
+     */
+    public static void register(Abortable request) throws InterruptedIOException
+    {
+        CancellationScope scope = current();
+        if (scope != null) {
+            scope.add(request);
+        }
+    }
+
+    /**
+     * Removes a completed request from the calling thread's scope, if there is one.
+     *
+     * @param request the request that has completed.
+     */
+    public static void unregister(Abortable request)
+    {
+        CancellationScope scope = current();
+        if (scope != null) {
+            scope.remove(request);
+        }
+    }
+
+    /**
+     * Makes this the current scope of the calling thread.  Must be paired with {@link #exit()} in a finally block.
+     */
+    public void enter()
+    {
+        current.set(new Entered(this, current.get()));
+    }
+
+    /**
+     * Restores the scope that was current on the calling thread when {@link #enter()} was called.
+     */
+    public void exit()
+    {
+        Entered entered = current.get();
+        if (entered == null || entered.scope != this) {
+            return;
+        }
+        if (entered.previous == null) {
+            current.remove();
+        }
+        else {
+            current.set(entered.previous);
+        }
+    }
+
+    /**
+     * Aborts all requests in flight in this scope, and any that are started later.
+     */
+    public void cancel()
+    {
+        List<Abortable> requests;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            requests = new ArrayList<Abortable>(inFlight);
+            inFlight.clear();
+        }
+        for (Abortable request : requests) {
+            request.abort();
+        }
+    }
+
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    private void add(Abortable request) throws InterruptedIOException
+    {
+        synchronized (this) {
+            if (!cancelled) {
+                inFlight.add(request);
+                return;
+            }
+        }
+        request.abort();
+        throw new InterruptedIOException("Request cancelled");
+    }
+
+    private synchronized void remove(Abortable request)
+    {
+        inFlight.remove(request);
+    }
+
+    /**
+     * A scope entered on a thread, and what was entered there before it.
+     */
+    private static class Entered
+    {
+        private final CancellationScope scope;
+        private final Entered previous;
+
+        Entered(CancellationScope scope, Entered previous)
+        {
+            this.scope = scope;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.workhabit.drupal.http;
+
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
+import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.http.metrics.RequestMetricsListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Base class for request managers that decorate another request manager.  Every call is passed through to the
+ * delegate unchanged; subclasses override the calls they're interested in.
+ */
+public abstract class DelegatingDrupalServicesRequestManager implements DrupalServicesRequestManager
+{
+    private final DrupalServicesRequestManager delegate;
+
+    protected DelegatingDrupalServicesRequestManager(DrupalServicesRequestManager delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    public DrupalServicesRequestManager getDelegate()
+    {
+        return delegate;
+    }
+
+    public ServicesResponse post(String path, String data) throws IOException
+    {
+        return delegate.post(path, data);
+    }
+
+    public ServicesResponse post(String path, Map<String, Object> data) throws IOException
+    {
+        return delegate.post(path, data);
+    }
+
+    public ServicesResponse put(String path, Map<String, Object> data) throws IOException
+    {
+        return delegate.put(path, data);
+    }
+
+    public ServicesResponse put(String path, String data) throws IOException
+    {
+        return delegate.put(path, data);
+    }
+
+    public ServicesResponse delete(String path) throws IOException
+    {
+        return delegate.delete(path);
+    }
+
+    public InputStream getStream(String path) throws IOException
+    {
+        return delegate.getStream(path);
+    }
+
+    public ServicesResponse getString(String path) throws IOException
+    {
+        return delegate.getString(path);
+    }
+
+    public long download(String path, File destination, TransferProgressListener listener) throws IOException
+    {
+        return delegate.download(path, destination, listener);
+    }
+
+    public ServicesResponse download(String path, Map<String, String> requestHeaders, File destination) throws IOException
+    {
+        return delegate.download(path, requestHeaders, destination);
+    }
+
+    public long download(String path, WritableByteChannel target, TransferProgressListener listener) throws IOException
+    {
+        return delegate.download(path, target, listener);
+    }
+
+    public ServicesResponse getString(String path, Map<String, String> requestHeaders) throws IOException
+    {
+        return delegate.getString(path, requestHeaders);
+    }
+
+    public <T> T get(String path, ServicesResponseHandler<T> handler) throws IOException, DrupalFetchException
+    {
+        return delegate.get(path, handler);
+    }
+
+    public ArrayList<GenericCookie> getCookies()
+    {
+        return delegate.getCookies();
+    }
+
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName) throws IOException
+    {
+        return delegate.postFile(path, fieldName, inputStream, fileName);
+    }
+
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException
+    {
+        return delegate.postFile(path, fieldName, inputStream, fileName, length, listener);
+    }
+
+    public void initializeSavedState(DrupalSiteContextInstanceState state)
+    {
+        delegate.initializeSavedState(state);
+    }
+
+    public void setMetricsListener(RequestMetricsListener listener)
+    {
+        delegate.setMetricsListener(listener);
+    }
+
+    public void setCsrfToken(String csrfToken)
+    {
+        delegate.setCsrfToken(csrfToken);
+    }
+}
@@ -1,10 +1,14 @@
 package org.workhabit.drupal.http;
 
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
 import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.http.metrics.RequestMetricsListener;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -88,10 +92,102 @@ public interface DrupalServicesRequestManager {
 
     public ServicesResponse getString(String path) throws IOException;
 
+    /**
+     * download a file into the destination without holding it in memory.  If the destination already exists, its
+     * length is taken as the number of bytes already downloaded and only the remainder is requested, with a Range
+     * header; if the server ignores the range, the file is downloaded again from the start.
+     *
+     * @param path        full URL to the remote file.
+     * @param destination the file to write to.
+     * @param listener    receives progress updates, or null.
+     * @return the length of the downloaded file.
+     * @throws IOException if there's a problem making the request, or the server responds with an error status.
+     */
+    public long download(String path, File destination, TransferProgressListener listener) throws IOException;
+
+    /**
+     * download a file into a channel without holding it in memory.  The channel is not closed.
+     *
+     * @param path     full URL to the remote file.
+     * @param target   the channel to write to.
+     * @param listener receives progress updates, or null.
+     * @return the number of bytes written.
+     * @throws IOException if there's a problem making the request, or the server responds with an error status.
+     */
+    public long download(String path, WritableByteChannel target, TransferProgressListener listener) throws IOException;
+
+    /**
+     * make a GET request with additional request headers, writing the response body to the destination only if the
+     * server answers 200 OK.  Intended for conditional requests: on any other status (e.g. 304 Not Modified) the
+     * destination is left untouched.
+     *
+     * @param path           full URL to the remote file.
+     * @param requestHeaders headers to add to the request, e.g. If-None-Match.
+     * @param destination    the file to write to.  It is overwritten.
+     * @return the status and headers of the response.  The body is not set.
+     * @throws IOException if there's a problem making the request.
+     */
+    public ServicesResponse download(String path, Map<String, String> requestHeaders, File destination) throws IOException;
+
+    /**
+     * make a GET request to the remote site, sending additional request headers (e.g. conditional request headers
+     * such as If-None-Match).
+     *
+     * @param path           full URL to the remote server.
+     * @param requestHeaders headers to add to the request.
+     * @return a service response representing the result of the request.
+     * @throws IOException if there's a problem making the request.
+     */
+    public ServicesResponse getString(String path, Map<String, String> requestHeaders) throws IOException;
+
+    /**
+     * make a GET request to the remote site and hand the response body to the given handler as it is received.  Use
+     * this in preference to {@link #getString(String)} for large responses (e.g. views) that can be processed
+     * incrementally.
+     *
+     * @param path    full URL to the remote server.
+     * @param handler the handler that consumes the response body.
+     * @return the value returned by the handler.
+     * @throws IOException          if there's a problem making the request.
+     * @throws DrupalFetchException if the handler could not process the response.
+     */
+    public <T> T get(String path, ServicesResponseHandler<T> handler) throws IOException, DrupalFetchException;
+
     ArrayList<GenericCookie> getCookies();
 
     @SuppressWarnings({"UnusedDeclaration"})
     public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName) throws IOException;
 
+    /**
+     * Perform an HTTP POST with a file in multipart form, streaming the file with chunked transfer encoding.  The
+     * request asks the server to confirm with 100-continue before the body is sent, so a rejected upload (e.g. an
+     * expired session) doesn't transmit the file.
+     *
+     * @param path        full URL to the remote server.
+     * @param fieldName   the field name to post the file as
+     * @param inputStream inputstream to the file.  It is read once, as the request is sent.
+     * @param fileName    the file name to post
+     * @param length      the length of the file if known, or -1.  Only used to report progress.
+     * @param listener    receives progress updates as the file is sent, or null.
+     * @return a servicesResponse object with the result of the request
+     * @throws IOException if there's a problem making the request.
+     */
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException;
+
     void initializeSavedState(DrupalSiteContextInstanceState state);
+
+    /**
+     * Reports the timing and size of each request to the listener.
+     *
+     * @param listener the listener, or null to stop reporting.
+     */
+    void setMetricsListener(RequestMetricsListener listener);
+
+    /**
+     * Sends the token as an X-CSRF-Token header with every request that isn't a GET, as Drupal requires of requests
+     * made with a session cookie.
+     *
+     * @param csrfToken the token issued with the session, or null to stop sending one.
+     */
+    void setCsrfToken(String csrfToken);
 }
@@ -1,23 +1,89 @@
 package org.workhabit.drupal.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
  * Date: 2/15/11, 12:31 PM
+ * <p/>
+ * The body is held as the bytes received, and decoded into a String only when {@link #getResponseBody()} is first
+ * called, using the charset the server declared.  Callers that parse the body can read the bytes directly with
+ * {@link #getResponseBodyStream()} and never build the String.
  */
-public class ServicesResponse
+public class ServicesResponse implements Serializable
 {
-    private String responseBody;
+    /**
+     * The charset of bodies that don't declare one.  Drupal's services always send json, which is UTF-8.
+     */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
+    private byte[] responseBody;
+    private String charset = DEFAULT_CHARSET;
+    private transient String decodedBody;
     private int statusCode;
     private String reasonPhrase;
+    private final TreeMap<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 
+    /**
+     * @return the body decoded with its charset, or null if the response had no body.  The String is built on the
+     *         first call and kept.
+     */
     public String getResponseBody()
     {
-        return responseBody;
+        if (decodedBody == null && responseBody != null) {
+            decodedBody = decode(responseBody, charset);
+        }
+        return decodedBody;
     }
 
     public void setResponseBody(String responseBody)
+    {
+        this.decodedBody = responseBody;
+        this.charset = DEFAULT_CHARSET;
+        this.responseBody = responseBody != null ? encode(responseBody) : null;
+    }
+
+    /**
+     * Sets the body as received.  The array is kept, not copied, so the caller must not modify it afterwards.
+     *
+     * @param responseBody the body, already stripped of any content encoding such as gzip.
+     * @param charset      the charset the server declared, or null for {@link #DEFAULT_CHARSET}.
+     */
+    public void setResponseBody(byte[] responseBody, String charset)
     {
         this.responseBody = responseBody;
+        this.charset = charset != null ? charset : DEFAULT_CHARSET;
+        this.decodedBody = null;
+    }
+
+    /**
+     * @return the body as received, or null if the response had no body.  The array is shared with this response and
+     *         must not be modified.
+     */
+    public byte[] getResponseBodyBytes()
+    {
+        return responseBody;
+    }
+
+    /**
+     * @return a stream over the body as received, or null if the response had no body.
+     */
+    public InputStream getResponseBodyStream()
+    {
+        return responseBody != null ? new ByteArrayInputStream(responseBody) : null;
+    }
+
+    /**
+     * @return the charset of the body.
+     */
+    public String getCharset()
+    {
+        return charset;
     }
 
     public void setStatusCode(int statusCode)
@@ -39,4 +105,66 @@ public class ServicesResponse
     {
         return reasonPhrase;
     }
+
+    /**
+     * Returns the value of a response header.  Header names are case insensitive.  If the header was sent more than
+     * once, the values are joined with ", ".
+     *
+     * @param name the header name
+     * @return the header value, or null if the header wasn't sent.
+     */
+    public String getHeader(String name)
+    {
+        return headers.get(name);
+    }
+
+    public void setHeader(String name, String value)
+    {
+        headers.put(name, value);
+    }
+
+    /**
+     * Adds a header value, joining it to any existing value for the same header.
+     *
+     * @param name  the header name
+     * @param value the header value
+     */
+    public void addHeader(String name, String value)
+    {
+        String existing = headers.get(name);
+        headers.put(name, existing == null ? value : existing + ", " + value);
+    }
+
+    /**
+     * @return all response headers, keyed case insensitively.
+     */
+    public Map<String, String> getHeaders()
+    {
+        return headers;
+    }
+
+    private static String decode(byte[] bytes, String charset)
+    {
+        try {
+            return new String(bytes, charset);
+        } catch (UnsupportedEncodingException e) {
+            // unknown charset name
+        } catch (IllegalArgumentException e) {
+            // malformed charset name
+        }
+        try {
+            return new String(bytes, DEFAULT_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(String body)
+    {
+        try {
+            return body.getBytes(DEFAULT_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package org.workhabit.drupal.http;
+
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback used by {@link DrupalServicesRequestManager#get(String, ServicesResponseHandler)} to consume a response
+ * body directly from the connection, without first buffering it into a String.
+ *
+ * @param <T> the type produced by the handler
+ */
+public interface ServicesResponseHandler<T>
+{
+    /**
+     * Handle the response.  The content stream is only valid for the duration of this call; the request manager
+     * releases the underlying connection as soon as the handler returns.
+     *
+     * @param response the response status.  The response body is not populated.
+     * @param content  the raw response body.
+     * @return the handler's result
+     * @throws IOException          if there's an error reading the response.
+     * @throws DrupalFetchException if the response cannot be processed.
+     */
+    T handleResponse(ServicesResponse response, InputStream content) throws IOException, DrupalFetchException;
+}
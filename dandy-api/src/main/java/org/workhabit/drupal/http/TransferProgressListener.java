@@ -0,0 +1,15 @@
+package org.workhabit.drupal.http;
+
+/**
+ * Receives progress updates while a file is transferred to or from the server.  Updates are delivered on the thread
+ * doing the transfer, after each block, so implementations should return quickly.
+ */
+public interface TransferProgressListener
+{
+    /**
+     * @param bytesTransferred the number of bytes of the file transferred so far, including any part transferred
+     *                         before a download was resumed.
+     * @param totalBytes       the size of the file, or -1 if the server didn't say.
+     */
+    void onProgress(long bytesTransferred, long totalBytes);
+}
@@ -0,0 +1,75 @@
+package org.workhabit.drupal.http.cache;
+
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * A response held by a {@link ResponseCache}, along with the time it stops being fresh.
+ */
+public class CachedResponse implements Serializable
+{
+    private final ServicesResponse response;
+    private final long expiresAt;
+
+    /**
+     * @param response  the response to cache
+     * @param expiresAt the time (in ms since the epoch) until which the response may be used without revalidating.
+     */
+    public CachedResponse(ServicesResponse response, long expiresAt)
+    {
+        this.response = response;
+        this.expiresAt = expiresAt;
+    }
+
+    public long getExpiresAt()
+    {
+        return expiresAt;
+    }
+
+    public boolean isFresh(long now)
+    {
+        return now < expiresAt;
+    }
+
+    public String getETag()
+    {
+        return response.getHeader("ETag");
+    }
+
+    public String getLastModified()
+    {
+        return response.getHeader("Last-Modified");
+    }
+
+    /**
+     * @return a copy of the cached response, so that callers can't modify the cached instance.
+     */
+    public ServicesResponse toServicesResponse()
+    {
+        ServicesResponse copy = new ServicesResponse();
+        copy.setStatusCode(response.getStatusCode());
+        copy.setReasonPhrase(response.getReasonPhrase());
+        copy.setResponseBody(response.getResponseBodyBytes(), response.getCharset());
+        copy.getHeaders().putAll(response.getHeaders());
+        return copy;
+    }
+
+    /**
+     * Creates the entry that replaces this one after a successful revalidation (304 Not Modified).  The body is kept
+     * and any headers sent with the 304 replace the cached ones.
+     *
+     * @param notModified the 304 response
+     * @param expiresAt   the new expiry time
+     * @return the updated entry
+     */
+    public CachedResponse revalidated(ServicesResponse notModified, long expiresAt)
+    {
+        ServicesResponse updated = toServicesResponse();
+        for (Map.Entry<String, String> header : notModified.getHeaders().entrySet()) {
+            updated.setHeader(header.getKey(), header.getValue());
+        }
+        return new CachedResponse(updated, expiresAt);
+    }
+}
@@ -0,0 +1,335 @@
+package org.workhabit.drupal.http.cache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
+import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.TransferProgressListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request manager decorator that caches GET responses according to their Cache-Control and Expires headers.
+ * <p/>
+ * Fresh responses are served without contacting the server.  Stale responses that carry an ETag or Last-Modified
+ * header are revalidated with a conditional request; a 304 Not Modified response refreshes the cached entry and the
+ * cached body is returned.  Responses marked no-store are never cached, and responses marked no-cache are always
+ * revalidated.  POST, PUT and DELETE requests invalidate any cached response for the same path.
+ * <p/>
+ * Cache keys include the uid of the logged in user, learned from the login response or from restored state, so cached
+ * responses are never shared between users and stay usable across logins as the same user.  Before the uid is known,
+ * keys include a SHA-1 of the Drupal session cookie instead; the cookie itself is never part of a key, so it never
+ * reaches a disk cache.  Requests made with caller-supplied headers, streamed requests and file requests are passed
+ * through uncached.
+ */
+public class CachingDrupalServicesRequestManager extends DelegatingDrupalServicesRequestManager
+{
+    private static final Logger log = LoggerFactory.getLogger(CachingDrupalServicesRequestManager.class.getSimpleName());
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private final ResponseCache cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // "user <uid>" while the logged in user is known, otherwise null
+    private volatile String user;
+
+    public CachingDrupalServicesRequestManager(DrupalServicesRequestManager delegate, ResponseCache cache)
+    {
+        super(delegate);
+        this.cache = cache;
+    }
+
+    @Override
+    public ServicesResponse getString(String path) throws IOException
+    {
+        String key = cacheKey(path);
+        long now = currentTimeMillis();
+        CachedResponse cached = cache.get(key);
+        if (cached != null && cached.isFresh(now)) {
+            hits.incrementAndGet();
+            return cached.toServicesResponse();
+        }
+
+        ServicesResponse response;
+        Map<String, String> conditionalHeaders = conditionalHeaders(cached);
+        if (conditionalHeaders.isEmpty()) {
+            response = super.getString(path);
+        }
+        else {
+            response = super.getString(path, conditionalHeaders);
+        }
+
+        if (response.getStatusCode() == 304 && cached != null) {
+            revalidations.incrementAndGet();
+            CachedResponse updated = cached.revalidated(response, expiresAt(response, now));
+            cache.put(key, updated);
+            return updated.toServicesResponse();
+        }
+        misses.incrementAndGet();
+        if (response.getStatusCode() == 200 && isStorable(response, now)) {
+            cache.put(key, new CachedResponse(response, expiresAt(response, now)));
+            return new CachedResponse(response, 0).toServicesResponse();
+        }
+        if (cached != null) {
+            cache.remove(key);
+        }
+        return response;
+    }
+
+    @Override
+    public ServicesResponse post(String path, String data) throws IOException
+    {
+        try {
+            return super.post(path, data);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse post(String path, Map<String, Object> data) throws IOException
+    {
+        try {
+            ServicesResponse response = super.post(path, data);
+            if (response.getStatusCode() == 200) {
+                if (path.endsWith("/user/login.json")) {
+                    user = loggedInUser(response);
+                }
+                else if (path.endsWith("/user/logout.json")) {
+                    user = null;
+                }
+            }
+            return response;
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse put(String path, Map<String, Object> data) throws IOException
+    {
+        try {
+            return super.put(path, data);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse put(String path, String data) throws IOException
+    {
+        try {
+            return super.put(path, data);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse delete(String path) throws IOException
+    {
+        try {
+            return super.delete(path);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName) throws IOException
+    {
+        try {
+            return super.postFile(path, fieldName, inputStream, fileName);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException
+    {
+        try {
+            return super.postFile(path, fieldName, inputStream, fileName, length, listener);
+        } finally {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public void initializeSavedState(DrupalSiteContextInstanceState state)
+    {
+        super.initializeSavedState(state);
+        user = state.getUser() != null ? "user " + state.getUser().getUid() : null;
+    }
+
+    /**
+     * Removes any cached response for the given path.
+     *
+     * @param path the full URL of the request
+     */
+    public void invalidate(String path)
+    {
+        cache.remove(cacheKey(path));
+    }
+
+    /**
+     * @return the number of requests served from the cache without contacting the server.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests answered by the server with 304 Not Modified.
+     */
+    public long getRevalidationCount()
+    {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of requests for which the server sent a full response.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private String cacheKey(String path)
+    {
+        String owner = user;
+        if (owner == null) {
+            owner = "";
+            ArrayList<GenericCookie> cookies = getCookies();
+            if (cookies != null) {
+                for (GenericCookie cookie : cookies) {
+                    String name = cookie.getName();
+                    if (name != null && (name.startsWith("SESS") || name.startsWith("SSESS"))) {
+                        owner = "session " + DiskResponseCache.sha1Hex(name + "=" + cookie.getValue());
+                    }
+                }
+            }
+        }
+        return "GET " + path + " " + owner;
+    }
+
+    private static String loggedInUser(ServicesResponse response)
+    {
+        try {
+            JSONObject user = new JSONObject(response.getResponseBody()).optJSONObject("user");
+            if (user != null && user.has("uid")) {
+                return "user " + user.getInt("uid");
+            }
+        } catch (JSONException e) {
+            log.debug("Unable to read the user from the login response", e);
+        }
+        return null;
+    }
+
+    private Map<String, String> conditionalHeaders(CachedResponse cached)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (cached != null) {
+            if (cached.getETag() != null) {
+                headers.put("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                headers.put("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        return headers;
+    }
+
+    private boolean isStorable(ServicesResponse response, long now)
+    {
+        Map<String, String> cacheControl = parseCacheControl(response.getHeader("Cache-Control"));
+        if (cacheControl.containsKey("no-store")) {
+            return false;
+        }
+        // without a freshness lifetime the entry is only useful if it can be revalidated
+        return expiresAt(response, now) > now || response.getHeader("ETag") != null || response.getHeader("Last-Modified") != null;
+    }
+
+    /**
+     * Computes the time until which a response is fresh, from max-age if present and otherwise from Expires relative
+     * to the server's Date header.
+     */
+    private long expiresAt(ServicesResponse response, long now)
+    {
+        Map<String, String> cacheControl = parseCacheControl(response.getHeader("Cache-Control"));
+        if (cacheControl.containsKey("no-cache") || cacheControl.containsKey("no-store")) {
+            return 0;
+        }
+        String maxAge = cacheControl.get("max-age");
+        if (maxAge != null) {
+            try {
+                long age = 0;
+                if (response.getHeader("Age") != null) {
+                    age = Long.parseLong(response.getHeader("Age").trim());
+                }
+                return now + (Long.parseLong(maxAge) - age) * 1000;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        String expiresHeader = response.getHeader("Expires");
+        if (expiresHeader != null) {
+            Date expires = parseDate(expiresHeader);
+            if (expires == null) {
+                // per RFC 2616, an invalid Expires date means "already expired"
+                return 0;
+            }
+            Date date = parseDate(response.getHeader("Date"));
+            long serverNow = date != null ? date.getTime() : now;
+            return now + (expires.getTime() - serverNow);
+        }
+        return 0;
+    }
+
+    private static Map<String, String> parseCacheControl(String header)
+    {
+        Map<String, String> directives = new HashMap<String, String>();
+        if (header == null) {
+            return directives;
+        }
+        for (String directive : header.split(",")) {
+            String[] parts = directive.trim().split("=", 2);
+            String name = parts[0].trim().toLowerCase(Locale.US);
+            if (name.length() > 0) {
+                directives.put(name, parts.length > 1 ? parts[1].trim().replace("\"", "") : "");
+            }
+        }
+        return directives;
+    }
+
+    private static Date parseDate(String value)
+    {
+        if (value == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            log.debug("Unparseable date: " + value);
+            return null;
+        }
+    }
+}
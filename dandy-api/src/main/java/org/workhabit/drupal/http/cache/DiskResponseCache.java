@@ -0,0 +1,184 @@
+package org.workhabit.drupal.http.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.site.support.DrupalFiles;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Response cache that persists entries as files in a directory, so that cached responses survive restarts.  Entries
+ * are written to a temporary file and renamed into place, so a reader never sees a partially written entry.  Files
+ * are named by a SHA-1 of their key, and the key itself is never written, so nothing in it reaches the disk.  When
+ * the total size of the entries exceeds the configured budget, the least recently used are deleted.  The directory
+ * is only listed when the cache is created; after that, sizes and use order are tracked in memory.
+ */
+public class DiskResponseCache implements ResponseCache
+{
+    private static final Logger log = LoggerFactory.getLogger(DiskResponseCache.class.getSimpleName());
+    private static final String SUFFIX = ".response";
+    private final File directory;
+    private final long maxBytes;
+    // entry file names to their lengths, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param directory the directory to store entries in.  It is created if it doesn't exist.
+     * @param maxBytes  the total size the cache may occupy on disk.
+     */
+    public DiskResponseCache(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Unable to create cache directory " + directory);
+        }
+        File[] files = listEntries();
+        // modification times record use across restarts
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+    }
+
+    public synchronized CachedResponse get(String key)
+    {
+        File file = fileFor(key);
+        if (entries.get(file.getName()) == null) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                CachedResponse response = (CachedResponse)in.readObject();
+                // access time drives eviction order
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return response;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.debug("Discarding unreadable cache entry " + file, e);
+        } catch (ClassNotFoundException e) {
+            log.debug("Discarding unreadable cache entry " + file, e);
+        }
+        delete(file.getName());
+        return null;
+    }
+
+    public synchronized void put(String key, CachedResponse response)
+    {
+        File file = fileFor(key);
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeObject(response);
+            } finally {
+                out.close();
+            }
+            DrupalFiles.replaceFile(temp, file);
+        } catch (IOException e) {
+            log.warn("Unable to write cache entry " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        Long previous = entries.put(file.getName(), file.length());
+        size += file.length() - (previous != null ? previous : 0);
+        trimToSize();
+    }
+
+    public synchronized void remove(String key)
+    {
+        delete(fileFor(key).getName());
+    }
+
+    public synchronized void clear()
+    {
+        for (File file : listEntries()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the total size of the entries, in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    private void trimToSize()
+    {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (size > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private void delete(String name)
+    {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, name).delete();
+    }
+
+    private File[] listEntries()
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private File fileFor(String key)
+    {
+        return new File(directory, sha1Hex(key) + SUFFIX);
+    }
+
+    static String sha1Hex(String key)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
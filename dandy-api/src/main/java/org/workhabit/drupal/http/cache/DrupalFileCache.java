@@ -0,0 +1,399 @@
+package org.workhabit.drupal.http.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.support.DrupalFiles;
+import org.workhabit.drupal.api.site.support.RequestCoalescer;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches remote files (e.g. images) on disk, keyed by the SHA-1 of their URL.
+ * <p/>
+ * Files are downloaded to a temporary file and renamed into place, so a reader never sees a partially written file.
+ * When the total size of the cached files exceeds the configured budget, the least recently used files are deleted.
+ * Concurrent requests for the same URL share a single download.  A cached file is served without contacting the
+ * server for the configured time to live; after that it is revalidated with a conditional request using the ETag or
+ * Last-Modified header it was downloaded with, and a 304 Not Modified response keeps the cached copy.
+ * <p/>
+ * Each cached file has a small ".meta" file alongside it recording its URL and validators, so the cache picks up
+ * where it left off when it is created again on the same directory.
+ */
+public class DrupalFileCache
+{
+    private static final Logger log = LoggerFactory.getLogger(DrupalFileCache.class.getSimpleName());
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long DEFAULT_TIME_TO_LIVE = 24 * 60 * 60 * 1000;
+    private final DrupalServicesRequestManager requestManager;
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final RequestCoalescer<String, File> downloads = new RequestCoalescer<String, File>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+    private long size;
+
+    /**
+     * @param requestManager the request manager to download files with.
+     * @param directory      the directory to store files in.  It is created if it doesn't exist.
+     * @param maxBytes       the total size the cached files may occupy on disk.
+     */
+    public DrupalFileCache(DrupalServicesRequestManager requestManager, File directory, long maxBytes)
+    {
+        this.requestManager = requestManager;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Unable to create cache directory " + directory);
+        }
+        load();
+    }
+
+    /**
+     * Sets how long a cached file is used without revalidating it.  Defaults to one day.
+     *
+     * @param timeToLiveMillis the time in milliseconds.  Zero revalidates on every request.
+     */
+    public void setTimeToLive(long timeToLiveMillis)
+    {
+        this.timeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Returns a local copy of the remote file, downloading or revalidating it if necessary.
+     * <p/>
+     * The returned file may be replaced by a later download, or deleted if it is evicted.  Callers that read it later
+     * should be prepared to request it again; {@link #openStream(String)} avoids that window.
+     *
+     * @param url full URL to the remote file.
+     * @return the cached file.
+     * @throws IOException if the file isn't cached and couldn't be downloaded.
+     */
+    public File getFile(final String url) throws IOException
+    {
+        final String key = DiskResponseCache.sha1Hex(url);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.fetchedAt + timeToLive > currentTimeMillis()) {
+                File data = dataFile(key);
+                if (data.isFile()) {
+                    hits.incrementAndGet();
+                    return data;
+                }
+                remove(key);
+            }
+        }
+        try {
+            return downloads.execute(key, new Callable<File>()
+            {
+                public File call() throws IOException
+                {
+                    return fetch(url, key);
+                }
+            });
+        } catch (DrupalFetchException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            IOException failure = new IOException(e.getMessage());
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
+    /**
+     * Opens the cached copy of a remote file, downloading or revalidating it if necessary.
+     *
+     * @param url full URL to the remote file.
+     * @return a stream over the cached file.  The caller must close it.
+     * @throws IOException if the file isn't cached and couldn't be downloaded.
+     */
+    public InputStream openStream(String url) throws IOException
+    {
+        // an open file stays readable if it is evicted or replaced, so a single retry covers the gap between
+        // getFile returning and the file being opened
+        try {
+            return new FileInputStream(getFile(url));
+        } catch (FileNotFoundException e) {
+            return new FileInputStream(getFile(url));
+        }
+    }
+
+    public synchronized void invalidate(String url)
+    {
+        remove(DiskResponseCache.sha1Hex(url));
+    }
+
+    public synchronized void clear()
+    {
+        for (String key : new ArrayList<String>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * @return the total size of the cached files in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the number of requests served from disk without contacting the server.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests answered by the server with 304 Not Modified.
+     */
+    public long getRevalidationCount()
+    {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of requests for which the file was downloaded.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of requests that waited for another caller's download of the same file.
+     */
+    public long getCoalescedCount()
+    {
+        return downloads.getCoalescedCount();
+    }
+
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private File fetch(String url, String key) throws IOException
+    {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null && !dataFile(key).isFile()) {
+                remove(key);
+                cached = null;
+            }
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        if (cached != null) {
+            if (cached.etag != null) {
+                headers.put("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                headers.put("If-Modified-Since", cached.lastModified);
+            }
+        }
+        File temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+        try {
+            ServicesResponse response = requestManager.download(url, headers, temp);
+            long now = currentTimeMillis();
+            if (response.getStatusCode() == 304 && cached != null) {
+                revalidations.incrementAndGet();
+                String etag = response.getHeader("ETag");
+                Entry updated = new Entry(url, etag != null ? etag : cached.etag, cached.lastModified, now, cached.length);
+                synchronized (this) {
+                    writeMeta(key, updated);
+                    entries.put(key, updated);
+                }
+                return dataFile(key);
+            }
+            if (response.getStatusCode() != 200) {
+                throw new IOException(response.getStatusCode() + ": " + response.getReasonPhrase() + " for " + url);
+            }
+            misses.incrementAndGet();
+            Entry entry = new Entry(url, response.getHeader("ETag"), response.getHeader("Last-Modified"), now, temp.length());
+            synchronized (this) {
+                File data = dataFile(key);
+                remove(key);
+                DrupalFiles.replaceFile(temp, data);
+                writeMeta(key, entry);
+                entries.put(key, entry);
+                size += entry.length;
+                trimToSize();
+                return data;
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes least recently used files until the cache is within budget.  The most recently used file is kept even
+     * if it is larger than the budget on its own, since it has just been handed to a caller.
+     */
+    private void trimToSize()
+    {
+        Iterator<String> it = new ArrayList<String>(entries.keySet()).iterator();
+        while (size > maxBytes && entries.size() > 1 && it.hasNext()) {
+            remove(it.next());
+        }
+    }
+
+    private void remove(String key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.length;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dataFile(key).delete();
+        //noinspection ResultOfMethodCallIgnored
+        metaFile(key).delete();
+    }
+
+    /**
+     * Rebuilds the index from the files in the directory, oldest first so that eviction order carries over.  Files
+     * without a matching counterpart, and temporary files left by an interrupted download, are deleted.
+     */
+    private void load()
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> data = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)
+                    || (name.endsWith(META_SUFFIX) && !dataFile(key(name, META_SUFFIX)).isFile())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            else if (name.endsWith(DATA_SUFFIX)) {
+                data.add(file);
+            }
+        }
+        Collections.sort(data, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : data) {
+            String key = key(file.getName(), DATA_SUFFIX);
+            Entry entry = readMeta(key, file.length());
+            if (entry == null) {
+                remove(key);
+                continue;
+            }
+            entries.put(key, entry);
+            size += entry.length;
+        }
+        trimToSize();
+    }
+
+    private Entry readMeta(String key, long length)
+    {
+        File file = metaFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            if (properties.getProperty("url") == null) {
+                return null;
+            }
+            return new Entry(properties.getProperty("url"), properties.getProperty("etag"),
+                    properties.getProperty("lastModified"), Long.parseLong(properties.getProperty("fetchedAt", "0")),
+                    length);
+        } catch (IOException e) {
+            log.debug("Discarding unreadable cache entry " + file, e);
+        } catch (NumberFormatException e) {
+            log.debug("Discarding unreadable cache entry " + file, e);
+        }
+        return null;
+    }
+
+    private void writeMeta(String key, Entry entry) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.url);
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+        properties.setProperty("fetchedAt", String.valueOf(entry.fetchedAt));
+        File temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+            DrupalFiles.replaceFile(temp, metaFile(key));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+        // the fetch time stands in for the access time when the index is rebuilt after a restart
+        //noinspection ResultOfMethodCallIgnored
+        dataFile(key).setLastModified(entry.fetchedAt);
+    }
+
+    private File dataFile(String key)
+    {
+        return new File(directory, key + DATA_SUFFIX);
+    }
+
+    private File metaFile(String key)
+    {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    private static String key(String fileName, String suffix)
+    {
+        return fileName.substring(0, fileName.length() - suffix.length());
+    }
+
+    private static class Entry
+    {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final long fetchedAt;
+        private final long length;
+
+        Entry(String url, String etag, String lastModified, long fetchedAt, long length)
+        {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.workhabit.drupal.http.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory response cache holding at most a fixed number of entries.  When full, the least recently used entry is
+ * evicted.
+ */
+public class MemoryResponseCache implements ResponseCache
+{
+    private final Map<String, CachedResponse> entries;
+
+    public MemoryResponseCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized CachedResponse get(String key)
+    {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, CachedResponse response)
+    {
+        entries.put(key, response);
+    }
+
+    public synchronized void remove(String key)
+    {
+        entries.remove(key);
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+}
@@ -0,0 +1,19 @@
+package org.workhabit.drupal.http.cache;
+
+/**
+ * Storage for cached responses, keyed by request.  Implementations must be safe for concurrent use.
+ */
+public interface ResponseCache
+{
+    /**
+     * @param key the cache key
+     * @return the cached response, or null if there isn't one.
+     */
+    CachedResponse get(String key);
+
+    void put(String key, CachedResponse response);
+
+    void remove(String key);
+
+    void clear();
+}
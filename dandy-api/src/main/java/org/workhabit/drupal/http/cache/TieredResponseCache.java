@@ -0,0 +1,48 @@
+package org.workhabit.drupal.http.cache;
+
+/**
+ * Combines a small, fast cache (typically {@link MemoryResponseCache}) with a larger, persistent one (typically
+ * {@link DiskResponseCache}).  Entries are written to both tiers; entries found only in the second tier are promoted
+ * to the first.
+ */
+public class TieredResponseCache implements ResponseCache
+{
+    private final ResponseCache first;
+    private final ResponseCache second;
+
+    public TieredResponseCache(ResponseCache first, ResponseCache second)
+    {
+        this.first = first;
+        this.second = second;
+    }
+
+    public CachedResponse get(String key)
+    {
+        CachedResponse response = first.get(key);
+        if (response == null) {
+            response = second.get(key);
+            if (response != null) {
+                first.put(key, response);
+            }
+        }
+        return response;
+    }
+
+    public void put(String key, CachedResponse response)
+    {
+        first.put(key, response);
+        second.put(key, response);
+    }
+
+    public void remove(String key)
+    {
+        first.remove(key);
+        second.remove(key);
+    }
+
+    public void clear()
+    {
+        first.clear();
+        second.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package org.workhabit.drupal.http.metrics;
+
+import java.util.regex.Pattern;
+
+/**
+ * Names of the Services endpoints used by the site context, and a classifier that maps a request method and URL to
+ * one of them.  Metrics are grouped by these names rather than by URL, so that e.g. every node load is counted
+ * together.
+ */
+public final class DrupalEndpoints
+{
+    public static final String NODE_GET = "node.get";
+    public static final String NODE_CREATE = "node.create";
+    public static final String NODE_UPDATE = "node.update";
+    public static final String NODE_DELETE = "node.delete";
+    public static final String VIEWS_GET = "views.get";
+    public static final String COMMENT_GET = "comment.get";
+    public static final String COMMENT_CREATE = "comment.create";
+    public static final String COMMENT_UPDATE = "comment.update";
+    public static final String COMMENT_DELETE = "comment.delete";
+    public static final String COMMENT_LOAD_NODE_COMMENTS = "comment.loadNodeComments";
+    public static final String USER_GET = "user.get";
+    public static final String USER_LOGIN = "user.login";
+    public static final String USER_LOGOUT = "user.logout";
+    public static final String FILE_GET = "file.get";
+    public static final String FILE_CREATE = "file.create";
+    public static final String SYSTEM_CONNECT = "system.connect";
+    /**
+     * any request that doesn't match a known endpoint, e.g. a file download
+     */
+    public static final String OTHER = "other";
+
+    private static final Rule[] RULES = {
+            new Rule(null, "/views/[^/]+\\.json", VIEWS_GET),
+            new Rule("POST", "/comment/loadNodeComments\\.json", COMMENT_LOAD_NODE_COMMENTS),
+            new Rule("POST", "/user/login\\.json", USER_LOGIN),
+            new Rule("POST", "/user/logout\\.json", USER_LOGOUT),
+            new Rule("POST", "/system/connect\\.json", SYSTEM_CONNECT),
+            new Rule("GET", "/node/\\d+\\.json", NODE_GET),
+            new Rule("PUT", "/node/\\d+\\.json", NODE_UPDATE),
+            new Rule("DELETE", "/node/\\d+\\.json", NODE_DELETE),
+            new Rule("POST", "/node\\.json", NODE_CREATE),
+            new Rule("GET", "/comment/\\d+\\.json", COMMENT_GET),
+            new Rule("PUT", "/comment/\\d+\\.json", COMMENT_UPDATE),
+            new Rule("DELETE", "/comment/\\d+\\.json", COMMENT_DELETE),
+            new Rule("POST", "/comment\\.json", COMMENT_CREATE),
+            new Rule("GET", "/user/\\d+\\.json", USER_GET),
+            new Rule("GET", "/file/\\d+\\.json", FILE_GET),
+            new Rule("POST", "/file\\.json", FILE_CREATE),
+    };
+
+    private DrupalEndpoints()
+    {
+    }
+
+    /**
+     * @param method the HTTP method, e.g. GET
+     * @param url    the request URL.  Any query string is ignored.
+     * @return the endpoint name, or {@link #OTHER}.
+     */
+    public static String classify(String method, String url)
+    {
+        int query = url.indexOf('?');
+        String path = query >= 0 ? url.substring(0, query) : url;
+        for (Rule rule : RULES) {
+            if ((rule.method == null || rule.method.equals(method)) && rule.pattern.matcher(path).find()) {
+                return rule.endpoint;
+            }
+        }
+        return OTHER;
+    }
+
+    private static class Rule
+    {
+        private final String method;
+        private final Pattern pattern;
+        private final String endpoint;
+
+        Rule(String method, String pathSuffix, String endpoint)
+        {
+            this.method = method;
+            this.pattern = Pattern.compile(pathSuffix + "$");
+            this.endpoint = endpoint;
+        }
+    }
+}
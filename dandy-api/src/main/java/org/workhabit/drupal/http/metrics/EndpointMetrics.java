@@ -0,0 +1,130 @@
+package org.workhabit.drupal.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for a single endpoint.  All updates are lock free.
+ */
+public class EndpointMetrics
+{
+    private final String endpoint;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram download = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+
+    public EndpointMetrics(String endpoint)
+    {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Records an HTTP exchange.  Responses with no status or a status of 400 or above count as errors.
+     */
+    public void recordRequest(int statusCode, long timeToFirstByteNanos, long downloadNanos, long sent, long received)
+    {
+        requests.incrementAndGet();
+        if (statusCode < 0 || statusCode >= 400) {
+            errors.incrementAndGet();
+        }
+        if (statusCode >= 0) {
+            timeToFirstByte.record(timeToFirstByteNanos);
+            download.record(downloadNanos);
+        }
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+    }
+
+    /**
+     * Records the time spent parsing a response.  A failed parse counts as an error.
+     */
+    public void recordParse(long parseNanos, boolean successful)
+    {
+        parse.record(parseNanos);
+        if (!successful) {
+            errors.incrementAndGet();
+        }
+    }
+
+    public Snapshot snapshot()
+    {
+        return new Snapshot(endpoint, requests.get(), errors.get(), bytesSent.get(), bytesReceived.get(),
+                timeToFirstByte.snapshot(), download.snapshot(), parse.snapshot());
+    }
+
+    public static class Snapshot
+    {
+        private final String endpoint;
+        private final long requestCount;
+        private final long errorCount;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final LatencyHistogram.Snapshot timeToFirstByte;
+        private final LatencyHistogram.Snapshot download;
+        private final LatencyHistogram.Snapshot parse;
+
+        Snapshot(String endpoint, long requestCount, long errorCount, long bytesSent, long bytesReceived, LatencyHistogram.Snapshot timeToFirstByte, LatencyHistogram.Snapshot download, LatencyHistogram.Snapshot parse)
+        {
+            this.endpoint = endpoint;
+            this.requestCount = requestCount;
+            this.errorCount = errorCount;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.timeToFirstByte = timeToFirstByte;
+            this.download = download;
+            this.parse = parse;
+        }
+
+        public String getEndpoint()
+        {
+            return endpoint;
+        }
+
+        public long getRequestCount()
+        {
+            return requestCount;
+        }
+
+        /**
+         * @return requests that failed or returned an error status, plus responses that couldn't be parsed.
+         */
+        public long getErrorCount()
+        {
+            return errorCount;
+        }
+
+        public long getBytesSent()
+        {
+            return bytesSent;
+        }
+
+        public long getBytesReceived()
+        {
+            return bytesReceived;
+        }
+
+        public LatencyHistogram.Snapshot getTimeToFirstByte()
+        {
+            return timeToFirstByte;
+        }
+
+        public LatencyHistogram.Snapshot getDownload()
+        {
+            return download;
+        }
+
+        public LatencyHistogram.Snapshot getParse()
+        {
+            return parse;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d requests, %d errors, %d bytes out, %d bytes in; ttfb [%s] download [%s] parse [%s]", endpoint, requestCount, errorCount, bytesSent, bytesReceived, timeToFirstByte, download, parse);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.workhabit.drupal.http.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps request metrics in memory, per endpoint.  Register the same instance with the request manager and the site
+ * context, and call {@link #snapshot()} to read the figures, e.g. to log them periodically.
+ */
+public class InMemoryRequestMetrics implements RequestMetricsListener
+{
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    public void requestCompleted(String endpoint, int statusCode, long timeToFirstByteNanos, long downloadNanos, long bytesSent, long bytesReceived)
+    {
+        getEndpointMetrics(endpoint).recordRequest(statusCode, timeToFirstByteNanos, downloadNanos, bytesSent, bytesReceived);
+    }
+
+    public void responseParsed(String endpoint, long parseNanos, boolean successful)
+    {
+        getEndpointMetrics(endpoint).recordParse(parseNanos, successful);
+    }
+
+    /**
+     * @return the current figures for every endpoint that has been used, sorted by endpoint name.
+     */
+    public Map<String, EndpointMetrics.Snapshot> snapshot()
+    {
+        Map<String, EndpointMetrics.Snapshot> snapshot = new TreeMap<String, EndpointMetrics.Snapshot>();
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Discards all figures.
+     */
+    public void reset()
+    {
+        endpoints.clear();
+    }
+
+    private EndpointMetrics getEndpointMetrics(String endpoint)
+    {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics(endpoint);
+            metrics = endpoints.putIfAbsent(endpoint, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,106 @@
+package org.workhabit.drupal.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets in microseconds, i.e. bucket <code>i</code> counts latencies
+ * from 2<sup>i-1</sup> up to 2<sup>i</sup> microseconds.  Percentiles are therefore approximate, reported as the upper
+ * bound of the bucket they fall in (capped at the largest value recorded), which is within a factor of two of the true
+ * value.
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return a copy of the current counts.  Concurrent updates may be partially included.
+     */
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.get(), totalMicros.get(), maxMicros.get());
+    }
+
+    public static class Snapshot
+    {
+        private final long[] buckets;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        Snapshot(long[] buckets, long count, long totalMicros, long maxMicros)
+        {
+            this.buckets = buckets;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getMeanMicros()
+        {
+            return count == 0 ? 0 : totalMicros / count;
+        }
+
+        public long getMaxMicros()
+        {
+            return maxMicros;
+        }
+
+        /**
+         * @param percentile between 0 and 100, e.g. 99 for the 99th percentile.
+         * @return the approximate latency in microseconds below which the given percentage of requests fell, or 0 if
+         *         nothing was recorded.
+         */
+        public long getPercentileMicros(double percentile)
+        {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("n=%d mean=%dus p50=%dus p99=%dus max=%dus", count, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(99), maxMicros);
+        }
+    }
+}
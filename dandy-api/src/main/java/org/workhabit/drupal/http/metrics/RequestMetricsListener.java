@@ -0,0 +1,32 @@
+package org.workhabit.drupal.http.metrics;
+
+/**
+ * Receives timings for requests to the Drupal site, grouped by logical endpoint (see {@link DrupalEndpoints}).  The
+ * request manager reports each HTTP exchange, and the site context reports the time spent mapping each response to
+ * entities.  Callbacks are made on the requesting thread, so implementations must be thread safe and should return
+ * quickly; {@link InMemoryRequestMetrics} is a ready-made implementation.
+ */
+public interface RequestMetricsListener
+{
+    /**
+     * Called once an HTTP exchange has finished, successfully or not.
+     *
+     * @param endpoint              the logical endpoint, e.g. {@link DrupalEndpoints#NODE_GET}.
+     * @param statusCode            the response status, or -1 if no response was received.
+     * @param timeToFirstByteNanos  the time from sending the request until the response headers arrived.  This
+     *                              includes waiting for a pooled connection, connecting and the server's render time.
+     * @param downloadNanos         the time spent reading the response body.
+     * @param bytesSent             the size of the request body as sent, or 0 if there was none.
+     * @param bytesReceived         the size of the response body as received, before decompression.
+     */
+    void requestCompleted(String endpoint, int statusCode, long timeToFirstByteNanos, long downloadNanos, long bytesSent, long bytesReceived);
+
+    /**
+     * Called once a response has been mapped to entities.
+     *
+     * @param endpoint   the logical endpoint the response came from.
+     * @param parseNanos the time spent parsing.
+     * @param successful false if the response could not be parsed.
+     */
+    void responseParsed(String endpoint, long parseNanos, boolean successful);
+}
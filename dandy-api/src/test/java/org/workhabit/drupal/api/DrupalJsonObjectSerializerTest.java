@@ -3,11 +3,14 @@ package org.workhabit.drupal.api;
 import org.json.JSONException;
 import org.junit.Test;
 import org.workhabit.drupal.api.entity.drupal7.DrupalBody;
+import org.workhabit.drupal.api.entity.drupal7.DrupalField;
 import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
 import org.workhabit.drupal.api.entity.drupal7.DrupalTaxonomyTerm;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializer;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializerFactory;
 
+import java.io.StringReader;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -170,5 +173,100 @@ public class DrupalJsonObjectSerializerTest
         String json = serializer.serialize(term);
         assertNotNull(json);
     }
+
+    /**
+     * Test streaming unserialize of a node list, including cck fields and taxonomy terms.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDrupalNodeListStreamingSerialization() throws Exception
+    {
+        String json = "[{\"nid\":\"1\",\"title\":\"First\",\"status\":\"1\",\"created\":\"1297197059\"," +
+                      "\"field_image\":[{\"filepath\":\"sites/default/files/a.jpg\",\"data\":{\"alt\":\"a\"}},null]," +
+                      "\"taxonomy\":{\"3\":{\"tid\":\"3\",\"vid\":\"1\",\"name\":\"News\"}}}," +
+                      "{\"nid\":\"2\",\"title\":\"Second\",\"status\":\"0\",\"taxonomy\":[]}]";
+
+        DrupalJsonObjectSerializer<DrupalNode> serializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalNode.class);
+        final List<DrupalNode> nodeList = new ArrayList<DrupalNode>();
+        int count = serializer.unserializeList(new StringReader(json), new DrupalEntityHandler<DrupalNode>()
+        {
+            public void handleEntity(DrupalNode entity)
+            {
+                nodeList.add(entity);
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(2, nodeList.size());
+
+        DrupalNode first = nodeList.get(0);
+        assertEquals(1, first.getNid());
+        assertEquals("First", first.getTitle());
+        assertTrue(first.getStatus());
+        assertEquals(1297197059000L, first.getCreated().getTime());
+        DrupalField image = first.getField("field_image");
+        assertNotNull(image);
+        assertEquals(1, image.getValues().size());
+        assertEquals("sites/default/files/a.jpg", image.getValues().get(0).get("filepath"));
+        assertEquals("{\"alt\":\"a\"}", image.getValues().get(0).get("data"));
+        assertEquals(1, first.getTaxonomy().size());
+        assertEquals("News", first.getTaxonomy().get(3).getName());
+
+        DrupalNode second = nodeList.get(1);
+        assertEquals(2, second.getNid());
+        assertFalse(second.getStatus());
+        assertTrue(second.getTaxonomy().isEmpty());
+    }
+
+    /**
+     * Test that the single pass node binding handles body, booleans, dates, nested cck values and taxonomy terms.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDrupalNodeSinglePassBinding() throws Exception
+    {
+        String json = "{\"nid\":\"5\",\"uid\":\"2\",\"type\":\"article\",\"title\":\"Bound\",\"status\":\"1\"," +
+                      "\"promote\":\"0\",\"sticky\":true,\"comment_count\":\"3\",\"last_comment_name\":\"admin\"," +
+                      "\"changed\":\"1297795608\",\"revision_timestamp\":1297795608,\"picture\":null,\"rdf_mapping\":{\"rdftype\":[\"sioc:Item\"]}," +
+                      "\"body\":{\"und\":[{\"value\":\"text\",\"summary\":\"sum\",\"format\":\"filtered_html\",\"safe_value\":\"<p>text</p>\"}]}," +
+                      "\"field_location\":[{\"lat\":\"45.5\",\"geo\":{\"lon\":-122.6},\"tags\":[1,2]}]," +
+                      "\"field_empty\":[]," +
+                      "\"taxonomy\":{\"7\":{\"tid\":\"7\",\"vid\":\"2\",\"name\":\"Sports\",\"weight\":\"1\",\"parents\":[\"0\"]}}}";
+
+        DrupalJsonObjectSerializer<DrupalNode> serializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalNode.class);
+        DrupalNode node = serializer.unserialize(json);
+        assertEquals(5, node.getNid());
+        assertEquals(2, node.getUid());
+        assertEquals("article", node.getType());
+        assertEquals("Bound", node.getTitle());
+        assertTrue(node.getStatus());
+        assertFalse(node.isPromote());
+        assertTrue(node.isSticky());
+        assertEquals(3, node.getCommentCount());
+        assertEquals("admin", node.getLastCommentName());
+        assertEquals(1297795608000L, node.getChanged().getTime());
+        assertEquals(1297795608000L, node.getRevisionTimestamp().getTime());
+        assertNull(node.getPicture());
+
+        DrupalBody body = node.getBody().get("und").get(0);
+        assertEquals("text", body.getValue());
+        assertEquals("sum", body.getSummary());
+        assertEquals("<p>text</p>", body.getSafeValue());
+
+        assertEquals(2, node.getFields().size());
+        HashMap<String, String> location = node.getField("field_location").getValues().get(0);
+        assertEquals("45.5", location.get("lat"));
+        assertEquals("{\"lon\":-122.6}", location.get("geo"));
+        assertEquals("[1,2]", location.get("tags"));
+        assertTrue(node.getField("field_empty").getValues().isEmpty());
+
+        DrupalTaxonomyTerm term = node.getTaxonomy().get(7);
+        assertNotNull(term);
+        assertEquals(2, term.getVid());
+        assertEquals("Sports", term.getName());
+        assertEquals(1, term.getWeight());
+        assertEquals(Arrays.asList(0), term.getParents());
+    }
 }
 
@@ -0,0 +1,554 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceStateImpl;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.TransferProgressListener;
+import org.workhabit.drupal.http.metrics.DrupalEndpoints;
+import org.workhabit.drupal.http.metrics.EndpointMetrics;
+import org.workhabit.drupal.http.metrics.InMemoryRequestMetrics;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AndroidDrupalServicesRequestManagerImplTest
+{
+    @Test
+    public void testTransportConfiguration()
+    {
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setMaxTotalConnections(40);
+        configuration.setMaxConnectionsPerRoute(16);
+        configuration.setIdleConnectionTimeout(1000);
+        configuration.setIdleEvictionInterval(100);
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        try {
+            ConnectionPoolStatistics statistics = requestManager.getConnectionPoolStatistics();
+            assertEquals(0, statistics.getConnectionsInPool());
+            assertEquals(0, statistics.getLeasedConnections());
+            assertEquals(40, statistics.getMaxTotalConnections());
+            assertEquals(16, statistics.getMaxConnectionsPerRoute());
+        } finally {
+            requestManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaultConfiguration()
+    {
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        try {
+            ConnectionPoolStatistics statistics = requestManager.getConnectionPoolStatistics();
+            HttpTransportConfiguration defaults = new HttpTransportConfiguration();
+            assertEquals(defaults.getMaxTotalConnections(), statistics.getMaxTotalConnections());
+            assertEquals(defaults.getMaxConnectionsPerRoute(), statistics.getMaxConnectionsPerRoute());
+            assertEquals(0, defaults.getIdleConnectionTimeout());
+        } finally {
+            requestManager.shutdown();
+        }
+        try {
+            new HttpTransportConfiguration().setIdleEvictionInterval(0);
+            fail("a zero interval would never wake the evictor");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExhaustedPoolFailsAfterConnectionRequestTimeout() throws Exception
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] response = new byte[1024];
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setMaxTotalConnections(1);
+        configuration.setMaxConnectionsPerRoute(1);
+        configuration.setConnectTimeout(10000);
+        configuration.setConnectionRequestTimeout(200);
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/node";
+            // holds the only connection until it is closed
+            InputStream in = requestManager.getStream(url);
+            long start = System.currentTimeMillis();
+            try {
+                requestManager.getString(url);
+                fail("the pool has no connection to give");
+            } catch (ConnectionPoolTimeoutException e) {
+                long waited = System.currentTimeMillis() - start;
+                assertTrue("waited " + waited + "ms", waited >= 150 && waited < 5000);
+            } finally {
+                in.close();
+            }
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception
+    {
+        final StringBuilder body = new StringBuilder("{\"nodes\":[");
+        for (int i = 0; i < 200; i++) {
+            body.append(i > 0 ? "," : "").append("{\"nid\":").append(i).append(",\"title\":\"Node title\"}");
+        }
+        body.append("]}");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] response;
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    // echo the request body, decoded, so the test can see what was sent
+                    InputStream in = exchange.getRequestBody();
+                    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                        in = new GZIPInputStream(in);
+                    }
+                    response = readFully(in);
+                }
+                else {
+                    response = body.toString().getBytes("UTF-8");
+                }
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+                    gzip.write(response);
+                    gzip.close();
+                    response = buffer.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setRequestCompressionEnabled(true);
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/node";
+            ServicesResponse response = requestManager.getString(url);
+            assertEquals(200, response.getStatusCode());
+            assertEquals(body.toString(), response.getResponseBody().trim());
+
+            response = requestManager.post(url, body.toString());
+            assertEquals(body.toString(), response.getResponseBody().trim());
+
+            TransferStatistics statistics = requestManager.getTransferStatistics();
+            assertEquals(body.length(), statistics.getRequestBytesUncompressed());
+            assertTrue(statistics.getRequestBytes() < statistics.getRequestBytesUncompressed());
+            assertEquals(body.length() * 2, statistics.getResponseBytesDecompressed());
+            assertTrue(statistics.getResponseBytes() < statistics.getResponseBytesDecompressed());
+
+            // every connection has been handed back, so whatever is left in the pool is idle
+            ConnectionPoolStatistics pool = requestManager.getConnectionPoolStatistics();
+            assertEquals(0, pool.getLeasedConnections());
+            assertEquals(pool.getConnectionsInPool(), pool.getAvailableConnections());
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDownloadResumesWithRange() throws Exception
+    {
+        final byte[] content = new byte[200 * 1024];
+        new Random(42).nextBytes(content);
+        final List<String> ranges = new ArrayList<String>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(range);
+                int start = range == null ? 0 : Integer.parseInt(range.substring(6, range.length() - 1));
+                if (start >= content.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                if (range != null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                }
+                exchange.sendResponseHeaders(range == null ? 200 : 206, content.length - start);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content, start, content.length - start);
+                out.close();
+            }
+        });
+        server.start();
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        File file = File.createTempFile("dandy", ".bin");
+        try {
+            // simulate an interrupted download
+            FileOutputStream partial = new FileOutputStream(file);
+            partial.write(content, 0, 70000);
+            partial.close();
+
+            final long[] progress = new long[2];
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+            long length = requestManager.download(url, file, new TransferProgressListener()
+            {
+                public void onProgress(long bytesTransferred, long totalBytes)
+                {
+                    progress[0] = bytesTransferred;
+                    progress[1] = totalBytes;
+                }
+            });
+            assertEquals(content.length, length);
+            assertEquals("bytes=70000-", ranges.get(0));
+            assertEquals(content.length, progress[0]);
+            assertEquals(content.length, progress[1]);
+            assertTrue(Arrays.equals(content, readFully(new FileInputStream(file))));
+
+            // already complete
+            assertEquals(content.length, requestManager.download(url, file, null));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(content.length, requestManager.download(url, Channels.newChannel(out), null));
+            assertTrue(Arrays.equals(content, out.toByteArray()));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testTruncatedDownloadFailsAndResumes() throws Exception
+    {
+        final byte[] content = new byte[100 * 1024];
+        new Random(7).nextBytes(content);
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = range == null ? 0 : Integer.parseInt(range.substring(6, range.length() - 1));
+                if (range != null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                }
+                exchange.sendResponseHeaders(range == null ? 200 : 206, content.length - start);
+                OutputStream out = exchange.getResponseBody();
+                // the first response is cut off halfway
+                int end = requests.incrementAndGet() == 1 ? content.length / 2 : content.length;
+                out.write(content, start, end - start);
+                out.flush();
+                exchange.close();
+            }
+        });
+        server.start();
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        File file = File.createTempFile("dandy", ".bin");
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+            try {
+                requestManager.download(url, file, null);
+                fail("the body was shorter than its Content-Length");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(file.length() < content.length);
+            assertEquals(content.length, requestManager.download(url, file, null));
+            assertTrue(Arrays.equals(content, readFully(new FileInputStream(file))));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testPostFileStreamsChunked() throws Exception
+    {
+        final byte[] content = new byte[100 * 1024];
+        new Random(7).nextBytes(content);
+        final List<String> headers = new ArrayList<String>();
+        final byte[][] received = new byte[1][];
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                headers.add(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+                headers.add(exchange.getRequestHeaders().getFirst("Expect"));
+                received[0] = readFully(exchange.getRequestBody());
+                byte[] response = "{\"fid\":\"1\"}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+        requestManager.setMetricsListener(metrics);
+        try {
+            final long[] progress = new long[2];
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.json";
+            ServicesResponse response = requestManager.postFile(url, "files[file]", new ByteArrayInputStream(content), "foo.bin", content.length, new TransferProgressListener()
+            {
+                public void onProgress(long bytesTransferred, long totalBytes)
+                {
+                    progress[0] = bytesTransferred;
+                    progress[1] = totalBytes;
+                }
+            });
+            assertEquals(200, response.getStatusCode());
+            assertEquals("chunked", headers.get(0));
+            assertEquals("100-continue", headers.get(1));
+            assertTrue(received[0].length > content.length);
+            assertEquals(content.length, progress[0]);
+            assertEquals(content.length, progress[1]);
+
+            EndpointMetrics.Snapshot upload = metrics.snapshot().get(DrupalEndpoints.FILE_CREATE);
+            assertEquals(1, upload.getRequestCount());
+            assertEquals(0, upload.getErrorCount());
+            assertEquals(content.length, upload.getBytesSent());
+            assertEquals(11, upload.getBytesReceived());
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSessionStateAcrossThreads() throws Exception
+    {
+        final List<String> tokens = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                readFully(exchange.getRequestBody());
+                tokens.add(exchange.getRequestMethod() + " " + exchange.getRequestHeaders().getFirst("X-CSRF-Token"));
+                if (exchange.getRequestURI().getPath().endsWith("login.json")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "SESSlocal=abc; path=/");
+                }
+                exchange.sendResponseHeaders(200, 2);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{}".getBytes("UTF-8"));
+                out.close();
+            }
+        });
+        server.start();
+        final AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/";
+            requestManager.post(url + "user/login.json", "{}");
+            requestManager.setCsrfToken("token");
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Integer>()
+                {
+                    public Integer call() throws IOException
+                    {
+                        int count = 0;
+                        for (int j = 0; j < 10; j++) {
+                            requestManager.getString(url + "node/1.json");
+                            count += requestManager.getCookies().size();
+                            requestManager.post(url + "node.json", "{}");
+                        }
+                        return count;
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(10, (int)future.get());
+            }
+            assertEquals("POST null", tokens.get(0));
+            assertEquals(81, tokens.size());
+            for (String token : tokens.subList(1, tokens.size())) {
+                assertTrue(token, "GET null".equals(token) || "POST token".equals(token));
+            }
+
+            // restoring saved state keeps every cookie, and the token
+            DrupalSiteContextInstanceStateImpl state = new DrupalSiteContextInstanceStateImpl();
+            ArrayList<GenericCookie> cookies = requestManager.getCookies();
+            GenericCookie other = new GenericCookie();
+            other.setName("has_js");
+            other.setValue("1");
+            other.setDomain("127.0.0.1");
+            other.setPath("/");
+            cookies.add(other);
+            state.setCookies(cookies);
+            state.setCsrfToken("restored");
+            AndroidDrupalServicesRequestManagerImpl restored = new AndroidDrupalServicesRequestManagerImpl();
+            try {
+                restored.initializeSavedState(state);
+                assertEquals(2, restored.getCookies().size());
+                tokens.clear();
+                restored.post(url + "node.json", "{}");
+                assertEquals("POST restored", tokens.get(0));
+            } finally {
+                restored.shutdown();
+            }
+        } finally {
+            executor.shutdownNow();
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSessionsShareConnectionPool() throws Exception
+    {
+        final List<String> seen = new ArrayList<String>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                readFully(exchange.getRequestBody());
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "SESSlocal=" + query + "; path=/");
+                }
+                seen.add(exchange.getRemoteAddress().getPort() + " " + exchange.getRequestHeaders().getFirst("Cookie"));
+                exchange.sendResponseHeaders(200, 2);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{}".getBytes("UTF-8"));
+                out.close();
+            }
+        });
+        server.start();
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setMaxTotalConnections(1);
+        configuration.setMaxConnectionsPerRoute(1);
+        AndroidDrupalServicesRequestManagerImpl transport = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/user/login.json";
+            AndroidDrupalServicesRequestManagerImpl alice = transport.newSession();
+            AndroidDrupalServicesRequestManagerImpl bob = transport.newSession();
+            alice.post(url + "?alice", "{}");
+            bob.post(url + "?bob", "{}");
+            alice.getString(url);
+            bob.getString(url);
+            transport.getString(url);
+
+            String port = seen.get(0).split(" ")[0];
+            assertEquals(Arrays.asList(port + " null", port + " null", port + " SESSlocal=alice", port + " SESSlocal=bob", port + " null"), seen);
+            assertEquals("alice", alice.getCookies().get(0).getValue());
+            assertEquals("bob", bob.getCookies().get(0).getValue());
+            assertTrue(transport.getCookies().isEmpty());
+            assertEquals(5, transport.getTransferStatistics().getResponseBytes() / 2);
+
+            // shutting a session down leaves the pool open
+            alice.shutdown();
+            assertTrue(alice.getCookies().isEmpty());
+            assertEquals(200, bob.getString(url).getStatusCode());
+        } finally {
+            transport.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testResponseBodyKeepsBytesAndCharset() throws Exception
+    {
+        final String latin = "{\"title\":\"Café\"}\r\n";
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            large.append("{\"nid\":").append(i).append(",\"title\":\"über\"}\r\n");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] response;
+                if (exchange.getRequestURI().getPath().endsWith("latin.json")) {
+                    response = latin.getBytes("ISO-8859-1");
+                    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=ISO-8859-1");
+                    exchange.sendResponseHeaders(200, response.length);
+                }
+                else {
+                    // chunked, so the length isn't known up front
+                    response = large.toString().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, 0);
+                }
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setResponseCompressionEnabled(false);
+        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/";
+            ServicesResponse response = requestManager.getString(url + "latin.json");
+            assertEquals("ISO-8859-1", response.getCharset());
+            assertEquals(latin.length(), response.getResponseBodyBytes().length);
+            assertEquals(latin, response.getResponseBody());
+
+            for (int i = 0; i < 2; i++) {
+                response = requestManager.getString(url + "large.json");
+                assertEquals(large.toString(), response.getResponseBody());
+                assertEquals(large.toString().getBytes("UTF-8").length, response.getResponseBodyBytes().length);
+            }
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
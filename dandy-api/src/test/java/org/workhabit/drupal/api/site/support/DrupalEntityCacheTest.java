@@ -0,0 +1,89 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache.EntityType;
+
+import static org.junit.Assert.*;
+
+public class DrupalEntityCacheTest
+{
+    private long now;
+    private DrupalEntityCache cache;
+
+    @Before
+    public void setUp()
+    {
+        now = 1000000;
+        cache = new DrupalEntityCache(2)
+        {
+            @Override
+            protected long currentTimeMillis()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction()
+    {
+        cache.put(EntityType.NODE, 1, node(1));
+        cache.put(EntityType.NODE, 2, node(2));
+        assertNotNull(cache.get(EntityType.NODE, 1));
+        cache.put(EntityType.USER, 1, "user");
+        assertNull(cache.get(EntityType.NODE, 2));
+        assertEquals(1, cache.<DrupalNode>get(EntityType.NODE, 1).getNid());
+        assertEquals("user", cache.get(EntityType.USER, 1));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testTimeToLivePerType()
+    {
+        cache.setTimeToLive(EntityType.NODE, 1000);
+        cache.setTimeToLive(EntityType.COMMENT, 0);
+        cache.put(EntityType.NODE, 1, node(1));
+        cache.put(EntityType.COMMENT, 1, "comment");
+        assertNull(cache.get(EntityType.COMMENT, 1));
+        now += 999;
+        assertNotNull(cache.get(EntityType.NODE, 1));
+        now += 1;
+        assertNull(cache.get(EntityType.NODE, 1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFetchOverlappingInvalidationNotCached()
+    {
+        long before = cache.getGeneration();
+        cache.invalidate(EntityType.NODE, 1);
+        assertFalse(cache.put(EntityType.NODE, 1, node(1), before));
+        assertNull(cache.get(EntityType.NODE, 1));
+        // other keys are unaffected
+        assertTrue(cache.put(EntityType.NODE, 2, node(2), before));
+        assertTrue(cache.put(EntityType.NODE, 1, node(1), cache.getGeneration()));
+
+        before = cache.getGeneration();
+        cache.clear();
+        assertFalse(cache.put(EntityType.NODE, 2, node(2), before));
+
+        // invalidations beyond the cache's size are forgotten by treating every older fetch as overlapping
+        before = cache.getGeneration();
+        cache.invalidate(EntityType.USER, 1);
+        cache.invalidate(EntityType.USER, 2);
+        cache.invalidate(EntityType.USER, 3);
+        assertFalse(cache.put(EntityType.NODE, 1, node(1), before));
+        assertTrue(cache.put(EntityType.NODE, 1, node(1), cache.getGeneration()));
+    }
+
+    private static DrupalNode node(int nid)
+    {
+        DrupalNode node = new DrupalNode();
+        node.setNid(nid);
+        return node;
+    }
+}
@@ -0,0 +1,103 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class DrupalFilesTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("dandy-files", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void testReplaceFile() throws IOException
+    {
+        File target = new File(directory, "data");
+        File temp = new File(directory, "data.tmp");
+        write(temp, "first");
+        DrupalFiles.replaceFile(temp, target);
+        assertEquals("first", read(target));
+        assertFalse(temp.exists());
+
+        write(temp, "second");
+        DrupalFiles.replaceFile(temp, target);
+        assertEquals("second", read(target));
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void testFailedReplaceKeepsTarget() throws IOException
+    {
+        File target = new File(directory, "data");
+        write(target, "original");
+        try {
+            DrupalFiles.replaceFile(new File(directory, "missing.tmp"), target);
+            fail("there is nothing to replace the target with");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("original", read(target));
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void testRecoverRestoresFileMovedAside() throws IOException
+    {
+        File target = new File(directory, "data");
+        File backup = new File(directory, "data.old");
+        write(backup, "original");
+        DrupalFiles.recover(target);
+        assertEquals("original", read(target));
+        assertFalse(backup.exists());
+
+        // the replacement made it into place, so the file moved aside is stale
+        write(backup, "stale");
+        DrupalFiles.recover(target);
+        assertEquals("original", read(target));
+        assertFalse(backup.exists());
+    }
+
+    private static void write(File file, String content) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.http.Abortable;
+import org.workhabit.drupal.http.CancellationScope;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DrupalFutureTest
+{
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        executor = DrupalExecutors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testTransformAndListen() throws Exception
+    {
+        DrupalFuture<Integer> future = submit(new Callable<Integer>()
+        {
+            public Integer call()
+            {
+                return 41;
+            }
+        });
+        DrupalFuture<String> transformed = future.transform(new DrupalFunction<Integer, String>()
+        {
+            public String apply(Integer input)
+            {
+                return "nid " + (input + 1);
+            }
+        });
+        assertEquals("nid 42", transformed.get(5, TimeUnit.SECONDS));
+
+        // listeners added after completion are notified immediately
+        final AtomicReference<String> result = new AtomicReference<String>();
+        transformed.addListener(new DrupalFutureListener<String>()
+        {
+            public void onSuccess(String value)
+            {
+                result.set(value);
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                fail();
+            }
+        });
+        assertEquals("nid 42", result.get());
+    }
+
+    @Test
+    public void testFailurePropagates() throws Exception
+    {
+        DrupalFuture<Integer> future = submit(new Callable<Integer>()
+        {
+            public Integer call() throws Exception
+            {
+                throw new DrupalFetchException("404: Not found");
+            }
+        });
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        future.transform(new DrupalFunction<Integer, Integer>()
+        {
+            public Integer apply(Integer input)
+            {
+                return input + 1;
+            }
+        }).addListener(new DrupalFutureListener<Integer>()
+        {
+            public void onSuccess(Integer result)
+            {
+                notified.countDown();
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                failure.set(cause);
+                notified.countDown();
+            }
+        });
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof DrupalFetchException);
+    }
+
+    @Test
+    public void testCancelAbortsRequest() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch aborted = new CountDownLatch(1);
+        DrupalFuture<Integer> future = submit(new Callable<Integer>()
+        {
+            public Integer call() throws Exception
+            {
+                // stands in for a request manager blocked on a socket read
+                Abortable request = new Abortable()
+                {
+                    public void abort()
+                    {
+                        aborted.countDown();
+                    }
+                };
+                CancellationScope.register(request);
+                try {
+                    started.countDown();
+                    aborted.await();
+                    throw new InterruptedIOException("aborted");
+                } finally {
+                    CancellationScope.unregister(request);
+                }
+            }
+        });
+        DrupalFuture<String> transformed = future.transform(new DrupalFunction<Integer, String>()
+        {
+            public String apply(Integer input)
+            {
+                return input.toString();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(transformed.cancel(false));
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+    }
+
+    private <V> DrupalFuture<V> submit(Callable<V> callable)
+    {
+        DrupalFuture<V> future = new DrupalFuture<V>(callable);
+        executor.execute(future);
+        return future;
+    }
+}
@@ -0,0 +1,178 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.entity.drupal7.DrupalTaxonomyTerm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DrupalNodeStoreTest
+{
+    private File file;
+    private DrupalNodeStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("dandy-nodes", ".store");
+        store = new DrupalNodeStore(file);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        store.close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testQueriesFollowUpdatesAndRemovals() throws IOException
+    {
+        store.put(node(1, "article", 1000, 1000, 7));
+        store.put(node(2, "page", 1100, 1500));
+        store.putAll(Arrays.asList(node(3, "article", 1200, 1200, 7, 8), node(4, "article", 1300, 1300, 8)));
+
+        assertEquals(4, store.size());
+        assertEquals("node 2", store.getNode(2).getTitle());
+        assertEquals(new Date(1100000L), store.getNode(2).getCreated());
+        assertNull(store.getNode(5));
+        assertEquals(Arrays.asList(4, 3, 1), nids(store.getLatestOfType("article", 0, 10)));
+        assertEquals(Arrays.asList(3), nids(store.getLatestOfType("article", 1, 1)));
+        assertEquals(Arrays.asList(3, 1), nids(store.getNodesInTerm(7, 0, 10)));
+        assertEquals(Arrays.asList(4, 3, 2, 1), nids(store.getLatest(0, 10)));
+        assertEquals(Arrays.asList(3, 4, 2), nids(store.getNodesChangedSince(new Date(1200000L), 0, 10)));
+        assertTrue(store.getLatestOfType("forum", 0, 10).isEmpty());
+
+        // node 3 becomes a page in term 8 only, and node 1 is deleted
+        store.put(node(3, "page", 1200, 1600, 8));
+        assertTrue(store.remove(1));
+        assertFalse(store.remove(1));
+        assertEquals(3, store.size());
+        assertNull(store.getNode(1));
+        assertEquals(Arrays.asList(4), nids(store.getLatestOfType("article", 0, 10)));
+        assertEquals(Arrays.asList(3, 2), nids(store.getLatestOfType("page", 0, 10)));
+        assertTrue(store.getNodesInTerm(7, 0, 10).isEmpty());
+        assertEquals(Arrays.asList(4, 3), nids(store.getNodesInTerm(8, 0, 10)));
+        assertEquals(Arrays.asList(2, 3), nids(store.getNodesChangedSince(new Date(1400000L), 0, 10)));
+
+        // a batch big enough to rebuild the indexes, with a nid repeated
+        List<DrupalNode> batch = new ArrayList<DrupalNode>();
+        for (int nid = 10; nid < 40; nid++) {
+            batch.add(node(nid, "article", 2000 + nid, 2000 + nid));
+        }
+        batch.add(node(10, "page", 3000, 3000));
+        store.putAll(batch);
+        assertEquals(33, store.size());
+        assertEquals(Arrays.asList(10, 3, 2), nids(store.getLatestOfType("page", 0, 10)));
+        assertEquals(Arrays.asList(39, 38), nids(store.getLatestOfType("article", 0, 2)));
+    }
+
+    @Test
+    public void testReopenRecoversCompactsAndDropsTornRecord() throws IOException
+    {
+        store.put(node(1, "article", 1000, 1000, 7));
+        store.put(node(2, "article", 1100, 1100));
+        store.remove(1);
+        long length = store.length();
+        store.close();
+        // a crash part way through writing a record
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.seek(length);
+        out.writeInt(100);
+        out.writeInt(12345);
+        out.write(new byte[]{1, 0, 0});
+        out.close();
+
+        store = new DrupalNodeStore(file);
+        assertEquals(1, store.size());
+        assertEquals("node 2", store.getNode(2).getTitle());
+        assertEquals(length, store.length());
+        store.put(node(3, "page", 1200, 1200, 7));
+        store.close();
+        store = new DrupalNodeStore(file);
+        assertEquals(Arrays.asList(3, 2), nids(store.getLatest(0, 10)));
+        assertEquals(Arrays.asList(3), nids(store.getNodesInTerm(7, 0, 10)));
+
+        // rewriting the same node piles up garbage until the store compacts itself
+        DrupalNode big = node(4, "article", 1300, 1300);
+        char[] body = new char[4096];
+        Arrays.fill(body, 'x');
+        big.setTitle(new String(body));
+        for (int i = 0; i < 300; i++) {
+            store.put(big);
+        }
+        assertTrue(store.length() < DrupalNodeStore.COMPACT_THRESHOLD);
+        assertEquals(3, store.size());
+        assertEquals(4096, store.getNode(4).getTitle().length());
+        store.close();
+        store = new DrupalNodeStore(file);
+        assertEquals(Arrays.asList(4, 3, 2), nids(store.getLatest(0, 10)));
+    }
+
+    @Test
+    public void testStoreKeptWhenCompactionFails() throws IOException
+    {
+        // the compacted copy can't be written where a directory is in the way
+        File blocker = new File(file.getPath() + ".compact/blocker");
+        assertTrue(blocker.mkdirs());
+        try {
+            DrupalNode big = node(1, "article", 1000, 1000);
+            char[] body = new char[4096];
+            Arrays.fill(body, 'x');
+            big.setTitle(new String(body));
+            for (int i = 0; i < 300; i++) {
+                store.put(big);
+            }
+            store.put(node(2, "page", 1100, 1100));
+            assertTrue(store.length() > DrupalNodeStore.COMPACT_THRESHOLD);
+            store.close();
+            store = new DrupalNodeStore(file);
+            assertEquals(Arrays.asList(2, 1), nids(store.getLatest(0, 10)));
+            assertEquals(4096, store.getNode(1).getTitle().length());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            blocker.delete();
+            //noinspection ResultOfMethodCallIgnored
+            blocker.getParentFile().delete();
+        }
+        // once the copy can be written, the store compacts itself
+        store.put(node(3, "page", 1200, 1200));
+        assertTrue(store.length() < DrupalNodeStore.COMPACT_THRESHOLD);
+        assertEquals(3, store.size());
+    }
+
+    private static DrupalNode node(int nid, String type, long created, long changed, int... tids)
+    {
+        DrupalNode node = new DrupalNode();
+        node.setNid(nid);
+        node.setType(type);
+        node.setTitle("node " + nid);
+        node.setCreated(new Date(created * 1000));
+        node.setChanged(new Date(changed * 1000));
+        HashMap<Integer, DrupalTaxonomyTerm> taxonomy = new HashMap<Integer, DrupalTaxonomyTerm>();
+        for (int tid : tids) {
+            DrupalTaxonomyTerm term = new DrupalTaxonomyTerm();
+            term.setTid(tid);
+            taxonomy.put(tid, term);
+        }
+        node.setTaxonomy(taxonomy);
+        return node;
+    }
+
+    private static List<Integer> nids(List<DrupalNode> nodes)
+    {
+        List<Integer> nids = new ArrayList<Integer>();
+        for (DrupalNode node : nodes) {
+            nids.add(node.getNid());
+        }
+        return nids;
+    }
+}
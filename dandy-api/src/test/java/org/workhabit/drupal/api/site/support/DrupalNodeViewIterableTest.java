@@ -0,0 +1,101 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.exceptions.DrupalIterationException;
+import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class DrupalNodeViewIterableTest
+{
+    private static final Pattern PAGE = Pattern.compile("offset=(\\d+)&limit=(\\d+)");
+    private Drupal7SiteContextImpl context;
+    private final List<Integer> requestedOffsets = new ArrayList<Integer>();
+    private int totalNodes;
+    private int failAtOffset;
+
+    @Before
+    public void setUp()
+    {
+        failAtOffset = -1;
+        context = new Drupal7SiteContextImpl("http://se.local", "dandy");
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                Matcher matcher = PAGE.matcher(path);
+                assertTrue(matcher.find());
+                int offset = Integer.parseInt(matcher.group(1));
+                int limit = Integer.parseInt(matcher.group(2));
+                synchronized (requestedOffsets) {
+                    requestedOffsets.add(offset);
+                }
+                ServicesResponse response = new ServicesResponse();
+                if (offset == failAtOffset) {
+                    response.setStatusCode(500);
+                    response.setReasonPhrase("Internal Server Error");
+                    return response;
+                }
+                StringBuilder body = new StringBuilder("[");
+                for (int nid = offset + 1; nid <= Math.min(offset + limit, totalNodes); nid++) {
+                    body.append(nid > offset + 1 ? "," : "").append("{\"nid\":\"").append(nid).append("\",\"type\":\"article\"}");
+                }
+                response.setStatusCode(200);
+                response.setResponseBody(body.append("]").toString());
+                return response;
+            }
+        });
+    }
+
+    @Test
+    public void testIteratesAllPages()
+    {
+        totalNodes = 25;
+        int expected = 1;
+        for (DrupalNode node : new DrupalNodeViewIterable(context, "dandy_recent", null, 10, 2)) {
+            assertEquals(expected++, node.getNid());
+        }
+        assertEquals(26, expected);
+        assertTrue(requestedOffsets.contains(20));
+    }
+
+    @Test
+    public void testEndsOnFullLastPage()
+    {
+        totalNodes = 20;
+        int count = 0;
+        for (DrupalNode ignored : new DrupalNodeViewIterable(context, "dandy_recent", null, 10, 0)) {
+            count++;
+        }
+        assertEquals(20, count);
+        assertEquals(3, requestedOffsets.size());
+    }
+
+    @Test
+    public void testFailsFast()
+    {
+        totalNodes = 50;
+        failAtOffset = 10;
+        int count = 0;
+        try {
+            for (DrupalNode ignored : new DrupalNodeViewIterable(context, "dandy_recent", null, 10, 3)) {
+                count++;
+            }
+            fail("expected DrupalIterationException");
+        } catch (DrupalIterationException e) {
+            assertNotNull(e.getCause());
+        }
+        assertEquals(10, count);
+    }
+}
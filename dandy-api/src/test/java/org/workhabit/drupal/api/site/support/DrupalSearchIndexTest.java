@@ -0,0 +1,112 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalBody;
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DrupalSearchIndexTest
+{
+    private final DrupalSearchIndex index = new DrupalSearchIndex();
+
+    @Test
+    public void testSearchRanksMatchesOfEveryWord()
+    {
+        index.addNode(1, node(1, "Offline sync", "<p>Dandy keeps a <b>local</b> copy of nodes &amp; comments.</p>", 1000));
+        index.addNode(2, node(2, "Release notes", "Fixes to sync, and a new offline mode for the mobile app.  Offline reading works everywhere.", 1000));
+        index.addNode(3, node(3, "Mobile", "Nothing about it here.", 1000));
+        DrupalComment comment = new DrupalComment();
+        comment.setNid(3);
+        comment.setSubject("Syncing offline");
+        comment.setComment("Does it work on the train without any signal?");
+        index.addComment(11, comment);
+
+        // the title counts twice, so node 1 beats node 2's two mentions in a longer body
+        assertEquals(Arrays.asList("node 1", "comment 11", "node 2"), hits(index.search("OFFLINE", 10)));
+        assertEquals(Arrays.asList("node 1", "node 2"), hits(index.search("offline sync", 10)));
+        // the prefix matches the comment's syncing, which is rarer than sync and so counts for more
+        assertEquals(Arrays.asList("comment 11", "node 1", "node 2"), hits(index.search("offline sync*", 10)));
+        assertEquals(Arrays.asList("node 1"), hits(index.search("offline sync", 1)));
+        assertEquals(Arrays.asList("node 1"), hits(index.search("local", 10)));
+        // markup isn't indexed
+        assertTrue(index.search("amp", 10).isEmpty());
+        assertTrue(index.search("offline missing", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+        assertEquals(3, index.search("offline", 10).get(1).getNid());
+
+        // a view's copy of node 1 without its body is older, so doesn't replace it
+        DrupalNode partial = node(1, "Offline sync", null, 1000);
+        index.addNodeIfNewer(partial);
+        assertEquals(Arrays.asList("node 1"), hits(index.search("local", 10)));
+        index.addNodeIfNewer(node(1, "Offline sync", "<p>Now kept remotely.</p>", 2000));
+        assertTrue(index.search("local", 10).isEmpty());
+        assertEquals(Arrays.asList("node 1"), hits(index.search("remote*", 10)));
+
+        index.removeNode(3);
+        assertEquals(2, index.size());
+        assertTrue(index.search("train", 10).isEmpty());
+    }
+
+    @Test
+    public void testSavedIndexLoadsWithoutDeadDocuments() throws IOException
+    {
+        // enough replacements to compact along the way
+        for (int i = 0; i < 600; i++) {
+            index.addNode(1 + i % 2, node(1 + i % 2, "revision " + i, "body of revision " + i, i));
+        }
+        index.addNode(3, node(3, "third", "body", 0));
+        index.removeNode(3);
+        assertEquals(Arrays.asList("node 2"), hits(index.search("revision 599", 10)));
+
+        File file = File.createTempFile("dandy-search", ".index");
+        try {
+            index.save(file);
+            DrupalSearchIndex loaded = new DrupalSearchIndex();
+            loaded.load(file);
+            assertEquals(2, loaded.size());
+            assertEquals(Arrays.asList("node 1"), hits(loaded.search("revision 598", 10)));
+            assertTrue(loaded.search("revision 597", 10).isEmpty());
+            assertTrue(loaded.search("third", 10).isEmpty());
+            assertEquals(2, loaded.search("revisi*", 10).size());
+            // numbering carries on from the saved index
+            loaded.addNode(4, node(4, "fourth revision", "", 0));
+            List<String> hits = hits(loaded.search("revision", 10));
+            assertEquals(3, hits.size());
+            assertEquals("node 4", hits.get(0));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static DrupalNode node(int nid, String title, String body, long changed)
+    {
+        DrupalNode node = new DrupalNode();
+        node.setNid(nid);
+        node.setTitle(title);
+        node.setChanged(new Date(changed * 1000));
+        if (body != null) {
+            DrupalBody value = new DrupalBody();
+            value.setValue(body);
+            Map<String, List<DrupalBody>> values = new HashMap<String, List<DrupalBody>>();
+            values.put("und", Arrays.asList(value));
+            node.setBody(values);
+        }
+        return node;
+    }
+
+    private static List<String> hits(List<DrupalSearchIndex.Hit> hits)
+    {
+        List<String> names = new ArrayList<String>();
+        for (DrupalSearchIndex.Hit hit : hits) {
+            names.add(hit.getType().name().toLowerCase() + " " + hit.getId());
+        }
+        return names;
+    }
+}
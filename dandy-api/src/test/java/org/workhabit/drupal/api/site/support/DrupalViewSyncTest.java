@@ -0,0 +1,186 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.ServicesResponseHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class DrupalViewSyncTest
+{
+    private static final Pattern QUERY = Pattern.compile("/views/(\\w+)\\.json\\?(?:args=(\\d+)&)?offset=(\\d+)&limit=(\\d+)");
+    // nid to changed time, listed newest nid first
+    private final TreeMap<Integer, Long> site = new TreeMap<Integer, Long>(Collections.<Integer>reverseOrder());
+    private final List<String> requests = new ArrayList<String>();
+    private Drupal7SiteContextImpl context;
+    private DrupalViewSync sync;
+
+    @Before
+    public void setUp()
+    {
+        context = new Drupal7SiteContextImpl("http://se.local", "dandy");
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse getString(String path)
+            {
+                synchronized (requests) {
+                    requests.add(path.substring(path.indexOf("/dandy/") + 6));
+                }
+                Matcher matcher = QUERY.matcher(path);
+                if (!matcher.find()) {
+                    // a single node
+                    int nid = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1, path.indexOf(".json")));
+                    return response(nodeJson(nid));
+                }
+                assertEquals("articles_changed", matcher.group(1));
+                long since = Long.parseLong(matcher.group(2));
+                List<Map.Entry<Integer, Long>> changed = new ArrayList<Map.Entry<Integer, Long>>();
+                for (Map.Entry<Integer, Long> entry : site.entrySet()) {
+                    if (entry.getValue() >= since) {
+                        changed.add(entry);
+                    }
+                }
+                Collections.sort(changed, new Comparator<Map.Entry<Integer, Long>>()
+                {
+                    public int compare(Map.Entry<Integer, Long> a, Map.Entry<Integer, Long> b)
+                    {
+                        return a.getValue().compareTo(b.getValue());
+                    }
+                });
+                StringBuilder body = new StringBuilder("[");
+                for (Map.Entry<Integer, Long> entry : page(changed, matcher)) {
+                    body.append(body.length() > 1 ? "," : "").append(nodeJson(entry.getKey()));
+                }
+                return response(body.append("]").toString());
+            }
+
+            @Override
+            public <T> T get(String path, ServicesResponseHandler<T> handler) throws IOException
+            {
+                synchronized (requests) {
+                    requests.add(path.substring(path.indexOf("/dandy/") + 6));
+                }
+                Matcher matcher = QUERY.matcher(path);
+                assertTrue(matcher.find());
+                assertEquals("articles_nids", matcher.group(1));
+                StringBuilder body = new StringBuilder("[");
+                for (Integer nid : page(new ArrayList<Integer>(site.keySet()), matcher)) {
+                    body.append(body.length() > 1 ? "," : "").append("{\"nid\":\"").append(nid).append("\"}");
+                }
+                String json = body.append("]").toString();
+                try {
+                    return handler.handleResponse(response(json), new ByteArrayInputStream(json.getBytes("UTF-8")));
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        });
+        sync = new DrupalViewSync(context, "articles_changed", "%d", "articles_nids", null);
+        sync.setPageSize(2);
+    }
+
+    @Test
+    public void testSyncFetchesOnlyChanges() throws Exception
+    {
+        site.put(1, 1000L);
+        site.put(2, 1100L);
+        site.put(3, 1200L);
+        DrupalViewSync.Changes changes = sync.sync();
+        assertEquals(3, changes.getChanged().size());
+        assertEquals(Arrays.asList(3, 2, 1), nids(sync.getNodes()));
+        assertEquals(1200, sync.getHighWaterMark());
+
+        // node 2 is edited, 3 deleted and 4 created
+        site.put(2, 1300L);
+        site.remove(3);
+        site.put(4, 1300L);
+        requests.clear();
+        changes = sync.sync();
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 4)), new HashSet<Integer>(nids(changes.getChanged())));
+        assertEquals(Arrays.asList(3), changes.getRemoved());
+        assertEquals(Arrays.asList(4, 2, 1), nids(sync.getNodes()));
+        assertEquals("node 4 at 1300", sync.getNodes().get(0).getTitle());
+        assertEquals(1300, sync.getHighWaterMark());
+        assertEquals(Arrays.asList("/views/articles_changed.json?args=1200&offset=0&limit=2",
+                                   "/views/articles_changed.json?args=1200&offset=2&limit=2",
+                                   "/views/articles_nids.json?offset=0&limit=2",
+                                   "/views/articles_nids.json?offset=2&limit=2"), requests);
+
+        // a node whose changed time went backwards is fetched on its own
+        site.put(5, 900L);
+        requests.clear();
+        changes = sync.sync();
+        assertEquals(Arrays.asList(5), nids(changes.getChanged()));
+        assertTrue(requests.contains("/node/5.json"));
+        assertEquals(Arrays.asList(5, 4, 2, 1), nids(sync.getNodes()));
+
+        assertTrue(sync.sync().isEmpty());
+    }
+
+    @Test
+    public void testSavedCopyResumesFromHighWaterMark() throws Exception
+    {
+        site.put(1, 1000L);
+        site.put(2, 1100L);
+        sync.sync();
+        File file = File.createTempFile("dandy-view", ".json");
+        try {
+            sync.save(file);
+            DrupalViewSync restored = new DrupalViewSync(context, "articles_changed", "%d", "articles_nids", null);
+            restored.load(file);
+            assertEquals(1100, restored.getHighWaterMark());
+            assertEquals(Arrays.asList(2, 1), nids(restored.getNodes()));
+            assertEquals("node 2 at 1100", restored.getNodes().get(0).getTitle());
+            assertEquals(new Date(1100000L), restored.getNodes().get(0).getChanged());
+
+            requests.clear();
+            assertTrue(restored.sync().isEmpty());
+            assertEquals("/views/articles_changed.json?args=1100&offset=0&limit=100", requests.get(0));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private String nodeJson(int nid)
+    {
+        Long changed = site.get(nid);
+        return "{\"nid\":\"" + nid + "\",\"type\":\"article\",\"title\":\"node " + nid + " at " + changed + "\",\"changed\":\"" + changed + "\"}";
+    }
+
+    private static <T> List<T> page(List<T> items, Matcher matcher)
+    {
+        int offset = Integer.parseInt(matcher.group(3));
+        int limit = Integer.parseInt(matcher.group(4));
+        return items.subList(Math.min(offset, items.size()), Math.min(offset + limit, items.size()));
+    }
+
+    private static List<Integer> nids(List<DrupalNode> nodes)
+    {
+        List<Integer> nids = new ArrayList<Integer>();
+        for (DrupalNode node : nodes) {
+            nids.add(node.getNid());
+        }
+        return nids;
+    }
+
+    private static ServicesResponse response(String body)
+    {
+        ServicesResponse response = new ServicesResponse();
+        response.setStatusCode(200);
+        response.setResponseBody(body);
+        return response;
+    }
+}
@@ -0,0 +1,267 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalFile;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.TransferProgressListener;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DrupalWriteBehindQueueTest
+{
+    private File directory;
+    private Drupal7SiteContextImpl context;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger updateStatus = new AtomicInteger(406);
+    private final Map<Long, Object> committed = Collections.synchronizedMap(new LinkedHashMap<Long, Object>());
+    private final Map<Long, Exception> failed = Collections.synchronizedMap(new LinkedHashMap<Long, Exception>());
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("dandy-writes", "");
+        assertTrue(directory.delete());
+        context = new Drupal7SiteContextImpl("http://se.local", "dandy");
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse post(String path, String data) throws IOException
+            {
+                requests.add("POST " + path.substring(path.lastIndexOf('/')));
+                if (failuresLeft.getAndDecrement() > 0) {
+                    throw new IOException("Network is unreachable");
+                }
+                if (path.endsWith("/comment.json")) {
+                    return response(200, "{\"cid\":\"11\",\"nid\":\"1\"}");
+                }
+                return response(200, "{\"nid\":\"10\"}");
+            }
+
+            @Override
+            public ServicesResponse put(String path, String data)
+            {
+                requests.add("PUT " + path.substring(path.lastIndexOf('/')));
+                return response(updateStatus.get(), updateStatus.get() == 200 ? "{\"nid\":\"8\"}" : "");
+            }
+
+            @Override
+            public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException
+            {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int read;
+                while ((read = inputStream.read()) != -1) {
+                    content.write(read);
+                }
+                requests.add("FILE " + fileName + " " + content.toString("UTF-8"));
+                return response(200, "{\"fid\":\"3\",\"filename\":\"" + fileName + "\"}");
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void testWritesSurviveRestart() throws Exception
+    {
+        DrupalWriteBehindQueue queue = new DrupalWriteBehindQueue(context, directory);
+        DrupalNode node = new DrupalNode();
+        node.setTitle("written offline");
+        node.setCreated(new Date(1318950000000L));
+        queue.saveNode(node);
+        DrupalComment comment = new DrupalComment();
+        comment.setNid(1);
+        comment.setSubject("reply");
+        queue.saveComment(comment);
+        queue.saveFileStream(new ByteArrayInputStream("photo".getBytes("UTF-8")), "photo.jpg");
+        // the process dies before anything is sent
+        queue.shutdown();
+
+        queue = new DrupalWriteBehindQueue(context, directory);
+        List<DrupalQueuedWrite> pending = queue.getPending();
+        assertEquals(3, pending.size());
+        assertEquals("written offline", pending.get(0).getNode().getTitle());
+        assertEquals(new Date(1318950000000L), pending.get(0).getNode().getCreated());
+        assertEquals("reply", pending.get(1).getComment().getSubject());
+        assertEquals("photo.jpg", pending.get(2).getFileName());
+
+        listen(queue);
+        queue.start();
+        try {
+            assertTrue(queue.awaitDrained(5, TimeUnit.SECONDS));
+        } finally {
+            queue.shutdown();
+        }
+        assertEquals(Arrays.asList("POST /node.json", "POST /comment.json", "FILE photo.jpg photo"), requests);
+        assertEquals(10, committed.get(pending.get(0).getId()));
+        assertEquals(11, committed.get(pending.get(1).getId()));
+        assertEquals(3, ((DrupalFile)committed.get(pending.get(2).getId())).getFid());
+        // nothing left to recover, not even the spooled file
+        assertEquals(Arrays.asList(DrupalWriteBehindQueue.JOURNAL), Arrays.asList(directory.list()));
+        assertEquals(0, new File(directory, DrupalWriteBehindQueue.JOURNAL).length());
+    }
+
+    @Test
+    public void testRetriesNetworkFailuresAndDropsRejectedWrites() throws Exception
+    {
+        failuresLeft.set(3);
+        DrupalWriteBehindQueue queue = new DrupalWriteBehindQueue(context, directory);
+        queue.setRetryDelays(10, 40, TimeUnit.MILLISECONDS);
+        listen(queue);
+        queue.start();
+        try {
+            DrupalNode created = new DrupalNode();
+            DrupalQueuedWrite first = queue.saveNode(created);
+            DrupalNode forbidden = new DrupalNode();
+            forbidden.setNid(8);
+            DrupalQueuedWrite second = queue.saveNode(forbidden);
+            assertTrue(queue.awaitDrained(5, TimeUnit.SECONDS));
+            // the update waits behind the create until it goes through
+            assertEquals(Arrays.asList("POST /node.json", "POST /node.json", "POST /node.json", "POST /node.json", "PUT /8.json"), requests);
+            assertEquals(10, committed.get(first.getId()));
+            assertTrue(failed.get(second.getId()) != null);
+            assertFalse(committed.containsKey(second.getId()));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testKeepsWritesRefusedUntilLogin() throws Exception
+    {
+        updateStatus.set(403);
+        DrupalWriteBehindQueue queue = new DrupalWriteBehindQueue(context, directory);
+        queue.setRetryDelays(10, 40, TimeUnit.MILLISECONDS);
+        listen(queue);
+        queue.start();
+        try {
+            DrupalNode node = new DrupalNode();
+            node.setNid(8);
+            DrupalQueuedWrite write = queue.saveNode(node);
+            // no backoff retries while logged out
+            assertFalse(queue.awaitDrained(200, TimeUnit.MILLISECONDS));
+            assertTrue(queue.isAwaitingLogin());
+            assertEquals(Arrays.asList("PUT /8.json"), requests);
+            assertEquals(1, queue.getPending().size());
+            assertTrue(failed.isEmpty());
+
+            // logged in again
+            updateStatus.set(200);
+            queue.retryNow();
+            assertTrue(queue.awaitDrained(5, TimeUnit.SECONDS));
+            assertFalse(queue.isAwaitingLogin());
+            assertEquals(Arrays.asList("PUT /8.json", "PUT /8.json"), requests);
+            assertTrue(committed.containsKey(write.getId()));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testJournalRecoversPendingEntriesAndDropsTornRecord() throws IOException
+    {
+        File file = new File(directory, "test.journal");
+        assertTrue(directory.mkdirs());
+        DrupalWriteJournal journal = new DrupalWriteJournal(file);
+        long a = journal.append("a".getBytes("UTF-8"));
+        long b = journal.append("b".getBytes("UTF-8"));
+        long c = journal.append("c".getBytes("UTF-8"));
+        journal.commit(Arrays.asList(a));
+        journal.close();
+        long length = file.length();
+        // a crash part way through writing a record
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.seek(length);
+        out.writeInt(100);
+        out.writeLong(12345L);
+        out.write(new byte[]{1, 0, 0});
+        out.close();
+
+        journal = new DrupalWriteJournal(file);
+        assertEquals(Arrays.asList(b, c), new ArrayList<Long>(journal.getPending().keySet()));
+        assertEquals("c", new String(journal.getPending().get(c), "UTF-8"));
+        assertEquals(length, journal.length());
+        assertTrue(journal.append("d".getBytes("UTF-8")) > c);
+        journal.commit(journal.getPending().keySet());
+        assertEquals(0, journal.length());
+        journal.close();
+    }
+
+    @Test
+    public void testJournalKeptWhenCompactionFails() throws IOException
+    {
+        File file = new File(directory, "test.journal");
+        // the compacted copy can't be written where a directory is in the way
+        File blocker = new File(directory, "test.journal.tmp/blocker");
+        assertTrue(blocker.mkdirs());
+        DrupalWriteJournal journal = new DrupalWriteJournal(file);
+        byte[] payload = new byte[64 * 1024];
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 40; i++) {
+            ids.add(journal.append(payload));
+        }
+        long kept = ids.remove(ids.size() - 1);
+        journal.commit(ids);
+        assertTrue(journal.length() > DrupalWriteJournal.COMPACT_THRESHOLD);
+        long next = journal.append("next".getBytes("UTF-8"));
+        journal.close();
+
+        journal = new DrupalWriteJournal(file);
+        assertEquals(Arrays.asList(kept, next), new ArrayList<Long>(journal.getPending().keySet()));
+        // once the copy can be written, the journal is compacted
+        assertTrue(blocker.delete() && blocker.getParentFile().delete());
+        journal.commit(Arrays.asList(next));
+        assertTrue(journal.length() < DrupalWriteJournal.COMPACT_THRESHOLD);
+        journal.close();
+        journal = new DrupalWriteJournal(file);
+        assertEquals(Arrays.asList(kept), new ArrayList<Long>(journal.getPending().keySet()));
+        journal.close();
+    }
+
+    private void listen(DrupalWriteBehindQueue queue)
+    {
+        queue.setListener(new DrupalWriteListener()
+        {
+            public void onCommitted(DrupalQueuedWrite write, Object result)
+            {
+                committed.put(write.getId(), result);
+            }
+
+            public void onFailed(DrupalQueuedWrite write, Exception cause)
+            {
+                failed.put(write.getId(), cause);
+            }
+        });
+    }
+
+    private static ServicesResponse response(int statusCode, String body)
+    {
+        ServicesResponse response = new ServicesResponse();
+        response.setStatusCode(statusCode);
+        response.setResponseBody(body);
+        return response;
+    }
+}
@@ -2,11 +2,15 @@ package org.workhabit.drupal.api.site.v3;
 
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.json.JSONException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.workhabit.drupal.api.entity.drupal7.*;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializer;
 import org.workhabit.drupal.api.json.DrupalJsonObjectSerializerFactory;
 import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
@@ -14,15 +18,26 @@ import org.workhabit.drupal.api.site.exceptions.DrupalLoginException;
 import org.workhabit.drupal.api.site.exceptions.DrupalLogoutException;
 import org.workhabit.drupal.api.site.exceptions.DrupalSaveException;
 import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
+import org.workhabit.drupal.api.site.support.DrupalBulkResult;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache;
+import org.workhabit.drupal.api.site.support.DrupalSearchIndex;
+import org.workhabit.drupal.api.site.support.DrupalSession;
 import org.workhabit.drupal.api.site.support.GenericCookie;
 import org.workhabit.drupal.api.site.v3.local.TestData;
+import org.workhabit.drupal.http.CancellationScope;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
 import org.workhabit.drupal.http.DrupalServicesRequestManager;
 import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.TransferProgressListener;
+import org.workhabit.drupal.http.ServicesResponseHandler;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.collection.IsMapContaining.hasEntry;
@@ -277,6 +292,112 @@ public class Drupal7SiteContextImplTest
         assertEquals(drupalUser, currentUser);
     }
 
+    @Test
+    public void testLoginPublishesSession() throws Exception
+    {
+        final Sequence logout = mockery.sequence("logout");
+        mockery.checking(new Expectations()
+        {
+            {
+                //noinspection unchecked
+                one(mockRequestManager).post(with(equal("http://se.local/dandy/user/login.json")), with(any(Map.class)));
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"sessid\":\"abc\",\"session_name\":\"SESSlocal\",\"token\":\"t0k3n\",\"user\":{\"uid\":\"2\",\"name\":\"testuser\"}}");
+                will(returnValue(response));
+                one(mockRequestManager).setCsrfToken("t0k3n");
+                allowing(mockRequestManager).getCookies();
+                //noinspection unchecked
+                one(mockRequestManager).post(with(equal("http://se.local/dandy/user/logout.json")), with(any(Map.class)));
+                inSequence(logout);
+                ServicesResponse loggedOut = new ServicesResponse();
+                loggedOut.setStatusCode(200);
+                will(returnValue(loggedOut));
+                // the logout request still carries the token
+                one(mockRequestManager).setCsrfToken(null);
+                inSequence(logout);
+            }
+        });
+        DrupalSearchIndex index = new DrupalSearchIndex();
+        context.setSearchIndex(index);
+        DrupalNode anonymous = new DrupalNode();
+        anonymous.setTitle("seen while logged out");
+        index.addNode(1, anonymous);
+        assertSame(DrupalSession.ANONYMOUS, context.getSession());
+        DrupalUser user = context.login("testuser", "testpass");
+        assertEquals(0, index.size());
+        DrupalSession session = context.getSession();
+        assertEquals("abc", session.getSessionId());
+        assertEquals("SESSlocal", session.getSessionName());
+        assertEquals("t0k3n", session.getCsrfToken());
+        assertSame(user, session.getUser());
+        assertEquals("t0k3n", context.getSavedState().getCsrfToken());
+
+        DrupalNode own = new DrupalNode();
+        own.setTitle("only testuser may see this");
+        index.addNode(2, own);
+        context.logout();
+        assertFalse(context.getSession().isAuthenticated());
+        assertEquals("abc", session.getSessionId());
+        assertEquals(0, index.size());
+        mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testFailedLogoutKeepsSession() throws Exception
+    {
+        mockery.checking(new Expectations()
+        {
+            {
+                //noinspection unchecked
+                one(mockRequestManager).post(with(equal("http://se.local/dandy/user/login.json")), with(any(Map.class)));
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"sessid\":\"abc\",\"token\":\"t0k3n\",\"user\":{\"uid\":\"2\",\"name\":\"testuser\"}}");
+                will(returnValue(response));
+                one(mockRequestManager).setCsrfToken("t0k3n");
+                //noinspection unchecked
+                one(mockRequestManager).post(with(equal("http://se.local/dandy/user/logout.json")), with(any(Map.class)));
+                will(throwException(new IOException("Network is unreachable")));
+                never(mockRequestManager).setCsrfToken(null);
+            }
+        });
+        context.login("testuser", "testpass");
+        try {
+            context.logout();
+            fail("Should have thrown logout exception");
+        } catch (DrupalLogoutException e) {
+            // ok
+        }
+        assertEquals("abc", context.getSession().getSessionId());
+        mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testSessionsLogInIndependently() throws Exception
+    {
+        Drupal7SiteContextImpl site = new Drupal7SiteContextImpl("http://se.local", "dandy");
+        site.setRequestManager(new DelegatingDrupalServicesRequestManager(null)
+        {
+        });
+        Drupal7SiteContextImpl alice = site.newSession(new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse post(String path, Map<String, Object> data) throws IOException
+            {
+                assertEquals("http://se.local/dandy/user/login.json", path);
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"sessid\":\"a\",\"user\":{\"uid\":\"3\",\"name\":\"" + data.get("username") + "\"}}");
+                return response;
+            }
+        });
+        assertEquals("alice", alice.login("alice", "secret").getName());
+        assertEquals("a", alice.getSession().getSessionId());
+        assertFalse(site.getSession().isAuthenticated());
+        assertNull(site.getCurrentUser());
+    }
+
     @Test
     public void testGetCurrentUserCookie()
     {
@@ -342,6 +463,398 @@ public class Drupal7SiteContextImplTest
         assertNotNull(node);
     }
 
+    @Test
+    public void testGetNodes() throws DrupalFetchException
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                requests.incrementAndGet();
+                int current = inFlight.incrementAndGet();
+                int max;
+                while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+                    // retry
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                String nid = path.substring(path.lastIndexOf('/') + 1, path.indexOf(".json"));
+                if ("2".equals(nid)) {
+                    throw new IOException("Connection reset");
+                }
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"nid\":\"" + nid + "\",\"title\":\"node " + nid + "\",\"type\":\"article\"}");
+                return response;
+            }
+        });
+        DrupalBulkResult<Integer, DrupalNode> result = context.getNodes(Arrays.asList(5, 3, 2, 5, 1, 4, 3), 2);
+        assertEquals(5, requests.get());
+        assertTrue(maxInFlight.get() <= 2);
+        assertEquals(Arrays.asList(5, 3, 1, 4), new ArrayList<Integer>(result.getResults().keySet()));
+        assertEquals("node 3", result.get(3).getTitle());
+        assertFalse(result.isSuccessful());
+        assertTrue(result.getFailure(2) instanceof DrupalFetchException);
+    }
+
+    @Test
+    public void testBulkRequestsRunInCallersScope() throws Exception
+    {
+        final Set<CancellationScope> scopes = Collections.synchronizedSet(new HashSet<CancellationScope>());
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                CancellationScope scope = CancellationScope.current();
+                scopes.add(scope);
+                if (scope != null && scope.isCancelled()) {
+                    throw new InterruptedIOException("Request cancelled");
+                }
+                String nid = path.substring(path.lastIndexOf('/') + 1, path.indexOf(".json"));
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"nid\":\"" + nid + "\",\"title\":\"node " + nid + "\",\"type\":\"article\"}");
+                return response;
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        context.setBulkExecutor(executor);
+        CancellationScope scope = new CancellationScope();
+        scope.enter();
+        try {
+            assertTrue(context.getNodes(Arrays.asList(1, 2, 3, 4, 5, 6), 3).isSuccessful());
+            assertEquals(Collections.singleton(scope), scopes);
+            // the executor outlives the batch
+            assertFalse(executor.isShutdown());
+
+            scope.cancel();
+            DrupalBulkResult<Integer, DrupalNode> result = context.getNodes(Arrays.asList(7, 8, 9, 10), 3);
+            assertTrue(result.getResults().isEmpty());
+            assertTrue(result.getFailure(7) instanceof DrupalFetchException);
+            assertTrue(result.getFailure(10) instanceof DrupalFetchException);
+        } finally {
+            scope.exit();
+            executor.shutdownNow();
+        }
+        assertNull(CancellationScope.current());
+    }
+
+    @Test
+    public void testSaveNodesReportsEachOutcome() throws DrupalSaveException
+    {
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse post(String path, String data)
+            {
+                bodies.add(data);
+                return response(200, "{\"nid\":\"10\",\"uri\":\"http://se.local/dandy/node/10\"}");
+            }
+
+            @Override
+            public ServicesResponse put(String path, String data)
+            {
+                String nid = path.substring(path.lastIndexOf('/') + 1, path.indexOf(".json"));
+                return "8".equals(nid) ? response(403, "") : response(200, "{\"nid\":\"" + nid + "\"}");
+            }
+
+            @Override
+            public ServicesResponse delete(String path) throws IOException
+            {
+                if (path.endsWith("/9.json")) {
+                    throw new IOException("Connection reset");
+                }
+                return response(200, "[true]");
+            }
+        });
+        DrupalNode created = new DrupalNode();
+        created.setTitle("created");
+        DrupalNode updated = new DrupalNode();
+        updated.setNid(7);
+        DrupalNode forbidden = new DrupalNode();
+        forbidden.setNid(8);
+        DrupalBulkResult<DrupalNode, Integer> result = context.saveNodes(Arrays.asList(created, updated, forbidden), 2);
+        assertEquals(Integer.valueOf(10), result.get(created));
+        assertEquals(Integer.valueOf(7), result.get(updated));
+        assertTrue(result.getFailure(forbidden) instanceof DrupalSaveException);
+        assertTrue(bodies.get(0).startsWith("{\"node\":{"));
+        assertTrue(bodies.get(0).contains("\"title\":\"created\""));
+        assertFalse(bodies.get(0).contains("\"nid\""));
+
+        DrupalBulkResult<Integer, Boolean> deleted = context.deleteNodes(Arrays.asList(7, 9, 7), 2);
+        assertEquals(Arrays.asList(7), new ArrayList<Integer>(deleted.getResults().keySet()));
+        assertTrue(deleted.getFailure(9) instanceof DrupalSaveException);
+    }
+
+    @Test
+    public void testSearchIndexFollowsSavesAndDeletes() throws Exception
+    {
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse post(String path, String data)
+            {
+                return path.endsWith("/comment.json") ? response(200, "{\"cid\":\"11\",\"nid\":\"10\"}") : response(200, "{\"nid\":\"10\"}");
+            }
+
+            @Override
+            public ServicesResponse delete(String path)
+            {
+                return response(200, "[true]");
+            }
+        });
+        DrupalSearchIndex index = new DrupalSearchIndex();
+        context.setSearchIndex(index);
+        DrupalNode node = new DrupalNode();
+        node.setTitle("Written offline");
+        assertEquals(10, context.saveNode(node));
+        DrupalComment comment = new DrupalComment();
+        comment.setNid(10);
+        comment.setSubject("First reply");
+        assertEquals(11, context.saveComment(comment));
+
+        List<DrupalSearchIndex.Hit> hits = index.search("offline", 10);
+        assertEquals(1, hits.size());
+        assertEquals(10, hits.get(0).getId());
+        assertEquals(DrupalSearchIndex.Hit.Type.COMMENT, index.search("repl*", 10).get(0).getType());
+
+        context.deleteComment(11);
+        assertTrue(index.search("reply", 10).isEmpty());
+        context.deleteNode(10);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSessionFetchesNotSearchableFromOtherContexts() throws Exception
+    {
+        DrupalServicesRequestManager privateNodes = new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse getString(String path)
+            {
+                return response(200, "{\"nid\":\"5\",\"title\":\"Private salary review\",\"type\":\"article\"}");
+            }
+        };
+        DrupalSearchIndex siteIndex = new DrupalSearchIndex();
+        context.setSearchIndex(siteIndex);
+        Drupal7SiteContextImpl alice = context.newSession(privateNodes);
+        Drupal7SiteContextImpl bob = context.newSession(privateNodes);
+        assertNull(alice.getSearchIndex());
+        DrupalSearchIndex aliceIndex = new DrupalSearchIndex();
+        alice.setSearchIndex(aliceIndex);
+
+        assertEquals("Private salary review", alice.getNode(5).getTitle());
+        assertEquals("Private salary review", bob.getNode(5).getTitle());
+        assertEquals(1, aliceIndex.search("salary", 10).size());
+        assertTrue(siteIndex.search("salary", 10).isEmpty());
+        assertEquals(0, siteIndex.size());
+    }
+
+    private static ServicesResponse response(int statusCode, String body)
+    {
+        ServicesResponse response = new ServicesResponse();
+        response.setStatusCode(statusCode);
+        response.setResponseBody(body);
+        return response;
+    }
+
+    @Test
+    public void testGetNodeCoalescing() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                assertEquals("http://se.local/dandy/node/2.json", path);
+                requests.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"nid\":\"2\",\"title\":\"node 2\",\"type\":\"article\"}");
+                return response;
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<DrupalNode>> futures = new ArrayList<Future<DrupalNode>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<DrupalNode>()
+                {
+                    public DrupalNode call() throws DrupalFetchException
+                    {
+                        return context.getNode(2);
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (context.getCoalescedRequestCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            DrupalNode first = futures.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<DrupalNode> future : futures) {
+                assertSame(first, future.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, requests.get());
+            assertEquals(3, context.getCoalescedRequestCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCoalescedCallerRetriesWhenLeaderCancelled() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                if (requests.incrementAndGet() == 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                    if (CancellationScope.current().isCancelled()) {
+                        throw new InterruptedIOException("Request cancelled");
+                    }
+                }
+                ServicesResponse response = new ServicesResponse();
+                response.setStatusCode(200);
+                response.setResponseBody("{\"nid\":\"2\",\"title\":\"node 2\",\"type\":\"article\"}");
+                return response;
+            }
+        });
+        final CancellationScope scope = new CancellationScope();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<DrupalNode> leader = executor.submit(new Callable<DrupalNode>()
+            {
+                public DrupalNode call() throws DrupalFetchException
+                {
+                    scope.enter();
+                    try {
+                        return context.getNode(2);
+                    } finally {
+                        scope.exit();
+                    }
+                }
+            });
+            long deadline = System.currentTimeMillis() + 5000;
+            while (requests.get() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Future<DrupalNode> waiter = executor.submit(new Callable<DrupalNode>()
+            {
+                public DrupalNode call() throws DrupalFetchException
+                {
+                    return context.getNode(2);
+                }
+            });
+            while (context.getCoalescedRequestCount() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            scope.cancel();
+            release.countDown();
+            try {
+                leader.get(5, TimeUnit.SECONDS);
+                fail("the cancelled caller's request should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DrupalFetchException);
+            }
+            // the waiter isn't cancelled, so makes the request again
+            assertEquals("node 2", waiter.get(5, TimeUnit.SECONDS).getTitle());
+            assertEquals(2, requests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEntityCacheInvalidatedBySave() throws DrupalFetchException, DrupalSaveException, IOException
+    {
+        final ServicesResponse nodeResponse = new ServicesResponse();
+        nodeResponse.setStatusCode(200);
+        nodeResponse.setResponseBody("{\"nid\":\"2\",\"title\":\"node 2\",\"type\":\"article\"}");
+        final ServicesResponse saveResponse = new ServicesResponse();
+        saveResponse.setStatusCode(200);
+        saveResponse.setResponseBody("{\"nid\":\"2\",\"uri\":\"http://se.local/dandy/node/2\"}");
+        mockery.checking(new Expectations()
+        {
+            {
+                exactly(2).of(mockRequestManager).getString("http://se.local/dandy/node/2.json");
+                will(returnValue(nodeResponse));
+                one(mockRequestManager).put(with(equal("http://se.local/dandy/node/2.json")), with(any(String.class)));
+                will(returnValue(saveResponse));
+            }
+        });
+        context.setEntityCache(new DrupalEntityCache(10));
+        DrupalNode node = context.getNode(2);
+        assertSame(node, context.getNode(2));
+        assertEquals(2, context.saveNode(node));
+        assertNotSame(node, context.getNode(2));
+        assertEquals(1, context.getEntityCache().getHitCount());
+        mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testNodeFetchedBeforeSaveNotCached() throws Exception
+    {
+        final AtomicInteger fetches = new AtomicInteger();
+        context.setRequestManager(new DelegatingDrupalServicesRequestManager(mockRequestManager)
+        {
+            @Override
+            public ServicesResponse getString(String path) throws IOException
+            {
+                if (fetches.incrementAndGet() == 1) {
+                    // the node is saved while this copy of it is on its way
+                    DrupalNode node = new DrupalNode();
+                    node.setNid(2);
+                    node.setTitle("node 2, edited");
+                    try {
+                        context.saveNode(node);
+                    } catch (DrupalSaveException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                    return response(200, "{\"nid\":\"2\",\"title\":\"node 2\",\"type\":\"article\"}");
+                }
+                return response(200, "{\"nid\":\"2\",\"title\":\"node 2, edited\",\"type\":\"article\"}");
+            }
+
+            @Override
+            public ServicesResponse put(String path, String data)
+            {
+                return response(200, "{\"nid\":\"2\",\"uri\":\"http://se.local/dandy/node/2\"}");
+            }
+        });
+        context.setEntityCache(new DrupalEntityCache(10));
+        assertEquals("node 2", context.getNode(2).getTitle());
+        assertEquals("node 2, edited", context.getNode(2).getTitle());
+        assertEquals(2, fetches.get());
+        assertSame(context.getNode(2), context.getNode(2));
+    }
+
     @Test
     public void testGetNodeView() throws DrupalFetchException, IOException
     {
@@ -360,6 +873,73 @@ public class Drupal7SiteContextImplTest
         assertEquals(13, nodeList.size());
     }
 
+    @Test
+    public void testGetNodeViewStreaming() throws DrupalFetchException, IOException
+    {
+        mockery.checking(new Expectations()
+        {
+            {
+                one(mockRequestManager).get(with(equal("http://se.local/dandy/views/dandy_recent.json?args=1&offset=10&limit=2")), with(any(ServicesResponseHandler.class)));
+                will(new CustomAction("stream view response")
+                {
+                    public Object invoke(Invocation invocation) throws Throwable
+                    {
+                        ServicesResponse response = new ServicesResponse();
+                        response.setStatusCode(200);
+                        InputStream content = new ByteArrayInputStream("[{\"nid\":\"11\",\"title\":\"a\"},{\"nid\":\"12\",\"title\":\"b\"}]".getBytes("UTF-8"));
+                        return ((ServicesResponseHandler)invocation.getParameter(1)).handleResponse(response, content);
+                    }
+                });
+            }
+        });
+        DrupalSearchIndex index = new DrupalSearchIndex();
+        context.setSearchIndex(index);
+        final List<Integer> nids = new ArrayList<Integer>();
+        int count = context.getNodeView("dandy_recent", "1", 10, 2, new DrupalEntityHandler<DrupalNode>()
+        {
+            public void handleEntity(DrupalNode entity)
+            {
+                nids.add(entity.getNid());
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(11, 12), nids);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testGetNodeViewStreamingError() throws IOException, DrupalFetchException
+    {
+        mockery.checking(new Expectations()
+        {
+            {
+                one(mockRequestManager).get(with(equal("http://se.local/dandy/views/missing.json?offset=0&limit=10")), with(any(ServicesResponseHandler.class)));
+                will(new CustomAction("stream error response")
+                {
+                    public Object invoke(Invocation invocation) throws Throwable
+                    {
+                        ServicesResponse response = new ServicesResponse();
+                        response.setStatusCode(404);
+                        response.setReasonPhrase("Not found");
+                        return ((ServicesResponseHandler)invocation.getParameter(1)).handleResponse(response, new ByteArrayInputStream(new byte[0]));
+                    }
+                });
+            }
+        });
+        try {
+            context.getNodeView("missing", null, 0, 10, new DrupalEntityHandler<DrupalNode>()
+            {
+                public void handleEntity(DrupalNode entity)
+                {
+                    fail("no entities expected");
+                }
+            });
+            fail("Should have thrown fetch exception");
+        } catch (DrupalFetchException e) {
+            // ok
+        }
+    }
+
     @Test
     public void testSaveFileStream() throws IOException, DrupalSaveException, JSONException
     {
@@ -380,7 +960,7 @@ public class Drupal7SiteContextImplTest
                 String path = "http://se.local/dandy/file.json";
                 String fieldName = "files[file]";
 
-                one(mockRequestManager).postFile(path, fieldName, inputstream, filename);
+                one(mockRequestManager).postFile(path, fieldName, inputstream, filename, -1, null);
                 ServicesResponse response = new ServicesResponse();
                 response.setResponseBody("{ \"fid\": 1, \"uri\": \"http://se.local/dandy/file/1\" }");
                 response.setStatusCode(200);
@@ -401,6 +981,35 @@ public class Drupal7SiteContextImplTest
         assertNotNull(drupalFile);
     }
 
+    @Test
+    public void testSaveFileStreamFromCreateResponse() throws Exception
+    {
+        final InputStream inputstream = new ByteArrayInputStream(TestData.getTestTitle().getBytes());
+        final TransferProgressListener listener = new TransferProgressListener()
+        {
+            public void onProgress(long bytesTransferred, long totalBytes)
+            {
+            }
+        };
+        mockery.checking(new Expectations()
+        {
+            {
+                one(mockRequestManager).postFile("http://se.local/dandy/file.json", "files[file]", inputstream, "foo", 42, listener);
+                ServicesResponse response = new ServicesResponse();
+                response.setResponseBody("{ \"fid\": \"7\", \"uri\": \"http://se.local/dandy/file/7\", \"filename\": \"foo\", \"filepath\": \"sites/default/files/foo\", \"filesize\": 42, \"uid\": \"1\", \"timestamp\": 1295559121 }");
+                response.setStatusCode(200);
+                response.setReasonPhrase("");
+                will(returnValue(response));
+                never(mockRequestManager).getString(with(any(String.class)));
+            }
+        });
+
+        DrupalFile drupalFile = context.saveFileStream(inputstream, "foo", 42, listener);
+        assertEquals(7, drupalFile.getFid());
+        assertEquals("foo", drupalFile.getFilename());
+        assertEquals(42, drupalFile.getFilesize());
+    }
+
     @After
     public void tearDown()
     {
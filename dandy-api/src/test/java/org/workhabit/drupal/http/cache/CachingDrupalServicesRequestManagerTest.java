@@ -0,0 +1,251 @@
+package org.workhabit.drupal.http.cache;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.api.site.support.GenericCookie;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CachingDrupalServicesRequestManagerTest
+{
+    private static final String NODE_PATH = "http://se.local/dandy/node/2.json";
+    private Mockery mockery;
+    private DrupalServicesRequestManager delegate;
+    private long now = 1000000L;
+    private CachingDrupalServicesRequestManager requestManager;
+    private File cacheDirectory;
+    private final ArrayList<GenericCookie> cookies = new ArrayList<GenericCookie>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mockery = new Mockery();
+        delegate = mockery.mock(DrupalServicesRequestManager.class);
+        cacheDirectory = File.createTempFile("dandy-cache", "");
+        assertTrue(cacheDirectory.delete());
+        requestManager = newRequestManager(new TieredResponseCache(new MemoryResponseCache(10), new DiskResponseCache(cacheDirectory, 1024 * 1024)));
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(delegate).getCookies();
+                will(returnValue(cookies));
+            }
+        });
+    }
+
+    @Test
+    public void testFreshResponseServedFromCache() throws IOException
+    {
+        final ServicesResponse response = response(200, "{\"nid\":\"2\"}");
+        response.setHeader("Cache-Control", "max-age=60");
+        mockery.checking(new Expectations()
+        {
+            {
+                one(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+            }
+        });
+        assertEquals("{\"nid\":\"2\"}", requestManager.getString(NODE_PATH).getResponseBody());
+        now += 30000;
+        assertEquals("{\"nid\":\"2\"}", requestManager.getString(NODE_PATH).getResponseBody());
+        assertEquals(1, requestManager.getHitCount());
+        assertEquals(1, requestManager.getMissCount());
+    }
+
+    @Test
+    public void testStaleResponseRevalidated() throws IOException
+    {
+        final ServicesResponse response = response(200, "{\"nid\":\"2\"}");
+        response.setHeader("Cache-Control", "max-age=10");
+        response.setHeader("ETag", "\"abc\"");
+        final ServicesResponse notModified = response(304, null);
+        notModified.setHeader("Cache-Control", "max-age=10");
+        final Map<String, String> conditional = new HashMap<String, String>();
+        conditional.put("If-None-Match", "\"abc\"");
+        mockery.checking(new Expectations()
+        {
+            {
+                one(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+                one(delegate).getString(NODE_PATH, conditional);
+                will(returnValue(notModified));
+            }
+        });
+        requestManager.getString(NODE_PATH);
+        now += 20000;
+        ServicesResponse revalidated = requestManager.getString(NODE_PATH);
+        assertEquals(200, revalidated.getStatusCode());
+        assertEquals("{\"nid\":\"2\"}", revalidated.getResponseBody());
+        assertEquals(1, requestManager.getRevalidationCount());
+        // the 304 renewed the freshness lifetime
+        now += 5000;
+        requestManager.getString(NODE_PATH);
+        assertEquals(1, requestManager.getHitCount());
+    }
+
+    @Test
+    public void testNoStoreNotCached() throws IOException
+    {
+        final ServicesResponse response = response(200, "{}");
+        response.setHeader("Cache-Control", "no-store, max-age=60");
+        mockery.checking(new Expectations()
+        {
+            {
+                exactly(2).of(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+            }
+        });
+        requestManager.getString(NODE_PATH);
+        requestManager.getString(NODE_PATH);
+        assertEquals(0, requestManager.getHitCount());
+    }
+
+    @Test
+    public void testPutInvalidates() throws IOException
+    {
+        final ServicesResponse response = response(200, "{}");
+        response.setHeader("Cache-Control", "max-age=60");
+        mockery.checking(new Expectations()
+        {
+            {
+                exactly(2).of(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+                one(delegate).put(NODE_PATH, "{}");
+                will(returnValue(response(200, "{}")));
+            }
+        });
+        requestManager.getString(NODE_PATH);
+        requestManager.put(NODE_PATH, "{}");
+        requestManager.getString(NODE_PATH);
+        assertEquals(0, requestManager.getHitCount());
+    }
+
+    @Test
+    public void testDiskTierSurvivesRestart() throws IOException
+    {
+        final ServicesResponse response = response(200, "{\"nid\":\"2\"}");
+        response.setHeader("Expires", "Thu, 01 Jan 2037 00:00:00 GMT");
+        mockery.checking(new Expectations()
+        {
+            {
+                one(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+            }
+        });
+        requestManager.getString(NODE_PATH);
+
+        CachingDrupalServicesRequestManager restarted = newRequestManager(new TieredResponseCache(new MemoryResponseCache(10), new DiskResponseCache(cacheDirectory, 1024 * 1024)));
+        assertEquals("{\"nid\":\"2\"}", restarted.getString(NODE_PATH).getResponseBody());
+        assertEquals(1, restarted.getHitCount());
+    }
+
+    @Test
+    public void testSessionCookieNotWrittenToDisk() throws IOException
+    {
+        final String loginPath = "http://se.local/dandy/user/login.json";
+        final ServicesResponse login = response(200, "{\"sessid\":\"s3cr3t\",\"session_name\":\"SESSabc\",\"user\":{\"uid\":\"5\"}}");
+        final ServicesResponse response = response(200, "{\"nid\":\"2\"}");
+        response.setHeader("Cache-Control", "max-age=60");
+        mockery.checking(new Expectations()
+        {
+            {
+                exactly(2).of(delegate).post(with(equal(loginPath)), with(any(Map.class)));
+                will(returnValue(login));
+                one(delegate).getString(NODE_PATH);
+                will(returnValue(response));
+            }
+        });
+        cookies.add(sessionCookie("s3cr3t"));
+        requestManager.post(loginPath, new HashMap<String, Object>());
+        requestManager.getString(NODE_PATH);
+
+        File[] files = cacheDirectory.listFiles();
+        assertEquals(1, files.length);
+        byte[] contents = new byte[(int)files[0].length()];
+        FileInputStream in = new FileInputStream(files[0]);
+        try {
+            assertEquals(contents.length, in.read(contents));
+        } finally {
+            in.close();
+        }
+        assertEquals(-1, new String(contents, "ISO-8859-1").indexOf("s3cr3t"));
+
+        // a new session for the same user still finds the entry
+        cookies.clear();
+        cookies.add(sessionCookie("an0th3r"));
+        requestManager.post(loginPath, new HashMap<String, Object>());
+        requestManager.getString(NODE_PATH);
+        assertEquals(1, requestManager.getHitCount());
+    }
+
+    @Test
+    public void testDiskCacheTrimsLeastRecentlyUsed() throws IOException
+    {
+        DiskResponseCache cache = new DiskResponseCache(cacheDirectory, 1024 * 1024);
+        cache.put("a", new CachedResponse(response(200, "a"), 0));
+        long entrySize = cache.getSize();
+        cache.put("b", new CachedResponse(response(200, "b"), 0));
+        cache.put("c", new CachedResponse(response(200, "c"), 0));
+        assertEquals(3 * entrySize, cache.getSize());
+
+        cache = new DiskResponseCache(cacheDirectory, 2 * entrySize);
+        assertEquals(3 * entrySize, cache.getSize());
+        assertNotNull(cache.get("a"));
+        cache.put("d", new CachedResponse(response(200, "d"), 0));
+        assertEquals(2 * entrySize, cache.getSize());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        cache.remove("a");
+        assertEquals(entrySize, cache.getSize());
+        assertEquals(1, cacheDirectory.listFiles().length);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockery.assertIsSatisfied();
+        new DiskResponseCache(cacheDirectory, 0).clear();
+        //noinspection ResultOfMethodCallIgnored
+        cacheDirectory.delete();
+    }
+
+    private CachingDrupalServicesRequestManager newRequestManager(ResponseCache cache)
+    {
+        return new CachingDrupalServicesRequestManager(delegate, cache)
+        {
+            @Override
+            protected long currentTimeMillis()
+            {
+                return now;
+            }
+        };
+    }
+
+    private static GenericCookie sessionCookie(String value)
+    {
+        GenericCookie cookie = new GenericCookie();
+        cookie.setName("SESSabc");
+        cookie.setValue(value);
+        return cookie;
+    }
+
+    private static ServicesResponse response(int statusCode, String body)
+    {
+        ServicesResponse response = new ServicesResponse();
+        response.setStatusCode(statusCode);
+        response.setResponseBody(body);
+        return response;
+    }
+}
@@ -0,0 +1,176 @@
+package org.workhabit.drupal.http.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.workhabit.drupal.http.DelegatingDrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DrupalFileCacheTest
+{
+    private static final String IMAGE = "http://se.local/sites/default/files/image.jpg";
+    private File directory;
+    private long now = 1000000L;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final List<String> conditions = new ArrayList<String>();
+    private volatile CountDownLatch release;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("dandy-files", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void testDownloadHitAndRevalidation() throws IOException
+    {
+        DrupalFileCache cache = newCache(1024);
+        cache.setTimeToLive(1000);
+        File file = cache.getFile(IMAGE);
+        assertEquals("image.jpg", read(file));
+        assertEquals(file, cache.getFile(IMAGE));
+        assertEquals(1, downloads.get());
+        assertEquals(1, cache.getHitCount());
+
+        now += 1000;
+        assertEquals("image.jpg", read(cache.openStream(IMAGE)));
+        assertEquals(2, downloads.get());
+        assertEquals("\"image.jpg\"", conditions.get(1));
+        assertEquals(1, cache.getRevalidationCount());
+
+        // the index survives a restart
+        DrupalFileCache reopened = newCache(1024);
+        reopened.setTimeToLive(1000);
+        assertEquals("image.jpg", read(reopened.getFile(IMAGE)));
+        assertEquals(2, downloads.get());
+        assertEquals(9, reopened.getSize());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException
+    {
+        DrupalFileCache cache = newCache(12);
+        cache.getFile("http://se.local/a.jpg");
+        cache.getFile("http://se.local/b.jpg");
+        cache.getFile("http://se.local/a.jpg");
+        cache.getFile("http://se.local/c.jpg");
+        assertEquals(10, cache.getSize());
+        assertEquals(3, downloads.get());
+        cache.getFile("http://se.local/a.jpg");
+        assertEquals(3, downloads.get());
+        cache.getFile("http://se.local/b.jpg");
+        assertEquals(4, downloads.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareDownload() throws Exception
+    {
+        final DrupalFileCache cache = newCache(1024);
+        release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<File>()
+                {
+                    public File call() throws IOException
+                    {
+                        return cache.getFile(IMAGE);
+                    }
+                }));
+            }
+            while (cache.getCoalescedCount() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<File> future : futures) {
+                assertEquals("image.jpg", read(future.get()));
+            }
+            assertEquals(1, downloads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private DrupalFileCache newCache(long maxBytes)
+    {
+        DelegatingDrupalServicesRequestManager requestManager = new DelegatingDrupalServicesRequestManager(null)
+        {
+            @Override
+            public ServicesResponse download(String path, Map<String, String> requestHeaders, File destination) throws IOException
+            {
+                downloads.incrementAndGet();
+                if (release != null) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                String etag = "\"" + name + "\"";
+                synchronized (conditions) {
+                    conditions.add(requestHeaders.get("If-None-Match"));
+                }
+                ServicesResponse response = new ServicesResponse();
+                response.setHeader("ETag", etag);
+                if (etag.equals(requestHeaders.get("If-None-Match"))) {
+                    response.setStatusCode(304);
+                    return response;
+                }
+                FileWriter writer = new FileWriter(destination);
+                writer.write(name);
+                writer.close();
+                response.setStatusCode(200);
+                return response;
+            }
+        };
+        return new DrupalFileCache(requestManager, directory, maxBytes)
+        {
+            @Override
+            protected long currentTimeMillis()
+            {
+                return now;
+            }
+        };
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return read(new FileInputStream(file));
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            return reader.readLine();
+        } finally {
+            in.close();
+        }
+    }
+}
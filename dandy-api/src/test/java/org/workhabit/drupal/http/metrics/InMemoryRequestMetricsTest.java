@@ -0,0 +1,56 @@
+package org.workhabit.drupal.http.metrics;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InMemoryRequestMetricsTest
+{
+    @Test
+    public void testClassify()
+    {
+        assertEquals(DrupalEndpoints.NODE_GET, DrupalEndpoints.classify("GET", "http://se.local/dandy/node/12.json"));
+        assertEquals(DrupalEndpoints.NODE_UPDATE, DrupalEndpoints.classify("PUT", "http://se.local/dandy/node/12.json"));
+        assertEquals(DrupalEndpoints.NODE_CREATE, DrupalEndpoints.classify("POST", "http://se.local/dandy/node.json"));
+        assertEquals(DrupalEndpoints.VIEWS_GET, DrupalEndpoints.classify("GET", "http://se.local/dandy/views/dandy_recent.json?args=1&offset=0&limit=10"));
+        assertEquals(DrupalEndpoints.COMMENT_LOAD_NODE_COMMENTS, DrupalEndpoints.classify("POST", "http://se.local/dandy/comment/loadNodeComments.json"));
+        assertEquals(DrupalEndpoints.USER_LOGIN, DrupalEndpoints.classify("POST", "http://se.local/dandy/user/login.json"));
+        assertEquals(DrupalEndpoints.FILE_CREATE, DrupalEndpoints.classify("POST", "http://se.local/dandy/file.json"));
+        assertEquals(DrupalEndpoints.OTHER, DrupalEndpoints.classify("GET", "http://se.local/sites/default/files/image.jpg"));
+    }
+
+    @Test
+    public void testSnapshot()
+    {
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.requestCompleted(DrupalEndpoints.NODE_GET, 200, i * 1000000L, 500000L, 0, 1000);
+        }
+        metrics.requestCompleted(DrupalEndpoints.NODE_GET, 404, 2000000L, 0, 0, 10);
+        metrics.requestCompleted(DrupalEndpoints.NODE_GET, -1, 5000000L, 0, 0, 0);
+        metrics.responseParsed(DrupalEndpoints.NODE_GET, 300000L, true);
+        metrics.responseParsed(DrupalEndpoints.NODE_GET, 300000L, false);
+        metrics.requestCompleted(DrupalEndpoints.FILE_CREATE, 200, 1000000L, 1000L, 4096, 100);
+
+        Map<String, EndpointMetrics.Snapshot> snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.size());
+        EndpointMetrics.Snapshot node = snapshot.get(DrupalEndpoints.NODE_GET);
+        assertEquals(102, node.getRequestCount());
+        assertEquals(3, node.getErrorCount());
+        assertEquals(100010, node.getBytesReceived());
+        // requests without a response don't skew the latency figures
+        assertEquals(101, node.getTimeToFirstByte().getCount());
+        assertEquals(100000, node.getTimeToFirstByte().getMaxMicros());
+        long median = node.getTimeToFirstByte().getPercentileMicros(50);
+        assertTrue(median >= 50000 && median <= 2 * 50000);
+        assertEquals(100000, node.getTimeToFirstByte().getPercentileMicros(100));
+        assertEquals(2, node.getParse().getCount());
+        assertEquals(300, node.getParse().getMeanMicros());
+        assertEquals(4096, snapshot.get(DrupalEndpoints.FILE_CREATE).getBytesSent());
+
+        metrics.reset();
+        assertTrue(metrics.snapshot().isEmpty());
+    }
+}
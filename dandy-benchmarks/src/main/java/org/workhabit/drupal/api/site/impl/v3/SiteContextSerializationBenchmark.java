@@ -0,0 +1,49 @@
+package org.workhabit.drupal.api.site.impl.v3;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.benchmarks.NodeFixtures;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The request bodies {@link Drupal7SiteContextImpl} builds for node.save and comment.save.  Lives in the site
+ * context's package because serializeNode and serializeComment are package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SiteContextSerializationBenchmark
+{
+    @Param({NodeFixtures.SMALL, NodeFixtures.RICH})
+    public String shape;
+
+    private Drupal7SiteContextImpl context;
+    private DrupalNode node;
+    private DrupalComment comment;
+
+    @Setup
+    public void setUp()
+    {
+        context = new Drupal7SiteContextImpl("http://se.local", "dandy");
+        node = NodeFixtures.node(1, shape);
+        comment = NodeFixtures.comment(1);
+    }
+
+    @Benchmark
+    public JsonObject serializeNode()
+    {
+        return context.serializeNode(node);
+    }
+
+    @Benchmark
+    public String serializeComment()
+    {
+        return context.serializeComment(comment);
+    }
+}
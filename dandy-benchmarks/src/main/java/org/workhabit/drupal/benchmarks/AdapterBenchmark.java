@@ -0,0 +1,98 @@
+package org.workhabit.drupal.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.*;
+import org.workhabit.drupal.api.json.BooleanAdapter;
+import org.workhabit.drupal.api.json.UnixTimeDateAdapter;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type adapters every date and flag of every entity goes through, called directly and through a Gson instance
+ * configured the way the serializers configure theirs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AdapterBenchmark
+{
+    /**
+     * Stands in for an entity: the dates and flags of a node, and nothing else.
+     */
+    public static class Stamps
+    {
+        Date created;
+        Date changed;
+        Date revisionTimestamp;
+        Date lastCommentTimestamp;
+        Boolean status;
+        Boolean promote;
+        Boolean sticky;
+        Boolean moderate;
+    }
+
+    private final UnixTimeDateAdapter dateAdapter = new UnixTimeDateAdapter();
+    private final BooleanAdapter booleanAdapter = new BooleanAdapter();
+    private final JsonElement timestamp = new JsonPrimitive("1297197059");
+    private final JsonElement flag = new JsonPrimitive("1");
+    private final Date date = new Date(1297197059000L);
+    private Gson gson;
+    private String stampsJson;
+    private Stamps stamps;
+
+    @Setup
+    public void setUp()
+    {
+        gson = new GsonBuilder()
+            .registerTypeAdapter(Date.class, dateAdapter)
+            .registerTypeAdapter(Boolean.class, booleanAdapter)
+            .create();
+        stampsJson = "{\"created\":\"1297197059\",\"changed\":\"1297795608\",\"revisionTimestamp\":\"1297795608\","
+                     + "\"lastCommentTimestamp\":\"1297197059\",\"status\":\"1\",\"promote\":\"1\",\"sticky\":\"0\","
+                     + "\"moderate\":\"0\"}";
+        stamps = gson.fromJson(stampsJson, Stamps.class);
+    }
+
+    @Benchmark
+    public Date deserializeDate()
+    {
+        return dateAdapter.deserialize(timestamp, Date.class, null);
+    }
+
+    @Benchmark
+    public JsonElement serializeDate()
+    {
+        return dateAdapter.serialize(date, Date.class, null);
+    }
+
+    @Benchmark
+    public Boolean deserializeBoolean()
+    {
+        return booleanAdapter.deserialize(flag, Boolean.class, null);
+    }
+
+    @Benchmark
+    public JsonElement serializeBoolean()
+    {
+        return booleanAdapter.serialize(Boolean.TRUE, Boolean.class, null);
+    }
+
+    @Benchmark
+    public Stamps gsonFromJson()
+    {
+        return gson.fromJson(stampsJson, Stamps.class);
+    }
+
+    @Benchmark
+    public String gsonToJson()
+    {
+        return gson.toJson(stamps);
+    }
+}
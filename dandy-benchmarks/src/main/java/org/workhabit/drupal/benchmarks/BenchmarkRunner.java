@@ -0,0 +1,33 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar.  Takes the usual JMH command line, and adds the gc profiler unless another profiler
+ * was asked for, so every run reports allocation rate and bytes allocated per operation next to the timings:
+ * <pre>
+ * mvn -P benchmarks -pl dandy-benchmarks -am package
+ * java -jar dandy-benchmarks/target/benchmarks.jar                     # everything
+ * java -jar dandy-benchmarks/target/benchmarks.jar ViewBenchmark -p shape=rich
+ * </pre>
+ */
+public final class BenchmarkRunner
+{
+    private BenchmarkRunner()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        List<String> argv = new ArrayList<String>(Arrays.asList(args));
+        if (!argv.contains("-prof") && !argv.contains("-h") && !argv.contains("-l")) {
+            argv.add("-prof");
+            argv.add("gc");
+        }
+        Main.main(argv.toArray(new String[argv.size()]));
+    }
+}
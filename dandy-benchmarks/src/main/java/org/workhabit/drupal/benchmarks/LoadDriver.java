@@ -0,0 +1,367 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.exceptions.DrupalSaveException;
+import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
+import org.workhabit.drupal.api.site.support.AndroidDrupalServicesRequestManagerImpl;
+import org.workhabit.drupal.api.site.support.HttpTransportConfiguration;
+import org.workhabit.drupal.api.site.support.JdkDrupalServicesRequestManager;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.metrics.EndpointMetrics;
+import org.workhabit.drupal.http.metrics.InMemoryRequestMetrics;
+import org.workhabit.drupal.http.metrics.LatencyHistogram;
+
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpClient;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a {@link Drupal7SiteContextImpl} from a number of concurrent workers, each running a fixed mix of reads and
+ * writes back to back, and reports throughput, latency percentiles per operation and the allocation rate of the
+ * worker threads.
+ * <p/>
+ * By default the site is a {@link LocalDrupalServer} in the same JVM, so runs are repeatable offline; pass
+ * <code>--url</code> and <code>--endpoint</code> to drive a real site instead.  Options, with their defaults:
+ * <pre>
+ * --workers=8        concurrent workers, and connections in the pool
+ * --duration=30      seconds measured
+ * --warmup=10        seconds run before measuring
+ * --latency=0        milliseconds the stand-in server waits before each response
+ * --shape=small      node shape served by the stand-in, small or rich
+ * --page=20          nodes per view page
+ * --transport=apache apache for {@link AndroidDrupalServicesRequestManagerImpl}, jdk for
+ *                    {@link JdkDrupalServicesRequestManager}, or jdk-http1 for the same without HTTP/2
+ * --url, --endpoint  a real site to drive instead of the stand-in
+ * </pre>
+ * The allocation rate counts the worker threads only, i.e. what the api allocates to make and parse requests.
+ * HttpClient's connection threads and the stand-in server are not included; the jdk transport reads responses on the
+ * client's own threads, so its figure leaves out more than the apache one does.
+ */
+public class LoadDriver
+{
+    /**
+     * The operations each worker picks from, with their relative weights.
+     */
+    enum Operation
+    {
+        NODE_GET(45),
+        VIEW_PAGE(20),
+        COMMENTS(15),
+        COMMENT_SAVE(8),
+        NODE_SAVE(7),
+        USER_GET(5);
+
+        final int weight;
+
+        Operation(int weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    private final Drupal7SiteContextImpl context;
+    private final int workers;
+    private final int pageSize;
+    private final int viewSize;
+    private final InMemoryRequestMetrics metrics;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final AtomicLong errors = new AtomicLong();
+    private final Operation[] mix;
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    /**
+     * @param context  the context to drive.
+     * @param workers  the number of concurrent workers.
+     * @param pageSize the number of nodes per view page.
+     * @param viewSize the number of nodes in the view, which is also the range node ids are picked from.
+     * @param metrics  the metrics the context reports to, reset when measuring starts.  May be null.
+     */
+    public LoadDriver(Drupal7SiteContextImpl context, int workers, int pageSize, int viewSize, InMemoryRequestMetrics metrics)
+    {
+        this.context = context;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.pageSize = pageSize;
+        this.viewSize = viewSize;
+        List<Operation> operations = new ArrayList<Operation>();
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            for (int i = 0; i < operation.weight; i++) {
+                operations.add(operation);
+            }
+        }
+        mix = operations.toArray(new Operation[operations.size()]);
+    }
+
+    /**
+     * Runs the workers for the warm-up and then the measured period, and returns what was measured.
+     */
+    public Report run(long warmupMillis, long durationMillis) throws InterruptedException
+    {
+        final CountDownLatch finished = new CountDownLatch(workers);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try {
+                        work();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "load-worker-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(warmupMillis);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        // histograms can't be cleared, so start fresh ones for the measured period
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        errors.set(0);
+        if (metrics != null) {
+            metrics.reset();
+        }
+        long allocatedBefore = allocatedBytes(threadBean, threads);
+        long started = System.nanoTime();
+        measuring = true;
+
+        Thread.sleep(durationMillis);
+
+        measuring = false;
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocatedBytes(threadBean, threads) - allocatedBefore;
+        running = false;
+        finished.await(30, TimeUnit.SECONDS);
+
+        Map<Operation, LatencyHistogram.Snapshot> snapshots = new EnumMap<Operation, LatencyHistogram.Snapshot>(Operation.class);
+        for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Report(workers, elapsed, snapshots, errors.get(), allocated);
+    }
+
+    private void work()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            Operation operation = mix[random.nextInt(mix.length)];
+            boolean measured = measuring;
+            long started = System.nanoTime();
+            try {
+                execute(operation, random);
+            } catch (Exception e) {
+                if (measured) {
+                    errors.incrementAndGet();
+                }
+                continue;
+            }
+            if (measured && measuring) {
+                latencies.get(operation).record(System.nanoTime() - started);
+            }
+        }
+    }
+
+    private void execute(Operation operation, Random random) throws DrupalFetchException, DrupalSaveException
+    {
+        int nid = random.nextInt(Math.max(1, viewSize)) + 1;
+        switch (operation) {
+            case NODE_GET:
+                context.getNode(nid);
+                break;
+            case VIEW_PAGE:
+                int pages = Math.max(1, viewSize / pageSize);
+                context.getNodeView("dandy_recent", null, random.nextInt(pages) * pageSize, pageSize);
+                break;
+            case COMMENTS:
+                context.getComments(nid);
+                break;
+            case COMMENT_SAVE:
+                context.saveComment(NodeFixtures.comment(nid));
+                break;
+            case NODE_SAVE:
+                DrupalNode node = NodeFixtures.node(nid, NodeFixtures.SMALL);
+                node.setNid(random.nextBoolean() ? nid : 0);
+                context.saveNode(node);
+                break;
+            case USER_GET:
+                context.getUser(nid % 50 + 1);
+                break;
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadBean, List<Thread> threads)
+    {
+        long total = 0;
+        for (Thread thread : threads) {
+            long allocated = threadBean.getThreadAllocatedBytes(thread.getId());
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * What one measured period saw.
+     */
+    public static class Report
+    {
+        private final int workers;
+        private final long elapsedNanos;
+        private final Map<Operation, LatencyHistogram.Snapshot> latencies;
+        private final long errors;
+        private final long allocatedBytes;
+
+        Report(int workers, long elapsedNanos, Map<Operation, LatencyHistogram.Snapshot> latencies, long errors, long allocatedBytes)
+        {
+            this.workers = workers;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.errors = errors;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public long getOperationCount()
+        {
+            long count = 0;
+            for (LatencyHistogram.Snapshot snapshot : latencies.values()) {
+                count += snapshot.getCount();
+            }
+            return count;
+        }
+
+        public double getThroughput()
+        {
+            return getOperationCount() * 1e9 / elapsedNanos;
+        }
+
+        public double getAllocationRate()
+        {
+            return allocatedBytes * 1e9 / elapsedNanos;
+        }
+
+        public long getErrorCount()
+        {
+            return errors;
+        }
+
+        @Override
+        public String toString()
+        {
+            long operations = getOperationCount();
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d workers, %.1fs measured%n", workers, elapsedNanos / 1e9));
+            sb.append(String.format("throughput  %.1f ops/s (%d ops, %d errors)%n", getThroughput(), operations, errors));
+            sb.append(String.format("allocation  %.1f MB/s, %d bytes/op (worker threads)%n", getAllocationRate() / (1024 * 1024), operations == 0 ? 0 : allocatedBytes / operations));
+            sb.append(String.format("%-14s %10s %10s %10s %10s%n", "operation", "count", "p50 us", "p99 us", "max us"));
+            for (Map.Entry<Operation, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+                LatencyHistogram.Snapshot snapshot = entry.getValue();
+                sb.append(String.format("%-14s %10d %10d %10d %10d%n", entry.getKey().name().toLowerCase(), snapshot.getCount(),
+                                        snapshot.getPercentileMicros(50), snapshot.getPercentileMicros(99), snapshot.getMaxMicros()));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                usage();
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int workers = Integer.parseInt(option(options, "workers", "8"));
+        long duration = Long.parseLong(option(options, "duration", "30"));
+        long warmup = Long.parseLong(option(options, "warmup", "10"));
+        int pageSize = Integer.parseInt(option(options, "page", "20"));
+        int viewSize = 10000;
+
+        LocalDrupalServer server = null;
+        String siteUrl = options.get("url");
+        String endpoint = option(options, "endpoint", "dandy");
+        if (siteUrl == null) {
+            server = new LocalDrupalServer(endpoint);
+            server.setLatency(Long.parseLong(option(options, "latency", "0")));
+            server.setNodeShape(option(options, "shape", NodeFixtures.SMALL));
+            server.setViewSize(viewSize);
+            server.start();
+            siteUrl = server.getSiteUrl();
+        }
+
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setMaxTotalConnections(workers);
+        configuration.setMaxConnectionsPerRoute(workers);
+        DrupalServicesRequestManager requestManager = null;
+        String transport = option(options, "transport", "apache");
+        if ("apache".equals(transport)) {
+            requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        }
+        else if ("jdk".equals(transport)) {
+            requestManager = new JdkDrupalServicesRequestManager(configuration);
+        }
+        else if ("jdk-http1".equals(transport)) {
+            requestManager = new JdkDrupalServicesRequestManager(configuration, HttpClient.Version.HTTP_1_1);
+        }
+        else {
+            usage();
+        }
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+        Drupal7SiteContextImpl context = new Drupal7SiteContextImpl(siteUrl, endpoint);
+        context.setRequestManager(requestManager);
+        context.setMetricsListener(metrics);
+        try {
+            context.login(option(options, "username", "bench"), option(options, "password", "bench"));
+            System.out.println(String.format("driving %s/%s over %s, %d s warm-up", siteUrl, endpoint, transport, warmup));
+            LoadDriver driver = new LoadDriver(context, workers, pageSize, viewSize, metrics);
+            Report report = driver.run(TimeUnit.SECONDS.toMillis(warmup), TimeUnit.SECONDS.toMillis(duration));
+            System.out.print(report);
+            System.out.println();
+            System.out.println("per endpoint:");
+            for (EndpointMetrics.Snapshot snapshot : metrics.snapshot().values()) {
+                System.out.println(snapshot);
+            }
+        } finally {
+            shutdown(requestManager);
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    static void shutdown(DrupalServicesRequestManager requestManager)
+    {
+        if (requestManager instanceof AndroidDrupalServicesRequestManagerImpl) {
+            ((AndroidDrupalServicesRequestManagerImpl)requestManager).shutdown();
+        }
+        else if (requestManager instanceof JdkDrupalServicesRequestManager) {
+            ((JdkDrupalServicesRequestManager)requestManager).shutdown();
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: LoadDriver [--workers=8] [--duration=30] [--warmup=10] [--latency=0] [--shape=small] [--page=20] "
+                           + "[--transport=apache|jdk|jdk-http1] [--url=http://site --endpoint=dandy]");
+        System.exit(1);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue)
+    {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
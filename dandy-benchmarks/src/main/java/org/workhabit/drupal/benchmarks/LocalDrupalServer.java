@@ -0,0 +1,429 @@
+package org.workhabit.drupal.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process stand-in for a Drupal 7 site running the Services module, serving the endpoints
+ * {@link org.workhabit.drupal.api.site.impl.v3.DrupalSiteContextBridge} calls from {@link NodeFixtures}:
+ * <ul>
+ * <li>node retrieve, create, update and delete</li>
+ * <li>views, paged with offset and limit</li>
+ * <li>comment retrieve, create, delete and loadNodeComments</li>
+ * <li>user retrieve, login and logout</li>
+ * <li>file create and retrieve, and downloads of anything under sites/default/files</li>
+ * </ul>
+ * Nothing is stored: created nodes, comments and files get a fresh id and are forgotten.  Every response can be
+ * delayed by a fixed latency to stand in for the network, and the node shape, view length, comments per node and file
+ * size set the payload sizes.  Responses are gzipped when the client asks for it, as Apache with mod_deflate would.
+ * <pre>
+ * LocalDrupalServer server = new LocalDrupalServer("dandy");
+ * server.setLatency(20);
+ * server.start();
+ * Drupal7SiteContext context = new Drupal7SiteContextImpl(server.getSiteUrl(), server.getEndpoint());
+ * </pre>
+ */
+public class LocalDrupalServer
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SESSION_NAME = "SESSlocal";
+    private static final Pattern NODE = Pattern.compile("/node/(\\d+)\\.json");
+    private static final Pattern VIEW = Pattern.compile("/views/([^/]+)\\.json");
+    private static final Pattern COMMENT = Pattern.compile("/comment/(\\d+)\\.json");
+    private static final Pattern USER = Pattern.compile("/user/(\\d+)\\.json");
+    private static final Pattern FILE = Pattern.compile("/file/(\\d+)\\.json");
+    private static final Pattern FILE_NAME = Pattern.compile("filename=\"([^\"]*)\"");
+    private static final String FILES = "/sites/default/files/";
+
+    static {
+        // the server writes the response headers and body separately; without TCP_NODELAY the body waits for the
+        // client's delayed ACK of the headers, ~40ms on Linux, for clients that don't ACK early (the JDK client)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final String endpoint;
+    private final AtomicInteger nextId = new AtomicInteger(100000);
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile long latency;
+    private volatile String nodeShape = NodeFixtures.SMALL;
+    private volatile int viewSize = 10000;
+    private volatile int commentsPerNode = 10;
+    private volatile int fileSize = 64 * 1024;
+    private volatile boolean compressResponses = true;
+    private volatile boolean fullFileResponses;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param endpoint the services endpoint path, as passed to {@link org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl}
+     */
+    public LocalDrupalServer(String endpoint)
+    {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException if the port can't be bound.
+     */
+    public synchronized void start() throws IOException
+    {
+        if (server != null) {
+            throw new IllegalStateException("already started");
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "local-drupal-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", new Handler());
+        server.start();
+    }
+
+    public synchronized void stop()
+    {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the url of the site, e.g. http://127.0.0.1:51234
+     */
+    public synchronized String getSiteUrl()
+    {
+        if (server == null) {
+            throw new IllegalStateException("not started");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of requests served since the server started.
+     */
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * @param latency milliseconds to wait before answering each request.
+     */
+    public void setLatency(long latency)
+    {
+        this.latency = latency;
+    }
+
+    /**
+     * @param nodeShape {@link NodeFixtures#SMALL} or {@link NodeFixtures#RICH}, for nodes and views.
+     */
+    public void setNodeShape(String nodeShape)
+    {
+        this.nodeShape = nodeShape;
+    }
+
+    /**
+     * @param viewSize the number of nodes in every view.  Pages past the end come back short, then empty.
+     */
+    public void setViewSize(int viewSize)
+    {
+        this.viewSize = viewSize;
+    }
+
+    /**
+     * @param commentsPerNode the number of comments comment/loadNodeComments returns.
+     */
+    public void setCommentsPerNode(int commentsPerNode)
+    {
+        this.commentsPerNode = commentsPerNode;
+    }
+
+    /**
+     * @param fileSize the size in bytes of every file served under sites/default/files.
+     */
+    public void setFileSize(int fileSize)
+    {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @param compressResponses whether to gzip responses for clients that accept it.
+     */
+    public void setCompressResponses(boolean compressResponses)
+    {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * By default file create answers with only the fid and uri, as Services 3 does, so clients have to retrieve the
+     * file to learn the rest.  Some sites answer with the whole file entity, which saves that request.
+     *
+     * @param fullFileResponses whether file create answers with the whole file entity.
+     */
+    public void setFullFileResponses(boolean fullFileResponses)
+    {
+        this.fullFileResponses = fullFileResponses;
+    }
+
+    private class Handler implements HttpHandler
+    {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            requestCount.incrementAndGet();
+            try {
+                if (latency > 0) {
+                    TimeUnit.MILLISECONDS.sleep(latency);
+                }
+                route(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (JSONException e) {
+                sendJson(exchange, 406, "[\"" + e.getMessage().replace("\"", "'") + "\"]");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void route(HttpExchange exchange) throws IOException, JSONException
+        {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith(FILES) && "GET".equals(method)) {
+                sendFile(exchange);
+                return;
+            }
+            String prefix = "/" + endpoint;
+            if (!path.startsWith(prefix + "/")) {
+                sendJson(exchange, 404, "[\"Could not find resource\"]");
+                return;
+            }
+            path = path.substring(prefix.length());
+            String siteUrl = "http://" + exchange.getRequestHeaders().getFirst("Host") + prefix;
+            Matcher matcher;
+            if ("GET".equals(method) && (matcher = NODE.matcher(path)).matches()) {
+                sendJson(exchange, 200, NodeFixtures.nodeJson(Integer.parseInt(matcher.group(1)), nodeShape));
+            }
+            else if ("PUT".equals(method) && (matcher = NODE.matcher(path)).matches()) {
+                drain(exchange);
+                sendJson(exchange, 200, saved("nid", Integer.parseInt(matcher.group(1)), siteUrl + "/node"));
+            }
+            else if ("DELETE".equals(method) && NODE.matcher(path).matches()) {
+                sendJson(exchange, 200, "[true]");
+            }
+            else if ("POST".equals(method) && "/node.json".equals(path)) {
+                drain(exchange);
+                sendJson(exchange, 200, saved("nid", nextId.incrementAndGet(), siteUrl + "/node"));
+            }
+            else if ("GET".equals(method) && VIEW.matcher(path).matches()) {
+                Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+                int offset = query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+                int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 10;
+                int count = Math.max(0, Math.min(limit, viewSize - offset));
+                sendJson(exchange, 200, NodeFixtures.viewJson(offset, count, nodeShape));
+            }
+            else if ("POST".equals(method) && "/comment/loadNodeComments.json".equals(path)) {
+                Map<String, String> form = parse(new String(read(exchange), UTF_8));
+                int nid = Integer.parseInt(form.get("nid"));
+                sendJson(exchange, 200, NodeFixtures.commentsJson(nid, commentsPerNode));
+            }
+            else if ("GET".equals(method) && (matcher = COMMENT.matcher(path)).matches()) {
+                int cid = Integer.parseInt(matcher.group(1));
+                sendJson(exchange, 200, NodeFixtures.commentJson(cid, Math.max(1, cid / 1000)));
+            }
+            else if ("DELETE".equals(method) && COMMENT.matcher(path).matches()) {
+                sendJson(exchange, 200, "[true]");
+            }
+            else if ("POST".equals(method) && "/comment.json".equals(path)) {
+                JSONObject comment = new JSONObject(new String(read(exchange), UTF_8)).getJSONObject("comment");
+                int cid = nextId.incrementAndGet();
+                sendJson(exchange, 200, "{\"cid\":\"" + cid + "\",\"nid\":\"" + comment.getInt("nid") + "\",\"uri\":\"" + siteUrl + "/comment/" + cid + "\"}");
+            }
+            else if ("POST".equals(method) && "/user/login.json".equals(path)) {
+                Map<String, String> form = parse(new String(read(exchange), UTF_8));
+                String sessid = Long.toHexString(Double.doubleToLongBits(Math.random()));
+                int uid = Math.abs(String.valueOf(form.get("username")).hashCode() % 50) + 1;
+                exchange.getResponseHeaders().add("Set-Cookie", SESSION_NAME + "=" + sessid + "; path=/");
+                sendJson(exchange, 200, "{\"sessid\":\"" + sessid + "\",\"session_name\":\"" + SESSION_NAME + "\",\"user\":" + NodeFixtures.userJson(uid) + "}");
+            }
+            else if ("POST".equals(method) && "/user/logout.json".equals(path)) {
+                drain(exchange);
+                sendJson(exchange, 200, "[true]");
+            }
+            else if ("GET".equals(method) && (matcher = USER.matcher(path)).matches()) {
+                sendJson(exchange, 200, NodeFixtures.userJson(Integer.parseInt(matcher.group(1))));
+            }
+            else if ("POST".equals(method) && "/file.json".equals(path)) {
+                sendJson(exchange, 200, savedFile(exchange, siteUrl));
+            }
+            else if ("GET".equals(method) && (matcher = FILE.matcher(path)).matches()) {
+                int fid = Integer.parseInt(matcher.group(1));
+                sendJson(exchange, 200, fileJson(fid, "upload-" + fid, fileSize, siteUrl));
+            }
+            else {
+                drain(exchange);
+                sendJson(exchange, 404, "[\"Could not find resource\"]");
+            }
+        }
+
+        private String saved(String idName, int id, String resourceUrl)
+        {
+            return "{\"" + idName + "\":\"" + id + "\",\"uri\":\"" + resourceUrl + "/" + id + "\"}";
+        }
+
+        /**
+         * Reads the multipart upload without keeping it, picking the file name out of the part headers for a full
+         * file response.
+         */
+        private String savedFile(HttpExchange exchange, String siteUrl) throws IOException
+        {
+            InputStream in = body(exchange);
+            byte[] buffer = new byte[8192];
+            String fileName = null;
+            long size = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (fileName == null) {
+                    Matcher matcher = FILE_NAME.matcher(new String(buffer, 0, read, UTF_8));
+                    if (matcher.find()) {
+                        fileName = matcher.group(1);
+                    }
+                }
+                size += read;
+            }
+            int fid = nextId.incrementAndGet();
+            if (!fullFileResponses) {
+                return saved("fid", fid, siteUrl + "/file");
+            }
+            return fileJson(fid, fileName != null ? fileName : "upload-" + fid, size, siteUrl);
+        }
+
+        private String fileJson(int fid, String fileName, long size, String siteUrl)
+        {
+            return "{\"fid\":\"" + fid + "\",\"uid\":\"1\",\"filename\":\"" + fileName + "\",\"filepath\":\"sites/default/files/" + fileName
+                   + "\",\"filemime\":\"application/octet-stream\",\"filesize\":\"" + size + "\",\"status\":\"1\",\"timestamp\":\""
+                   + System.currentTimeMillis() / 1000 + "\",\"uri\":\"" + siteUrl + "/file/" + fid + "\"}";
+        }
+
+        private void sendFile(HttpExchange exchange) throws IOException
+        {
+            drain(exchange);
+            int size = fileSize;
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().add("ETag", "\"" + size + "\"");
+            exchange.sendResponseHeaders(200, size);
+            OutputStream out = exchange.getResponseBody();
+            byte[] block = new byte[8192];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte)i;
+            }
+            for (int written = 0; written < size; written += block.length) {
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+            out.close();
+        }
+
+        private void sendJson(HttpExchange exchange, int status, String json) throws IOException
+        {
+            byte[] bytes = json.getBytes(UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (compressResponses && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                // compressed up front so the response goes out with a length rather than chunked
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192);
+                gzip.write(bytes);
+                gzip.close();
+                bytes = buffer.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+
+        private InputStream body(HttpExchange exchange) throws IOException
+        {
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                return new GZIPInputStream(in);
+            }
+            return in;
+        }
+
+        private byte[] read(HttpExchange exchange) throws IOException
+        {
+            InputStream in = body(exchange);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+
+        private void drain(HttpExchange exchange) throws IOException
+        {
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) {
+            }
+        }
+
+        private Map<String, String> parse(String query) throws UnsupportedEncodingException
+        {
+            Map<String, String> parameters = new HashMap<String, String>();
+            if (query == null || query.length() == 0) {
+                return parameters;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+            return parameters;
+        }
+    }
+}
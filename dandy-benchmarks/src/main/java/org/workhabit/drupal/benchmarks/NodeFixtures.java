@@ -0,0 +1,312 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.workhabit.drupal.api.entity.drupal7.*;
+
+import java.util.*;
+
+/**
+ * Builds the json payloads and entities the benchmarks run against.  The payloads follow the shape a Drupal 7
+ * services endpoint returns: string encoded numbers, unix second timestamps, a language keyed body, cck fields as
+ * arrays of value objects and taxonomy as an object keyed by tid.
+ * <p/>
+ * Everything is generated from the node id, so a fixture is the same on every run and every fork.
+ */
+public final class NodeFixtures
+{
+    /**
+     * A node with no cck fields and no taxonomy, like a plain page.
+     */
+    public static final String SMALL = "small";
+
+    /**
+     * A node with {@link #RICH_FIELD_COUNT} cck fields and {@link #RICH_TERM_COUNT} taxonomy terms.
+     */
+    public static final String RICH = "rich";
+
+    public static final int RICH_FIELD_COUNT = 36;
+    public static final int RICH_TERM_COUNT = 24;
+
+    private static final long CREATED = 1297197059L;
+
+    private NodeFixtures()
+    {
+    }
+
+    public static int fieldCount(String shape)
+    {
+        return RICH.equals(shape) ? RICH_FIELD_COUNT : 0;
+    }
+
+    public static int termCount(String shape)
+    {
+        return RICH.equals(shape) ? RICH_TERM_COUNT : 0;
+    }
+
+    /**
+     * @param nid   the node id
+     * @param shape {@link #SMALL} or {@link #RICH}
+     * @return the node as the endpoint would send it
+     */
+    public static String nodeJson(int nid, String shape)
+    {
+        StringBuilder json = new StringBuilder(1024);
+        appendNode(json, nid, fieldCount(shape), termCount(shape));
+        return json.toString();
+    }
+
+    /**
+     * @param count the number of nodes in the view
+     * @param shape {@link #SMALL} or {@link #RICH}
+     * @return a view response holding <code>count</code> nodes
+     */
+    public static String viewJson(int count, String shape)
+    {
+        return viewJson(0, count, shape);
+    }
+
+    /**
+     * @param offset the number of nodes before this page; the page starts at nid <code>offset + 1</code>
+     * @param count  the number of nodes in the page
+     * @param shape  {@link #SMALL} or {@link #RICH}
+     * @return a page of a view response
+     */
+    public static String viewJson(int offset, int count, String shape)
+    {
+        int fields = fieldCount(shape);
+        int terms = termCount(shape);
+        StringBuilder json = new StringBuilder(count * (fields > 0 ? 12288 : 1024) + 2);
+        json.append('[');
+        for (int nid = offset + 1; nid <= offset + count; nid++) {
+            if (nid > offset + 1) {
+                json.append(',');
+            }
+            appendNode(json, nid, fields, terms);
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @param nid   the node the comments belong to
+     * @param count the number of comments
+     * @return a comment.loadNodeComments response
+     */
+    public static String commentsJson(int nid, int count)
+    {
+        StringBuilder json = new StringBuilder(count * 768 + 2);
+        json.append('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendComment(json, nid * 1000 + i + 1, nid);
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @param cid the comment id
+     * @param nid the node the comment belongs to
+     * @return the comment as the endpoint would send it
+     */
+    public static String commentJson(int cid, int nid)
+    {
+        StringBuilder json = new StringBuilder(768);
+        appendComment(json, cid, nid);
+        return json.toString();
+    }
+
+    /**
+     * @param uid the user id
+     * @return the user as the endpoint would send it
+     */
+    public static String userJson(int uid)
+    {
+        return "{\"uid\":\"" + uid + "\",\"name\":\"user" + uid + "\",\"mail\":\"user" + uid + "@se.local\",\"created\":\""
+               + CREATED + "\",\"access\":\"" + CREATED + "\",\"login\":\"" + CREATED + "\",\"status\":\"1\"}";
+    }
+
+    private static void appendComment(StringBuilder json, int cid, int nid)
+    {
+        int uid = cid % 50 + 1;
+        json.append("{\"cid\":\"").append(cid).append("\",\"nid\":\"").append(nid)
+            .append("\",\"uid\":\"").append(uid)
+            .append("\",\"subject\":\"Re: Benchmark article ").append(nid)
+            .append("\",\"name\":\"user").append(uid)
+            .append("\",\"mail\":\"\",\"status\":\"1\",\"created\":\"").append(CREATED + cid)
+            .append("\",\"changed\":\"").append(CREATED + cid)
+            .append("\",\"comment_body\":{\"und\":[{\"value\":\"").append(paragraph(nid))
+            .append("\",\"format\":\"filtered_html\",\"safe_value\":\"<p>").append(paragraph(nid))
+            .append("<\\/p>\\n\"}]}}");
+    }
+
+    private static void appendNode(StringBuilder json, int nid, int fields, int terms)
+    {
+        long changed = CREATED + nid * 60L;
+        json.append("{\"nid\":\"").append(nid).append("\",\"vid\":\"").append(nid)
+            .append("\",\"uid\":\"").append(nid % 50 + 1)
+            .append("\",\"title\":\"Benchmark article ").append(nid)
+            .append("\",\"log\":\"\",\"status\":\"1\",\"comment\":\"2\",\"promote\":\"1\",\"sticky\":\"0\"")
+            .append(",\"type\":\"article\",\"language\":\"und\"")
+            .append(",\"created\":\"").append(CREATED)
+            .append("\",\"changed\":\"").append(changed)
+            .append("\",\"revision_timestamp\":\"").append(changed)
+            .append("\",\"body\":{\"und\":[{\"value\":\"").append(paragraph(nid))
+            .append("\",\"summary\":\"\",\"format\":\"filtered_html\",\"safe_value\":\"<p>").append(paragraph(nid))
+            .append("<\\/p>\\n\",\"safe_summary\":\"\"}]}");
+        for (int i = 0; i < fields; i++) {
+            json.append(",\"field_").append(fieldName(i)).append("\":[");
+            int values = i % 3 + 1;
+            for (int v = 0; v < values; v++) {
+                if (v > 0) {
+                    json.append(',');
+                }
+                if (i % 4 == 0) {
+                    json.append("{\"fid\":\"").append(nid * 100 + v)
+                        .append("\",\"filepath\":\"sites\\/default\\/files\\/").append(nid).append('_').append(v)
+                        .append(".jpg\",\"filemime\":\"image\\/jpeg\",\"data\":{\"alt\":\"image ").append(v)
+                        .append("\",\"title\":\"\"}}");
+                } else {
+                    json.append("{\"value\":\"").append(fieldName(i)).append(' ').append(nid).append(' ').append(v)
+                        .append("\",\"format\":null,\"safe_value\":\"").append(fieldName(i)).append(' ').append(nid)
+                        .append(' ').append(v).append("\"}");
+                }
+            }
+            json.append(']');
+        }
+        if (terms > 0) {
+            json.append(",\"taxonomy\":{");
+            for (int i = 0; i < terms; i++) {
+                int tid = (nid + i) % 500 + 1;
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(tid).append("\":{\"tid\":\"").append(tid)
+                    .append("\",\"vid\":\"").append(i % 3 + 1)
+                    .append("\",\"name\":\"term ").append(tid)
+                    .append("\",\"description\":\"\",\"weight\":\"0\",\"depth\":\"").append(i % 2)
+                    .append("\",\"node_count\":\"").append(tid * 3)
+                    .append("\",\"parents\":[\"").append(i % 2 == 0 ? 0 : tid - 1).append("\"]}");
+            }
+            json.append('}');
+        } else {
+            json.append(",\"taxonomy\":[]");
+        }
+        json.append(",\"cid\":\"0\",\"last_comment_timestamp\":\"").append(changed)
+            .append("\",\"last_comment_name\":null,\"comment_count\":\"").append(nid % 7)
+            .append("\",\"name\":\"user").append(nid % 50 + 1)
+            .append("\",\"picture\":\"0\",\"data\":null,\"uri\":\"http:\\/\\/se.local\\/dandy\\/node\\/").append(nid)
+            .append("\"}");
+    }
+
+    /**
+     * @param nid   the node id
+     * @param shape {@link #SMALL} or {@link #RICH}
+     * @return a new node with the same content {@link #nodeJson(int, String)} describes
+     */
+    public static DrupalNode node(int nid, String shape)
+    {
+        Date created = new Date(CREATED * 1000);
+        Date changed = new Date((CREATED + nid * 60L) * 1000);
+        DrupalNode node = new DrupalNode();
+        node.setNid(nid);
+        node.setUid(nid % 50 + 1);
+        node.setType("article");
+        node.setTitle("Benchmark article " + nid);
+        node.setStatus(true);
+        node.setPromote(true);
+        node.setSticky(false);
+        node.setComment(2);
+        node.setLanguage("und");
+        node.setCreated(created);
+        node.setChanged(changed);
+        node.setRevisionTimestamp(changed);
+        node.setLastCommentTimestamp(changed);
+        node.setName("user" + (nid % 50 + 1));
+        node.setBody(body(paragraph(nid)));
+
+        int fields = fieldCount(shape);
+        if (fields > 0) {
+            Map<String, DrupalField> fieldMap = new HashMap<String, DrupalField>();
+            for (int i = 0; i < fields; i++) {
+                DrupalField field = new DrupalField();
+                field.setName(fieldName(i));
+                ArrayList<HashMap<String, String>> values = new ArrayList<HashMap<String, String>>();
+                for (int v = 0; v < i % 3 + 1; v++) {
+                    HashMap<String, String> value = new HashMap<String, String>();
+                    if (i % 4 == 0) {
+                        value.put("fid", String.valueOf(nid * 100 + v));
+                        value.put("filepath", "sites/default/files/" + nid + "_" + v + ".jpg");
+                        value.put("data", "{\"alt\":\"image " + v + "\",\"title\":\"\"}");
+                    } else {
+                        value.put("value", fieldName(i) + " " + nid + " " + v);
+                    }
+                    values.add(value);
+                }
+                field.setValues(values);
+                fieldMap.put("field_" + fieldName(i), field);
+            }
+            node.setFields(fieldMap);
+        }
+
+        int terms = termCount(shape);
+        if (terms > 0) {
+            HashMap<Integer, DrupalTaxonomyTerm> taxonomy = new HashMap<Integer, DrupalTaxonomyTerm>();
+            for (int i = 0; i < terms; i++) {
+                int tid = (nid + i) % 500 + 1;
+                DrupalTaxonomyTerm term = new DrupalTaxonomyTerm();
+                term.setTid(tid);
+                term.setVid(i % 3 + 1);
+                term.setName("term " + tid);
+                term.setDescription("");
+                term.setDepth(i % 2);
+                term.setNodeCount(tid * 3);
+                term.setParents(Collections.singletonList(i % 2 == 0 ? 0 : tid - 1));
+                taxonomy.put(tid, term);
+            }
+            node.setTaxonomy(taxonomy);
+        }
+        return node;
+    }
+
+    /**
+     * @param nid the node the comment is posted to
+     * @return a new, unsaved comment
+     */
+    public static DrupalComment comment(int nid)
+    {
+        DrupalComment comment = new DrupalComment();
+        comment.setNid(nid);
+        comment.setUid(nid % 50 + 1);
+        comment.setSubject("Re: Benchmark article " + nid);
+        comment.setComment(paragraph(nid));
+        comment.setName("user" + (nid % 50 + 1));
+        comment.setStatus(true);
+        comment.setCreated(new Date(CREATED * 1000));
+        comment.setChanged(new Date(CREATED * 1000));
+        comment.setTimestamp(new Date(CREATED * 1000));
+        comment.setCommentBody(body(paragraph(nid)));
+        return comment;
+    }
+
+    private static Map<String, List<DrupalBody>> body(String value)
+    {
+        DrupalBody body = new DrupalBody();
+        body.setValue(value);
+        body.setSummary("");
+        body.setFormat("filtered_html");
+        Map<String, List<DrupalBody>> map = new HashMap<String, List<DrupalBody>>();
+        map.put("und", Collections.singletonList(body));
+        return map;
+    }
+
+    private static String fieldName(int i)
+    {
+        return "attribute_" + i;
+    }
+
+    private static String paragraph(int nid)
+    {
+        return "Node " + nid + " body. Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor"
+               + " incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation.";
+    }
+}
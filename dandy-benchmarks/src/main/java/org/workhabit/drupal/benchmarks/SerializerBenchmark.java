@@ -0,0 +1,49 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.*;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.json.DrupalJsonObjectSerializer;
+import org.workhabit.drupal.api.json.DrupalJsonObjectSerializerFactory;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing a single node with {@link DrupalJsonObjectSerializer}, as node.get and node.save do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SerializerBenchmark
+{
+    @Param({NodeFixtures.SMALL, NodeFixtures.RICH})
+    public String shape;
+
+    private DrupalJsonObjectSerializer<DrupalNode> serializer;
+    private String json;
+    private DrupalNode node;
+
+    @Setup
+    public void setUp()
+    {
+        serializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalNode.class);
+        json = NodeFixtures.nodeJson(1, shape);
+        node = NodeFixtures.node(1, shape);
+    }
+
+    @Benchmark
+    public DrupalNode unserialize() throws DrupalFetchException, JSONException
+    {
+        return serializer.unserialize(json);
+    }
+
+    @Benchmark
+    public String serialize() throws JSONException
+    {
+        return serializer.serialize(node);
+    }
+}
@@ -0,0 +1,135 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.workhabit.drupal.api.site.support.AndroidDrupalServicesRequestManagerImpl;
+import org.workhabit.drupal.api.site.support.HttpTransportConfiguration;
+import org.workhabit.drupal.api.site.support.JdkDrupalServicesRequestManager;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Apache transport against the JDK one, fetching nodes from a {@link LocalDrupalServer}.
+ * <p/>
+ * nodeGet is eight threads each making blocking requests, as worker threads in a server would.  fanOut fetches
+ * {@value #FAN_OUT} nodes at once from a single thread, as a screen that shows many nodes would: the Apache transport
+ * needs a thread per request in flight, while the JDK one sends them all asynchronously.
+ * <p/>
+ * The stand-in server speaks HTTP/1.1 only, so the jdk transport declines its h2c upgrade and both transports use a
+ * connection per request in flight; jdk-http1 shows the cost of offering the upgrade.  To measure HTTP/2
+ * multiplexing, run {@link LoadDriver} with <code>--transport=jdk</code> against an h2 capable site.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark
+{
+    static final int FAN_OUT = 32;
+
+    @Param({"apache", "jdk", "jdk-http1"})
+    public String transport;
+
+    /**
+     * Milliseconds the server waits before each response.
+     */
+    @Param({"0", "20"})
+    public long latency;
+
+    private LocalDrupalServer server;
+    private DrupalServicesRequestManager requestManager;
+    private ExecutorService executor;
+    private String nodeUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        server = new LocalDrupalServer("dandy");
+        server.setLatency(latency);
+        server.start();
+        nodeUrl = server.getSiteUrl() + "/" + server.getEndpoint() + "/node/";
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setMaxTotalConnections(FAN_OUT);
+        configuration.setMaxConnectionsPerRoute(FAN_OUT);
+        if ("apache".equals(transport)) {
+            requestManager = new AndroidDrupalServicesRequestManagerImpl(configuration);
+        }
+        else {
+            HttpClient.Version version = "jdk".equals(transport) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+            requestManager = new JdkDrupalServicesRequestManager(configuration, version);
+        }
+        executor = Executors.newFixedThreadPool(FAN_OUT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        LoadDriver.shutdown(requestManager);
+        server.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Node
+    {
+        int nid;
+
+        String next(TransportBenchmark benchmark)
+        {
+            nid = nid % 1000 + 1;
+            return benchmark.nodeUrl + nid + ".json";
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ServicesResponse nodeGet(Node node) throws IOException
+    {
+        return requestManager.getString(node.next(this));
+    }
+
+    @Benchmark
+    public int fanOut() throws IOException, InterruptedException, ExecutionException
+    {
+        int length = 0;
+        if (requestManager instanceof JdkDrupalServicesRequestManager) {
+            JdkDrupalServicesRequestManager jdk = (JdkDrupalServicesRequestManager)requestManager;
+            List<CompletableFuture<ServicesResponse>> futures = new ArrayList<CompletableFuture<ServicesResponse>>(FAN_OUT);
+            for (int i = 1; i <= FAN_OUT; i++) {
+                futures.add(jdk.getStringAsync(nodeUrl + i + ".json"));
+            }
+            for (CompletableFuture<ServicesResponse> future : futures) {
+                length += future.get().getResponseBody().length();
+            }
+            return length;
+        }
+        List<Callable<ServicesResponse>> requests = new ArrayList<Callable<ServicesResponse>>(FAN_OUT);
+        for (int i = 1; i <= FAN_OUT; i++) {
+            final String url = nodeUrl + i + ".json";
+            requests.add(new Callable<ServicesResponse>()
+            {
+                public ServicesResponse call() throws IOException
+                {
+                    return requestManager.getString(url);
+                }
+            });
+        }
+        for (Future<ServicesResponse> future : executor.invokeAll(requests)) {
+            length += future.get().getResponseBody().length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,63 @@
+package org.workhabit.drupal.benchmarks;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.json.DrupalEntityHandler;
+import org.workhabit.drupal.api.json.DrupalJsonObjectSerializer;
+import org.workhabit.drupal.api.json.DrupalJsonObjectSerializerFactory;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading whole view responses, both into a list and streamed through a {@link DrupalEntityHandler}.  The gc
+ * profiler's bytes per operation is the number to watch here: the streamed variant should not grow with the view
+ * beyond the nodes themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+public class ViewBenchmark
+{
+    @Param({"1000", "10000"})
+    public int nodes;
+
+    @Param({NodeFixtures.SMALL, NodeFixtures.RICH})
+    public String shape;
+
+    private DrupalJsonObjectSerializer<DrupalNode> serializer;
+    private String json;
+
+    @Setup
+    public void setUp()
+    {
+        serializer = DrupalJsonObjectSerializerFactory.getInstance(DrupalNode.class);
+        json = NodeFixtures.viewJson(nodes, shape);
+    }
+
+    @Benchmark
+    public List<DrupalNode> unserializeList() throws DrupalFetchException, JSONException
+    {
+        return serializer.unserializeList(json);
+    }
+
+    @Benchmark
+    public int unserializeListStreaming(final Blackhole blackhole) throws IOException, DrupalFetchException
+    {
+        return serializer.unserializeList(new StringReader(json), new DrupalEntityHandler<DrupalNode>()
+        {
+            public void handleEntity(DrupalNode entity)
+            {
+                blackhole.consume(entity);
+            }
+        });
+    }
+}
@@ -0,0 +1,1055 @@
+package org.workhabit.drupal.api.site.support;
+
+import org.apache.http.client.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
+import org.workhabit.drupal.http.Abortable;
+import org.workhabit.drupal.http.CancellationScope;
+import org.workhabit.drupal.http.DrupalServicesRequestManager;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.ServicesResponseHandler;
+import org.workhabit.drupal.http.TransferProgressListener;
+import org.workhabit.drupal.http.metrics.DrupalEndpoints;
+import org.workhabit.drupal.http.metrics.RequestMetricsListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request manager on the JDK's built-in {@link HttpClient} (java.net.http, Java 11 and later), as an alternative to
+ * {@link AndroidDrupalServicesRequestManagerImpl} for servers and desktop applications.
+ * <p/>
+ * The client prefers HTTP/2.  Against an https origin that negotiates h2 through ALPN, or a cleartext origin that
+ * accepts the h2c upgrade, every request to the site is a stream on one shared connection, so a burst of concurrent
+ * requests needs neither a pool of connections nor a thread apiece.  Origins that only speak HTTP/1.1 get a keep-alive
+ * connection per concurrent request, as with the Apache transport.  The JDK client doesn't cap its connections, so
+ * the pool sizes of {@link HttpTransportConfiguration} don't apply; the connect timeout, socket timeout (applied to
+ * each request as a whole) and compression settings do.
+ * <p/>
+ * Besides the blocking {@link DrupalServicesRequestManager} methods, {@link #getStringAsync}, {@link #postAsync},
+ * {@link #putAsync} and {@link #deleteAsync} send without blocking the calling thread and complete a
+ * {@link CompletableFuture} once the response has been read; cancel the future to abandon the request.  The blocking
+ * methods wait on the same exchanges, registered with the calling thread's {@link CancellationScope}.
+ * <p/>
+ * Cookies are kept by the request manager rather than the client, so that sessions made with {@link #newSession()}
+ * have their own cookies while sharing the client, and with it the HTTP/2 connection.
+ */
+public class JdkDrupalServicesRequestManager implements DrupalServicesRequestManager
+{
+    private static final Logger log = LoggerFactory.getLogger(JdkDrupalServicesRequestManager.class.getSimpleName());
+    private static final String CONTENT_TYPE_FORM_URLENCODED = "application/x-www-form-urlencoded";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_COOKIE = "Cookie";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_CSRF_TOKEN = "X-CSRF-Token";
+    private static final String GZIP = "gzip";
+    private static final String IDENTITY = "identity";
+    private static final String METHOD_GET = "GET";
+    private static final long TRANSFER_BLOCK_SIZE = 64 * 1024;
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final CookieManager cookieManager;
+    private final Duration requestTimeout;
+    private final boolean responseCompressionEnabled;
+    private final boolean requestCompressionEnabled;
+    private final int requestCompressionThreshold;
+    private final boolean sessionScoped;
+    private volatile String csrfToken;
+    private volatile RequestMetricsListener metricsListener;
+
+    public JdkDrupalServicesRequestManager()
+    {
+        this(new HttpTransportConfiguration());
+    }
+
+    public JdkDrupalServicesRequestManager(HttpTransportConfiguration configuration)
+    {
+        this(configuration, HttpClient.Version.HTTP_2);
+    }
+
+    /**
+     * @param configuration the timeouts and compression settings.
+     * @param version       the preferred protocol version.  HTTP_1_1 never attempts HTTP/2, e.g. to compare the two.
+     */
+    public JdkDrupalServicesRequestManager(HttpTransportConfiguration configuration, HttpClient.Version version)
+    {
+        sessionScoped = false;
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "dandy-http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor);
+        if (configuration.getConnectTimeout() > 0) {
+            builder.connectTimeout(Duration.ofMillis(configuration.getConnectTimeout()));
+        }
+        client = builder.build();
+        requestTimeout = configuration.getSocketTimeout() > 0 ? Duration.ofMillis(configuration.getSocketTimeout()) : null;
+        responseCompressionEnabled = configuration.isResponseCompressionEnabled();
+        requestCompressionEnabled = configuration.isRequestCompressionEnabled();
+        requestCompressionThreshold = configuration.getRequestCompressionThreshold();
+        cookieManager = new CookieManager(new HostCookieStore(), CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+    }
+
+    /**
+     * Creates a session over the client of the given request manager: its own cookies and CSRF token, but the same
+     * client and connections.
+     */
+    private JdkDrupalServicesRequestManager(JdkDrupalServicesRequestManager transport)
+    {
+        sessionScoped = true;
+        client = transport.client;
+        executor = transport.executor;
+        requestTimeout = transport.requestTimeout;
+        responseCompressionEnabled = transport.responseCompressionEnabled;
+        requestCompressionEnabled = transport.requestCompressionEnabled;
+        requestCompressionThreshold = transport.requestCompressionThreshold;
+        metricsListener = transport.metricsListener;
+        cookieManager = new CookieManager(new HostCookieStore(), CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+    }
+
+    /**
+     * Creates a request manager for another user of the same site.  The session has its own cookies and CSRF token,
+     * but sends its requests through this request manager's client, so over HTTP/2 all sessions share one connection.
+     * <p/>
+     * The session starts with the metrics listener this request manager has now.  Shutting a session down forgets its
+     * cookies; the client's threads keep running until this request manager is shut down.
+     *
+     * @return a new, logged out session.
+     */
+    public JdkDrupalServicesRequestManager newSession()
+    {
+        return new JdkDrupalServicesRequestManager(this);
+    }
+
+    /**
+     * @return the underlying client, e.g. to check which protocol version a site negotiated.
+     */
+    public HttpClient getClient()
+    {
+        return client;
+    }
+
+    public void setMetricsListener(RequestMetricsListener metricsListener)
+    {
+        this.metricsListener = metricsListener;
+    }
+
+    public RequestMetricsListener getMetricsListener()
+    {
+        return metricsListener;
+    }
+
+    /**
+     * Forgets this request manager's cookies and, unless it is a session, stops the client's threads.  Requests in
+     * flight fail.
+     */
+    public void shutdown()
+    {
+        cookieManager.getCookieStore().removeAll();
+        csrfToken = null;
+        if (!sessionScoped) {
+            executor.shutdownNow();
+        }
+    }
+
+    public ServicesResponse post(String path, String data) throws IOException
+    {
+        HttpRequest.Builder builder = jsonRequest(path);
+        return send(builder, "POST", jsonBody(builder, data));
+    }
+
+    public ServicesResponse post(String path, Map<String, Object> data) throws IOException
+    {
+        return send(formRequest(path), "POST", formBody(data));
+    }
+
+    public ServicesResponse put(String path, Map<String, Object> data) throws IOException
+    {
+        return send(formRequest(path), "PUT", formBody(data));
+    }
+
+    public ServicesResponse put(String path, String data) throws IOException
+    {
+        HttpRequest.Builder builder = jsonRequest(path);
+        return send(builder, "PUT", jsonBody(builder, data));
+    }
+
+    public ServicesResponse delete(String path) throws IOException
+    {
+        return send(newRequest(path, null), "DELETE", null);
+    }
+
+    public ServicesResponse getString(String path) throws IOException
+    {
+        return send(newRequest(path, null), METHOD_GET, null);
+    }
+
+    public ServicesResponse getString(String path, Map<String, String> requestHeaders) throws IOException
+    {
+        return send(newRequest(path, requestHeaders), METHOD_GET, null);
+    }
+
+    /**
+     * Sends a GET request without blocking.
+     *
+     * @param path full URL to the remote server.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> getStringAsync(String path)
+    {
+        return getStringAsync(path, null);
+    }
+
+    /**
+     * Sends a GET request with additional headers, e.g. If-None-Match, without blocking.
+     *
+     * @param path           full URL to the remote server.
+     * @param requestHeaders headers to add to the request.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> getStringAsync(String path, Map<String, String> requestHeaders)
+    {
+        try {
+            return exchange(newRequest(path, requestHeaders), METHOD_GET, null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Posts a json body without blocking.
+     *
+     * @param path full URL to the remote server.
+     * @param data a json object.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> postAsync(String path, String data)
+    {
+        try {
+            HttpRequest.Builder builder = jsonRequest(path);
+            return exchange(builder, "POST", jsonBody(builder, data));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Posts key/value pairs as a form without blocking.
+     *
+     * @param path full URL to the remote server.
+     * @param data the parameters to post.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> postAsync(String path, Map<String, Object> data)
+    {
+        try {
+            return exchange(formRequest(path), "POST", formBody(data));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Puts a json body without blocking.
+     *
+     * @param path full URL to the remote server.
+     * @param data a json object.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> putAsync(String path, String data)
+    {
+        try {
+            HttpRequest.Builder builder = jsonRequest(path);
+            return exchange(builder, "PUT", jsonBody(builder, data));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sends a DELETE request without blocking.
+     *
+     * @param path full URL to the remote server.
+     * @return a future for the response, with the body read.
+     */
+    public CompletableFuture<ServicesResponse> deleteAsync(String path)
+    {
+        try {
+            return exchange(newRequest(path, null), "DELETE", null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Makes an HTTP GET request, returning a stream that reads the response body as it arrives.  The caller must
+     * close the stream; closing it early cancels the rest of the response.
+     *
+     * @param path full URL to the remote server.
+     * @return an input stream representing the response data.
+     * @throws IOException if there's an error during the request.
+     */
+    public InputStream getStream(String path) throws IOException
+    {
+        HttpRequest request = build(newRequest(path, null), METHOD_GET, null);
+        HttpResponse<InputStream> response = stream(request);
+        storeCookies(response);
+        return decode(response.headers(), response.body());
+    }
+
+    /**
+     * Makes an HTTP GET request and passes the response body to the handler as it arrives.  Once the handler returns,
+     * the rest of the body is drained so the connection can be reused; if the handler fails, the rest of the response
+     * is cancelled instead.
+     *
+     * @param path    full URL to the remote server.
+     * @param handler the handler that consumes the response body.
+     * @return the value returned by the handler.
+     * @throws IOException          if there's an error during the request.
+     * @throws DrupalFetchException if the handler could not process the response.
+     */
+    public <T> T get(String path, ServicesResponseHandler<T> handler) throws IOException, DrupalFetchException
+    {
+        HttpRequest request = build(newRequest(path, null), METHOD_GET, null);
+        long started = System.nanoTime();
+        long firstByte = 0;
+        int statusCode = -1;
+        AtomicLong received = new AtomicLong();
+        try {
+            HttpResponse<InputStream> response = stream(request);
+            firstByte = System.nanoTime();
+            statusCode = response.statusCode();
+            storeCookies(response);
+            InputStream wire = new DecodingHttpEntity.CountingInputStream(response.body(), received);
+            boolean completed = false;
+            try {
+                T result = handler.handleResponse(toServicesResponse(response), decode(response.headers(), wire));
+                completed = true;
+                return result;
+            } finally {
+                if (completed) {
+                    drain(wire);
+                }
+                wire.close();
+            }
+        } finally {
+            recordRequest(request, statusCode, started, firstByte, System.nanoTime(), 0, received.get());
+        }
+    }
+
+    /**
+     * Downloads a file without buffering it in memory, resuming a partial download if the destination exists.
+     * Responses are requested without content encoding, so that byte ranges refer to the file itself.
+     *
+     * @param path        full URL to the remote file.
+     * @param destination the file to write to.
+     * @param listener    receives progress updates, or null.
+     * @return the length of the downloaded file.
+     * @throws IOException if there's an error during the request, or the server responds with an error status.
+     */
+    public long download(String path, File destination, TransferProgressListener listener) throws IOException
+    {
+        long existing = destination.isFile() ? destination.length() : 0;
+        HttpRequest.Builder builder = newRequest(path, Collections.singletonMap(HEADER_ACCEPT_ENCODING, IDENTITY));
+        if (existing > 0) {
+            builder.header(HEADER_RANGE, "bytes=" + existing + "-");
+        }
+        HttpRequest request = build(builder, METHOD_GET, null);
+        HttpResponse<InputStream> response = stream(request);
+        storeCookies(response);
+        int status = response.statusCode();
+        InputStream body = response.body();
+        try {
+            if (status == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE && existing > 0) {
+                // nothing left to download
+                drain(body);
+                return existing;
+            }
+            if (status != 200 && status != 206) {
+                drain(body);
+                throw new HttpResponseException(status, reasonPhrase(status));
+            }
+            long offset = 0;
+            long total = response.headers().firstValueAsLong(HEADER_CONTENT_LENGTH).orElse(-1);
+            if (status == 206) {
+                long[] range = parseContentRange(response.headers().firstValue(HEADER_CONTENT_RANGE).orElse(null));
+                if (range == null || range[0] != existing) {
+                    throw new IOException("Unexpected Content-Range for " + path);
+                }
+                offset = existing;
+                total = range[1];
+            }
+            RandomAccessFile file = new RandomAccessFile(destination, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                if (offset == 0) {
+                    channel.truncate(0);
+                }
+                ReadableByteChannel source = Channels.newChannel(body);
+                long position = offset;
+                long transferred;
+                while ((transferred = channel.transferFrom(source, position, TRANSFER_BLOCK_SIZE)) > 0) {
+                    position += transferred;
+                    if (listener != null) {
+                        listener.onProgress(position, total);
+                    }
+                }
+                return position;
+            } finally {
+                file.close();
+            }
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Downloads a file into a channel without buffering it in memory.
+     *
+     * @param path     full URL to the remote file.
+     * @param target   the channel to write to.  It is not closed.
+     * @param listener receives progress updates, or null.
+     * @return the number of bytes written.
+     * @throws IOException if there's an error during the request, or the server responds with an error status.
+     */
+    public long download(String path, WritableByteChannel target, TransferProgressListener listener) throws IOException
+    {
+        HttpRequest request = build(newRequest(path, Collections.singletonMap(HEADER_ACCEPT_ENCODING, IDENTITY)), METHOD_GET, null);
+        HttpResponse<InputStream> response = stream(request);
+        storeCookies(response);
+        InputStream body = response.body();
+        try {
+            if (response.statusCode() != 200) {
+                drain(body);
+                throw new HttpResponseException(response.statusCode(), reasonPhrase(response.statusCode()));
+            }
+            long total = response.headers().firstValueAsLong(HEADER_CONTENT_LENGTH).orElse(-1);
+            ReadableByteChannel source = Channels.newChannel(body);
+            ByteBuffer buffer = ByteBuffer.allocate((int)TRANSFER_BLOCK_SIZE);
+            long written = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+                buffer.clear();
+                if (listener != null) {
+                    listener.onProgress(written, total);
+                }
+            }
+            return written;
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Makes a GET request with additional headers, and writes the response body to the destination if the response is
+     * 200 OK.  Other responses, e.g. 304 Not Modified, are returned without touching the destination.
+     *
+     * @param path           full URL to the remote file.
+     * @param requestHeaders headers to add to the request.
+     * @param destination    the file to write to.
+     * @return the status and headers of the response.
+     * @throws IOException if there's an error during the request.
+     */
+    public ServicesResponse download(String path, Map<String, String> requestHeaders, File destination) throws IOException
+    {
+        HttpRequest request = build(newRequest(path, requestHeaders), METHOD_GET, null);
+        long started = System.nanoTime();
+        long firstByte = 0;
+        int statusCode = -1;
+        AtomicLong received = new AtomicLong();
+        try {
+            HttpResponse<InputStream> response = stream(request);
+            firstByte = System.nanoTime();
+            statusCode = response.statusCode();
+            storeCookies(response);
+            ServicesResponse servicesResponse = toServicesResponse(response);
+            InputStream wire = new DecodingHttpEntity.CountingInputStream(response.body(), received);
+            try {
+                if (statusCode != 200) {
+                    drain(wire);
+                    return servicesResponse;
+                }
+                InputStream in = decode(response.headers(), wire);
+                OutputStream out = new FileOutputStream(destination);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+                return servicesResponse;
+            } finally {
+                wire.close();
+            }
+        } finally {
+            recordRequest(request, statusCode, started, firstByte, System.nanoTime(), 0, received.get());
+        }
+    }
+
+    public ArrayList<GenericCookie> getCookies()
+    {
+        List<HttpCookie> stored = cookieManager.getCookieStore().getCookies();
+        ArrayList<GenericCookie> cookies = new ArrayList<GenericCookie>(stored.size());
+        long now = System.currentTimeMillis();
+        for (HttpCookie cookie : stored) {
+            GenericCookie siteCookie = new GenericCookie();
+            siteCookie.setComment(cookie.getComment());
+            siteCookie.setDomain(cookie.getDomain());
+            siteCookie.setExpiryDate(cookie.getMaxAge() >= 0 ? new Date(now + cookie.getMaxAge() * 1000) : null);
+            siteCookie.setName(cookie.getName());
+            siteCookie.setPath(cookie.getPath());
+            siteCookie.setSecure(cookie.getSecure());
+            siteCookie.setVersion(cookie.getVersion());
+            siteCookie.setValue(cookie.getValue());
+            cookies.add(siteCookie);
+        }
+        return cookies;
+    }
+
+    public void setCsrfToken(String csrfToken)
+    {
+        this.csrfToken = csrfToken;
+    }
+
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName) throws IOException
+    {
+        return postFile(path, fieldName, inputStream, fileName, -1, null);
+    }
+
+    /**
+     * Posts a file as a multipart form, streaming it rather than reading it into memory.  If the length is known the
+     * request is sent with a Content-Length; otherwise it is sent chunked, which not every server accepts.
+     */
+    public ServicesResponse postFile(String path, String fieldName, InputStream inputStream, String fileName, long length, TransferProgressListener listener) throws IOException
+    {
+        if (listener != null) {
+            inputStream = new AndroidDrupalServicesRequestManagerImpl.ProgressInputStream(inputStream, length, listener);
+        }
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        byte[] head = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + fieldName + "\"; filename=\"" + fileName
+                       + "\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        final InputStream body = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(head), inputStream, new ByteArrayInputStream(tail))));
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> body);
+        long sent = -1;
+        if (length >= 0) {
+            sent = head.length + length + tail.length;
+            publisher = HttpRequest.BodyPublishers.fromPublisher(publisher, sent);
+        }
+        HttpRequest.Builder builder = newRequest(path, null)
+                .header(HEADER_CONTENT_TYPE, "multipart/form-data; boundary=" + boundary)
+                .expectContinue(true);
+        return awaitExchange(build(builder, "POST", publisher), Math.max(0, sent));
+    }
+
+    public void initializeSavedState(DrupalSiteContextInstanceState drupalSiteContextInstanceState)
+    {
+        CookieStore store = cookieManager.getCookieStore();
+        store.removeAll();
+        List<GenericCookie> savedCookies = drupalSiteContextInstanceState.getCookies();
+        long now = System.currentTimeMillis();
+        for (GenericCookie genericCookie : savedCookies != null ? savedCookies : Collections.<GenericCookie>emptyList()) {
+            HttpCookie cookie = new HttpCookie(genericCookie.getName(), genericCookie.getValue());
+            cookie.setComment(genericCookie.getComment());
+            cookie.setDomain(genericCookie.getDomain());
+            cookie.setPath(genericCookie.getPath() != null ? genericCookie.getPath() : "/");
+            cookie.setSecure(genericCookie.isSecure());
+            cookie.setVersion(genericCookie.getVersion());
+            Date expiry = genericCookie.getExpiryDate();
+            if (expiry != null) {
+                cookie.setMaxAge(Math.max(0, (expiry.getTime() - now) / 1000));
+            }
+            store.add(cookieUri(cookie), cookie);
+        }
+        csrfToken = drupalSiteContextInstanceState.getCsrfToken();
+    }
+
+    /**
+     * @return the URI a restored cookie was set by, so that the store matches it to requests for the same host.
+     */
+    private static URI cookieUri(HttpCookie cookie)
+    {
+        String domain = cookie.getDomain();
+        if (domain == null) {
+            return null;
+        }
+        try {
+            return new URI(cookie.getSecure() ? "https" : "http", domain.startsWith(".") ? domain.substring(1) : domain, cookie.getPath(), null);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private HttpRequest.Builder jsonRequest(String path) throws IOException
+    {
+        return newRequest(path, null).setHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
+    }
+
+    private HttpRequest.Builder formRequest(String path) throws IOException
+    {
+        return newRequest(path, null).setHeader(HEADER_CONTENT_TYPE, CONTENT_TYPE_FORM_URLENCODED);
+    }
+
+    /**
+     * Starts a request, with this session's cookies and, unless the caller set one, an Accept-Encoding header.
+     */
+    private HttpRequest.Builder newRequest(String path, Map<String, String> requestHeaders) throws IOException
+    {
+        URI uri;
+        try {
+            uri = new URI(path);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + path, e);
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        boolean acceptEncoding = false;
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                builder.setHeader(header.getKey(), header.getValue());
+                acceptEncoding |= HEADER_ACCEPT_ENCODING.equalsIgnoreCase(header.getKey());
+            }
+        }
+        if (responseCompressionEnabled && !acceptEncoding) {
+            builder.setHeader(HEADER_ACCEPT_ENCODING, GZIP);
+        }
+        List<String> cookies = cookieManager.get(uri, Collections.<String, List<String>>emptyMap()).get(HEADER_COOKIE);
+        if (cookies != null && !cookies.isEmpty()) {
+            builder.setHeader(HEADER_COOKIE, String.join("; ", cookies));
+        }
+        return builder;
+    }
+
+    private HttpRequest build(HttpRequest.Builder builder, String method, HttpRequest.BodyPublisher body)
+    {
+        String token = csrfToken;
+        if (token != null && !METHOD_GET.equals(method)) {
+            builder.setHeader(HEADER_CSRF_TOKEN, token);
+        }
+        HttpRequest request = builder.method(method, body != null ? body : HttpRequest.BodyPublishers.noBody()).build();
+        if (log.isDebugEnabled()) {
+            log.debug(method + " : " + request.uri());
+        }
+        return request;
+    }
+
+    private ServicesResponse send(HttpRequest.Builder builder, String method, byte[] body) throws IOException
+    {
+        return awaitExchange(build(builder, method, body != null ? HttpRequest.BodyPublishers.ofByteArray(body) : null), body != null ? body.length : 0);
+    }
+
+    private CompletableFuture<ServicesResponse> exchange(HttpRequest.Builder builder, String method, byte[] body)
+    {
+        return exchange(build(builder, method, body != null ? HttpRequest.BodyPublishers.ofByteArray(body) : null), body != null ? body.length : 0);
+    }
+
+    private ServicesResponse awaitExchange(HttpRequest request, long bytesSent) throws IOException
+    {
+        PendingExchange pending = new PendingExchange();
+        CancellationScope.register(pending);
+        try {
+            return await(pending, exchange(request, bytesSent));
+        } finally {
+            CancellationScope.unregister(pending);
+        }
+    }
+
+    /**
+     * Sends the request and reads the whole response body.  The response headers are timed by the body handler, which
+     * the client calls as soon as they arrive.
+     */
+    private CompletableFuture<ServicesResponse> exchange(final HttpRequest request, final long bytesSent)
+    {
+        final long started = System.nanoTime();
+        final AtomicLong firstByte = new AtomicLong();
+        HttpResponse.BodyHandler<byte[]> handler = responseInfo -> {
+            firstByte.set(System.nanoTime());
+            return HttpResponse.BodySubscribers.ofByteArray();
+        };
+        return client.sendAsync(request, handler).handle((response, failure) -> {
+            long finished = System.nanoTime();
+            if (failure != null) {
+                recordRequest(request, -1, started, firstByte.get(), finished, bytesSent, 0);
+                throw failure instanceof CompletionException ? (CompletionException)failure : new CompletionException(failure);
+            }
+            recordRequest(request, response.statusCode(), started, firstByte.get(), finished, bytesSent, response.body().length);
+            try {
+                storeCookies(response);
+                ServicesResponse servicesResponse = toServicesResponse(response);
+                servicesResponse.setResponseBody(decodeBody(response.headers(), response.body()), charset(response.headers().firstValue(HEADER_CONTENT_TYPE).orElse(null)));
+                return servicesResponse;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Sends a request whose body is read as a stream, once the response headers have arrived.
+     */
+    private HttpResponse<InputStream> stream(HttpRequest request) throws IOException
+    {
+        PendingExchange pending = new PendingExchange();
+        CancellationScope.register(pending);
+        try {
+            return await(pending, client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()));
+        } finally {
+            CancellationScope.unregister(pending);
+        }
+    }
+
+    /**
+     * Waits for an exchange, translating its failure into the IOException the blocking api promises.
+     */
+    private static <T> T await(PendingExchange pending, CompletableFuture<T> future) throws IOException
+    {
+        pending.sending(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Request cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof CancellationException) {
+                // the client reports a cancelled exchange to the stages that depend on it
+                throw new InterruptedIOException("Request cancelled");
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void storeCookies(HttpResponse<?> response) throws IOException
+    {
+        cookieManager.put(response.uri(), response.headers().map());
+    }
+
+    private static ServicesResponse toServicesResponse(HttpResponse<?> response)
+    {
+        ServicesResponse servicesResponse = new ServicesResponse();
+        servicesResponse.setStatusCode(response.statusCode());
+        // HTTP/2 has no reason phrase, and the JDK client doesn't keep HTTP/1.1's
+        servicesResponse.setReasonPhrase(reasonPhrase(response.statusCode()));
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            if (header.getKey().startsWith(":")) {
+                // HTTP/2 pseudo-headers
+                continue;
+            }
+            for (String value : header.getValue()) {
+                servicesResponse.addHeader(header.getKey(), value);
+            }
+        }
+        return servicesResponse;
+    }
+
+    private InputStream decode(HttpHeaders headers, InputStream in) throws IOException
+    {
+        if (GZIP.equalsIgnoreCase(headers.firstValue(HEADER_CONTENT_ENCODING).orElse("").trim())) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * @return the body without its content encoding.
+     */
+    private static byte[] decodeBody(HttpHeaders headers, byte[] body) throws IOException
+    {
+        if (!GZIP.equalsIgnoreCase(headers.firstValue(HEADER_CONTENT_ENCODING).orElse("").trim())) {
+            return body;
+        }
+        return ResponseBodyReader.read(new GZIPInputStream(new ByteArrayInputStream(body)), -1);
+    }
+
+    /**
+     * @return the charset named by a Content-Type header, or null if there isn't one.
+     */
+    private static String charset(String contentType)
+    {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return parameter.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a json request body, gzip encoding it if request compression is enabled and the body is large enough to
+     * benefit.
+     */
+    private byte[] jsonBody(HttpRequest.Builder builder, String data) throws IOException
+    {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        if (!requestCompressionEnabled || bytes.length < requestCompressionThreshold) {
+            return bytes;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(bytes);
+        gzip.close();
+        builder.setHeader(HEADER_CONTENT_ENCODING, GZIP);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encodes parameters as a form, in UTF-8.  Values are sent as their toString, so that they are interpreted by
+     * Drupal's services the same way as with {@link AndroidDrupalServicesRequestManagerImpl}.
+     */
+    private static byte[] formBody(Map<String, Object> data)
+    {
+        StringBuilder form = new StringBuilder();
+        if (data != null) {
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                if (form.length() > 0) {
+                    form.append('&');
+                }
+                form.append(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(entry.getValue().toString(), StandardCharsets.UTF_8));
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("parameter string: " + form);
+        }
+        return form.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void drain(InputStream in) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) != -1) {
+        }
+    }
+
+    /**
+     * Reports a finished exchange to the metrics listener, if there is one.
+     *
+     * @param firstByte {@link System#nanoTime()} when the response headers arrived, or 0 if they didn't.
+     */
+    private void recordRequest(HttpRequest request, int statusCode, long started, long firstByte, long finished, long bytesSent, long bytesReceived)
+    {
+        RequestMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return;
+        }
+        String endpoint = DrupalEndpoints.classify(request.method(), request.uri().toString());
+        if (firstByte == 0) {
+            listener.requestCompleted(endpoint, statusCode, finished - started, 0, bytesSent, bytesReceived);
+        }
+        else {
+            listener.requestCompleted(endpoint, statusCode, firstByte - started, finished - firstByte, bytesSent, bytesReceived);
+        }
+    }
+
+    /**
+     * Parses a Content-Range header of the form "bytes first-last/length".
+     *
+     * @return the first byte position and the complete length (-1 if unknown), or null if the header is missing or
+     *         malformed.
+     */
+    private static long[] parseContentRange(String value)
+    {
+        if (value == null || !value.trim().startsWith("bytes ")) {
+            return null;
+        }
+        value = value.trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            String length = value.substring(slash + 1).trim();
+            return new long[]{first, "*".equals(length) ? -1 : Long.parseLong(length)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String reasonPhrase(int statusCode)
+    {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 406: return "Not Acceptable";
+            case 409: return "Conflict";
+            case 416: return "Requested Range Not Satisfiable";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+    /**
+     * The {@link CancellationScope} handle of a blocking request.  It is registered before the request is sent, so a
+     * request started in a cancelled scope is never sent, and cancels the exchange's future once there is one.
+     */
+    private static class PendingExchange implements Abortable
+    {
+        private Future<?> future;
+        private boolean aborted;
+
+        synchronized void sending(Future<?> future)
+        {
+            this.future = future;
+            if (aborted) {
+                future.cancel(true);
+            }
+        }
+
+        public synchronized void abort()
+        {
+            aborted = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Fills in the domain of host-only cookies from the host that set them, as the Apache client does, so that the
+     * cookies can be saved as {@link GenericCookie}s and restored.
+     */
+    private static class HostCookieStore implements CookieStore
+    {
+        private final CookieStore store = new CookieManager().getCookieStore();
+
+        public void add(URI uri, HttpCookie cookie)
+        {
+            if (cookie.getDomain() == null && uri != null) {
+                cookie.setDomain(uri.getHost());
+            }
+            store.add(uri, cookie);
+        }
+
+        public List<HttpCookie> get(URI uri)
+        {
+            return store.get(uri);
+        }
+
+        public List<HttpCookie> getCookies()
+        {
+            return store.getCookies();
+        }
+
+        public List<URI> getURIs()
+        {
+            return store.getURIs();
+        }
+
+        public boolean remove(URI uri, HttpCookie cookie)
+        {
+            return store.remove(uri, cookie);
+        }
+
+        public boolean removeAll()
+        {
+            return store.removeAll();
+        }
+    }
+}
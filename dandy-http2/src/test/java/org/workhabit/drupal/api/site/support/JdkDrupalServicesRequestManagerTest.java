@@ -0,0 +1,250 @@
+package org.workhabit.drupal.api.site.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceStateImpl;
+import org.workhabit.drupal.http.CancellationScope;
+import org.workhabit.drupal.http.ServicesResponse;
+import org.workhabit.drupal.http.metrics.DrupalEndpoints;
+import org.workhabit.drupal.http.metrics.InMemoryRequestMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JdkDrupalServicesRequestManagerTest
+{
+    @Test
+    public void testCompression() throws Exception
+    {
+        final StringBuilder body = new StringBuilder("{\"nodes\":[");
+        for (int i = 0; i < 200; i++) {
+            body.append(i > 0 ? "," : "").append("{\"nid\":").append(i).append(",\"title\":\"Nöde title\"}");
+        }
+        body.append("]}");
+        final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = start(new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] response;
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    // echo the request body, decoded, so the test can see what was sent
+                    InputStream in = exchange.getRequestBody();
+                    encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                        in = new GZIPInputStream(in);
+                    }
+                    response = readFully(in);
+                }
+                else {
+                    response = body.toString().getBytes("UTF-8");
+                }
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+                    gzip.write(response);
+                    gzip.close();
+                    response = buffer.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                send(exchange, 200, response);
+            }
+        });
+        HttpTransportConfiguration configuration = new HttpTransportConfiguration();
+        configuration.setRequestCompressionEnabled(true);
+        JdkDrupalServicesRequestManager requestManager = new JdkDrupalServicesRequestManager(configuration);
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+        requestManager.setMetricsListener(metrics);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/node/1.json";
+            ServicesResponse response = requestManager.getString(url);
+            assertEquals(200, response.getStatusCode());
+            assertEquals(body.toString(), response.getResponseBody());
+
+            response = requestManager.post(url, body.toString());
+            assertEquals(body.toString(), response.getResponseBody());
+            assertEquals("gzip", encodings.get(0));
+
+            assertEquals(1, metrics.snapshot().get(DrupalEndpoints.NODE_GET).getRequestCount());
+            assertTrue(metrics.snapshot().get(DrupalEndpoints.NODE_GET).getBytesReceived() < body.length());
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSessionsKeepTheirOwnCookies() throws Exception
+    {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = start(new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                readFully(exchange.getRequestBody());
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestHeaders().getFirst("Cookie") + " "
+                             + exchange.getRequestHeaders().getFirst("X-CSRF-Token"));
+                if (exchange.getRequestURI().getPath().endsWith("login.json")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "SESSlocal=abc; path=/");
+                }
+                send(exchange, 200, "{}".getBytes("UTF-8"));
+            }
+        });
+        JdkDrupalServicesRequestManager requestManager = new JdkDrupalServicesRequestManager();
+        JdkDrupalServicesRequestManager session = requestManager.newSession();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/";
+            requestManager.post(url + "user/login.json", "{}");
+            requestManager.setCsrfToken("token");
+            requestManager.getString(url + "node/1.json");
+            requestManager.post(url + "node.json", "{}");
+            session.post(url + "node.json", "{}");
+            assertEquals("POST null null", requests.get(0));
+            assertEquals("GET SESSlocal=abc null", requests.get(1));
+            assertEquals("POST SESSlocal=abc token", requests.get(2));
+            assertEquals("POST null null", requests.get(3));
+
+            ArrayList<GenericCookie> cookies = requestManager.getCookies();
+            assertEquals(1, cookies.size());
+            assertEquals("127.0.0.1", cookies.get(0).getDomain());
+            assertNull(cookies.get(0).getExpiryDate());
+
+            // restoring saved state brings back the cookie and the token
+            DrupalSiteContextInstanceStateImpl state = new DrupalSiteContextInstanceStateImpl();
+            state.setCookies(cookies);
+            state.setCsrfToken("restored");
+            session.initializeSavedState(state);
+            requests.clear();
+            session.post(url + "node.json", "{}");
+            assertEquals("POST SESSlocal=abc restored", requests.get(0));
+        } finally {
+            session.shutdown();
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testAsyncRequestsRunConcurrently() throws Exception
+    {
+        HttpServer server = start(new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                send(exchange, 200, ("{\"path\":\"" + exchange.getRequestURI().getPath() + "\"}").getBytes("UTF-8"));
+            }
+        });
+        JdkDrupalServicesRequestManager requestManager = new JdkDrupalServicesRequestManager();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/node/";
+            List<CompletableFuture<ServicesResponse>> futures = new ArrayList<CompletableFuture<ServicesResponse>>();
+            long started = System.nanoTime();
+            for (int i = 0; i < 16; i++) {
+                futures.add(requestManager.getStringAsync(url + i + ".json"));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("{\"path\":\"/dandy/node/" + i + ".json\"}", futures.get(i).get(10, TimeUnit.SECONDS).getResponseBody());
+            }
+            // sixteen 200ms responses, sent one after the other, would take over three seconds
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2000);
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCancellationAbortsBlockingRequest() throws Exception
+    {
+        HttpServer server = start(new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                send(exchange, 200, "{}".getBytes("UTF-8"));
+            }
+        });
+        JdkDrupalServicesRequestManager requestManager = new JdkDrupalServicesRequestManager();
+        final CancellationScope scope = new CancellationScope();
+        try {
+            Executors.newSingleThreadScheduledExecutor().schedule(new Runnable()
+            {
+                public void run()
+                {
+                    scope.cancel();
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+            long started = System.nanoTime();
+            scope.enter();
+            try {
+                requestManager.getString("http://127.0.0.1:" + server.getAddress().getPort() + "/dandy/node/1.json");
+                fail("request should have been cancelled");
+            } catch (InterruptedIOException e) {
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 4000);
+            } finally {
+                scope.exit();
+            }
+        } finally {
+            requestManager.shutdown();
+            server.stop(0);
+        }
+    }
+
+    private static HttpServer start(HttpHandler handler) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", handler);
+        server.start();
+        return server;
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] response) throws IOException
+    {
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -7,11 +7,15 @@ import android.widget.ListView;
 import com.workhabit.drupal.publisher.support.DrupalDialogHandler;
 import com.workhabit.drupal.publisher.support.DrupalNodeArrayAdapter;
 import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
+import org.workhabit.drupal.api.site.AsyncDrupal7SiteContext;
 import org.workhabit.drupal.api.site.Drupal7SiteContext;
 import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
-import org.workhabit.drupal.api.site.DrupalSiteContext;
+import org.workhabit.drupal.api.site.support.DrupalFuture;
+import org.workhabit.drupal.api.site.support.DrupalFutureListener;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -22,6 +26,7 @@ public abstract class AbstractDrupalNodeListActivity extends AbstractDandyListAc
     protected Drupal7SiteContext drupalSiteContext;
     protected String viewArguments;
     protected String viewName;
+    private DrupalFuture<List<DrupalNode>> pendingNodes;
 
     protected void setViewName(String viewName) {
         this.viewName = viewName;
@@ -35,29 +40,55 @@ public abstract class AbstractDrupalNodeListActivity extends AbstractDandyListAc
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         drupalSiteContext = DandyApplication.getDrupalSiteContext(savedInstanceState);
+        AsyncDrupal7SiteContext asyncDrupalSiteContext = DandyApplication.getAsyncDrupalSiteContext(savedInstanceState);
 
-        try {
-            if (viewName == null || "".equals(viewName)) {
-                viewName = getIntent().getStringExtra("viewName");
+        if (viewName == null || "".equals(viewName)) {
+            viewName = getIntent().getStringExtra("viewName");
+        }
+        if (viewArguments == null) {
+            viewArguments = getIntent().getStringExtra("viewArguments");
+        }
+        setContentView(R.layout.nodelist);
+        // fetch list of recent drupal nodes off the UI thread
+        //
+        pendingNodes = asyncDrupalSiteContext.submit(new Callable<List<DrupalNode>>() {
+            public List<DrupalNode> call() throws DrupalFetchException {
+                return doGetNodes(viewArguments, viewName);
             }
-            if (viewArguments == null) {
-                viewArguments = getIntent().getStringExtra("viewArguments");
+        });
+        pendingNodes.addListener(new DrupalFutureListener<List<DrupalNode>>() {
+            public void onSuccess(final List<DrupalNode> nodes) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        // we use a custom node adapter
+                        if (nodeAdapter == null) {
+                            nodeAdapter = new DrupalNodeArrayAdapter(AbstractDrupalNodeListActivity.this, R.layout.row, nodes);
+                        }
+                        setListAdapter(nodeAdapter);
+                        nodeAdapter.notifyDataSetChanged();
+                    }
+                });
             }
-            // fetch list of recent drupal nodes
-            //
-            List<DrupalNode> nodes = doGetNodes(viewArguments, this.viewName);
 
-            // we use a custom node adapter
-            if (nodeAdapter == null) {
-                nodeAdapter = new DrupalNodeArrayAdapter(this, R.layout.row, nodes);
+            public void onFailure(final Throwable cause) {
+                if (cause instanceof CancellationException) {
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        DrupalDialogHandler.showMessageDialog(AbstractDrupalNodeListActivity.this, cause.getMessage());
+                    }
+                });
             }
-            setListAdapter(nodeAdapter);
-            nodeAdapter.notifyDataSetChanged();
+        });
+    }
 
-        } catch (DrupalFetchException e) {
-            DrupalDialogHandler.showMessageDialog(this, e.getMessage());
+    @Override
+    protected void onDestroy() {
+        if (pendingNodes != null) {
+            pendingNodes.cancel(true);
         }
-        setContentView(R.layout.nodelist);
+        super.onDestroy();
     }
 
     protected abstract List<DrupalNode> doGetNodes(String viewArguments, String viewName) throws DrupalFetchException;
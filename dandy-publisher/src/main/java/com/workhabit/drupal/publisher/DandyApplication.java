@@ -1,11 +1,21 @@
 package com.workhabit.drupal.publisher;
 
 import android.app.Application;
+import android.content.Context;
 import android.os.Bundle;
+import org.workhabit.drupal.api.site.AsyncDrupal7SiteContext;
 import org.workhabit.drupal.api.site.Drupal7SiteContext;
+import org.workhabit.drupal.api.site.impl.AsyncDrupal7SiteContextImpl;
 import org.workhabit.drupal.api.site.impl.DrupalSiteContextInstanceState;
 import org.workhabit.drupal.api.site.impl.v3.Drupal7SiteContextImpl;
 import org.workhabit.drupal.api.site.support.AndroidDrupalServicesRequestManagerImpl;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache;
+import org.workhabit.drupal.api.site.support.DrupalExecutors;
+import org.workhabit.drupal.http.cache.DrupalFileCache;
+import org.workhabit.drupal.http.metrics.InMemoryRequestMetrics;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -16,7 +26,16 @@ public class DandyApplication extends Application
 {
     private static String drupalSiteUrl;
 
+    private static AndroidDrupalServicesRequestManagerImpl requestManager;
     private static Drupal7SiteContextImpl drupalSiteContext;
+    private static AsyncDrupal7SiteContext asyncDrupalSiteContext;
+    private static final int REQUEST_THREADS = 4;
+    // request threads for the async context and for bulk operations
+    private static final ExecutorService requestExecutor = DrupalExecutors.newFixedThreadPool(REQUEST_THREADS);
+    private static final int ENTITY_CACHE_SIZE = 200;
+    private static final long FILE_CACHE_BYTES = 10 * 1024 * 1024;
+    private static DrupalFileCache fileCache;
+    private static final InMemoryRequestMetrics requestMetrics = new InMemoryRequestMetrics();
     private static final String DRUPAL_SITE_CONTEXT_INSTANCE_STATE = "drupalSiteContextInstanceState";
 
     @Override
@@ -36,6 +55,10 @@ public class DandyApplication extends Application
     {
         if (drupalSiteContext == null) {
             drupalSiteContext = new Drupal7SiteContextImpl(drupalSiteUrl, "dandy");
+            drupalSiteContext.setRequestManager(getRequestManager());
+            drupalSiteContext.setEntityCache(new DrupalEntityCache(ENTITY_CACHE_SIZE));
+            drupalSiteContext.setMetricsListener(requestMetrics);
+            drupalSiteContext.setBulkExecutor(requestExecutor);
             if (savedInstanceState != null && savedInstanceState.containsKey(DRUPAL_SITE_CONTEXT_INSTANCE_STATE)) {
                 DrupalSiteContextInstanceState instanceState = (DrupalSiteContextInstanceState)savedInstanceState.getSerializable(DRUPAL_SITE_CONTEXT_INSTANCE_STATE);
                 if (instanceState != null) {
@@ -43,14 +66,68 @@ public class DandyApplication extends Application
                 }
             }
         }
-        // set the android request manager on the context
-        //
-        AndroidDrupalServicesRequestManagerImpl requestManager = new AndroidDrupalServicesRequestManagerImpl();
-        drupalSiteContext.setRequestManager(requestManager);
-
         return drupalSiteContext;
     }
 
+    /**
+     * one request manager, and so one connection pool and one set of session cookies, for the life of the
+     * application.
+     */
+    private static synchronized AndroidDrupalServicesRequestManagerImpl getRequestManager()
+    {
+        if (requestManager == null) {
+            requestManager = new AndroidDrupalServicesRequestManagerImpl();
+        }
+        return requestManager;
+    }
+
+    /**
+     * provides a helper method to return a singleton of an AsyncDrupal7SiteContext, so that activities can make
+     * requests without blocking the UI thread.
+     *
+     * @param savedInstanceState
+     * @return wired instance of AsyncDrupal7SiteContext
+     */
+    public static AsyncDrupal7SiteContext getAsyncDrupalSiteContext(Bundle savedInstanceState)
+    {
+        if (asyncDrupalSiteContext == null) {
+            asyncDrupalSiteContext = new AsyncDrupal7SiteContextImpl(getDrupalSiteContext(savedInstanceState), requestExecutor);
+        }
+        return asyncDrupalSiteContext;
+    }
+
+    /**
+     * @return the entity cache of the site context, or null if the context hasn't been created yet.
+     */
+    public static DrupalEntityCache getEntityCache()
+    {
+        return drupalSiteContext != null ? drupalSiteContext.getEntityCache() : null;
+    }
+
+    /**
+     * @return per-endpoint request metrics for the site context, e.g. to log while profiling.
+     */
+    public static InMemoryRequestMetrics getRequestMetrics()
+    {
+        return requestMetrics;
+    }
+
+    /**
+     * provides a helper method to return a singleton cache for remote files (e.g. images), stored in the
+     * application's cache directory.  Files are downloaded through the site context's request manager, so private
+     * files are fetched with the logged in user's session.
+     *
+     * @param context any context of this application
+     * @return the file cache
+     */
+    public static synchronized DrupalFileCache getFileCache(Context context)
+    {
+        if (fileCache == null) {
+            File directory = new File(context.getCacheDir(), "files");
+            fileCache = new DrupalFileCache(getRequestManager(), directory, FILE_CACHE_BYTES);
+        }
+        return fileCache;
+    }
 
     public static void saveInstanceState(Bundle outState)
     {
@@ -8,10 +8,9 @@ import android.view.View;
 import android.widget.EditText;
 import com.workhabit.drupal.publisher.support.DrupalDialogHandler;
 import org.workhabit.drupal.api.entity.drupal7.DrupalUser;
-import org.workhabit.drupal.api.site.Drupal7SiteContext;
-import org.workhabit.drupal.api.site.DrupalSiteContext;
-import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
-import org.workhabit.drupal.api.site.exceptions.DrupalLoginException;
+import org.workhabit.drupal.api.site.AsyncDrupal7SiteContext;
+import org.workhabit.drupal.api.site.support.DrupalFuture;
+import org.workhabit.drupal.api.site.support.DrupalFutureListener;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -20,7 +19,7 @@ import org.workhabit.drupal.api.site.exceptions.DrupalLoginException;
 public class DrupalLoginActivity extends AbstractDandyActivity implements View.OnClickListener
 {
 
-    private Drupal7SiteContext drupalSiteContext;
+    private AsyncDrupal7SiteContext drupalSiteContext;
     private AlertDialog.Builder progressDialogBuilder;
 
     /**
@@ -33,7 +32,7 @@ public class DrupalLoginActivity extends AbstractDandyActivity implements View.O
         super.onCreate(savedInstanceState);
         setContentView(R.layout.loginscreen);
         findViewById(R.id.login_button).setOnClickListener(this);
-        drupalSiteContext = DandyApplication.getDrupalSiteContext(savedInstanceState);
+        drupalSiteContext = DandyApplication.getAsyncDrupalSiteContext(savedInstanceState);
     }
 
     public void handleRefresh()
@@ -42,32 +41,37 @@ public class DrupalLoginActivity extends AbstractDandyActivity implements View.O
         final AlertDialog progressDialog = progressDialogBuilder.create();
         progressDialog.setOwnerActivity(this);
         progressDialog.show();
-        Thread t = new Thread(new Runnable()
+        doLogin().addListener(new DrupalFutureListener<DrupalUser>()
         {
-            @Override
-            public void run()
+            public void onSuccess(final DrupalUser drupalUser)
             {
-                DrupalUser drupalUser = null;
-                try {
-                    drupalUser = doLogin();
-                    progressDialog.dismiss();
-                    if (drupalUser != null) {
-                        doLoginSuccess();
+                runOnUiThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        progressDialog.dismiss();
+                        if (drupalUser != null) {
+                            doLoginSuccess();
+                        }
+                        else {
+                            doLoginFailed();
+                        }
                     }
-                    else {
-                        doLoginFailed();
-                    }
-                } catch (DrupalLoginException e) {
-                    progressDialog.dismiss();
-                    DrupalDialogHandler.showMessageDialog(progressDialog.getOwnerActivity(), e.getMessage());
-                } catch (DrupalFetchException e) {
-                    progressDialog.dismiss();
-                    DrupalDialogHandler.showMessageDialog(progressDialog.getOwnerActivity(), e.getMessage());
-                }
+                });
+            }
 
+            public void onFailure(final Throwable cause)
+            {
+                runOnUiThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        progressDialog.dismiss();
+                        DrupalDialogHandler.showMessageDialog(progressDialog.getOwnerActivity(), cause.getMessage());
+                    }
+                });
             }
         });
-        t.start();
     }
 
     private void doLoginFailed()
@@ -86,7 +90,7 @@ public class DrupalLoginActivity extends AbstractDandyActivity implements View.O
         this.startActivity(intent);
     }
 
-    private DrupalUser doLogin() throws DrupalLoginException, DrupalFetchException
+    private DrupalFuture<DrupalUser> doLogin()
     {
         String username = ((EditText)findViewById(R.id.login_username)).getText().toString();
         String password = ((EditText)findViewById(R.id.login_password)).getText().toString();
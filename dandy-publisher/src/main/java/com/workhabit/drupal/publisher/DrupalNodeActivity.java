@@ -14,16 +14,19 @@ import com.workhabit.drupal.publisher.support.DrupalDialogHandler;
 import org.workhabit.drupal.api.entity.drupal7.DrupalNode;
 import org.workhabit.drupal.api.entity.drupal7.DrupalComment;
 import org.workhabit.drupal.api.entity.drupal7.DrupalField;
+import org.workhabit.drupal.api.site.AsyncDrupal7SiteContext;
 import org.workhabit.drupal.api.site.Drupal7SiteContext;
 import org.workhabit.drupal.api.site.DrupalSiteContext;
 import org.workhabit.drupal.api.site.exceptions.DrupalFetchException;
+import org.workhabit.drupal.api.site.support.DrupalEntityCache;
+import org.workhabit.drupal.api.site.support.DrupalFuture;
+import org.workhabit.drupal.api.site.support.DrupalFutureListener;
+import org.workhabit.drupal.http.cache.DrupalFileCache;
 
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Copyright 2009 - WorkHabit, Inc. - acs
@@ -33,6 +36,7 @@ public class DrupalNodeActivity extends AbstractDandyActivity
 {
     private boolean initialized = false;
     private DrupalNode lastNode;
+    private DrupalFuture<Bitmap> pendingImage;
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu)
@@ -47,6 +51,13 @@ public class DrupalNodeActivity extends AbstractDandyActivity
     {
         switch (item.getItemId()) {
             case R.id.refresh:
+                // refresh means "from the server", not from the entity cache
+                DrupalEntityCache entityCache = DandyApplication.getEntityCache();
+                if (entityCache != null) {
+                    int nid = getIntent().getExtras().getInt("nid");
+                    entityCache.invalidate(DrupalEntityCache.EntityType.NODE, nid);
+                    entityCache.invalidate(DrupalEntityCache.EntityType.NODE_COMMENTS, nid);
+                }
                 onCreate(null);
                 break;
         }
@@ -66,7 +77,7 @@ public class DrupalNodeActivity extends AbstractDandyActivity
             lastNode = node;
             TextView titleView = (TextView)findViewById(R.id.nodeTitle);
             TextView bodyView = (TextView)findViewById(R.id.nodeBody);
-            fetchAndDisplayImage(drupalSiteContext, node, titleView);
+            fetchAndDisplayImage(DandyApplication.getAsyncDrupalSiteContext(savedInstanceState), node, titleView);
             titleView.setText(node.getTitle());
             // TODO: Support i18n incoming from Drupal
             String nodeContent = String.format("<p>%s</p>", node.getBody().get("und").get(0).getValue().replaceAll("\r\n", "\n").replaceAll("\n\n", "</p><p>"));
@@ -81,83 +92,70 @@ public class DrupalNodeActivity extends AbstractDandyActivity
 
         } catch (DrupalFetchException e) {
             DrupalDialogHandler.showMessageDialog(this, e.getMessage());
-        } catch (IOException e) {
-            DrupalDialogHandler.showMessageDialog(this, e.getMessage());
         }
     }
 
-    private void fetchAndDisplayImage(final Drupal7SiteContext drupalSiteContext, final DrupalNode node, final TextView titleView) throws IOException
+    private void fetchAndDisplayImage(final AsyncDrupal7SiteContext asyncDrupalSiteContext, final DrupalNode node, final TextView titleView)
     {
-        Thread t = new Thread()
+        if (node.getFields() == null || !node.getFields().containsKey("field_title_image")) {
+            return;
+        }
+        WindowManager wm = (WindowManager)getSystemService(WINDOW_SERVICE);
+        final int displayWidth = wm.getDefaultDisplay().getWidth();
+        final DrupalField field = node.getFields().get("field_title_image");
+        final DrupalFileCache fileCache = DandyApplication.getFileCache(this);
+        pendingImage = asyncDrupalSiteContext.submit(new Callable<Bitmap>()
         {
-            @Override
-            public void run()
+            public Bitmap call() throws IOException
             {
-                if (node.getFields() != null) {
-                    Map<String, DrupalField> fields = node.getFields();
-                    for (Map.Entry<String, DrupalField> entry : fields.entrySet()) {
-                        if ("field_title_image".equals(entry.getKey())) {
-                            try {
-                                WindowManager wm = (WindowManager)getSystemService(WINDOW_SERVICE);
-                                int displayWidth = wm.getDefaultDisplay().getWidth();
-
-                                HashMap<String, String> imagedata = entry.getValue().getValues().get(0);
-                                String filepath = "/sites/default/files/imagecache/w" + displayWidth + "/" + imagedata.get("filepath");
-
-                                MessageDigest digest = MessageDigest.getInstance("MD5");
-                                digest.update(filepath.getBytes());
-                                byte messageDigest[] = digest.digest();
-                                StringBuilder hash = new StringBuilder();
-                                for (byte aMessageDigest : messageDigest) {
-                                    hash.append(Integer.toHexString(0xFF & aMessageDigest));
-                                }
-                                File f = new File(getCacheDir() + File.separator + hash.toString());
-
-                                InputStream fileStream;
-                                if (f.exists()) {
-                                    fileStream = new FileInputStream(f);
-                                }
-                                else {
-                                    fileStream = drupalSiteContext.getFileStream(filepath);
-                                    byte[] buf = new byte[1024];
-                                    // persist the file locally
-                                    boolean newFile = f.createNewFile();
-                                    if (newFile) {
-                                        FileOutputStream outStream = new FileOutputStream(f);
-
-                                        int len;
-                                        while ((len = fileStream.read(buf)) > 0) {
-                                            outStream.write(buf, 0, len);
-                                        }
-                                        fileStream.close();
-                                        outStream.close();
-                                        fileStream = new FileInputStream(f);
-                                    }
-                                }
-
-                                Bitmap bitmap = BitmapFactory.decodeStream(new FlushedInputStream(fileStream));
-                                if (bitmap != null) {
-                                    // getStream ratio of width/height for drawable
-                                    float ratio = displayWidth / bitmap.getWidth();
-                                    float newHeight = bitmap.getHeight() * ratio;
-                                    Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, displayWidth, (int)newHeight, false);
-                                    BitmapDrawable bitmapDrawable = new BitmapDrawable(resizedBitmap);
-                                    titleView.setBackgroundDrawable(bitmapDrawable);
-                                    titleView.setHeight((int)newHeight);
-                                    titleView.invalidate();
-                                }
-                            } catch (IOException e) {
-                                // do nothing
-                            } catch (NoSuchAlgorithmException e) {
-                                // don't do anything
-                            }
-
-                        }
-                    }
+                HashMap<String, String> imagedata = field.getValues().get(0);
+                String filepath = "/sites/default/files/imagecache/w" + displayWidth + "/" + imagedata.get("filepath");
+
+                InputStream fileStream = fileCache.openStream(filepath);
+                try {
+                    return BitmapFactory.decodeStream(new FlushedInputStream(fileStream));
+                } finally {
+                    fileStream.close();
                 }
             }
-        };
-        t.start();
+        });
+        pendingImage.addListener(new DrupalFutureListener<Bitmap>()
+        {
+            public void onSuccess(final Bitmap bitmap)
+            {
+                if (bitmap == null) {
+                    return;
+                }
+                runOnUiThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        // getStream ratio of width/height for drawable
+                        float ratio = displayWidth / bitmap.getWidth();
+                        float newHeight = bitmap.getHeight() * ratio;
+                        Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, displayWidth, (int)newHeight, false);
+                        BitmapDrawable bitmapDrawable = new BitmapDrawable(resizedBitmap);
+                        titleView.setBackgroundDrawable(bitmapDrawable);
+                        titleView.setHeight((int)newHeight);
+                        titleView.invalidate();
+                    }
+                });
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                // the title image is decoration; leave the title without it
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        if (pendingImage != null) {
+            pendingImage.cancel(true);
+        }
+        super.onDestroy();
     }
 
     private void fetchAndDisplayComments(Drupal7SiteContext drupalSiteContext, DrupalNode node) throws DrupalFetchException